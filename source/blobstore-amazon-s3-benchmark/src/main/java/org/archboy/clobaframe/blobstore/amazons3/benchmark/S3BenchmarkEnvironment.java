@@ -0,0 +1,77 @@
+package org.archboy.clobaframe.blobstore.amazons3.benchmark;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import org.archboy.clobaframe.blobstore.amazons3.S3BlobResourceRepository;
+
+/**
+ * The stand-in server, the client and the repository under benchmark.
+ *
+ * @author yang
+ *
+ */
+public class S3BenchmarkEnvironment implements Closeable {
+
+	public static final String BUCKET_NAME = "benchmark";
+
+	private S3StandInServer server;
+	private AmazonS3 client;
+	private S3BlobResourceRepository repository;
+
+	/**
+	 *
+	 * @param latency The latency of every request, in millisecond.
+	 * @param maxConnections
+	 * @throws IOException
+	 */
+	public S3BenchmarkEnvironment(long latency, int maxConnections) throws IOException {
+		server = new S3StandInServer();
+		server.setLatency(latency, latency / 2);
+		server.createBucket(BUCKET_NAME);
+
+		client = server.createClient(maxConnections);
+		repository = new S3BlobResourceRepository(client, BUCKET_NAME);
+	}
+
+	public S3StandInServer getServer() {
+		return server;
+	}
+
+	public AmazonS3 getClient() {
+		return client;
+	}
+
+	public S3BlobResourceRepository getRepository() {
+		return repository;
+	}
+
+	/**
+	 * Read the content to the end without keeping it.
+	 *
+	 * @param in
+	 * @param buffer
+	 * @return The number of bytes.
+	 * @throws IOException
+	 */
+	public static long drain(InputStream in, byte[] buffer) throws IOException {
+		long total = 0;
+		try{
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				total += read;
+			}
+		}finally{
+			in.close();
+		}
+		return total;
+	}
+
+	@Override
+	public void close() {
+		((AmazonWebServiceClient)client).shutdown();
+		server.close();
+	}
+}
@@ -0,0 +1,39 @@
+package org.archboy.clobaframe.blobstore.amazons3.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the GC profiler, so the allocation rate
+ * (i.e. "gc.alloc.rate.norm", bytes per operation) is reported together
+ * with the throughput.
+ *
+ * The standard JMH command line options are accepted, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar S3SmallObjectBenchmark -p size=1024 -p latency=0
+ * </pre>
+ *
+ * @author yang
+ *
+ */
+public class S3BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+		ChainedOptionsBuilder builder = new OptionsBuilder()
+				.parent(commandLineOptions)
+				.addProfiler(GCProfiler.class);
+
+		if (commandLineOptions.getIncludes().isEmpty()) {
+			builder.include(S3BenchmarkRunner.class.getPackage().getName() + ".*");
+		}
+
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,129 @@
+package org.archboy.clobaframe.blobstore.amazons3.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.amazons3.S3BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.amazons3.S3FileContentSource;
+import org.archboy.clobaframe.blobstore.amazons3.S3MultipartUploader;
+import org.archboy.clobaframe.blobstore.amazons3.S3ParallelDownloader;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The streaming bandwidth of large objects, the "bytes" counter of
+ * the result is the bandwidth in bytes per second.
+ *
+ * The content is downloaded by one request or by byte ranges in parallel,
+ * and uploaded by multipart upload from the local file.
+ *
+ * @author yang
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class S3LargeObjectBenchmark {
+
+	private static final String KEY = "large";
+
+	@Param({"67108864"})
+	public int size;
+
+	/**
+	 * The concurrency of the parallel download and the multipart upload,
+	 * 0 to download by one request (and upload by one PUT request).
+	 */
+	@Param({"0", "4"})
+	public int concurrency;
+
+	@Param({"0", "5"})
+	public long latency;
+
+	private S3BenchmarkEnvironment environment;
+	private S3BlobResourceRepository repository;
+	private S3ParallelDownloader parallelDownloader;
+	private S3MultipartUploader multipartUploader;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		environment = new S3BenchmarkEnvironment(latency, 64);
+		repository = environment.getRepository();
+
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		environment.getServer().putObject(S3BenchmarkEnvironment.BUCKET_NAME,
+				KEY, data, "application/octet-stream");
+
+		file = Files.createTempFile("s3-benchmark-", ".bin");
+		Files.write(file, data);
+
+		if (concurrency > 0) {
+			long rangeSize = S3MultipartUploader.MIN_PART_SIZE * 2;
+			parallelDownloader = new S3ParallelDownloader(environment.getClient(),
+					rangeSize, rangeSize, concurrency, 3);
+			multipartUploader = new S3MultipartUploader(environment.getClient(),
+					rangeSize, rangeSize, concurrency, 3);
+			repository.setParallelDownloader(parallelDownloader);
+			repository.setMultipartUploader(multipartUploader);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		if (parallelDownloader != null) {
+			parallelDownloader.close();
+			multipartUploader.close();
+		}
+
+		environment.close();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public void get(Counters counters) throws IOException {
+		BlobResourceInfo info = repository.get(KEY);
+		counters.bytes += S3BenchmarkEnvironment.drain(info.getContent(), counters.buffer);
+	}
+
+	@Benchmark
+	public void putFile(Counters counters) throws IOException {
+		repository.put(KEY + "-upload", new S3FileContentSource(file),
+				"application/octet-stream", null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+		counters.bytes += size;
+	}
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+
+		public long bytes;
+
+		private byte[] buffer = new byte[65536];
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+}
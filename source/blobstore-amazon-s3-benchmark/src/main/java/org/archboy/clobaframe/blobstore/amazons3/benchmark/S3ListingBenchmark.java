@@ -0,0 +1,145 @@
+package org.archboy.clobaframe.blobstore.amazons3.benchmark;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+import org.archboy.clobaframe.blobstore.amazons3.S3BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.amazons3.S3CompactPartialList;
+import org.archboy.clobaframe.blobstore.amazons3.S3ListingIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The time of listing all objects of bucket, page by page (optionally
+ * in the compact pages) or by the listing iterator (optionally listing
+ * the next page in background).
+ *
+ * @author yang
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class S3ListingBenchmark {
+
+	@Param({"10000"})
+	public int count;
+
+	@Param({"0", "5"})
+	public long latency;
+
+	/**
+	 * List the next page in background.
+	 */
+	@Param({"false", "true"})
+	public boolean prefetch;
+
+	private S3BenchmarkEnvironment environment;
+	private S3BlobResourceRepository repository;
+	private ExecutorService executorService;
+
+	@Setup
+	public void setup() throws IOException {
+		environment = new S3BenchmarkEnvironment(latency, 16);
+		repository = environment.getRepository();
+
+		byte[] data = new byte[16];
+		for (int idx = 0; idx < count; idx++) {
+			environment.getServer().putObject(S3BenchmarkEnvironment.BUCKET_NAME,
+					String.format("dir%02d/object%08d", idx % 10, idx), data, null);
+		}
+
+		if (prefetch) {
+			executorService = Executors.newFixedThreadPool(2);
+			repository.setListingExecutorService(executorService);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (executorService != null) {
+			executorService.shutdownNow();
+		}
+		environment.close();
+	}
+
+	@Benchmark
+	public int listPages(Blackhole blackhole) {
+		int total = 0;
+		PartialCollection<BlobResourceInfo> collection = repository.list();
+		while (true) {
+			for (BlobResourceInfo info : collection) {
+				blackhole.consume(info.getKey());
+				total++;
+			}
+
+			if (!collection.hasMore()) {
+				break;
+			}
+			collection = repository.listNext(collection);
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int listCompactPages(Blackhole blackhole) {
+		int total = 0;
+		S3CompactPartialList collection = repository.listCompact(null, null);
+		while (true) {
+			for (int idx = 0; idx < collection.size(); idx++) {
+				blackhole.consume(collection.getKey(idx));
+				total++;
+			}
+
+			if (!collection.hasMore()) {
+				break;
+			}
+			collection = (S3CompactPartialList)repository.listNext(collection);
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int iterate(Blackhole blackhole) {
+		int total = 0;
+		S3ListingIterator iterator = repository.iterate();
+		try{
+			while (iterator.hasNext()) {
+				blackhole.consume(iterator.next().getKey());
+				total++;
+			}
+		}finally{
+			iterator.close();
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int iterateDirectory(Blackhole blackhole) {
+		int total = 0;
+		Iterator<BlobResourceInfo> iterator = repository.iterate("dir05/", "/");
+		while (iterator.hasNext()) {
+			blackhole.consume(iterator.next().getKey());
+			total++;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,106 @@
+package org.archboy.clobaframe.blobstore.amazons3.benchmark;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+import org.archboy.clobaframe.blobstore.amazons3.S3BlobResourceRepository;
+
+/**
+ * The retained heap and the GC cost per key of the listing pages that
+ * are held by a long-running scan, the standard pages vs the compact pages.
+ *
+ * JMH does not measure the retained size, so run it separately, e.g.
+ * <pre>
+ * java -Xmx1g -cp target/benchmarks.jar org.archboy.clobaframe.blobstore.amazons3.benchmark.S3ListingFootprint 200000
+ * </pre>
+ *
+ * @author yang
+ *
+ */
+public class S3ListingFootprint {
+
+	public static void main(String[] args) throws IOException {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+		S3BenchmarkEnvironment environment = new S3BenchmarkEnvironment(0, 4);
+		try{
+			byte[] data = new byte[16];
+			for (int idx = 0; idx < count; idx++) {
+				environment.getServer().putObject(S3BenchmarkEnvironment.BUCKET_NAME,
+						String.format("dir%02d/object%08d", idx % 10, idx), data, null);
+			}
+
+			S3BlobResourceRepository repository = environment.getRepository();
+
+			// warm up both modes
+			measure(repository, false, count);
+			measure(repository, true, count);
+
+			measure(repository, false, count);
+			measure(repository, true, count);
+		}finally{
+			environment.close();
+		}
+	}
+
+	private static void measure(S3BlobResourceRepository repository, boolean compact, int count) {
+		long usedBefore = getUsedHeap();
+		long gcCountBefore = getGcCount();
+		long gcTimeBefore = getGcTime();
+
+		List<PartialCollection<BlobResourceInfo>> pages = new ArrayList<PartialCollection<BlobResourceInfo>>();
+		PartialCollection<BlobResourceInfo> collection = compact ?
+				repository.listCompact(null, null) : repository.list();
+		pages.add(collection);
+
+		while (collection.hasMore()) {
+			collection = repository.listNext(collection);
+			pages.add(collection);
+		}
+
+		long gcCount = getGcCount() - gcCountBefore;
+		long gcTime = getGcTime() - gcTimeBefore;
+		long retained = getUsedHeap() - usedBefore;
+
+		int total = 0;
+		for (PartialCollection<BlobResourceInfo> page : pages) {
+			total += page.size();
+		}
+
+		System.out.println(String.format(
+				"%-8s keys: %d, retained: %d bytes/key, GC: %d collections, %d ms",
+				compact ? "compact" : "standard", total, retained / count, gcCount, gcTime));
+	}
+
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+
+		// the collection is not guaranteed, take the min of several runs.
+		for (int idx = 0; idx < 5; idx++) {
+			System.gc();
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+	private static long getGcCount() {
+		long total = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(bean.getCollectionCount(), 0);
+		}
+		return total;
+	}
+
+	private static long getGcTime() {
+		long total = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(bean.getCollectionTime(), 0);
+		}
+		return total;
+	}
+}
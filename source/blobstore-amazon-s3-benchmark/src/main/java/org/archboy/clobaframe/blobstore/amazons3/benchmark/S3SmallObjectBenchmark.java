@@ -0,0 +1,108 @@
+package org.archboy.clobaframe.blobstore.amazons3.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.amazons3.S3BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.amazons3.S3ByteArrayContentSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The put/get throughput of small objects, i.e. the per-request overhead.
+ *
+ * @author yang
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class S3SmallObjectBenchmark {
+
+	private static final int OBJECT_COUNT = 1000;
+
+	@Param({"1024", "65536"})
+	public int size;
+
+	/**
+	 * The latency of every request, in millisecond.
+	 */
+	@Param({"0", "5"})
+	public long latency;
+
+	private S3BenchmarkEnvironment environment;
+	private S3BlobResourceRepository repository;
+	private S3ByteArrayContentSource source;
+
+	@Setup
+	public void setup() throws IOException {
+		environment = new S3BenchmarkEnvironment(latency, 64);
+		repository = environment.getRepository();
+
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		source = new S3ByteArrayContentSource(data);
+
+		for (int idx = 0; idx < OBJECT_COUNT; idx++) {
+			environment.getServer().putObject(S3BenchmarkEnvironment.BUCKET_NAME,
+					getKey(idx), data, "application/octet-stream");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		environment.close();
+	}
+
+	@Benchmark
+	public void put() throws IOException {
+		repository.put(getKey(ThreadLocalRandom.current().nextInt(OBJECT_COUNT)), source,
+				"application/octet-stream", null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+	}
+
+	@Benchmark
+	public long get(BufferState bufferState) throws IOException {
+		BlobResourceInfo info = repository.get(
+				getKey(ThreadLocalRandom.current().nextInt(OBJECT_COUNT)));
+		return S3BenchmarkEnvironment.drain(info.getContent(), bufferState.buffer);
+	}
+
+	/**
+	 * Only check the existence and the metadata (i.e. the HEAD request).
+	 *
+	 * @return
+	 */
+	@Benchmark
+	public long head() throws IOException {
+		BlobResourceInfo info = repository.get(
+				getKey(ThreadLocalRandom.current().nextInt(OBJECT_COUNT)));
+		return info.getContentLength();
+	}
+
+	private static String getKey(int idx) {
+		return "small/" + idx;
+	}
+
+	@State(Scope.Thread)
+	public static class BufferState {
+		private byte[] buffer = new byte[8192];
+	}
+}
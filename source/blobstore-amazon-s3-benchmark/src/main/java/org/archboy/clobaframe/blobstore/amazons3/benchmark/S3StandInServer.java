@@ -0,0 +1,977 @@
+package org.archboy.clobaframe.blobstore.amazons3.benchmark;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * The in-process, in-memory Amazon S3 compatible HTTP server for benchmarking.
+ *
+ * It supports the path-style requests of: bucket create/exist/delete,
+ * object PUT, GET (with Range and If-Match), HEAD and DELETE, object listing
+ * with prefix/delimiter/marker, multi-object delete, multipart upload and
+ * server-side copy (including the multipart copy).
+ * The request signature is not verified.
+ *
+ * The latency (and its random jitter) is added to every request to
+ * simulate the network round trip.
+ *
+ * It is a minimal HTTP/1.1 server (keep-alive connections with the
+ * Content-Length body) instead of the JDK HTTP server, because the latter
+ * changes the case of the response header names (e.g. "ETag") that the
+ * Amazon S3 client matches case-sensitively.
+ *
+ * @author yang
+ *
+ */
+public class S3StandInServer implements Closeable {
+
+	private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+	private static final String XML_NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/";
+	private static final int DEFAULT_MAX_KEYS = 1000;
+
+	private static final Pattern KEY_PATTERN = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+	private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+	private static final Map<Integer, String> REASON_PHRASES = new HashMap<Integer, String>();
+
+	static {
+		REASON_PHRASES.put(200, "OK");
+		REASON_PHRASES.put(204, "No Content");
+		REASON_PHRASES.put(206, "Partial Content");
+		REASON_PHRASES.put(304, "Not Modified");
+		REASON_PHRASES.put(404, "Not Found");
+		REASON_PHRASES.put(405, "Method Not Allowed");
+		REASON_PHRASES.put(409, "Conflict");
+		REASON_PHRASES.put(412, "Precondition Failed");
+		REASON_PHRASES.put(416, "Requested Range Not Satisfiable");
+		REASON_PHRASES.put(500, "Internal Server Error");
+	}
+
+	private ServerSocket serverSocket;
+	private ExecutorService executorService;
+	private volatile boolean closed;
+
+	private volatile long latency; // millisecond
+	private volatile long latencyJitter; // millisecond
+
+	private ConcurrentMap<String, ConcurrentSkipListMap<String, StoredObject>> buckets =
+			new ConcurrentHashMap<String, ConcurrentSkipListMap<String, StoredObject>>();
+	private ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+	private AtomicLong uploadIdSequence = new AtomicLong();
+
+	private AtomicLong requestCount = new AtomicLong();
+
+	/**
+	 * Start the server on a random free port of the loopback address.
+	 *
+	 * @throws IOException
+	 */
+	public S3StandInServer() throws IOException {
+		this(0);
+	}
+
+	public S3StandInServer(int port) throws IOException {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-stand-in-");
+		threadFactory.setDaemon(true);
+		executorService = Executors.newCachedThreadPool(threadFactory);
+
+		serverSocket = new ServerSocket(port, 256, InetAddress.getLoopbackAddress());
+		executorService.execute(new Acceptor());
+	}
+
+	public String getEndpoint() {
+		return "http://" + serverSocket.getInetAddress().getHostAddress() +
+				":" + serverSocket.getLocalPort();
+	}
+
+	/**
+	 *
+	 * @param latency The latency that added to every request, in millisecond.
+	 * @param latencyJitter The max random extra latency, in millisecond.
+	 */
+	public void setLatency(long latency, long latencyJitter) {
+		this.latency = latency;
+		this.latencyJitter = latencyJitter;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public void createBucket(String bucketName) {
+		buckets.putIfAbsent(bucketName, new ConcurrentSkipListMap<String, StoredObject>());
+	}
+
+	/**
+	 * Store the object directly without HTTP request.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param data
+	 * @param contentType
+	 */
+	public void putObject(String bucketName, String key, byte[] data, String contentType) {
+		getBucket(bucketName).put(key, new StoredObject(data, contentType,
+				new HashMap<String, String>(), md5Hex(data)));
+	}
+
+	/**
+	 * Create the Amazon S3 client that connects to this server.
+	 *
+	 * @param maxConnections
+	 * @return
+	 */
+	public AmazonS3 createClient(int maxConnections) {
+		ClientConfiguration config = new ClientConfiguration();
+		config.setProtocol(Protocol.HTTP);
+		config.setMaxConnections(maxConnections);
+		// the signature version 2 sends the plain (not aws-chunked) content.
+		config.setSignerOverride("S3SignerType");
+
+		AmazonS3Client client = new AmazonS3Client(
+				new BasicAWSCredentials("access-key", "secret-key"), config);
+		client.setEndpoint(getEndpoint());
+		client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+		return client;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		IOUtils.closeQuietly(serverSocket);
+		executorService.shutdownNow();
+	}
+
+	private ConcurrentSkipListMap<String, StoredObject> getBucket(String bucketName) {
+		ConcurrentSkipListMap<String, StoredObject> bucket = buckets.get(bucketName);
+		if (bucket == null) {
+			throw new S3Error(404, "NoSuchBucket", "The specified bucket does not exist.");
+		}
+		return bucket;
+	}
+
+	private class Acceptor implements Runnable {
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try{
+					Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					executorService.execute(new Connection(socket));
+				}catch(IOException e){
+					// the server socket is closed.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serve the requests of one keep-alive connection.
+	 */
+	private class Connection implements Runnable {
+
+		private Socket socket;
+
+		public Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try{
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+				Exchange exchange;
+				while (!closed && (exchange = Exchange.read(in, out)) != null) {
+					handle(exchange);
+					exchange.finish();
+				}
+			}catch(IOException e){
+				// the connection is closed by the client.
+			}catch(InterruptedException e){
+				// the server is closed.
+			}finally{
+				IOUtils.closeQuietly(socket);
+			}
+		}
+
+		private void handle(Exchange exchange) throws IOException, InterruptedException {
+			requestCount.incrementAndGet();
+			delay();
+
+			try{
+				dispatch(exchange);
+			}catch(S3Error e){
+				sendError(exchange, e.status, e.code, e.getMessage());
+			}catch(RuntimeException e){
+				sendError(exchange, 500, "InternalError", String.valueOf(e.getMessage()));
+			}
+		}
+
+		private void delay() throws InterruptedException {
+			long jitter = latencyJitter;
+			long value = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+			if (value > 0) {
+				Thread.sleep(value);
+			}
+		}
+
+		private void dispatch(Exchange exchange) throws IOException {
+			String method = exchange.method;
+			Map<String, String> query = parseQuery(exchange.rawQuery);
+
+			String bucketName = exchange.path.substring(1);
+			String key = null;
+
+			int pos = bucketName.indexOf('/');
+			if (pos >= 0) {
+				key = bucketName.substring(pos + 1);
+				bucketName = bucketName.substring(0, pos);
+			}
+
+			if (key == null || key.isEmpty()) {
+				if ("PUT".equals(method)) {
+					createBucket(bucketName);
+					sendEmpty(exchange, 200);
+				}else if ("HEAD".equals(method)) {
+					getBucket(bucketName);
+					sendEmpty(exchange, 200);
+				}else if ("DELETE".equals(method)) {
+					if (!getBucket(bucketName).isEmpty()) {
+						throw new S3Error(409, "BucketNotEmpty", "The bucket is not empty.");
+					}
+					buckets.remove(bucketName);
+					sendEmpty(exchange, 204);
+				}else if ("POST".equals(method) && query.containsKey("delete")) {
+					deleteObjects(exchange, bucketName);
+				}else if ("GET".equals(method) && query.containsKey("acl")) {
+					getBucket(bucketName);
+					sendXml(exchange, 200, "<AccessControlPolicy xmlns=\"" + XML_NAMESPACE + "\">" +
+							"<Owner><ID>owner</ID></Owner><AccessControlList/></AccessControlPolicy>");
+				}else if ("GET".equals(method)) {
+					listObjects(exchange, bucketName, query);
+				}else{
+					throw new S3Error(405, "MethodNotAllowed", method);
+				}
+				return;
+			}
+
+			boolean copy = exchange.requestHeaders.containsKey("x-amz-copy-source");
+
+			if ("PUT".equals(method) && query.containsKey("uploadId") && copy) {
+				copyPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+			}else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+				uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+			}else if ("PUT".equals(method) && copy) {
+				copyObject(exchange, bucketName, key);
+			}else if ("PUT".equals(method)) {
+				putObject(exchange, bucketName, key);
+			}else if ("POST".equals(method) && query.containsKey("uploads")) {
+				initiateMultipartUpload(exchange, bucketName, key);
+			}else if ("POST".equals(method) && query.containsKey("uploadId")) {
+				completeMultipartUpload(exchange, bucketName, key, query.get("uploadId"));
+			}else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+				uploads.remove(query.get("uploadId"));
+				sendEmpty(exchange, 204);
+			}else if ("GET".equals(method) || "HEAD".equals(method)) {
+				getObject(exchange, bucketName, key, "HEAD".equals(method));
+			}else if ("DELETE".equals(method)) {
+				getBucket(bucketName).remove(key);
+				sendEmpty(exchange, 204);
+			}else{
+				throw new S3Error(405, "MethodNotAllowed", method);
+			}
+		}
+
+		private void putObject(Exchange exchange, String bucketName, String key) throws IOException {
+			ConcurrentSkipListMap<String, StoredObject> bucket = getBucket(bucketName);
+			byte[] data = IOUtils.toByteArray(exchange.body);
+			checkContentMd5(exchange, data);
+
+			StoredObject storedObject = new StoredObject(data,
+					exchange.requestHeaders.get("Content-Type"),
+					getUserMetadata(exchange.requestHeaders), md5Hex(data));
+			storedObject.contentEncoding = exchange.requestHeaders.get("Content-Encoding");
+			bucket.put(key, storedObject);
+
+			exchange.responseHeaders.put("ETag", quote(storedObject.eTag));
+			sendEmpty(exchange, 200);
+		}
+
+		private void copyObject(Exchange exchange, String bucketName, String key) throws IOException {
+			StoredObject source = getCopySource(exchange);
+			ConcurrentSkipListMap<String, StoredObject> bucket = getBucket(bucketName);
+
+			StoredObject storedObject;
+			if ("REPLACE".equals(exchange.requestHeaders.get("x-amz-metadata-directive"))) {
+				storedObject = new StoredObject(source.data,
+						exchange.requestHeaders.get("Content-Type"),
+						getUserMetadata(exchange.requestHeaders), source.eTag);
+				storedObject.contentEncoding = exchange.requestHeaders.get("Content-Encoding");
+			}else{
+				storedObject = new StoredObject(source.data, source.contentType,
+						source.userMetadata, source.eTag);
+				storedObject.contentEncoding = source.contentEncoding;
+			}
+			bucket.put(key, storedObject);
+
+			sendXml(exchange, 200, "<CopyObjectResult>" +
+					"<LastModified>" + formatIsoDate(storedObject.lastModified) + "</LastModified>" +
+					"<ETag>" + escape(quote(storedObject.eTag)) + "</ETag>" +
+					"</CopyObjectResult>");
+		}
+
+		private void copyPart(Exchange exchange, String uploadId, int partNumber) throws IOException {
+			Upload upload = uploads.get(uploadId);
+			if (upload == null) {
+				throw new S3Error(404, "NoSuchUpload", "The specified upload does not exist.");
+			}
+
+			StoredObject source = getCopySource(exchange);
+			byte[] data = source.data;
+
+			String range = exchange.requestHeaders.get("x-amz-copy-source-range");
+			if (range != null) {
+				Matcher matcher = RANGE_PATTERN.matcher(range);
+				if (!matcher.matches()) {
+					throw new S3Error(400, "InvalidArgument", "The copy source range is invalid.");
+				}
+
+				int start = Integer.parseInt(matcher.group(1));
+				int end = Integer.parseInt(matcher.group(2));
+				if (start > end || end >= data.length) {
+					throw new S3Error(416, "InvalidRange", "The requested range is not satisfiable.");
+				}
+				data = Arrays.copyOfRange(data, start, end + 1);
+			}
+
+			upload.parts.put(partNumber, data);
+
+			sendXml(exchange, 200, "<CopyPartResult>" +
+					"<LastModified>" + formatIsoDate(new Date()) + "</LastModified>" +
+					"<ETag>" + escape(quote(md5Hex(data))) + "</ETag>" +
+					"</CopyPartResult>");
+		}
+
+		private StoredObject getCopySource(Exchange exchange) throws IOException {
+			String copySource = URLDecoder.decode(
+					exchange.requestHeaders.get("x-amz-copy-source"), "UTF-8");
+			if (copySource.startsWith("/")) {
+				copySource = copySource.substring(1);
+			}
+
+			int pos = copySource.indexOf('/');
+			if (pos <= 0) {
+				throw new S3Error(400, "InvalidArgument", "The copy source is invalid.");
+			}
+
+			StoredObject source = getBucket(copySource.substring(0, pos)).get(copySource.substring(pos + 1));
+			if (source == null) {
+				throw new S3Error(404, "NoSuchKey", "The specified key does not exist.");
+			}
+
+			String ifMatch = exchange.requestHeaders.get("x-amz-copy-source-if-match");
+			if (ifMatch != null && !unquote(ifMatch).equals(source.eTag)) {
+				throw new S3Error(412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold.");
+			}
+
+			return source;
+		}
+
+		private void getObject(Exchange exchange, String bucketName, String key,
+				boolean head) throws IOException {
+			StoredObject storedObject = getBucket(bucketName).get(key);
+			if (storedObject == null) {
+				throw new S3Error(404, "NoSuchKey", "The specified key does not exist.");
+			}
+
+			String ifMatch = exchange.requestHeaders.get("If-Match");
+			if (ifMatch != null && !unquote(ifMatch).equals(storedObject.eTag)) {
+				throw new S3Error(412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold.");
+			}
+
+			String ifNoneMatch = exchange.requestHeaders.get("If-None-Match");
+			if (ifNoneMatch != null && unquote(ifNoneMatch).equals(storedObject.eTag)) {
+				setObjectHeaders(exchange.responseHeaders, storedObject);
+				sendEmpty(exchange, 304);
+				return;
+			}
+
+			String ifModifiedSince = exchange.requestHeaders.get("If-Modified-Since");
+			if (ifNoneMatch == null && ifModifiedSince != null &&
+					storedObject.lastModified.getTime() / 1000 <= parseHttpDate(ifModifiedSince).getTime() / 1000) {
+				setObjectHeaders(exchange.responseHeaders, storedObject);
+				sendEmpty(exchange, 304);
+				return;
+			}
+
+			byte[] data = storedObject.data;
+			int start = 0;
+			int end = data.length - 1;
+			int status = 200;
+
+			String range = exchange.requestHeaders.get("Range");
+			if (range != null && !head) {
+				Matcher matcher = RANGE_PATTERN.matcher(range);
+				if (matcher.matches()) {
+					if (matcher.group(1).isEmpty()) {
+						start = Math.max(0, data.length - Integer.parseInt(matcher.group(2)));
+					}else{
+						start = Integer.parseInt(matcher.group(1));
+						if (!matcher.group(2).isEmpty()) {
+							end = Math.min(end, Integer.parseInt(matcher.group(2)));
+						}
+					}
+
+					if (start >= data.length) {
+						throw new S3Error(416, "InvalidRange", "The requested range is not satisfiable.");
+					}
+
+					status = 206;
+					exchange.responseHeaders.put("Content-Range",
+							"bytes " + start + "-" + end + "/" + data.length);
+				}
+			}
+
+			setObjectHeaders(exchange.responseHeaders, storedObject);
+
+			int length = end - start + 1;
+			if (head) {
+				exchange.responseHeaders.put("Content-Length", String.valueOf(length));
+				exchange.send(status, null, 0, 0);
+				return;
+			}
+
+			exchange.send(status, data, start, length);
+		}
+
+		private void listObjects(Exchange exchange, String bucketName,
+				Map<String, String> query) throws IOException {
+			ConcurrentSkipListMap<String, StoredObject> bucket = getBucket(bucketName);
+
+			String prefix = valueOf(query.get("prefix"));
+			String delimiter = query.get("delimiter");
+			String marker = valueOf(query.get("marker"));
+			int maxKeys = query.containsKey("max-keys") ?
+					Integer.parseInt(query.get("max-keys")) : DEFAULT_MAX_KEYS;
+
+			ConcurrentNavigableMap<String, StoredObject> candidates = marker.compareTo(prefix) >= 0 ?
+					bucket.tailMap(marker, false) : bucket.tailMap(prefix, true);
+
+			StringBuilder contents = new StringBuilder();
+			List<String> commonPrefixes = new ArrayList<String>();
+			String lastMarker = null;
+			int count = 0;
+			boolean truncated = false;
+
+			for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+				String key = entry.getKey();
+				if (!key.startsWith(prefix)) {
+					break;
+				}
+
+				String commonPrefix = null;
+				if (delimiter != null && !delimiter.isEmpty()) {
+					int pos = key.indexOf(delimiter, prefix.length());
+					if (pos >= 0) {
+						commonPrefix = key.substring(0, pos + delimiter.length());
+						if (commonPrefix.equals(lastMarker) || commonPrefix.equals(marker)) {
+							continue;
+						}
+					}
+				}
+
+				if (count >= maxKeys) {
+					truncated = true;
+					break;
+				}
+
+				if (commonPrefix != null) {
+					commonPrefixes.add(commonPrefix);
+					lastMarker = commonPrefix;
+				}else{
+					StoredObject storedObject = entry.getValue();
+					contents.append("<Contents><Key>").append(escape(key)).append("</Key>")
+							.append("<LastModified>").append(formatIsoDate(storedObject.lastModified)).append("</LastModified>")
+							.append("<ETag>").append(escape(quote(storedObject.eTag))).append("</ETag>")
+							.append("<Size>").append(storedObject.data.length).append("</Size>")
+							.append("<StorageClass>STANDARD</StorageClass></Contents>");
+					lastMarker = key;
+				}
+				count++;
+			}
+
+			StringBuilder builder = new StringBuilder();
+			builder.append("<ListBucketResult xmlns=\"").append(XML_NAMESPACE).append("\">")
+					.append("<Name>").append(escape(bucketName)).append("</Name>")
+					.append("<Prefix>").append(escape(prefix)).append("</Prefix>")
+					.append("<Marker>").append(escape(marker)).append("</Marker>")
+					.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+
+			if (delimiter != null) {
+				builder.append("<Delimiter>").append(escape(delimiter)).append("</Delimiter>");
+			}
+
+			builder.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+
+			if (truncated) {
+				builder.append("<NextMarker>").append(escape(lastMarker)).append("</NextMarker>");
+			}
+
+			builder.append(contents);
+
+			for (String commonPrefix : commonPrefixes) {
+				builder.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix))
+						.append("</Prefix></CommonPrefixes>");
+			}
+
+			builder.append("</ListBucketResult>");
+			sendXml(exchange, 200, builder.toString());
+		}
+
+		private void deleteObjects(Exchange exchange, String bucketName) throws IOException {
+			ConcurrentSkipListMap<String, StoredObject> bucket = getBucket(bucketName);
+			String body = new String(IOUtils.toByteArray(exchange.body), "UTF-8");
+			boolean quiet = body.contains("<Quiet>true</Quiet>");
+
+			StringBuilder builder = new StringBuilder();
+			builder.append("<DeleteResult xmlns=\"").append(XML_NAMESPACE).append("\">");
+
+			Matcher matcher = KEY_PATTERN.matcher(body);
+			while (matcher.find()) {
+				String key = unescape(matcher.group(1));
+				bucket.remove(key);
+
+				if (!quiet) {
+					builder.append("<Deleted><Key>").append(escape(key)).append("</Key></Deleted>");
+				}
+			}
+
+			builder.append("</DeleteResult>");
+			sendXml(exchange, 200, builder.toString());
+		}
+
+		private void initiateMultipartUpload(Exchange exchange, String bucketName,
+				String key) throws IOException {
+			getBucket(bucketName);
+
+			String uploadId = "upload-" + uploadIdSequence.incrementAndGet();
+			Upload upload = new Upload(bucketName, key,
+					exchange.requestHeaders.get("Content-Type"),
+					getUserMetadata(exchange.requestHeaders));
+			upload.contentEncoding = exchange.requestHeaders.get("Content-Encoding");
+			uploads.put(uploadId, upload);
+
+			sendXml(exchange, 200, "<InitiateMultipartUploadResult xmlns=\"" + XML_NAMESPACE + "\">" +
+					"<Bucket>" + escape(bucketName) + "</Bucket>" +
+					"<Key>" + escape(key) + "</Key>" +
+					"<UploadId>" + uploadId + "</UploadId>" +
+					"</InitiateMultipartUploadResult>");
+		}
+
+		private void uploadPart(Exchange exchange, String uploadId, int partNumber) throws IOException {
+			Upload upload = uploads.get(uploadId);
+			if (upload == null) {
+				throw new S3Error(404, "NoSuchUpload", "The specified upload does not exist.");
+			}
+
+			byte[] data = IOUtils.toByteArray(exchange.body);
+			checkContentMd5(exchange, data);
+			upload.parts.put(partNumber, data);
+
+			exchange.responseHeaders.put("ETag", quote(md5Hex(data)));
+			sendEmpty(exchange, 200);
+		}
+
+		/**
+		 * Reject the body that does not match the "Content-MD5" header.
+		 */
+		private void checkContentMd5(Exchange exchange, byte[] data) {
+			String contentMd5 = exchange.requestHeaders.get("Content-MD5");
+			if (contentMd5 != null && !contentMd5.equals(Base64.getEncoder().encodeToString(md5(data)))) {
+				throw new S3Error(400, "BadDigest", "The Content-MD5 you specified did not match what we received.");
+			}
+		}
+
+		private void completeMultipartUpload(Exchange exchange, String bucketName,
+				String key, String uploadId) throws IOException {
+			Upload upload = uploads.remove(uploadId);
+			if (upload == null) {
+				throw new S3Error(404, "NoSuchUpload", "The specified upload does not exist.");
+			}
+
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			ByteArrayOutputStream digests = new ByteArrayOutputStream();
+			for (byte[] part : upload.parts.values()) {
+				content.write(part);
+				digests.write(md5(part));
+			}
+
+			String eTag = toHex(md5(digests.toByteArray())) + "-" + upload.parts.size();
+			StoredObject storedObject = new StoredObject(content.toByteArray(),
+					upload.contentType, upload.userMetadata, eTag);
+			storedObject.contentEncoding = upload.contentEncoding;
+			getBucket(bucketName).put(key, storedObject);
+
+			sendXml(exchange, 200, "<CompleteMultipartUploadResult xmlns=\"" + XML_NAMESPACE + "\">" +
+					"<Location>" + escape(getEndpoint() + "/" + bucketName + "/" + key) + "</Location>" +
+					"<Bucket>" + escape(bucketName) + "</Bucket>" +
+					"<Key>" + escape(key) + "</Key>" +
+					"<ETag>" + escape(quote(eTag)) + "</ETag>" +
+					"</CompleteMultipartUploadResult>");
+		}
+
+		private void setObjectHeaders(Map<String, String> headers, StoredObject storedObject) {
+			headers.put("ETag", quote(storedObject.eTag));
+			headers.put("Last-Modified", formatHttpDate(storedObject.lastModified));
+			headers.put("Accept-Ranges", "bytes");
+
+			if (storedObject.contentType != null) {
+				headers.put("Content-Type", storedObject.contentType);
+			}
+
+			if (storedObject.contentEncoding != null) {
+				headers.put("Content-Encoding", storedObject.contentEncoding);
+			}
+
+			for (Map.Entry<String, String> entry : storedObject.userMetadata.entrySet()) {
+				headers.put("x-amz-meta-" + entry.getKey(), entry.getValue());
+			}
+		}
+
+		private void sendEmpty(Exchange exchange, int status) throws IOException {
+			exchange.send(status, null, 0, 0);
+		}
+
+		private void sendXml(Exchange exchange, int status, String xml) throws IOException {
+			byte[] data = (XML_HEADER + xml).getBytes("UTF-8");
+			exchange.responseHeaders.put("Content-Type", "application/xml");
+			exchange.send(status, data, 0, data.length);
+		}
+
+		private void sendError(Exchange exchange, int status, String code, String message) throws IOException {
+			exchange.responseHeaders.clear();
+
+			if ("HEAD".equals(exchange.method)) {
+				exchange.send(status, null, 0, 0);
+				return;
+			}
+
+			sendXml(exchange, status, "<Error><Code>" + code + "</Code>" +
+					"<Message>" + escape(message) + "</Message>" +
+					"<RequestId>0</RequestId><HostId>stand-in</HostId></Error>");
+		}
+	}
+
+	/**
+	 * One HTTP request and its response.
+	 */
+	private static class Exchange {
+
+		private String method;
+		private String path;
+		private String rawQuery;
+		private Map<String, String> requestHeaders =
+				new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		private InputStream body;
+
+		private Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+		private OutputStream out;
+
+		/**
+		 *
+		 * @param in
+		 * @param out
+		 * @return NULL if the connection is closed by the client.
+		 * @throws IOException
+		 */
+		public static Exchange read(InputStream in, OutputStream out) throws IOException {
+			String requestLine = readLine(in);
+			if (requestLine == null) {
+				return null;
+			}
+
+			String[] parts = requestLine.split(" ");
+			if (parts.length < 2) {
+				throw new EOFException("Invalid request line: " + requestLine);
+			}
+
+			Exchange exchange = new Exchange();
+			exchange.out = out;
+			exchange.method = parts[0];
+
+			String uri = parts[1];
+			int pos = uri.indexOf('?');
+			String rawPath = (pos < 0) ? uri : uri.substring(0, pos);
+			exchange.path = URLDecoder.decode(rawPath.replace("+", "%2B"), "UTF-8");
+			exchange.rawQuery = (pos < 0) ? null : uri.substring(pos + 1);
+
+			String line;
+			while ((line = readLine(in)) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					exchange.requestHeaders.put(line.substring(0, colon).trim(),
+							line.substring(colon + 1).trim());
+				}
+			}
+
+			String contentLength = exchange.requestHeaders.get("Content-Length");
+			long length = (contentLength == null) ? 0 : Long.parseLong(contentLength);
+
+			if (length > 0 && "100-continue".equalsIgnoreCase(exchange.requestHeaders.get("Expect"))) {
+				out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+				out.flush();
+			}
+
+			BoundedInputStream body = new BoundedInputStream(in, length);
+			body.setPropagateClose(false);
+			exchange.body = body;
+			return exchange;
+		}
+
+		/**
+		 *
+		 * @param status
+		 * @param data Optional.
+		 * @param offset
+		 * @param length
+		 * @throws IOException
+		 */
+		public void send(int status, byte[] data, int offset, int length) throws IOException {
+			if (!responseHeaders.containsKey("Content-Length")) {
+				responseHeaders.put("Content-Length", String.valueOf(data == null ? 0 : length));
+			}
+			responseHeaders.put("Date", formatHttpDate(new Date()));
+			responseHeaders.put("x-amz-request-id", "0");
+
+			String reasonPhrase = REASON_PHRASES.get(status);
+			StringBuilder builder = new StringBuilder();
+			builder.append("HTTP/1.1 ").append(status).append(' ')
+					.append(reasonPhrase == null ? "Unknown" : reasonPhrase).append("\r\n");
+
+			for (Map.Entry<String, String> entry : responseHeaders.entrySet()) {
+				builder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+			}
+			builder.append("\r\n");
+
+			out.write(builder.toString().getBytes("UTF-8"));
+			if (data != null) {
+				out.write(data, offset, length);
+			}
+			out.flush();
+		}
+
+		/**
+		 * Skip the unread request body so the connection can be reused.
+		 *
+		 * @throws IOException
+		 */
+		public void finish() throws IOException {
+			IOUtils.skip(body, Long.MAX_VALUE);
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder builder = new StringBuilder();
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == '\n') {
+					int length = builder.length();
+					if (length > 0 && builder.charAt(length - 1) == '\r') {
+						builder.setLength(length - 1);
+					}
+					return builder.toString();
+				}
+				builder.append((char)b);
+			}
+			return (builder.length() == 0) ? null : builder.toString();
+		}
+	}
+
+	private static Map<String, String> getUserMetadata(Map<String, String> headers) {
+		Map<String, String> userMetadata = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : headers.entrySet()) {
+			String name = entry.getKey().toLowerCase(Locale.ENGLISH);
+			if (name.startsWith("x-amz-meta-")) {
+				userMetadata.put(name.substring("x-amz-meta-".length()), entry.getValue());
+			}
+		}
+		return userMetadata;
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> query = new HashMap<String, String>();
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return query;
+		}
+
+		for (String pair : rawQuery.split("&")) {
+			int pos = pair.indexOf('=');
+			if (pos < 0) {
+				query.put(URLDecoder.decode(pair, "UTF-8"), "");
+			}else{
+				query.put(URLDecoder.decode(pair.substring(0, pos), "UTF-8"),
+						URLDecoder.decode(pair.substring(pos + 1), "UTF-8"));
+			}
+		}
+		return query;
+	}
+
+	private static String valueOf(String value) {
+		return (value == null) ? "" : value;
+	}
+
+	private static String quote(String value) {
+		return "\"" + value + "\"";
+	}
+
+	private static String unquote(String value) {
+		return value.replace("\"", "");
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+				.replace("\"", "&quot;").replace("'", "&apos;");
+	}
+
+	private static String unescape(String value) {
+		return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+				.replace("&apos;", "'").replace("&amp;", "&");
+	}
+
+	private static String formatHttpDate(Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(date);
+	}
+
+	private static Date parseHttpDate(String value) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try{
+			return format.parse(value);
+		}catch(ParseException e){
+			throw new S3Error(400, "InvalidArgument", "Invalid date: " + value);
+		}
+	}
+
+	private static String formatIsoDate(Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(date);
+	}
+
+	private static byte[] md5(byte[] data) {
+		try{
+			return MessageDigest.getInstance("MD5").digest(data);
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String md5Hex(byte[] data) {
+		return toHex(md5(data));
+	}
+
+	private static String toHex(byte[] data) {
+		StringBuilder builder = new StringBuilder();
+		for (byte b : data) {
+			builder.append(String.format("%02x", b));
+		}
+		return builder.toString();
+	}
+
+	private static class StoredObject {
+		private byte[] data;
+		private String contentType;
+		private String contentEncoding; // optional
+		private Map<String, String> userMetadata;
+		private String eTag;
+		private Date lastModified = new Date();
+
+		public StoredObject(byte[] data, String contentType,
+				Map<String, String> userMetadata, String eTag) {
+			this.data = data;
+			this.contentType = contentType;
+			this.userMetadata = userMetadata;
+			this.eTag = eTag;
+		}
+	}
+
+	private static class Upload {
+		private String bucketName;
+		private String key;
+		private String contentType;
+		private String contentEncoding; // optional
+		private Map<String, String> userMetadata;
+		private ConcurrentSkipListMap<Integer, byte[]> parts = new ConcurrentSkipListMap<Integer, byte[]>();
+
+		public Upload(String bucketName, String key, String contentType,
+				Map<String, String> userMetadata) {
+			this.bucketName = bucketName;
+			this.key = key;
+			this.contentType = contentType;
+			this.userMetadata = userMetadata;
+		}
+	}
+
+	private static class S3Error extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private int status;
+		private String code;
+
+		public S3Error(int status, String code, String message) {
+			super(message);
+			this.status = status;
+			this.code = code;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.util.concurrent.CompletableFuture;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+import org.springframework.util.Assert;
+
+/**
+ * The asynchronous facade of {@link BlobResourceRepository}.
+ *
+ * Each operation runs on the {@link S3AsyncExecutor}, and the returned
+ * future completes exceptionally with the original exception (e.g. the
+ * {@link java.io.IOException}) when the operation fails.
+ *
+ * @author yang
+ *
+ */
+public class S3AsyncBlobResourceRepository {
+
+	private BlobResourceRepository repository;
+	private S3AsyncExecutor asyncExecutor;
+
+	public S3AsyncBlobResourceRepository(BlobResourceRepository repository,
+			S3AsyncExecutor asyncExecutor) {
+		Assert.notNull(repository);
+		Assert.notNull(asyncExecutor);
+
+		this.repository = repository;
+		this.asyncExecutor = asyncExecutor;
+	}
+
+	public String getName() {
+		return repository.getName();
+	}
+
+	/**
+	 * Get the underlying blocking repository.
+	 *
+	 * @return
+	 */
+	public BlobResourceRepository getRepository() {
+		return repository;
+	}
+
+	public CompletableFuture<Void> put(BlobResourceInfo blobResourceInfo) {
+		return put(blobResourceInfo, false, BlobResourceRepository.PRIORITY_DEFAULT);
+	}
+
+	public CompletableFuture<Void> put(BlobResourceInfo blobResourceInfo,
+			boolean publicReadable, int priority) {
+		Assert.notNull(blobResourceInfo);
+
+		return asyncExecutor.submit(getName(), () -> {
+			repository.put(blobResourceInfo, publicReadable, priority);
+			return null;
+		});
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The future of NULL if the blob does not exist.
+	 */
+	public CompletableFuture<BlobResourceInfo> get(String key) {
+		Assert.notNull(key);
+
+		return asyncExecutor.submit(getName(), () -> repository.get(key));
+	}
+
+	public CompletableFuture<Void> delete(String key) {
+		Assert.notNull(key);
+
+		return asyncExecutor.submit(getName(), () -> {
+			repository.delete(key);
+			return null;
+		});
+	}
+
+	public CompletableFuture<PartialCollection<BlobResourceInfo>> list() {
+		return asyncExecutor.submit(getName(), () -> repository.list());
+	}
+
+	public CompletableFuture<PartialCollection<BlobResourceInfo>> listNext(
+			PartialCollection<BlobResourceInfo> prevCollection) {
+		return asyncExecutor.submit(getName(), () -> repository.listNext(prevCollection));
+	}
+}
@@ -0,0 +1,210 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Run the blocking blobstore operations asynchronously.
+ *
+ * The number of in-flight operations of each repository is limited, the
+ * exceeded operations are queued (without occupying any thread) until
+ * the previous ones finish, so one slow bucket can not exhaust the threads
+ * and connections. The queue is bounded too, the operation that exceeds
+ * it fails with {@link RejectedExecutionException} immediately.
+ *
+ * Cancelling the future of a queued operation skips it, and cancelling a
+ * running one interrupts its thread. The running operation keeps its
+ * in-flight slot until the blocking call actually returns, since the thread
+ * and the connection are still in use until then.
+ *
+ * @author yang
+ *
+ */
+public class S3AsyncExecutor {
+
+	private static final Logger logger = LoggerFactory.getLogger(S3AsyncExecutor.class);
+
+	private ExecutorService executorService;
+	private int maxInFlight;
+	private int maxPending;
+
+	private ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+	/**
+	 *
+	 * @param executorService
+	 * @param maxInFlight The max number of in-flight operations of each repository.
+	 * @param maxPending The max number of queued operations of each repository.
+	 */
+	public S3AsyncExecutor(ExecutorService executorService, int maxInFlight, int maxPending) {
+		Assert.notNull(executorService);
+		Assert.isTrue(maxInFlight > 0);
+		Assert.isTrue(maxPending >= 0);
+
+		this.executorService = executorService;
+		this.maxInFlight = maxInFlight;
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Create the executor service.
+	 *
+	 * @param threads The number of platform threads.
+	 * @param virtualThreads Use one virtual thread per operation instead
+	 *	of the platform threads if the JVM supports.
+	 * @return
+	 */
+	public static ExecutorService createExecutorService(int threads, boolean virtualThreads) {
+		if (virtualThreads) {
+			try{
+				// Java 21 and above
+				Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService)method.invoke(null);
+			}catch(ReflectiveOperationException e){
+				logger.info("Virtual thread is not supported by this JVM, use {} platform threads instead.",
+						threads);
+			}
+		}
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-async-");
+		threadFactory.setDaemon(true);
+		return Executors.newFixedThreadPool(threads, threadFactory);
+	}
+
+	/**
+	 * Submit the operation.
+	 *
+	 * @param repositoryName The operation is limited by this name.
+	 * @param task
+	 * @return The future that fails with {@link RejectedExecutionException}
+	 *	if there are too many queued operations of the repository.
+	 */
+	public <T> CompletableFuture<T> submit(String repositoryName, Callable<T> task) {
+		Limiter limiter = limiters.computeIfAbsent(repositoryName, name -> new Limiter());
+
+		CompletableFuture<T> future = new CompletableFuture<>();
+		Task<T> runnable = new Task<>(task, future, limiter);
+
+		// the CompletableFuture does not interrupt the running task by itself.
+		future.whenComplete((result, e) -> {
+			if (future.isCancelled()) {
+				runnable.interrupt();
+			}
+		});
+
+		limiter.dispatch(runnable);
+		return future;
+	}
+
+	/**
+	 * Shutdown the threads.
+	 */
+	public void close() {
+		executorService.shutdownNow();
+	}
+
+	private class Task<T> implements Runnable {
+
+		private Callable<T> callable;
+		private CompletableFuture<T> future;
+		private Limiter limiter;
+		private Thread thread; // the running thread
+
+		public Task(Callable<T> callable, CompletableFuture<T> future, Limiter limiter) {
+			this.callable = callable;
+			this.future = future;
+			this.limiter = limiter;
+		}
+
+		@Override
+		public void run() {
+			try{
+				// skip the cancelled operation.
+				if (start()) {
+					future.complete(callable.call());
+				}
+			}catch(Throwable e){
+				future.completeExceptionally(e);
+			}finally{
+				finish();
+				limiter.complete();
+			}
+		}
+
+		public synchronized void interrupt() {
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+
+		private synchronized boolean start() {
+			if (future.isDone()) {
+				return false;
+			}
+
+			thread = Thread.currentThread();
+			return true;
+		}
+
+		private void finish() {
+			synchronized (this) {
+				thread = null;
+			}
+
+			// clear the interruption of the cancelled operation, the thread is reused.
+			Thread.interrupted();
+		}
+	}
+
+	private class Limiter {
+
+		private int inFlight;
+		private LinkedList<Task<?>> pending = new LinkedList<>();
+
+		public synchronized void dispatch(Task<?> task) {
+			if (inFlight < maxInFlight) {
+				inFlight++;
+				execute(task);
+			}else if (pending.size() < maxPending) {
+				pending.add(task);
+			}else{
+				task.future.completeExceptionally(new RejectedExecutionException(String.format(
+						"Too many pending operations (%d), the operation is rejected.", maxPending)));
+			}
+		}
+
+		public synchronized void complete() {
+			Task<?> next = pending.poll();
+			if (next != null) {
+				execute(next);
+			}else{
+				inFlight--;
+			}
+		}
+
+		private void execute(Task<?> task) {
+			try{
+				executorService.execute(task);
+			}catch(RejectedExecutionException e){
+				// the executor has been shutdown, fail all queued operations.
+				task.future.completeExceptionally(e);
+				for (Task<?> pendingTask : pending) {
+					pendingTask.future.completeExceptionally(e);
+				}
+				pending.clear();
+				inFlight--;
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import java.util.concurrent.ThreadLocalRandom;
+import org.springframework.util.Assert;
+
+/**
+ * The capped exponential backoff with full jitter.
+ *
+ * The delay of the n-th retry is a random value between 0 and
+ * min(maxDelay, baseDelay * 2^(n-1)), so the clients that fail at the
+ * same time do not retry at the same time.
+ *
+ * @author yang
+ *
+ */
+public class S3Backoff {
+
+	private long baseDelay;
+	private long maxDelay;
+
+	/**
+	 *
+	 * @param baseDelay In millisecond.
+	 * @param maxDelay In millisecond.
+	 */
+	public S3Backoff(long baseDelay, long maxDelay) {
+		Assert.isTrue(baseDelay >= 0);
+		Assert.isTrue(maxDelay >= baseDelay);
+
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 *
+	 * @param retry The retry number, starts from 1.
+	 * @return The delay in millisecond.
+	 */
+	public long getDelay(int retry) {
+		int shift = Math.min(Math.max(retry - 1, 0), 30);
+		long cap = Math.min(maxDelay, baseDelay << shift);
+		if (cap <= 0) {
+			return 0;
+		}
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	/**
+	 * Check whether the failed request should be retried, i.e. the
+	 * network error, the server error (5xx) and the throttling error.
+	 *
+	 * The client errors such as 403 and 404 are not retried, although
+	 * {@link AmazonClientException#isRetryable()} returns true for them.
+	 *
+	 * @param e
+	 * @return
+	 */
+	public static boolean isRetryable(AmazonClientException e) {
+		if (e instanceof AmazonServiceException) {
+			AmazonServiceException se = (AmazonServiceException)e;
+			return se.getStatusCode() >= 500 ||
+					RetryUtils.isThrottlingException(se) ||
+					RetryUtils.isClockSkewError(se);
+		}
+
+		return e.isRetryable();
+	}
+
+	/**
+	 * Sleep before the retry.
+	 *
+	 * @param retry The retry number, starts from 1.
+	 * @throws InterruptedException
+	 */
+	public void sleep(int retry) throws InterruptedException {
+		long delay = getDelay(retry);
+		if (delay > 0) {
+			Thread.sleep(delay);
+		}
+	}
+}
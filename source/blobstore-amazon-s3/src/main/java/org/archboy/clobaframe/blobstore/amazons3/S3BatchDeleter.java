@@ -0,0 +1,232 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Delete objects by the Amazon S3 multi-object delete requests,
+ * several requests are sent at the same time.
+ *
+ * @author yang
+ *
+ */
+public class S3BatchDeleter {
+
+	/**
+	 * The max number of keys of one multi-object delete request.
+	 */
+	public static final int MAX_KEYS_PER_REQUEST = 1000;
+
+	private AmazonS3 client;
+	private int concurrency;
+	private S3MetadataCache metadataCache; // optional
+
+	private ExecutorService executorService;
+
+	public S3BatchDeleter(AmazonS3 client, int concurrency, S3MetadataCache metadataCache) {
+		Assert.notNull(client);
+		Assert.isTrue(concurrency > 0);
+
+		this.client = client;
+		this.concurrency = concurrency;
+		this.metadataCache = metadataCache;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-delete-");
+		threadFactory.setDaemon(true);
+		this.executorService = Executors.newFixedThreadPool(concurrency, threadFactory);
+	}
+
+	/**
+	 * Delete the objects.
+	 *
+	 * The keys are consumed batch by batch, so the iterator can generate
+	 * the keys lazily, and at most {@code concurrency} batches are held
+	 * in memory.
+	 *
+	 * @param bucketName
+	 * @param keys
+	 * @return The keys that fail to delete and the error messages,
+	 *	the non-exists key is not treated as failure.
+	 * @throws IOException
+	 */
+	public Map<String, String> delete(String bucketName, Iterator<String> keys) throws IOException {
+		Semaphore semaphore = new Semaphore(concurrency);
+		LinkedList<Future<Map<String, String>>> futures = new LinkedList<Future<Map<String, String>>>();
+		Map<String, String> failures = new HashMap<String, String>();
+
+		try{
+			while (keys.hasNext()) {
+				List<KeyVersion> batch = new ArrayList<KeyVersion>();
+				while (batch.size() < MAX_KEYS_PER_REQUEST && keys.hasNext()) {
+					batch.add(new KeyVersion(keys.next()));
+				}
+
+				semaphore.acquire();
+				futures.add(executorService.submit(new BatchDeleteTask(bucketName, batch, semaphore)));
+
+				// collect the finished batches, so the results do not pile up.
+				while (!futures.isEmpty() && futures.getFirst().isDone()) {
+					failures.putAll(futures.removeFirst().get());
+				}
+			}
+
+			for (Future<Map<String, String>> future : futures) {
+				failures.putAll(future.get());
+			}
+		}catch(InterruptedException e){
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format(
+					"Delete objects in the amazon s3 repository [%s] is interrupted.",
+					bucketName));
+		}catch(ExecutionException e){
+			cancel(futures);
+			throw new IOException(e.getCause());
+		}catch(AmazonClientException e){
+			// thrown by the listing key iterator.
+			cancel(futures);
+			throw new IOException(e);
+		}
+
+		return failures;
+	}
+
+	private void cancel(List<Future<Map<String, String>>> futures) {
+		for (Future<Map<String, String>> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Delete all objects in the bucket.
+	 *
+	 * The listing and the deleting are pipelined, the next page is listed
+	 * while the previous pages are deleting.
+	 *
+	 * @param bucketName
+	 * @return The keys that fail to delete and the error messages.
+	 * @throws IOException
+	 */
+	public Map<String, String> purge(String bucketName) throws IOException {
+		ListingKeyIterator keys = null;
+		try{
+			keys = new ListingKeyIterator(bucketName);
+		}catch(AmazonClientException e){
+			throw new IOException(e);
+		}
+
+		return delete(bucketName, keys);
+	}
+
+	/**
+	 * Shutdown the delete threads.
+	 */
+	public void close() {
+		executorService.shutdownNow();
+	}
+
+	private class BatchDeleteTask implements Callable<Map<String, String>> {
+
+		private String bucketName;
+		private List<KeyVersion> keys;
+		private Semaphore semaphore;
+
+		public BatchDeleteTask(String bucketName, List<KeyVersion> keys, Semaphore semaphore) {
+			this.bucketName = bucketName;
+			this.keys = keys;
+			this.semaphore = semaphore;
+		}
+
+		@Override
+		public Map<String, String> call() throws Exception {
+			Map<String, String> failures = new HashMap<String, String>();
+
+			DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName);
+			request.setKeys(keys);
+			request.setQuiet(true); // only the errors are returned.
+
+			try{
+				client.deleteObjects(request);
+			}catch(MultiObjectDeleteException e){
+				for (DeleteError error : e.getErrors()) {
+					failures.put(error.getKey(), error.getCode() + ": " + error.getMessage());
+				}
+			}catch(AmazonClientException e){
+				for (KeyVersion keyVersion : keys) {
+					failures.put(keyVersion.getKey(), e.getMessage());
+				}
+			}finally{
+				semaphore.release();
+
+				if (metadataCache != null) {
+					for (KeyVersion keyVersion : keys) {
+						metadataCache.invalidate(bucketName, keyVersion.getKey());
+					}
+				}
+			}
+
+			return failures;
+		}
+	}
+
+	/**
+	 * Iterate all keys of the bucket, page by page.
+	 */
+	private class ListingKeyIterator implements Iterator<String> {
+
+		private ObjectListing objectListing;
+		private Iterator<S3ObjectSummary> summaries;
+
+		public ListingKeyIterator(String bucketName) {
+			objectListing = client.listObjects(bucketName);
+			summaries = objectListing.getObjectSummaries().iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!summaries.hasNext() && objectListing.isTruncated()) {
+				objectListing = client.listNextBatchOfObjects(objectListing);
+				summaries = objectListing.getObjectSummaries().iterator();
+			}
+
+			return summaries.hasNext();
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return summaries.next().getKey();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
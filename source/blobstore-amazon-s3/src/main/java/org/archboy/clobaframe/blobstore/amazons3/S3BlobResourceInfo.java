@@ -5,12 +5,16 @@ import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.commons.io.IOUtils;
 import org.archboy.clobaframe.blobstore.BlobResourceInfo;
 import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceInfo;
 
@@ -21,19 +25,48 @@ import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceInfo;
  * @author yang
  *
  */
-public class S3BlobResourceInfo extends AbstractBlobResourceInfo {
+public class S3BlobResourceInfo extends AbstractBlobResourceInfo
+		implements S3ETaggedBlobResourceInfo {
 
 	private String repositoryName;
 	private String key;
 	private ObjectMetadata objectMetadata;
 	private AmazonS3 client;
+	private S3ParallelDownloader parallelDownloader; // optional
+	private S3RequestHedger requestHedger; // optional
+	private S3RequestCoalescer requestCoalescer; // optional
+	private S3Metrics metrics; // optional
+	private S3ContentChecksum contentChecksum; // optional
 
 	public S3BlobResourceInfo(String repositoryName, String key, 
 			ObjectMetadata objectMetadata, AmazonS3 client) {
+		this(repositoryName, key, objectMetadata, client, null);
+	}
+
+	public S3BlobResourceInfo(String repositoryName, String key,
+			ObjectMetadata objectMetadata, AmazonS3 client,
+			S3ParallelDownloader parallelDownloader) {
 		this.repositoryName = repositoryName;
 		this.key = key;
 		this.objectMetadata = objectMetadata;
 		this.client = client;
+		this.parallelDownloader = parallelDownloader;
+	}
+
+	public void setRequestHedger(S3RequestHedger requestHedger) {
+		this.requestHedger = requestHedger;
+	}
+
+	public void setRequestCoalescer(S3RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	public void setMetrics(S3Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setContentChecksum(S3ContentChecksum contentChecksum) {
+		this.contentChecksum = contentChecksum;
 	}
 
 	@Override
@@ -48,7 +81,8 @@ public class S3BlobResourceInfo extends AbstractBlobResourceInfo {
 	
 	@Override
 	public long getContentLength() {
-		return objectMetadata.getContentLength();
+		long decodedLength = S3ContentCompressor.getDecodedLength(objectMetadata);
+		return (decodedLength >= 0) ? decodedLength : objectMetadata.getContentLength();
 	}
 
 	@Override
@@ -62,11 +96,33 @@ public class S3BlobResourceInfo extends AbstractBlobResourceInfo {
 	}
 
 	@Override
-	public InputStream getContent() throws IOException{
-		try{
-			S3Object s3Object = client.getObject(repositoryName, key);
-			return s3Object.getObjectContent();
+	public String getETag() {
+		return objectMetadata.getETag();
+	}
+
+	/**
+	 *
+	 * @return NULL if the bucket is not versioned.
+	 */
+	public String getVersionId() {
+		return objectMetadata.getVersionId();
+	}
+
+	/**
+	 * Get the content only if the object is modified, i.e. the ETag is not
+	 * matched or it is modified after the specified time.
+	 *
+	 * @param ifNoneMatch Optional, the ETag of the cached content.
+	 * @param ifModifiedSince Optional, the last modified time of the cached content.
+	 * @return
+	 * @throws IOException
+	 */
+	public S3ConditionalContent getContent(String ifNoneMatch, Date ifModifiedSince) throws IOException {
+		GetObjectRequest request = S3ConditionalContent.createRequest(
+				repositoryName, key, ifNoneMatch, ifModifiedSince);
 
+		try{
+			return S3ConditionalContent.create(getObject(request));
 		}catch (AmazonS3Exception e) {
 			if (e.getStatusCode() == 404){
 				throw new FileNotFoundException(String.format(
@@ -78,13 +134,35 @@ public class S3BlobResourceInfo extends AbstractBlobResourceInfo {
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The content is verified while it is read if the content checksum is set,
+	 * and the {@link IOException} is thrown at the end of the corrupted content.
+	 */
+	@Override
+	public InputStream getContent() throws IOException{
+		return S3ContentCompressor.decompress(objectMetadata, getStoredContent());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The compressed blob is decompressed from the beginning and
+	 * the bytes before the start position are skipped.
+	 */
 	@Override
 	public InputStream getContent(long start, long length) throws IOException {
+		if (S3ContentCompressor.isEncoded(objectMetadata)) {
+			return S3ContentCompressor.decompress(objectMetadata,
+					getStoredContent(), start, length);
+		}
+
 		try{
 			GetObjectRequest request = new GetObjectRequest(repositoryName, key);
 
 			request.setRange(start, start + length - 1); // both start and end byte are include.
-			S3Object s3Object = client.getObject(request);
+			S3Object s3Object = getObject(request);
 
 			return s3Object.getObjectContent();
 
@@ -99,6 +177,144 @@ public class S3BlobResourceInfo extends AbstractBlobResourceInfo {
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The compressed blob is decompressed from the beginning and
+	 * the bytes before the start position are skipped.
+	 */
+	@Override
+	public InputStream getContent(long start, long length, String ifMatch) throws IOException {
+		GetObjectRequest request = new GetObjectRequest(repositoryName, key);
+		request.setMatchingETagConstraints(Collections.singletonList(ifMatch));
+
+		if (S3ContentCompressor.isEncoded(objectMetadata)) {
+			S3Object s3Object = getMatchedObject(request);
+			return S3ContentCompressor.decompress(s3Object.getObjectMetadata(),
+					s3Object.getObjectContent(), start, length);
+		}
+
+		request.setRange(start, start + length - 1); // both start and end byte are include.
+		return getMatchedObject(request).getObjectContent();
+	}
+
+	private S3Object getMatchedObject(GetObjectRequest request) throws IOException {
+		S3Object s3Object;
+		try{
+			s3Object = getObject(request);
+		}catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404){
+				throw new FileNotFoundException(String.format(
+						"Blob object [%s] not found in the amazon s3 repository [%s].",
+						key, repositoryName));
+			}else{
+				throw new IOException(e);
+			}
+		}
+
+		// the object is NULL if the ETag is not matched.
+		if (s3Object == null) {
+			throw new IOException(String.format(
+					"Blob object [%s] in the amazon s3 repository [%s] is modified.",
+					key, repositoryName));
+		}
+
+		return s3Object;
+	}
+
+	private InputStream getStoredContent() throws IOException {
+		long contentLength = objectMetadata.getContentLength();
+		if (parallelDownloader != null && parallelDownloader.isRequired(contentLength)) {
+			return verify(parallelDownloader.open(repositoryName, key,
+					objectMetadata.getETag(), contentLength), objectMetadata, false);
+		}
+
+		try{
+			if (requestCoalescer != null && objectMetadata.getETag() != null &&
+					requestCoalescer.isCoalescable(contentLength)) {
+				byte[] data = requestCoalescer.getContent(repositoryName, key,
+						objectMetadata.getETag(), () -> getStoredData());
+				if (data != null) {
+					return verify(new ByteArrayInputStream(data), objectMetadata, true);
+				}
+				// the object is changed, read it independently.
+			}
+
+			S3Object s3Object = getObject(new GetObjectRequest(repositoryName, key));
+			return verify(s3Object.getObjectContent(), s3Object.getObjectMetadata(), true);
+
+		}catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404){
+				throw new FileNotFoundException(String.format(
+						"Blob object [%s] not found in the amazon s3 repository [%s].",
+						key, repositoryName));
+			}else{
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Read the whole content of the current version.
+	 *
+	 * @return NULL if the object is changed.
+	 * @throws IOException
+	 */
+	private byte[] getStoredData() throws IOException {
+		GetObjectRequest request = new GetObjectRequest(repositoryName, key);
+		request.setMatchingETagConstraints(Collections.singletonList(objectMetadata.getETag()));
+
+		S3Object s3Object = getObject(request);
+		if (s3Object == null) {
+			return null;
+		}
+
+		InputStream in = s3Object.getObjectContent();
+		try{
+			return IOUtils.toByteArray(in);
+		}finally{
+			in.close();
+		}
+	}
+
+	private InputStream verify(InputStream in, ObjectMetadata metadata, boolean wholeRequest) {
+		return (contentChecksum == null) ? in :
+				contentChecksum.verify(in, repositoryName, key, metadata, wholeRequest);
+	}
+
+	private S3Object getObject(GetObjectRequest request) {
+		if (metrics == null) {
+			return (requestHedger == null) ?
+					client.getObject(request) :
+					requestHedger.getObject(request);
+		}
+
+		long begin = metrics.begin(repositoryName, S3Operation.GET);
+		S3Object s3Object;
+
+		try{
+			s3Object = (requestHedger == null) ?
+					client.getObject(request) :
+					requestHedger.getObject(request);
+		}catch(RuntimeException | Error e){
+			metrics.end(repositoryName, S3Operation.GET, begin, 0, true);
+			throw e;
+		}
+
+		if (s3Object == null) {
+			// the ETag or modified-since constraint was not met.
+			metrics.end(repositoryName, S3Operation.GET, begin, 0, false);
+			return null;
+		}
+
+		// the metrics ends when the content is closed, with the bytes actually read.
+		S3ObjectInputStream content = s3Object.getObjectContent();
+		s3Object.setObjectContent(new S3ObjectInputStream(
+				new S3MetricsInputStream(content, metrics, repositoryName, S3Operation.GET, begin),
+				content.getHttpRequest()));
+		return s3Object;
+	}
+
 	@Override
 	public boolean isSeekable() {
 		return true;
@@ -108,6 +324,11 @@ public class S3BlobResourceInfo extends AbstractBlobResourceInfo {
 	public Map<String, Object> getMetadata() {
 		return convertFromUserMetaData(objectMetadata.getUserMetadata());
 	}
+
+	@Override
+	public String getUserMetadata(String name) {
+		return objectMetadata.getUserMetadata().get(name);
+	}
 	
 	private Map<String, Object> convertFromUserMetaData(Map<String, String> source){
 		if (source == null || source.isEmpty()) {
@@ -116,10 +337,13 @@ public class S3BlobResourceInfo extends AbstractBlobResourceInfo {
 		
 		Map<String, Object> meta = new HashMap<String, Object>();
 		for(Map.Entry<String, String> entry : source.entrySet()){
-			meta.put(entry.getKey(), entry.getValue());
+			if (!S3ContentCompressor.DECODED_LENGTH_KEY.equals(entry.getKey()) &&
+					!S3ContentChecksum.isReserved(entry.getKey())) {
+				meta.put(entry.getKey(), entry.getValue());
+			}
 		}
 		
-		return meta;
+		return meta.isEmpty() ? null : meta;
 	}
 
 }
@@ -2,6 +2,7 @@ package org.archboy.clobaframe.blobstore.amazons3;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
 import org.archboy.clobaframe.blobstore.BlobResourceInfo;
@@ -10,6 +11,7 @@ import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -21,16 +23,53 @@ import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceInfo;
  * @author yang
  *
  */
-public class S3BlobResourceInfoBySummary extends AbstractBlobResourceInfo {
+public class S3BlobResourceInfoBySummary extends AbstractBlobResourceInfo
+		implements S3ETaggedBlobResourceInfo {
 
 	private S3ObjectSummary summary;
 	private AmazonS3 client;
+	private S3ParallelDownloader parallelDownloader; // optional
+	private S3RequestHedger requestHedger; // optional
+	private S3Metrics metrics; // optional
+	private S3ContentChecksum contentChecksum; // optional
+	private boolean encodingExpected;
 
-	private ObjectMetadata objectMetadata; // the cache object
+	// the cache object, it is loaded lazily without lock, the concurrent
+	// readers may load it more than once rather than blocking each other.
+	private volatile ObjectMetadata objectMetadata;
 	
 	public S3BlobResourceInfoBySummary(S3ObjectSummary summary, AmazonS3 client) {
+		this(summary, client, null);
+	}
+
+	public S3BlobResourceInfoBySummary(S3ObjectSummary summary, AmazonS3 client,
+			S3ParallelDownloader parallelDownloader) {
 		this.summary = summary;
 		this.client = client;
+		this.parallelDownloader = parallelDownloader;
+	}
+
+	public void setRequestHedger(S3RequestHedger requestHedger) {
+		this.requestHedger = requestHedger;
+	}
+
+	public void setMetrics(S3Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setContentChecksum(S3ContentChecksum contentChecksum) {
+		this.contentChecksum = contentChecksum;
+	}
+
+	/**
+	 * Set whether the blob may be compressed, i.e. the compression is enabled
+	 * in the repository. If not, the object metadata is not loaded just for
+	 * checking the encoding.
+	 *
+	 * @param encodingExpected
+	 */
+	public void setEncodingExpected(boolean encodingExpected) {
+		this.encodingExpected = encodingExpected;
 	}
 
 	@Override
@@ -43,8 +82,27 @@ public class S3BlobResourceInfoBySummary extends AbstractBlobResourceInfo {
 		return summary.getKey();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The object metadata is loaded for the original length of the
+	 * compressed blob only if the compression is enabled, unless it is
+	 * prefetched. Otherwise it is the listed size, i.e. the blob that is
+	 * compressed before the compression is disabled reports the stored size.
+	 */
 	@Override
 	public long getContentLength() {
+		ObjectMetadata metadata = encodingExpected ? getObjectMetadata() : objectMetadata;
+		long decodedLength = (metadata == null) ? -1 : S3ContentCompressor.getDecodedLength(metadata);
+		return (decodedLength >= 0) ? decodedLength : summary.getSize();
+	}
+
+	/**
+	 * Get the listed size without loading the object metadata.
+	 *
+	 * @return The stored size, i.e. the compressed size of the compressed blob.
+	 */
+	public long getStoredContentLength() {
 		return summary.getSize();
 	}
 
@@ -59,37 +117,154 @@ public class S3BlobResourceInfoBySummary extends AbstractBlobResourceInfo {
 	}
 
 	@Override
-	public InputStream getContent() throws IOException{
-		try{
-			S3Object s3Object = client.getObject(
-					summary.getBucketName(),
-					summary.getKey());
+	public String getETag() {
+		return summary.getETag();
+	}
 
-			return s3Object.getObjectContent();
+	/**
+	 * The version id is not listed, so the object metadata is loaded.
+	 *
+	 * @return NULL if the bucket is not versioned.
+	 */
+	public String getVersionId() {
+		return getObjectMetadata().getVersionId();
+	}
 
-		}catch (AmazonS3Exception e) {
-			if (e.getStatusCode() == 404){
-				throw new FileNotFoundException(String.format(
-						"Blob object [%s] not found in the amazon s3 repository [%s].",
-						summary.getKey(), summary.getBucketName()));
-			}else{
-				throw new IOException(e);
+	/**
+	 * Get the content only if the object is modified, i.e. the ETag is not
+	 * matched or it is modified after the specified time.
+	 *
+	 * @param ifNoneMatch Optional, the ETag of the cached content.
+	 * @param ifModifiedSince Optional, the last modified time of the cached content.
+	 * @return
+	 * @throws IOException
+	 */
+	public S3ConditionalContent getContent(String ifNoneMatch, Date ifModifiedSince) throws IOException {
+		GetObjectRequest request = S3ConditionalContent.createRequest(
+				summary.getBucketName(), summary.getKey(), ifNoneMatch, ifModifiedSince);
+		return S3ConditionalContent.create(getStoredObject(request));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The content is verified while it is read if the content checksum is set,
+	 * and the {@link IOException} is thrown at the end of the corrupted content.
+	 */
+	@Override
+	public InputStream getContent() throws IOException{
+		if (parallelDownloader != null && parallelDownloader.isRequired(summary.getSize())) {
+			ObjectMetadata metadata = getObjectMetadata();
+			InputStream in = parallelDownloader.open(summary.getBucketName(), summary.getKey(),
+					summary.getETag(), summary.getSize());
+			if (contentChecksum != null) {
+				// the parts are read by the listed ETag, the loaded metadata
+				// may be of the other version.
+				if (summary.getETag() != null && S3ContentChecksum.unquote(summary.getETag()).equals(
+						S3ContentChecksum.unquote(metadata.getETag()))) {
+					in = contentChecksum.verify(in, summary.getBucketName(), summary.getKey(), metadata, false);
+				}
 			}
+			return S3ContentCompressor.decompress(metadata, in);
 		}
+
+		S3Object s3Object = getStoredObject(new GetObjectRequest(summary.getBucketName(), summary.getKey()));
+		InputStream in = (contentChecksum == null) ? s3Object.getObjectContent() :
+				contentChecksum.verify(s3Object.getObjectContent(),
+					summary.getBucketName(), summary.getKey(), s3Object.getObjectMetadata(), true);
+		return S3ContentCompressor.decompress(s3Object.getObjectMetadata(), in);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The compressed blob is decompressed from the beginning and the bytes
+	 * before the start position are skipped. The encoding is checked by the
+	 * object metadata before requesting the range if the metadata is loaded
+	 * or the compression is enabled, otherwise it is checked by the response
+	 * of the ranged GET, which is aborted if the blob turns out compressed.
+	 */
 	@Override
 	public InputStream getContent(long start, long length) throws IOException{
-		try{
-			GetObjectRequest request = new GetObjectRequest(
-					summary.getBucketName(),
-					summary.getKey());
+		ObjectMetadata metadata = encodingExpected ? getObjectMetadata() : objectMetadata;
+		if (metadata != null && S3ContentCompressor.isEncoded(metadata)) {
+			return getDecodedContent(start, length);
+		}
 
-			request.setRange(start, start + length -1); // both start and end byte are include.
-			S3Object s3Object = client.getObject(request);
+		GetObjectRequest request = new GetObjectRequest(
+				summary.getBucketName(),
+				summary.getKey());
+
+		request.setRange(start, start + length -1); // both start and end byte are include.
+		S3Object s3Object = getStoredObject(request);
+
+		if (metadata == null && S3ContentCompressor.isEncoded(s3Object.getObjectMetadata())) {
+			s3Object.getObjectContent().abort();
+			return getDecodedContent(start, length);
+		}
 
-			return s3Object.getObjectContent();
+		return s3Object.getObjectContent();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The encoding is checked in the same way as {@link #getContent(long, long)}.
+	 */
+	@Override
+	public InputStream getContent(long start, long length, String ifMatch) throws IOException {
+		ObjectMetadata metadata = encodingExpected ? getObjectMetadata() : objectMetadata;
+		if (metadata != null && S3ContentCompressor.isEncoded(metadata)) {
+			return getDecodedContent(start, length, ifMatch);
+		}
 
+		GetObjectRequest request = new GetObjectRequest(
+				summary.getBucketName(),
+				summary.getKey());
+
+		request.setMatchingETagConstraints(Collections.singletonList(ifMatch));
+		request.setRange(start, start + length -1); // both start and end byte are include.
+		S3Object s3Object = getMatchedObject(request);
+
+		if (metadata == null && S3ContentCompressor.isEncoded(s3Object.getObjectMetadata())) {
+			s3Object.getObjectContent().abort();
+			return getDecodedContent(start, length, ifMatch);
+		}
+
+		return s3Object.getObjectContent();
+	}
+
+	private InputStream getDecodedContent(long start, long length) throws IOException {
+		S3Object s3Object = getStoredObject(new GetObjectRequest(summary.getBucketName(), summary.getKey()));
+		return S3ContentCompressor.decompress(s3Object.getObjectMetadata(),
+				s3Object.getObjectContent(), start, length);
+	}
+
+	private InputStream getDecodedContent(long start, long length, String ifMatch) throws IOException {
+		GetObjectRequest request = new GetObjectRequest(summary.getBucketName(), summary.getKey());
+		request.setMatchingETagConstraints(Collections.singletonList(ifMatch));
+
+		S3Object s3Object = getMatchedObject(request);
+		return S3ContentCompressor.decompress(s3Object.getObjectMetadata(),
+				s3Object.getObjectContent(), start, length);
+	}
+
+	private S3Object getMatchedObject(GetObjectRequest request) throws IOException {
+		S3Object s3Object = getStoredObject(request);
+
+		// the object is NULL if the ETag is not matched.
+		if (s3Object == null) {
+			throw new IOException(String.format(
+					"Blob object [%s] in the amazon s3 repository [%s] is modified.",
+					summary.getKey(), summary.getBucketName()));
+		}
+
+		return s3Object;
+	}
+
+	private S3Object getStoredObject(GetObjectRequest request) throws IOException {
+		try{
+			return getObject(request);
 		}catch (AmazonS3Exception e) {
 			if (e.getStatusCode() == 404){
 				throw new FileNotFoundException(String.format(
@@ -101,6 +276,39 @@ public class S3BlobResourceInfoBySummary extends AbstractBlobResourceInfo {
 		}
 	}
 
+	private S3Object getObject(GetObjectRequest request) {
+		if (metrics == null) {
+			return (requestHedger == null) ?
+					client.getObject(request) :
+					requestHedger.getObject(request);
+		}
+
+		long begin = metrics.begin(summary.getBucketName(), S3Operation.GET);
+		S3Object s3Object;
+
+		try{
+			s3Object = (requestHedger == null) ?
+					client.getObject(request) :
+					requestHedger.getObject(request);
+		}catch(RuntimeException | Error e){
+			metrics.end(summary.getBucketName(), S3Operation.GET, begin, 0, true);
+			throw e;
+		}
+
+		if (s3Object == null) {
+			// the ETag or modified-since constraint was not met.
+			metrics.end(summary.getBucketName(), S3Operation.GET, begin, 0, false);
+			return null;
+		}
+
+		// the metrics ends when the content is closed, with the bytes actually read.
+		S3ObjectInputStream content = s3Object.getObjectContent();
+		s3Object.setObjectContent(new S3ObjectInputStream(
+				new S3MetricsInputStream(content, metrics, summary.getBucketName(), S3Operation.GET, begin),
+				content.getHttpRequest()));
+		return s3Object;
+	}
+
 	@Override
 	public boolean isSeekable() {
 		return true;
@@ -110,6 +318,11 @@ public class S3BlobResourceInfoBySummary extends AbstractBlobResourceInfo {
 	public Map<String, Object> getMetadata() {
 		return convertFromUserMetaData(getObjectMetadata().getUserMetadata());
 	}
+
+	@Override
+	public String getUserMetadata(String name) {
+		return getObjectMetadata().getUserMetadata().get(name);
+	}
 	
 	private Map<String, Object> convertFromUserMetaData(Map<String, String> source){
 		if (source == null || source.isEmpty()) {
@@ -118,18 +331,32 @@ public class S3BlobResourceInfoBySummary extends AbstractBlobResourceInfo {
 		
 		Map<String, Object> meta = new HashMap<String, Object>();
 		for(Map.Entry<String, String> entry : source.entrySet()){
-			meta.put(entry.getKey(), entry.getValue());
+			if (!S3ContentCompressor.DECODED_LENGTH_KEY.equals(entry.getKey()) &&
+					!S3ContentChecksum.isReserved(entry.getKey())) {
+				meta.put(entry.getKey(), entry.getValue());
+			}
 		}
 		
-		return meta;
+		return meta.isEmpty() ? null : meta;
 	}
 
-	private synchronized ObjectMetadata getObjectMetadata() {
-		if (objectMetadata == null){
-			objectMetadata = client.getObjectMetadata(
-				summary.getBucketName(),
-				summary.getKey());
+	/**
+	 * Set the prefetched object metadata.
+	 *
+	 * @param objectMetadata
+	 */
+	void setObjectMetadata(ObjectMetadata objectMetadata) {
+		this.objectMetadata = objectMetadata;
+	}
+
+	private ObjectMetadata getObjectMetadata() {
+		ObjectMetadata metadata = objectMetadata;
+		if (metadata == null){
+			metadata = (requestHedger == null) ?
+					client.getObjectMetadata(summary.getBucketName(), summary.getKey()) :
+					requestHedger.getObjectMetadata(summary.getBucketName(), summary.getKey());
+			objectMetadata = metadata;
 		}
-		return objectMetadata;
+		return metadata;
 	}
 }
@@ -4,17 +4,28 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.StorageClass;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import org.apache.commons.io.IOUtils;
 import org.archboy.clobaframe.blobstore.BlobResourceInfo;
 import org.archboy.clobaframe.blobstore.BlobResourceRepository;
@@ -28,62 +39,341 @@ import org.springframework.util.Assert;
  * @author yang
  *
  */
-public class S3BlobResourceRepository extends AbstractBlobResourceRepository {
+public class S3BlobResourceRepository extends AbstractBlobResourceRepository
+		implements S3ExtendedBlobResourceRepository {
+
+	/**
+	 * The max original length of the compressed blob without multipart upload,
+	 * its compressed content is buffered in memory for the single request.
+	 */
+	public static final long MAX_BUFFERED_ENCODED_LENGTH = S3MultipartUploader.MIN_PART_SIZE;
 
 	private AmazonS3 client;
 	private String name; // repo name
+	private S3MultipartUploader multipartUploader; // optional
+	private S3ParallelDownloader parallelDownloader; // optional
+	private S3MetadataCache metadataCache; // optional
+	private S3BatchDeleter batchDeleter;
+	private S3Copier copier; // optional
+	private ExecutorService listingExecutorService; // optional
+	private S3MetadataPrefetcher metadataPrefetcher; // optional
+	private S3RequestHedger requestHedger; // optional
+	private S3RequestCoalescer requestCoalescer; // optional
+	private S3Metrics metrics; // optional
+	private S3ContentCompressor compressor; // optional
+	private S3UploadScheduler uploadScheduler; // optional
+	private S3UrlSigner urlSigner; // optional
+	private S3ParallelLister parallelLister; // optional
+	private S3ContentChecksum contentChecksum; // optional
+	private S3DirectorySync directorySync; // optional
 
 	public S3BlobResourceRepository(AmazonS3 client, String name) {
 		this.client = client;
 		this.name = name;
 	}
 
+	public void setMultipartUploader(S3MultipartUploader multipartUploader) {
+		this.multipartUploader = multipartUploader;
+	}
+
+	public void setParallelDownloader(S3ParallelDownloader parallelDownloader) {
+		this.parallelDownloader = parallelDownloader;
+	}
+
+	public void setMetadataCache(S3MetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+
+	public void setBatchDeleter(S3BatchDeleter batchDeleter) {
+		this.batchDeleter = batchDeleter;
+	}
+
+	public void setCopier(S3Copier copier) {
+		this.copier = copier;
+	}
+
+	public void setListingExecutorService(ExecutorService listingExecutorService) {
+		this.listingExecutorService = listingExecutorService;
+	}
+
+	public void setMetadataPrefetcher(S3MetadataPrefetcher metadataPrefetcher) {
+		this.metadataPrefetcher = metadataPrefetcher;
+	}
+
+	public void setRequestHedger(S3RequestHedger requestHedger) {
+		this.requestHedger = requestHedger;
+	}
+
+	public void setRequestCoalescer(S3RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	public void setMetrics(S3Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setCompressor(S3ContentCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	public void setUploadScheduler(S3UploadScheduler uploadScheduler) {
+		this.uploadScheduler = uploadScheduler;
+	}
+
+	public void setUrlSigner(S3UrlSigner urlSigner) {
+		this.urlSigner = urlSigner;
+	}
+
+	public void setParallelLister(S3ParallelLister parallelLister) {
+		this.parallelLister = parallelLister;
+	}
+
+	public void setContentChecksum(S3ContentChecksum contentChecksum) {
+		this.contentChecksum = contentChecksum;
+	}
+
+	public void setDirectorySync(S3DirectorySync directorySync) {
+		this.directorySync = directorySync;
+	}
+
 	@Override
 	public String getName() {
 		return name;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The streamed content is not buffered for the checksum, so if the content
+	 * checksum is set, its MD5 is computed while it is sent and compared with
+	 * the returned ETag, and no CRC-32C is stored.
+	 */
 	@Override
 	public void put(BlobResourceInfo blobResourceInfo, boolean publicReadable, int priority) throws IOException {
 		Assert.notNull(blobResourceInfo);
 
-		ObjectMetadata meta = new ObjectMetadata();
-		meta.setContentLength(blobResourceInfo.getContentLength());
-		meta.setContentType(blobResourceInfo.getMimeType());
-		meta.setUserMetadata(convertToUserMetaData(blobResourceInfo.getMetadata()));
+		String key = blobResourceInfo.getKey();
+		ObjectMetadata meta = createObjectMetadata(
+				blobResourceInfo.getMimeType(), blobResourceInfo.getMetadata());
+
+		long contentLength = blobResourceInfo.getContentLength();
+		CannedAccessControlList cannedAcl = publicReadable ? CannedAccessControlList.PublicRead : null;
+		StorageClass storageClass = (priority == PRIORITY_MIN) ? StorageClass.ReducedRedundancy : null;
+
+		acquireUploadSlot(priority);
 
-		InputStream in = blobResourceInfo.getContent();
+		long begin = beginMetrics(S3Operation.PUT);
+		boolean failed = true;
+		InputStream in = null;
 
-		PutObjectRequest request = new PutObjectRequest(
-				name,
-				blobResourceInfo.getKey(),
-				in,
-				meta);
+		try{
+			in = blobResourceInfo.getContent();
+			if (uploadScheduler != null) {
+				in = uploadScheduler.throttle(in, priority);
+			}
 
-		if (publicReadable) {
-			request.setCannedAcl(CannedAccessControlList.PublicRead);
+			if (isEncodingRequired(blobResourceInfo.getMimeType(), contentLength)) {
+				putEncoded(key, in, contentLength, meta, cannedAcl, storageClass);
+			}else if (multipartUploader != null && multipartUploader.isRequired(contentLength)) {
+				multipartUploader.upload(name, key, in,
+						contentLength, meta, cannedAcl, storageClass);
+			}else{
+				meta.setContentLength(contentLength);
+				putObject(key, in, meta, cannedAcl, storageClass);
+			}
+
+			failed = false;
+		}finally{
+			IOUtils.closeQuietly(in);
+			invalidateMetadata(key);
+			endMetrics(S3Operation.PUT, begin, failed ? 0 : contentLength, failed);
+			releaseUploadSlot();
 		}
+	}
+
+	/**
+	 * Put the blob from the re-openable content source, e.g. the local file.
+	 *
+	 * The content is streamed from the source directly, and the failed request
+	 * (or part of multipart upload) is retried by reopening the source instead
+	 * of buffering the content in memory. If the content checksum is set,
+	 * the MD5 is computed while the content is sent, see {@link S3ContentChecksum}.
+	 *
+	 * @param key
+	 * @param source
+	 * @param mimeType
+	 * @param metadata Optional.
+	 * @param publicReadable
+	 * @param priority
+	 * @throws IOException
+	 */
+	@Override
+	public void put(String key, S3ContentSource source, String mimeType,
+			Map<String, Object> metadata, boolean publicReadable, int priority) throws IOException {
+		Assert.notNull(key);
+		Assert.notNull(source);
 
-		if (priority == PRIORITY_MIN) {
-			request.setStorageClass(StorageClass.ReducedRedundancy);
+		ObjectMetadata meta = createObjectMetadata(mimeType, metadata);
+
+		long contentLength = source.getContentLength();
+		CannedAccessControlList cannedAcl = publicReadable ? CannedAccessControlList.PublicRead : null;
+		StorageClass storageClass = (priority == PRIORITY_MIN) ? StorageClass.ReducedRedundancy : null;
+
+		if (uploadScheduler != null) {
+			source = uploadScheduler.throttle(source, priority);
 		}
 
+		acquireUploadSlot(priority);
+
+		long begin = beginMetrics(S3Operation.PUT);
+		boolean failed = true;
+
 		try{
-			client.putObject(request);
-		}catch(AmazonClientException e){
-			throw new IOException(e);
+			if (isEncodingRequired(mimeType, contentLength)) {
+				InputStream in = source.open(0, contentLength);
+				try{
+					putEncoded(key, in, contentLength, meta, cannedAcl, storageClass);
+				}finally{
+					IOUtils.closeQuietly(in);
+				}
+			}else if (multipartUploader != null && multipartUploader.isRequired(contentLength)) {
+				multipartUploader.upload(name, key, source, meta, cannedAcl, storageClass);
+			}else{
+				meta.setContentLength(contentLength);
+
+				if (contentChecksum != null && source instanceof S3ByteArrayContentSource) {
+					byte[] data = ((S3ByteArrayContentSource)source).getData();
+					contentChecksum.prepare(meta, data, 0, data.length);
+				}
+
+				InputStream in = new S3ReopenableInputStream(source, 0, contentLength);
+				try{
+					putObject(key, in, meta, cannedAcl, storageClass);
+				}finally{
+					IOUtils.closeQuietly(in);
+				}
+			}
+
+			failed = false;
 		}finally{
-			IOUtils.closeQuietly(in);
+			invalidateMetadata(key);
+			endMetrics(S3Operation.PUT, begin, failed ? 0 : contentLength, failed);
+			releaseUploadSlot();
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The HEAD request is recorded by the metrics only when it is sent, i.e.
+	 * not for the hits of the metadata cache or the coalesced requests.
+	 */
 	@Override
 	public BlobResourceInfo get(String key) {
 		Assert.notNull(key);
+		return getBlobResourceInfo(key);
+	}
+
+	/**
+	 * Get the blob by the object summary without the HEAD request, e.g. the
+	 * object that its key and size are known already.
+	 *
+	 * @param summary
+	 * @return
+	 */
+	public S3BlobResourceInfoBySummary getBySummary(S3ObjectSummary summary) {
+		Assert.notNull(summary);
+
+		S3BlobResourceInfoBySummary info = new S3BlobResourceInfoBySummary(
+				summary, client, parallelDownloader);
+		info.setRequestHedger(requestHedger);
+		info.setMetrics(metrics);
+		info.setContentChecksum(contentChecksum);
+		info.setEncodingExpected(compressor != null);
+		return info;
+	}
+
+	/**
+	 * Get the content only if the blob is modified, i.e. the ETag is not
+	 * matched or it is modified after the specified time.
+	 *
+	 * It is a single conditional GET without the HEAD request, and the
+	 * body is not transferred if the blob is not modified, so it is cheap
+	 * to revalidate the content that is cached by the caller.
+	 *
+	 * @param key
+	 * @param ifNoneMatch Optional, the ETag of the cached content.
+	 * @param ifModifiedSince Optional, the last modified time of the cached content.
+	 * @return
+	 * @throws IOException
+	 */
+	public S3ConditionalContent getContent(String key, String ifNoneMatch,
+			Date ifModifiedSince) throws IOException {
+		Assert.notNull(key);
+
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setBucketName(name);
+		summary.setKey(key);
+
+		return getBySummary(summary).getContent(ifNoneMatch, ifModifiedSince);
+	}
+
+	/**
+	 * Get the presigned URL for downloading the blob from Amazon S3 directly.
+	 *
+	 * The URL is signed locally and it does not check whether the blob exists.
+	 * Note that the compressed blob is downloaded with the "Content-Encoding".
+	 *
+	 * @param key
+	 * @param expiry The valid period of the URL, in millisecond.
+	 * @param overrides Optional, the response headers of the download.
+	 * @return
+	 */
+	public URL getDownloadUrl(String key, long expiry, ResponseHeaderOverrides overrides) {
+		Assert.state(urlSigner != null, "The URL signer is not set.");
+		return urlSigner.getDownloadUrl(name, key, expiry, overrides);
+	}
+
+	/**
+	 * Get the presigned URLs for downloading the blobs, e.g. the thumbnails of a page.
+	 *
+	 * @param keys
+	 * @param expiry The valid period of the URLs, in millisecond.
+	 * @param overrides Optional.
+	 * @return The URLs in the order of keys.
+	 */
+	public Map<String, URL> getDownloadUrls(Iterable<String> keys, long expiry,
+			ResponseHeaderOverrides overrides) {
+		Assert.state(urlSigner != null, "The URL signer is not set.");
+		return urlSigner.getDownloadUrls(name, keys, expiry, overrides);
+	}
+
+	/**
+	 * Get the presigned URL for uploading the blob to Amazon S3 directly by
+	 * the HTTP PUT request.
+	 *
+	 * @param key
+	 * @param expiry The valid period of the URL, in millisecond.
+	 * @param mimeType Optional, the upload request must have the same "Content-Type".
+	 * @return
+	 */
+	public URL getUploadUrl(String key, long expiry, String mimeType) {
+		Assert.state(urlSigner != null, "The URL signer is not set.");
+		return urlSigner.getUploadUrl(name, key, expiry, mimeType);
+	}
+
+	private BlobResourceInfo getBlobResourceInfo(String key) {
+		if (metadataCache != null) {
+			ObjectMetadata objectMetadata = metadataCache.getObjectMetadata(name, key);
+			return (objectMetadata == null) ? null :
+					createBlobResourceInfo(key, objectMetadata);
+		}
 
 		try{
-			ObjectMetadata objectMetadata = client.getObjectMetadata(name, key);
-			return new S3BlobResourceInfo(name, key, objectMetadata, client);
+			ObjectMetadata objectMetadata = (requestCoalescer == null) ?
+					getObjectMetadata(key) :
+					requestCoalescer.getObjectMetadata(name, key, () -> getObjectMetadata(key));
+			return createBlobResourceInfo(key, objectMetadata);
 		}catch (AmazonS3Exception e) {
 			if (e.getStatusCode() == 404){
 //				throw new FileNotFoundException(String.format(
@@ -96,45 +386,627 @@ public class S3BlobResourceRepository extends AbstractBlobResourceRepository {
 		}
 	}
 
+	private ObjectMetadata getObjectMetadata(String key) {
+		long begin = beginMetrics(S3Operation.HEAD);
+		boolean failed = true;
+
+		try{
+			ObjectMetadata objectMetadata = (requestHedger == null) ?
+					client.getObjectMetadata(name, key) :
+					requestHedger.getObjectMetadata(name, key);
+			failed = false;
+			return objectMetadata;
+		}catch (AmazonS3Exception e) {
+			// the non-exists blob is not a failure.
+			failed = (e.getStatusCode() != 404);
+			throw e;
+		}finally{
+			endMetrics(S3Operation.HEAD, begin, 0, failed);
+		}
+	}
+
 	@Override
 	public void delete(String key) throws IOException {
 		Assert.notNull(key);
 
+		long begin = beginMetrics(S3Operation.DELETE);
+		boolean failed = true;
+
 		try{
 			client.deleteObject(name, key);
+			failed = false;
 		}catch (AmazonS3Exception e) {
 			if(e.getStatusCode() == 404){
 				// ignore the non-exists blob object.
+				failed = false;
 				return;
 			}
 			throw new IOException(e);
+		}finally{
+			invalidateMetadata(key);
+			endMetrics(S3Operation.DELETE, begin, 0, failed);
+		}
+	}
+
+	/**
+	 * Delete blobs by multi-object delete requests.
+	 *
+	 * @param keys The keys can be generated lazily by the iterator.
+	 * @return The keys that fail to delete and the error messages.
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> delete(Iterable<String> keys) throws IOException {
+		Assert.notNull(keys);
+		Assert.state(batchDeleter != null, "The batch deleter is not set.");
+
+		long begin = beginMetrics(S3Operation.DELETE);
+		boolean failed = true;
+
+		try{
+			Map<String, String> errors = batchDeleter.delete(name, keys.iterator());
+			failed = false;
+			return errors;
+		}finally{
+			endMetrics(S3Operation.DELETE, begin, 0, failed);
+		}
+	}
+
+	/**
+	 * Delete all blobs in this repository.
+	 *
+	 * @return The keys that fail to delete and the error messages.
+	 * @throws IOException
+	 */
+	public Map<String, String> purge() throws IOException {
+		Assert.state(batchDeleter != null, "The batch deleter is not set.");
+
+		long begin = beginMetrics(S3Operation.DELETE);
+		boolean failed = true;
+
+		try{
+			Map<String, String> errors = batchDeleter.purge(name);
+			failed = false;
+			return errors;
+		}finally{
+			endMetrics(S3Operation.DELETE, begin, 0, failed);
+		}
+	}
+
+	/**
+	 * Copy the blob by the server-side copy, the content is not transferred
+	 * through this client, and the metadata is kept.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName The repository of the copy, it can be this repository.
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 * @throws java.io.FileNotFoundException If the source blob does not exist.
+	 */
+	@Override
+	public void copy(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException {
+		copy(sourceKey, targetRepositoryName, targetKey, publicReadable, false);
+	}
+
+	/**
+	 * Move the blob by the server-side copy, the source blob is deleted
+	 * after it is copied.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName The repository of the copy, it can be this repository.
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 * @throws java.io.FileNotFoundException If the source blob does not exist.
+	 */
+	@Override
+	public void move(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException {
+		copy(sourceKey, targetRepositoryName, targetKey, publicReadable, true);
+	}
+
+	/**
+	 * Copy the blobs which key starts with the source prefix concurrently,
+	 * the prefix of key is replaced by the target prefix.
+	 *
+	 * @param sourcePrefix E.g. "2015/".
+	 * @param targetRepositoryName The repository of the copies, it can be this repository.
+	 * @param targetPrefix E.g. "archive/2015/".
+	 * @param publicReadable
+	 * @return The keys that fail to copy and the error messages.
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> copyAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException {
+		return copyAll(sourcePrefix, targetRepositoryName, targetPrefix, publicReadable, false, null);
+	}
+
+	/**
+	 * Move the blobs which key starts with the source prefix concurrently.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @return The keys that fail to move and the error messages.
+	 * @throws IOException
+	 * @see #copyAll(java.lang.String, java.lang.String, java.lang.String, boolean)
+	 */
+	@Override
+	public Map<String, String> moveAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException {
+		return copyAll(sourcePrefix, targetRepositoryName, targetPrefix, publicReadable, true, null);
+	}
+
+	private void copy(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable, boolean deleteSource) throws IOException {
+		Assert.notNull(sourceKey);
+		Assert.hasText(targetRepositoryName);
+		Assert.notNull(targetKey);
+		Assert.state(copier != null, "The copier is not set.");
+
+		CannedAccessControlList cannedAcl = publicReadable ? CannedAccessControlList.PublicRead : null;
+
+		long begin = beginMetrics(S3Operation.COPY);
+		boolean failed = true;
+
+		try{
+			copier.copy(name, sourceKey, targetRepositoryName, targetKey, cannedAcl, deleteSource);
+			failed = false;
+		}finally{
+			endMetrics(S3Operation.COPY, begin, 0, failed);
+		}
+	}
+
+	/**
+	 * Copy or move the blobs which key starts with the source prefix and
+	 * accepted by the filter, e.g. skip the segments of the packed repository.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @param deleteSource
+	 * @param filter Optional.
+	 * @return The keys that fail to copy and the error messages.
+	 * @throws IOException
+	 */
+	Map<String, String> copyAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable, boolean deleteSource,
+			Predicate<String> filter) throws IOException {
+		Assert.notNull(sourcePrefix);
+		Assert.hasText(targetRepositoryName);
+		Assert.notNull(targetPrefix);
+		Assert.state(copier != null, "The copier is not set.");
+
+		CannedAccessControlList cannedAcl = publicReadable ? CannedAccessControlList.PublicRead : null;
+
+		long begin = beginMetrics(S3Operation.COPY);
+		boolean failed = true;
+
+		try{
+			Map<String, String> errors = copier.copyAll(name, sourcePrefix,
+					targetRepositoryName, targetPrefix, cannedAcl, deleteSource, filter);
+			failed = false;
+			return errors;
+		}finally{
+			endMetrics(S3Operation.COPY, begin, 0, failed);
 		}
 	}
 
+	/**
+	 * Synchronize the local directory to the blobs which key starts with the prefix,
+	 * only the new and the changed files are uploaded.
+	 *
+	 * @param directory
+	 * @param prefix Optional, e.g. "static/".
+	 * @param stateFile Optional, the state of the last synchronizing, it makes
+	 *	the files that are not changed skipped without reading.
+	 * @param deleteRemoved Whether to delete the blobs that their files are removed.
+	 * @return
+	 * @throws IOException
+	 * @see S3DirectorySync
+	 */
+	@Override
+	public S3SyncResult sync(File directory, String prefix, File stateFile,
+			boolean deleteRemoved) throws IOException {
+		Assert.state(directorySync != null, "The directory sync is not set.");
+		return directorySync.sync(this, directory, prefix, stateFile, deleteRemoved);
+	}
+
 	@Override
 	public PartialCollection<BlobResourceInfo> list() {
-		ObjectListing objectListing = client.listObjects(name);
-		return convertToPartialCollection(objectListing);
+		return list(null, null);
+	}
+
+	/**
+	 * List the blobs which key starts with the prefix.
+	 *
+	 * Use {@link #listNext(PartialCollection)} to get the following pages,
+	 * and the common prefixes are available by
+	 * {@link S3PartialArrayList#getObjectListing()} when the delimiter is specified.
+	 *
+	 * @param prefix Optional.
+	 * @param delimiter Optional, e.g. "/".
+	 * @return
+	 */
+	public PartialCollection<BlobResourceInfo> list(String prefix, String delimiter) {
+		return list(prefix, delimiter, false);
+	}
+
+	/**
+	 * List the blobs which key starts with the prefix, and load the metadata
+	 * of the page concurrently if the metadata prefetcher is set.
+	 *
+	 * @param prefix Optional.
+	 * @param delimiter Optional, e.g. "/".
+	 * @param prefetch Load the metadata of this page and the following pages
+	 *	before they are returned, for the caller that reads the mime type
+	 *	or the metadata of each blob.
+	 * @return
+	 */
+	public PartialCollection<BlobResourceInfo> list(String prefix, String delimiter, boolean prefetch) {
+		long begin = beginMetrics(S3Operation.LIST);
+		boolean failed = true;
+
+		try{
+			ObjectListing objectListing = client.listObjects(
+					createListObjectsRequest(prefix, delimiter));
+			S3PartialArrayList<BlobResourceInfo> collection = convertToPartialCollection(objectListing, prefetch);
+			failed = false;
+			return collection;
+		}finally{
+			endMetrics(S3Operation.LIST, begin, 0, failed);
+		}
+	}
+
+	/**
+	 * List the blobs which key starts with the prefix in the compact pages.
+	 *
+	 * The pages keep the fields of blobs in arrays and the marker of next page
+	 * only, so they suit the long-running scan that holds many pages. Use
+	 * {@link #listNext(PartialCollection)} to get the following pages.
+	 *
+	 * @param prefix Optional.
+	 * @param delimiter Optional.
+	 * @return
+	 */
+	public S3CompactPartialList listCompact(String prefix, String delimiter) {
+		return listCompactPage(createListObjectsRequest(prefix, delimiter), this::getBySummary);
+	}
+
+	/**
+	 * Iterate all blobs lazily.
+	 *
+	 * @return
+	 */
+	public S3ListingIterator iterate() {
+		return iterate(null, null);
+	}
+
+	/**
+	 * Iterate the blobs which key starts with the prefix lazily.
+	 *
+	 * @param prefix Optional.
+	 * @param delimiter Optional, the common prefixes are available by
+	 *	{@link S3ListingIterator#getCommonPrefixes()}.
+	 * @return
+	 */
+	public S3ListingIterator iterate(String prefix, String delimiter) {
+		return iterate(prefix, delimiter, false);
+	}
+
+	/**
+	 * Iterate the blobs which key starts with the prefix lazily, and prefetch
+	 * in background if it is asked.
+	 *
+	 * @param prefix Optional.
+	 * @param delimiter Optional.
+	 * @param prefetch List the next page in background while the current page
+	 *	is consuming if the listing executor service is set, and load the
+	 *	metadata of each page if the metadata prefetcher is set.
+	 * @return
+	 */
+	public S3ListingIterator iterate(String prefix, String delimiter, boolean prefetch) {
+		return iterate(prefix, delimiter, prefetch, null);
+	}
+
+	/**
+	 * Iterate the blobs lazily and wrap each blob by the converter.
+	 *
+	 * @param prefix Optional.
+	 * @param delimiter Optional.
+	 * @param prefetch
+	 * @param converter Optional.
+	 * @return
+	 */
+	S3ListingIterator iterate(String prefix, String delimiter, boolean prefetch,
+			Function<BlobResourceInfo, BlobResourceInfo> converter) {
+		return new S3ListingIterator(client, createListObjectsRequest(prefix, delimiter),
+				parallelDownloader, requestHedger, metrics, contentChecksum,
+				prefetch ? metadataPrefetcher : null,
+				prefetch ? listingExecutorService : null,
+				converter, compressor != null);
+	}
+
+	/**
+	 * Iterate the blobs which key starts with the prefix by listing the
+	 * partitions concurrently, the partitions are discovered by the delimiter,
+	 * e.g. the "directories" of "/".
+	 *
+	 * @param prefix Optional.
+	 * @param delimiter
+	 * @param minPartitions The min number of partitions to discover if possible.
+	 * @param ordered Whether to iterate the blobs in key order.
+	 * @return
+	 */
+	public S3PartitionedListingIterator iterateParallel(String prefix, String delimiter,
+			int minPartitions, boolean ordered) {
+		Assert.state(parallelLister != null, "The parallel lister is not set.");
+
+		return parallelLister.iterate(name,
+				parallelLister.partitionByDelimiter(name, prefix, delimiter, minPartitions),
+				ordered, this::getBySummary);
+	}
+
+	/**
+	 * Iterate the blobs which key starts with the prefix by listing the
+	 * key ranges concurrently, it suits the flat keyspace, e.g. the hashed keys.
+	 *
+	 * @param prefix Optional.
+	 * @param splitKeys The boundaries of the key ranges, e.g. "4", "8" and "c".
+	 * @param ordered Whether to iterate the blobs in key order.
+	 * @return
+	 * @see S3ParallelLister#partitionByKeys(java.lang.String, java.util.List)
+	 */
+	public S3PartitionedListingIterator iterateParallel(String prefix, List<String> splitKeys,
+			boolean ordered) {
+		Assert.state(parallelLister != null, "The parallel lister is not set.");
+
+		return parallelLister.iterate(name,
+				parallelLister.partitionByKeys(prefix, splitKeys),
+				ordered, this::getBySummary);
 	}
 
 	@Override
 	public PartialCollection<BlobResourceInfo> listNext(PartialCollection<BlobResourceInfo> prevCollection) {
+		if (prevCollection instanceof S3CompactPartialList) {
+			S3CompactPartialList prevList = (S3CompactPartialList)prevCollection;
+			Assert.isTrue(prevList.hasMore(), "There is no more page.");
+
+			return listCompactPage(createListObjectsRequest(prevList.getPrefix(), prevList.getDelimiter())
+					.withMarker(prevList.getNextMarker()), prevList.getConverter());
+		}
+
 		Assert.isInstanceOf(S3PartialArrayList.class, prevCollection);
 
-		ObjectListing oldObjectListing = ((S3PartialArrayList)prevCollection).getObjectListing();
-		ObjectListing objectListing = client.listNextBatchOfObjects(oldObjectListing);
-		return convertToPartialCollection(objectListing);
+		long begin = beginMetrics(S3Operation.LIST);
+		boolean failed = true;
+
+		try{
+			S3PartialArrayList<?> prevList = (S3PartialArrayList<?>)prevCollection;
+			ObjectListing objectListing = client.listNextBatchOfObjects(prevList.getObjectListing());
+			S3PartialArrayList<BlobResourceInfo> collection = convertToPartialCollection(
+					objectListing, prevList.isPrefetch());
+			failed = false;
+			return collection;
+		}finally{
+			endMetrics(S3Operation.LIST, begin, 0, failed);
+		}
+	}
+
+	/**
+	 * See {@link #listCompact(java.lang.String, java.lang.String)}.
+	 *
+	 * @param request
+	 * @param converter Convert the object summary to the blob, e.g. wrap it
+	 *	by the caching repository.
+	 * @return
+	 */
+	S3CompactPartialList listCompactPage(ListObjectsRequest request,
+			Function<S3ObjectSummary, BlobResourceInfo> converter) {
+		long begin = beginMetrics(S3Operation.LIST);
+		boolean failed = true;
+
+		try{
+			S3CompactPartialList collection = new S3CompactPartialList(
+					client.listObjects(request), converter);
+			failed = false;
+			return collection;
+		}finally{
+			endMetrics(S3Operation.LIST, begin, 0, failed);
+		}
+	}
+
+	private ListObjectsRequest createListObjectsRequest(String prefix, String delimiter) {
+		return new ListObjectsRequest()
+				.withBucketName(name)
+				.withPrefix(prefix)
+				.withDelimiter(delimiter);
 	}
 
-	private S3PartialArrayList convertToPartialCollection(ObjectListing objectListing) {
+	/**
+	 * Put the object by the single request, the content without the prepared
+	 * "Content-MD5" is digested while it is sent if the content checksum is set.
+	 *
+	 * @param key
+	 * @param in
+	 * @param meta
+	 * @param cannedAcl
+	 * @param storageClass
+	 * @throws IOException
+	 */
+	private void putObject(String key, InputStream in, ObjectMetadata meta,
+			CannedAccessControlList cannedAcl, StorageClass storageClass) throws IOException {
+		S3DigestInputStream digestIn = null;
+		if (contentChecksum != null && meta.getContentMD5() == null) {
+			digestIn = new S3DigestInputStream(in);
+			in = digestIn;
+		}
+
+		PutObjectRequest request = new PutObjectRequest(name, key, in, meta);
+
+		if (cannedAcl != null) {
+			request.setCannedAcl(cannedAcl);
+		}
+
+		if (storageClass != null) {
+			request.setStorageClass(storageClass);
+		}
+
+		try{
+			PutObjectResult result = client.putObject(request);
+			if (digestIn != null) {
+				contentChecksum.verifyUpload(digestIn, result.getETag(), meta, name, key);
+			}
+		}catch(AmazonClientException e){
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Check whether the blob should be compressed, the blob that is larger than
+	 * {@link #MAX_BUFFERED_ENCODED_LENGTH} is not compressed without multipart upload.
+	 *
+	 * @param mimeType
+	 * @param contentLength
+	 * @return
+	 */
+	private boolean isEncodingRequired(String mimeType, long contentLength) {
+		if (compressor == null || !compressor.isRequired(mimeType, contentLength)) {
+			return false;
+		}
+
+		return multipartUploader != null || contentLength <= MAX_BUFFERED_ENCODED_LENGTH;
+	}
+
+	/**
+	 * Compress and upload the content.
+	 *
+	 * The compressed length is unknown until the whole content is compressed,
+	 * so the content is uploaded by multipart upload once it exceeds one part,
+	 * and at most one part of each upload is buffered for the single request.
+	 * Without multipart upload, the compressed content (of the original length
+	 * not larger than {@link #MAX_BUFFERED_ENCODED_LENGTH}) is buffered.
+	 *
+	 * @param key
+	 * @param in
+	 * @param contentLength The original length.
+	 * @param meta
+	 * @param cannedAcl
+	 * @param storageClass
+	 * @throws IOException
+	 */
+	private void putEncoded(String key, InputStream in, long contentLength, ObjectMetadata meta,
+			CannedAccessControlList cannedAcl, StorageClass storageClass) throws IOException {
+		meta.setContentEncoding(compressor.getEncoding());
+		meta.addUserMetadata(S3ContentCompressor.DECODED_LENGTH_KEY, String.valueOf(contentLength));
+
+		InputStream encoded = compressor.compress(in);
+		try{
+			if (multipartUploader == null) {
+				// the whole compressed content is buffered without multipart upload,
+				// it is bounded by the original length.
+				byte[] data = IOUtils.toByteArray(encoded);
+				meta.setContentLength(data.length);
+				if (contentChecksum != null) {
+					contentChecksum.prepare(meta, data, 0, data.length);
+				}
+				putObject(key, new ByteArrayInputStream(data), meta, cannedAcl, storageClass);
+				return;
+			}
+
+			// the compressed content is rarely larger than the original content.
+			byte[] head = new byte[(int)Math.min(multipartUploader.getPartSize(), contentLength + 1024)];
+			int count = IOUtils.read(encoded, head);
+
+			if (count < head.length) {
+				meta.setContentLength(count);
+				if (contentChecksum != null) {
+					contentChecksum.prepare(meta, head, 0, count);
+				}
+				putObject(key, new ByteArrayInputStream(head, 0, count), meta, cannedAcl, storageClass);
+			}else{
+				multipartUploader.upload(name, key,
+						new SequenceInputStream(new ByteArrayInputStream(head), encoded),
+						-1, meta, cannedAcl, storageClass);
+			}
+		}finally{
+			IOUtils.closeQuietly(encoded);
+		}
+	}
+
+	private ObjectMetadata createObjectMetadata(String mimeType, Map<String, Object> metadata) {
+		ObjectMetadata meta = new ObjectMetadata();
+		meta.setContentType(mimeType);
+
+		Map<String, String> userMetadata = convertToUserMetaData(metadata);
+		if (userMetadata != null) {
+			meta.setUserMetadata(userMetadata);
+		}
+		return meta;
+	}
+
+	private S3BlobResourceInfo createBlobResourceInfo(String key, ObjectMetadata objectMetadata) {
+		S3BlobResourceInfo info = new S3BlobResourceInfo(
+				name, key, objectMetadata, client, parallelDownloader);
+		info.setRequestHedger(requestHedger);
+		info.setRequestCoalescer(requestCoalescer);
+		info.setMetrics(metrics);
+		info.setContentChecksum(contentChecksum);
+		return info;
+	}
+
+	private void acquireUploadSlot(int priority) throws IOException {
+		if (uploadScheduler != null) {
+			uploadScheduler.acquire(priority);
+		}
+	}
+
+	private void releaseUploadSlot() {
+		if (uploadScheduler != null) {
+			uploadScheduler.release();
+		}
+	}
+
+	private long beginMetrics(S3Operation operation) {
+		return (metrics == null) ? 0 : metrics.begin(name, operation);
+	}
+
+	private void endMetrics(S3Operation operation, long begin, long bytes, boolean failed) {
+		if (metrics != null) {
+			metrics.end(name, operation, begin, bytes, failed);
+		}
+	}
+
+	private void invalidateMetadata(String key) {
+		if (requestCoalescer != null) {
+			requestCoalescer.invalidate(name, key);
+		}
+
+		if (metadataCache != null) {
+			metadataCache.invalidate(name, key);
+		}
+	}
+
+	private S3PartialArrayList<BlobResourceInfo> convertToPartialCollection(ObjectListing objectListing,
+			boolean prefetch) {
 		Assert.notNull(objectListing);
 		
 		List<BlobResourceInfo> items = new ArrayList<BlobResourceInfo>();
 		for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
-			items.add(new S3BlobResourceInfoBySummary(summary, client));
+			items.add(getBySummary(summary));
+		}
+
+		if (prefetch && metadataPrefetcher != null) {
+			metadataPrefetcher.prefetch(items);
 		}
 
-		return new S3PartialArrayList(items, objectListing, objectListing.isTruncated());
+		return new S3PartialArrayList<BlobResourceInfo>(items, objectListing,
+				objectListing.isTruncated(), prefetch);
 	}
 	
 	private Map<String, String> convertToUserMetaData(Map<String, Object> source){
@@ -1,6 +1,16 @@
 package org.archboy.clobaframe.blobstore.amazons3;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.PostConstruct;
 import org.apache.commons.lang3.StringUtils;
 import javax.inject.Inject;
@@ -12,7 +22,11 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CreateBucketRequest;
 import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * {@link Blobstore} implements for Amazon S3.
@@ -21,12 +35,45 @@ import org.springframework.beans.factory.InitializingBean;
  *
  */
 @Named
-public class S3Blobstore implements Blobstore, InitializingBean {
+public class S3Blobstore implements Blobstore, InitializingBean, DisposableBean {
 
 	@Inject
 	private S3ClientFactory clientFactory;
 
 	private AmazonS3 client;
+	private S3MultipartUploader multipartUploader;
+	private S3ParallelDownloader parallelDownloader;
+	private S3ContentCache contentCache;
+	private S3MetadataCache metadataCache;
+	private S3BatchDeleter batchDeleter;
+	private S3Copier copier;
+	private ExecutorService listingExecutorService;
+	private S3MetadataPrefetcher metadataPrefetcher;
+	private S3AsyncExecutor asyncExecutor;
+	private S3RequestHedger requestHedger;
+	private S3RequestCoalescer requestCoalescer;
+	private ScheduledExecutorService packExecutorService;
+	private S3ContentCompressor compressor;
+	private S3UploadSpool uploadSpool;
+	private S3UrlSigner urlSigner;
+	private ForkJoinPool parallelListingPool;
+	private S3ParallelLister parallelLister;
+	private S3ContentChecksum contentChecksum;
+	private S3DirectorySync directorySync;
+
+	// the target repository of each bucket that the spool drains to.
+	private ConcurrentMap<String, S3ExtendedBlobResourceRepository> spooledRepositories =
+			new ConcurrentHashMap<String, S3ExtendedBlobResourceRepository>();
+
+	// the upload scheduler of each bucket, they are shared by the repositories.
+	private ConcurrentMap<String, S3UploadScheduler> uploadSchedulers =
+			new ConcurrentHashMap<String, S3UploadScheduler>();
+
+	// the segment store of each bucket, they are shared by the repositories.
+	private ConcurrentMap<String, S3SegmentStore> segmentStores =
+			new ConcurrentHashMap<String, S3SegmentStore>();
+
+	private Logger logger = LoggerFactory.getLogger(S3Blobstore.class);
 
 	public void setClientFactory(S3ClientFactory clientFactory) {
 		this.clientFactory = clientFactory;
@@ -36,6 +83,218 @@ public class S3Blobstore implements Blobstore, InitializingBean {
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		client = clientFactory.getClient();
+
+		S3Backoff backoff = new S3Backoff(
+				clientFactory.getRetryBaseDelay(),
+				clientFactory.getRetryMaxDelay());
+
+		if (clientFactory.isChecksumEnabled()) {
+			contentChecksum = new S3ContentChecksum();
+		}
+
+		if (client != null && clientFactory.getMultipartThreshold() > 0) {
+			multipartUploader = new S3MultipartUploader(client,
+					clientFactory.getMultipartThreshold(),
+					clientFactory.getMultipartPartSize(),
+					clientFactory.getMultipartConcurrency(),
+					clientFactory.getMultipartPartRetries());
+			multipartUploader.setBackoff(backoff);
+			multipartUploader.setContentChecksum(contentChecksum);
+		}
+
+		if (client != null && clientFactory.getParallelDownloadThreshold() > 0) {
+			parallelDownloader = new S3ParallelDownloader(client,
+					clientFactory.getParallelDownloadThreshold(),
+					clientFactory.getParallelDownloadRangeSize(),
+					clientFactory.getParallelDownloadConcurrency(),
+					clientFactory.getParallelDownloadRangeRetries());
+			parallelDownloader.setBackoff(backoff);
+		}
+
+		if (StringUtils.isNotEmpty(clientFactory.getCacheDirectory())) {
+			contentCache = new S3ContentCache(
+					new File(clientFactory.getCacheDirectory()),
+					clientFactory.getCacheMaxSize());
+		}
+
+		if (client != null && clientFactory.getHedgePercentile() > 0) {
+			requestHedger = new S3RequestHedger(client,
+					clientFactory.getHedgePercentile(),
+					clientFactory.getHedgeMinDelay(),
+					clientFactory.getHedgeMaxDelay(),
+					clientFactory.getHedgeRetries(),
+					backoff,
+					clientFactory.getHedgeMaxThreads());
+		}
+
+		if (clientFactory.isCoalesceEnabled()) {
+			requestCoalescer = new S3RequestCoalescer(clientFactory.getCoalesceMaxContentSize());
+		}
+
+		if (client != null && clientFactory.getMetadataCacheSize() > 0) {
+			metadataCache = new S3MetadataCache(client,
+					clientFactory.getMetadataCacheSize(),
+					clientFactory.getMetadataCacheTtl(),
+					clientFactory.getMetadataCacheNegativeTtl());
+			metadataCache.setRequestHedger(requestHedger);
+			metadataCache.setRequestCoalescer(requestCoalescer);
+			metadataCache.setMetrics(clientFactory.getMetrics());
+		}
+
+		if (client != null) {
+			urlSigner = new S3UrlSigner(client,
+					clientFactory.getUrlCacheSize(),
+					clientFactory.getUrlCacheTtl());
+		}
+
+		if (client != null) {
+			batchDeleter = new S3BatchDeleter(client,
+					clientFactory.getDeleteConcurrency(),
+					metadataCache);
+		}
+
+		if (client != null) {
+			copier = new S3Copier(client,
+					clientFactory.getCopyMultipartThreshold(),
+					clientFactory.getCopyPartSize(),
+					clientFactory.getCopyConcurrency(),
+					clientFactory.getCopyPartRetries(),
+					metadataCache);
+			copier.setBackoff(backoff);
+		}
+
+		if (client != null && clientFactory.getSyncConcurrency() > 0) {
+			directorySync = new S3DirectorySync(clientFactory.getSyncConcurrency());
+		}
+
+		if (clientFactory.getListingPrefetchThreads() > 0) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-listing-");
+			threadFactory.setDaemon(true);
+			listingExecutorService = Executors.newFixedThreadPool(
+					clientFactory.getListingPrefetchThreads(), threadFactory);
+		}
+
+		if (client != null && clientFactory.getParallelListingConcurrency() > 0) {
+			parallelListingPool = new ForkJoinPool(clientFactory.getParallelListingConcurrency());
+			parallelLister = new S3ParallelLister(client, parallelListingPool,
+					clientFactory.getParallelListingConcurrency(),
+					clientFactory.getParallelListingMaxBufferedPages());
+		}
+
+		if (client != null && clientFactory.getListingMetadataConcurrency() > 0) {
+			metadataPrefetcher = new S3MetadataPrefetcher(client,
+					clientFactory.getListingMetadataConcurrency(),
+					metadataCache);
+		}
+
+		if (StringUtils.isNotEmpty(clientFactory.getCompressionCodec())) {
+			String[] skippedMimeTypes = StringUtils.split(
+					clientFactory.getCompressionSkippedMimeTypes(), ',');
+			compressor = new S3ContentCompressor(
+					createContentCodec(clientFactory.getCompressionCodec(),
+						clientFactory.getCompressionLevel()),
+					clientFactory.getCompressionMinSize(),
+					(skippedMimeTypes == null) ? null : Arrays.asList(skippedMimeTypes));
+		}
+
+		if (client != null && clientFactory.getPackThreshold() > 0) {
+			// the packed blobs are read by the range of segment rather than
+			// by the ETag of object, so they can not be revalidated by the cache.
+			Assert.state(contentCache == null,
+					"The packing of small blobs does not work with the content cache, unset one of them.");
+
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-pack-");
+			threadFactory.setDaemon(true);
+			packExecutorService = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+			packExecutorService.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushSegments();
+				}
+			}, clientFactory.getPackFlushInterval(), clientFactory.getPackFlushInterval(),
+					TimeUnit.MILLISECONDS);
+
+			packExecutorService.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					compactSegments();
+				}
+			}, clientFactory.getPackCompactionInterval(), clientFactory.getPackCompactionInterval(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		if (client != null) {
+			asyncExecutor = new S3AsyncExecutor(
+					S3AsyncExecutor.createExecutorService(
+						clientFactory.getAsyncThreads(),
+						clientFactory.isAsyncVirtualThreads()),
+					clientFactory.getAsyncMaxInFlight(),
+					clientFactory.getAsyncMaxPending());
+		}
+
+		if (client != null && StringUtils.isNotEmpty(clientFactory.getWriteBehindDirectory())) {
+			uploadSpool = new S3UploadSpool(
+					new File(clientFactory.getWriteBehindDirectory()),
+					clientFactory.getWriteBehindThreads(),
+					clientFactory.getWriteBehindMaxRetries(),
+					backoff,
+					repoName -> getSpooledRepository(repoName));
+			uploadSpool.open();
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		// stop draining first, the pending blobs are resumed on the next start.
+		if (uploadSpool != null) {
+			uploadSpool.close();
+		}
+
+		if (packExecutorService != null) {
+			packExecutorService.shutdownNow();
+			flushSegments();
+		}
+
+		if (multipartUploader != null) {
+			multipartUploader.close();
+		}
+
+		if (parallelDownloader != null) {
+			parallelDownloader.close();
+		}
+
+		if (batchDeleter != null) {
+			batchDeleter.close();
+		}
+
+		if (copier != null) {
+			copier.close();
+		}
+
+		if (directorySync != null) {
+			directorySync.close();
+		}
+
+		if (listingExecutorService != null) {
+			listingExecutorService.shutdownNow();
+		}
+
+		if (parallelListingPool != null) {
+			parallelListingPool.shutdownNow();
+		}
+
+		if (metadataPrefetcher != null) {
+			metadataPrefetcher.close();
+		}
+
+		if (asyncExecutor != null) {
+			asyncExecutor.close();
+		}
+
+		if (requestHedger != null) {
+			requestHedger.close();
+		}
 	}
 
 	@Override
@@ -43,10 +302,37 @@ public class S3Blobstore implements Blobstore, InitializingBean {
 		return "amazons3";
 	}
 
+	/**
+	 * Get the metadata cache, e.g. for reading the hit and miss counters.
+	 *
+	 * @return NULL if the metadata cache is disabled.
+	 */
+	public S3MetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	/**
+	 * Get the request coalescer, e.g. for reading the coalesced counter.
+	 *
+	 * @return NULL if the coalescing is disabled.
+	 */
+	public S3RequestCoalescer getRequestCoalescer() {
+		return requestCoalescer;
+	}
+
+	/**
+	 * Get the write-behind spool, e.g. for waiting the pending blobs.
+	 *
+	 * @return NULL if the write-behind is disabled.
+	 */
+	public S3UploadSpool getUploadSpool() {
+		return uploadSpool;
+	}
+
 	@Override
 	public boolean exist(String repoName) {
 		Assert.hasText(repoName);
-		return client.doesBucketExist(repoName);
+		return doesBucketExist(repoName);
 	}
 
 	@Override
@@ -63,30 +349,227 @@ public class S3Blobstore implements Blobstore, InitializingBean {
 			client.createBucket(request);
 		}catch(AmazonClientException e){
 			throw new IOException(e);
+		}finally{
+			invalidateBucket(repoName);
 		}
 	}
 
 	@Override
 	public BlobResourceRepository getRepository(String repoName) {
-		if (client.doesBucketExist(repoName)) {
-			return new S3BlobResourceRepository(client, repoName);
+		if (doesBucketExist(repoName)) {
+			return createRepository(repoName);
 		}else{
 			return null;
 		}
 	}
 
+	public CompletableFuture<Boolean> existAsync(String repoName) {
+		Assert.hasText(repoName);
+		Assert.state(asyncExecutor != null, "The async executor is not set.");
+		return asyncExecutor.submit(repoName, () -> exist(repoName));
+	}
+
+	public CompletableFuture<Void> createAsync(String repoName) {
+		Assert.hasText(repoName);
+		Assert.state(asyncExecutor != null, "The async executor is not set.");
+		return asyncExecutor.submit(repoName, () -> {
+			create(repoName);
+			return null;
+		});
+	}
+
+	/**
+	 * Get the asynchronous repository.
+	 *
+	 * @param repoName
+	 * @return The future of NULL if the repository does not exist.
+	 */
+	public CompletableFuture<S3AsyncBlobResourceRepository> getRepositoryAsync(String repoName) {
+		Assert.hasText(repoName);
+		Assert.state(asyncExecutor != null, "The async executor is not set.");
+		return asyncExecutor.submit(repoName, () -> {
+			BlobResourceRepository repository = getRepository(repoName);
+			return (repository == null) ? null :
+					new S3AsyncBlobResourceRepository(repository, asyncExecutor);
+		});
+	}
+
+	public CompletableFuture<Void> deleteAsync(String repoName) {
+		Assert.hasText(repoName);
+		Assert.state(asyncExecutor != null, "The async executor is not set.");
+		return asyncExecutor.submit(repoName, () -> {
+			delete(repoName);
+			return null;
+		});
+	}
+
+	private S3ContentCodec createContentCodec(String name, int level) {
+		if (S3GzipContentCodec.ENCODING.equals(name)) {
+			return new S3GzipContentCodec(level);
+		}else if (S3ZstdContentCodec.ENCODING.equals(name)) {
+			return new S3ZstdContentCodec(level);
+		}else{
+			throw new IllegalArgumentException(String.format(
+					"Unsupported compression codec [%s].", name));
+		}
+	}
+
+	private BlobResourceRepository createRepository(String repoName) {
+		if (uploadSpool != null) {
+			S3WriteBehindBlobResourceRepository writeBehindRepository =
+					new S3WriteBehindBlobResourceRepository(getSpooledRepository(repoName), uploadSpool);
+			writeBehindRepository.setDirectorySync(directorySync);
+			return writeBehindRepository;
+		}
+
+		return createTargetRepository(repoName);
+	}
+
+	private S3ExtendedBlobResourceRepository getSpooledRepository(String repoName) {
+		return spooledRepositories.computeIfAbsent(repoName,
+				name -> createTargetRepository(name));
+	}
+
+	private S3ExtendedBlobResourceRepository createTargetRepository(String repoName) {
+		S3BlobResourceRepository repository = createS3Repository(repoName);
+		repository.setCompressor(compressor);
+
+		if (packExecutorService != null) {
+			S3PackedBlobResourceRepository packedRepository = new S3PackedBlobResourceRepository(repository,
+					getSegmentStore(repoName), clientFactory.getPackThreshold());
+			packedRepository.setDirectorySync(directorySync);
+			packedRepository.setSegmentStores(name -> getSegmentStore(name));
+			return packedRepository;
+		}
+
+		if (contentCache != null) {
+			S3CachedBlobResourceRepository cachedRepository =
+					new S3CachedBlobResourceRepository(repository, contentCache);
+			cachedRepository.setDirectorySync(directorySync);
+			return cachedRepository;
+		}
+
+		return repository;
+	}
+
+	private S3BlobResourceRepository createS3Repository(String repoName) {
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(client, repoName);
+		repository.setMultipartUploader(multipartUploader);
+		repository.setParallelDownloader(parallelDownloader);
+		repository.setMetadataCache(metadataCache);
+		repository.setBatchDeleter(batchDeleter);
+		repository.setCopier(copier);
+		repository.setListingExecutorService(listingExecutorService);
+		repository.setMetadataPrefetcher(metadataPrefetcher);
+		repository.setRequestHedger(requestHedger);
+		repository.setRequestCoalescer(requestCoalescer);
+		repository.setMetrics(clientFactory.getMetrics());
+		repository.setUploadScheduler(getUploadScheduler(repoName));
+		repository.setUrlSigner(urlSigner);
+		repository.setParallelLister(parallelLister);
+		repository.setContentChecksum(contentChecksum);
+		repository.setDirectorySync(directorySync);
+		return repository;
+	}
+
+	/**
+	 * Get the upload scheduler of the bucket.
+	 *
+	 * @param repoName
+	 * @return NULL if the upload concurrency and bandwidth are unlimited.
+	 */
+	public S3UploadScheduler getUploadScheduler(String repoName) {
+		if (clientFactory.getUploadConcurrency() == 0 && clientFactory.getUploadBandwidth() == 0) {
+			return null;
+		}
+
+		return uploadSchedulers.computeIfAbsent(repoName,
+				name -> new S3UploadScheduler(
+					clientFactory.getUploadConcurrency(),
+					clientFactory.getUploadBandwidth()));
+	}
+
+	private S3SegmentStore getSegmentStore(String repoName) {
+		S3SegmentStore segmentStore = segmentStores.get(repoName);
+		if (segmentStore != null) {
+			return segmentStore;
+		}
+
+		synchronized (segmentStores) {
+			segmentStore = segmentStores.get(repoName);
+			if (segmentStore == null) {
+				// the segments are read by byte range, so they are never compressed.
+				segmentStore = new S3SegmentStore(createS3Repository(repoName),
+						clientFactory.getPackSegmentSize());
+				try{
+					segmentStore.load();
+				}catch(IOException e){
+					throw new AmazonClientException("Load the segments failed.", e);
+				}
+				segmentStores.put(repoName, segmentStore);
+			}
+			return segmentStore;
+		}
+	}
+
+	private void flushSegments() {
+		for (S3SegmentStore segmentStore : segmentStores.values()) {
+			try{
+				segmentStore.flush();
+			}catch(Exception e){
+				logger.error("Flush the segment of repository [{}] failed, error: {}",
+						segmentStore.getName(), e.getMessage());
+			}
+		}
+	}
+
+	private void compactSegments() {
+		for (S3SegmentStore segmentStore : segmentStores.values()) {
+			try{
+				segmentStore.compact(clientFactory.getPackCompactionMinLiveRatio());
+			}catch(Exception e){
+				logger.error("Compact the segments of repository [{}] failed, error: {}",
+						segmentStore.getName(), e.getMessage());
+			}
+		}
+	}
+
 	@Override
 	public void delete(String repoName) throws IOException {
 		Assert.hasText(repoName);
-		
+
+		// the buffered blobs and tombstones are written first, so the non-empty
+		// bucket is refused by Amazon S3 rather than losing them silently.
+		S3SegmentStore segmentStore = segmentStores.get(repoName);
+		if (segmentStore != null) {
+			segmentStore.flush();
+		}
+
 		try{
 			client.deleteBucket(repoName);
 		}catch (AmazonS3Exception e) {
-			if(e.getStatusCode() == 404){
-				// skip the non-exists repository.
-				return;
+			if(e.getStatusCode() != 404){
+				throw new IOException(e);
 			}
-			throw new IOException(e);
+			// skip the non-exists repository.
+		}finally{
+			invalidateBucket(repoName);
+		}
+
+		// the segment store is kept while the bucket is still in use.
+		segmentStores.remove(repoName);
+	}
+
+	private boolean doesBucketExist(String repoName) {
+		if (metadataCache != null) {
+			return metadataCache.doesBucketExist(repoName);
+		}
+		return client.doesBucketExist(repoName);
+	}
+
+	private void invalidateBucket(String repoName) {
+		if (metadataCache != null) {
+			metadataCache.invalidateBucket(repoName);
 		}
 	}
 }
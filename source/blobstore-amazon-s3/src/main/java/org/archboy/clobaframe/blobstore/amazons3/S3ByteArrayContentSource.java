@@ -0,0 +1,34 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * The content source of the in-memory data, the data is shared
+ * by the opened streams without copying.
+ *
+ * @author yang
+ *
+ */
+public class S3ByteArrayContentSource implements S3ContentSource {
+
+	private byte[] data;
+
+	public S3ByteArrayContentSource(byte[] data) {
+		this.data = data;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	@Override
+	public long getContentLength() {
+		return data.length;
+	}
+
+	@Override
+	public InputStream open(long position, long length) {
+		return new ByteArrayInputStream(data, (int)position, (int)length);
+	}
+}
@@ -0,0 +1,158 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.Map;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceInfo;
+
+/**
+ * The {@link BlobResourceInfo} that reads content from the local disk cache
+ * if the cached content has the same ETag with the object.
+ *
+ * @author yang
+ *
+ */
+public class S3CachedBlobResourceInfo extends AbstractBlobResourceInfo
+		implements S3ETaggedBlobResourceInfo {
+
+	private BlobResourceInfo blobResourceInfo;
+	private String eTag;
+	private S3ContentCache contentCache;
+
+	public S3CachedBlobResourceInfo(BlobResourceInfo blobResourceInfo,
+			String eTag, S3ContentCache contentCache) {
+		this.blobResourceInfo = blobResourceInfo;
+		this.eTag = eTag;
+		this.contentCache = contentCache;
+	}
+
+	@Override
+	public String getRepositoryName() {
+		return blobResourceInfo.getRepositoryName();
+	}
+
+	@Override
+	public String getKey() {
+		return blobResourceInfo.getKey();
+	}
+
+	@Override
+	public long getContentLength() {
+		return blobResourceInfo.getContentLength();
+	}
+
+	@Override
+	public String getMimeType() {
+		return blobResourceInfo.getMimeType();
+	}
+
+	@Override
+	public Date getLastModified() {
+		return blobResourceInfo.getLastModified();
+	}
+
+	@Override
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 *
+	 * @return NULL if the bucket is not versioned.
+	 */
+	public String getVersionId() {
+		return (blobResourceInfo instanceof S3BlobResourceInfo) ?
+				((S3BlobResourceInfo)blobResourceInfo).getVersionId() :
+				null;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		FileChannel channel = openCachedFile();
+		if (channel != null) {
+			return Channels.newInputStream(channel);
+		}
+
+		InputStream in = blobResourceInfo.getContent();
+
+		if (eTag == null || !contentCache.isCacheable(getContentLength())) {
+			return in;
+		}
+
+		return contentCache.wrap(getRepositoryName(), getKey(), eTag, getContentLength(), in);
+	}
+
+	@Override
+	public InputStream getContent(long start, long length) throws IOException {
+		FileChannel channel = openCachedFile();
+		if (channel == null) {
+			return blobResourceInfo.getContent(start, length);
+		}
+
+		return getContent(channel, start, length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The cached content is read if it is the specified version.
+	 */
+	@Override
+	public InputStream getContent(long start, long length, String ifMatch) throws IOException {
+		if (eTag != null && S3ContentChecksum.unquote(eTag).equals(S3ContentChecksum.unquote(ifMatch))) {
+			FileChannel channel = openCachedFile();
+			if (channel != null) {
+				return getContent(channel, start, length);
+			}
+		}
+
+		if (blobResourceInfo instanceof S3ETaggedBlobResourceInfo) {
+			return ((S3ETaggedBlobResourceInfo)blobResourceInfo).getContent(start, length, ifMatch);
+		}
+
+		throw new IOException(String.format(
+				"Blob [%s] in the amazon s3 repository [%s] can not be read by the ETag.",
+				getKey(), getRepositoryName()));
+	}
+
+	@Override
+	public boolean isSeekable() {
+		return blobResourceInfo.isSeekable();
+	}
+
+	@Override
+	public Map<String, Object> getMetadata() {
+		return blobResourceInfo.getMetadata();
+	}
+
+	@Override
+	public String getUserMetadata(String name) {
+		return (blobResourceInfo instanceof S3ETaggedBlobResourceInfo) ?
+				((S3ETaggedBlobResourceInfo)blobResourceInfo).getUserMetadata(name) :
+				null;
+	}
+
+	private InputStream getContent(FileChannel channel, long start, long length) throws IOException {
+		try{
+			channel.position(start);
+		}catch(IOException e){
+			channel.close();
+			throw e;
+		}
+
+		return new BoundedInputStream(Channels.newInputStream(channel), length);
+	}
+
+	private FileChannel openCachedFile() throws IOException {
+		if (eTag == null) {
+			return null;
+		}
+
+		return contentCache.open(getRepositoryName(), getKey(), eTag);
+	}
+}
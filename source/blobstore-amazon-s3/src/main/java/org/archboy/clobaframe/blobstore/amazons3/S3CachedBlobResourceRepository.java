@@ -0,0 +1,379 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceRepository;
+import org.springframework.util.Assert;
+
+/**
+ * The read-through cache {@link BlobResourceRepository} which wraps
+ * the {@link S3BlobResourceRepository}.
+ *
+ * The blob content is cached on the local disk after it is read
+ * completely, and the cached content is revalidated by the ETag
+ * of object.
+ *
+ * @author yang
+ *
+ */
+public class S3CachedBlobResourceRepository extends AbstractBlobResourceRepository
+		implements S3ExtendedBlobResourceRepository {
+
+	private S3BlobResourceRepository repository;
+	private S3ContentCache contentCache;
+	private S3DirectorySync directorySync; // optional
+
+	public S3CachedBlobResourceRepository(S3BlobResourceRepository repository,
+			S3ContentCache contentCache) {
+		this.repository = repository;
+		this.contentCache = contentCache;
+	}
+
+	public void setDirectorySync(S3DirectorySync directorySync) {
+		this.directorySync = directorySync;
+	}
+
+	@Override
+	public String getName() {
+		return repository.getName();
+	}
+
+	@Override
+	public void put(BlobResourceInfo blobResourceInfo, boolean publicReadable, int priority) throws IOException {
+		Assert.notNull(blobResourceInfo);
+
+		try{
+			repository.put(blobResourceInfo, publicReadable, priority);
+		}finally{
+			contentCache.invalidate(getName(), blobResourceInfo.getKey());
+		}
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#put(java.lang.String, org.archboy.clobaframe.blobstore.amazons3.S3ContentSource, java.lang.String, java.util.Map, boolean, int)}.
+	 *
+	 * @param key
+	 * @param source
+	 * @param mimeType
+	 * @param metadata
+	 * @param publicReadable
+	 * @param priority
+	 * @throws IOException
+	 */
+	@Override
+	public void put(String key, S3ContentSource source, String mimeType,
+			Map<String, Object> metadata, boolean publicReadable, int priority) throws IOException {
+		try{
+			repository.put(key, source, mimeType, metadata, publicReadable, priority);
+		}finally{
+			contentCache.invalidate(getName(), key);
+		}
+	}
+
+	@Override
+	public BlobResourceInfo get(String key) {
+		S3BlobResourceInfo blobResourceInfo = (S3BlobResourceInfo)repository.get(key);
+		if (blobResourceInfo == null) {
+			contentCache.invalidate(getName(), key);
+			return null;
+		}
+
+		return new S3CachedBlobResourceInfo(blobResourceInfo,
+				blobResourceInfo.getETag(), contentCache);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#getContent(java.lang.String, java.lang.String, java.util.Date)}.
+	 *
+	 * @param key
+	 * @param ifNoneMatch
+	 * @param ifModifiedSince
+	 * @return
+	 * @throws IOException
+	 */
+	public S3ConditionalContent getContent(String key, String ifNoneMatch,
+			Date ifModifiedSince) throws IOException {
+		return repository.getContent(key, ifNoneMatch, ifModifiedSince);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#getDownloadUrl(java.lang.String, long, com.amazonaws.services.s3.model.ResponseHeaderOverrides)}.
+	 *
+	 * @param key
+	 * @param expiry
+	 * @param overrides
+	 * @return
+	 */
+	public URL getDownloadUrl(String key, long expiry, ResponseHeaderOverrides overrides) {
+		return repository.getDownloadUrl(key, expiry, overrides);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#getDownloadUrls(java.lang.Iterable, long, com.amazonaws.services.s3.model.ResponseHeaderOverrides)}.
+	 *
+	 * @param keys
+	 * @param expiry
+	 * @param overrides
+	 * @return
+	 */
+	public Map<String, URL> getDownloadUrls(Iterable<String> keys, long expiry,
+			ResponseHeaderOverrides overrides) {
+		return repository.getDownloadUrls(keys, expiry, overrides);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#getUploadUrl(java.lang.String, long, java.lang.String)}.
+	 *
+	 * @param key
+	 * @param expiry
+	 * @param mimeType
+	 * @return
+	 */
+	public URL getUploadUrl(String key, long expiry, String mimeType) {
+		return repository.getUploadUrl(key, expiry, mimeType);
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		try{
+			repository.delete(key);
+		}finally{
+			contentCache.invalidate(getName(), key);
+		}
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#delete(java.lang.Iterable)}.
+	 *
+	 * @param keys
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> delete(Iterable<String> keys) throws IOException {
+		Assert.notNull(keys);
+
+		// the keys may be generated lazily, iterate them once only.
+		List<String> keyList = new ArrayList<String>();
+		for (String key : keys) {
+			keyList.add(key);
+		}
+
+		try{
+			return repository.delete(keyList);
+		}finally{
+			for (String key : keyList) {
+				contentCache.invalidate(getName(), key);
+			}
+		}
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#copy(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 */
+	@Override
+	public void copy(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException {
+		try{
+			repository.copy(sourceKey, targetRepositoryName, targetKey, publicReadable);
+		}finally{
+			contentCache.invalidate(targetRepositoryName, targetKey);
+		}
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#move(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 */
+	@Override
+	public void move(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException {
+		try{
+			repository.move(sourceKey, targetRepositoryName, targetKey, publicReadable);
+		}finally{
+			contentCache.invalidate(getName(), sourceKey);
+			contentCache.invalidate(targetRepositoryName, targetKey);
+		}
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#copyAll(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * The cached content of the overwritten blobs is revalidated by
+	 * the ETag when they are looked up next time.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> copyAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException {
+		return repository.copyAll(sourcePrefix, targetRepositoryName, targetPrefix, publicReadable);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#moveAll(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * The cached content of the moved blobs is removed when they
+	 * are looked up next time.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> moveAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException {
+		return repository.moveAll(sourcePrefix, targetRepositoryName, targetPrefix, publicReadable);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#sync(java.io.File, java.lang.String, java.io.File, boolean)}.
+	 *
+	 * @param directory
+	 * @param prefix
+	 * @param stateFile
+	 * @param deleteRemoved
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public S3SyncResult sync(File directory, String prefix, File stateFile,
+			boolean deleteRemoved) throws IOException {
+		Assert.state(directorySync != null, "The directory sync is not set.");
+		return directorySync.sync(this, directory, prefix, stateFile, deleteRemoved);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#purge()}.
+	 *
+	 * The cached content of the purged blobs is removed when they
+	 * are looked up next time.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<String, String> purge() throws IOException {
+		return repository.purge();
+	}
+
+	@Override
+	public PartialCollection<BlobResourceInfo> list() {
+		return wrap((S3PartialArrayList<BlobResourceInfo>)repository.list());
+	}
+
+	@Override
+	public PartialCollection<BlobResourceInfo> listNext(PartialCollection<BlobResourceInfo> prevCollection) {
+		if (prevCollection instanceof S3CompactPartialList) {
+			// the blobs of the compact page are wrapped when they are accessed.
+			return repository.listNext(prevCollection);
+		}
+
+		return wrap((S3PartialArrayList<BlobResourceInfo>)repository.listNext(prevCollection));
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#list(java.lang.String, java.lang.String)}.
+	 *
+	 * @param prefix
+	 * @param delimiter
+	 * @return
+	 */
+	public PartialCollection<BlobResourceInfo> list(String prefix, String delimiter) {
+		return list(prefix, delimiter, false);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#list(java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param prefix
+	 * @param delimiter
+	 * @param prefetch
+	 * @return
+	 */
+	public PartialCollection<BlobResourceInfo> list(String prefix, String delimiter, boolean prefetch) {
+		return wrap((S3PartialArrayList<BlobResourceInfo>)repository.list(prefix, delimiter, prefetch));
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#listCompact(java.lang.String, java.lang.String)}.
+	 *
+	 * @param prefix
+	 * @param delimiter
+	 * @return
+	 */
+	public S3CompactPartialList listCompact(String prefix, String delimiter) {
+		return repository.listCompactPage(new ListObjectsRequest()
+				.withBucketName(getName())
+				.withPrefix(prefix)
+				.withDelimiter(delimiter),
+				summary -> wrap(repository.getBySummary(summary)));
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#iterate(java.lang.String, java.lang.String)},
+	 * close the iterator when the iteration is stopped before the end.
+	 *
+	 * @param prefix
+	 * @param delimiter
+	 * @return
+	 */
+	public S3ListingIterator iterate(String prefix, String delimiter) {
+		return iterate(prefix, delimiter, false);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#iterate(java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param prefix
+	 * @param delimiter
+	 * @param prefetch
+	 * @return
+	 */
+	public S3ListingIterator iterate(String prefix, String delimiter, boolean prefetch) {
+		return repository.iterate(prefix, delimiter, prefetch, this::wrap);
+	}
+
+	private BlobResourceInfo wrap(BlobResourceInfo info) {
+		return new S3CachedBlobResourceInfo(info,
+				((S3BlobResourceInfoBySummary)info).getETag(), contentCache);
+	}
+
+	private S3PartialArrayList<BlobResourceInfo> wrap(S3PartialArrayList<BlobResourceInfo> collection) {
+		List<BlobResourceInfo> items = new ArrayList<BlobResourceInfo>();
+		for (BlobResourceInfo info : collection) {
+			items.add(wrap(info));
+		}
+
+		return new S3PartialArrayList<BlobResourceInfo>(
+				items, collection.getObjectListing(), collection.hasMore(), collection.isPrefetch());
+	}
+}
@@ -3,12 +3,14 @@ package org.archboy.clobaframe.blobstore.amazons3;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -16,7 +18,9 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ResourceLoaderAware;
 import org.springframework.core.io.Resource;
@@ -29,7 +33,7 @@ import org.springframework.core.io.ResourceLoader;
  *
  */
 @Named
-public class S3ClientFactory implements ResourceLoaderAware, InitializingBean {
+public class S3ClientFactory implements ResourceLoaderAware, InitializingBean, DisposableBean {
 
 	private static final int DEFAULT_CONNECTION_TIMEOUT = 30 * 1000;
 	private static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
@@ -41,6 +45,61 @@ public class S3ClientFactory implements ResourceLoaderAware, InitializingBean {
 	private static final String DEFAULT_ENDPOINT = ""; //"s3.amazonaws.com";
 	private static final String DEFAULT_LOCATION_CONSTRAINT = "";
 	private static final boolean DEFAULT_SECURE_CONNECTION = true;
+	private static final long DEFAULT_MULTIPART_THRESHOLD = 0;
+	private static final long DEFAULT_MULTIPART_PART_SIZE = 8 * 1024 * 1024;
+	private static final int DEFAULT_MULTIPART_CONCURRENCY = 4;
+	private static final int DEFAULT_MULTIPART_PART_RETRIES = 3;
+	private static final long DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD = 0;
+	private static final long DEFAULT_PARALLEL_DOWNLOAD_RANGE_SIZE = 8 * 1024 * 1024;
+	private static final int DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY = 4;
+	private static final int DEFAULT_PARALLEL_DOWNLOAD_RANGE_RETRIES = 3;
+	private static final String DEFAULT_CACHE_DIRECTORY = "";
+	private static final long DEFAULT_CACHE_MAX_SIZE = 1024 * 1024 * 1024;
+	private static final int DEFAULT_METADATA_CACHE_SIZE = 0;
+	private static final long DEFAULT_METADATA_CACHE_TTL = 60 * 1000;
+	private static final long DEFAULT_METADATA_CACHE_NEGATIVE_TTL = 5 * 1000;
+	private static final int DEFAULT_DELETE_CONCURRENCY = 4;
+	private static final int DEFAULT_LISTING_PREFETCH_THREADS = 4;
+	private static final int DEFAULT_LISTING_METADATA_CONCURRENCY = 16;
+	private static final int DEFAULT_ASYNC_THREADS = 32;
+	private static final boolean DEFAULT_ASYNC_VIRTUAL_THREADS = false;
+	private static final int DEFAULT_ASYNC_MAX_IN_FLIGHT = 16;
+	private static final int DEFAULT_ASYNC_MAX_PENDING = 1000;
+	private static final long DEFAULT_RETRY_BASE_DELAY = 500;
+	private static final long DEFAULT_RETRY_MAX_DELAY = 10 * 1000;
+	private static final int DEFAULT_HEDGE_PERCENTILE = 0;
+	private static final long DEFAULT_HEDGE_MIN_DELAY = 10;
+	private static final long DEFAULT_HEDGE_MAX_DELAY = 2 * 1000;
+	private static final int DEFAULT_HEDGE_RETRIES = 2;
+	private static final int DEFAULT_HEDGE_MAX_THREADS = 64;
+	private static final boolean DEFAULT_METRICS_ENABLED = false;
+	private static final boolean DEFAULT_METRICS_JMX_ENABLED = true;
+	private static final long DEFAULT_PACK_THRESHOLD = 0;
+	private static final long DEFAULT_PACK_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final long DEFAULT_PACK_FLUSH_INTERVAL = 5 * 1000;
+	private static final long DEFAULT_PACK_COMPACTION_INTERVAL = 60 * 60 * 1000;
+	private static final double DEFAULT_PACK_COMPACTION_MIN_LIVE_RATIO = 0.5;
+	private static final String DEFAULT_COMPRESSION_CODEC = "";
+	private static final int DEFAULT_COMPRESSION_LEVEL = -1;
+	private static final long DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+	private static final String DEFAULT_COMPRESSION_SKIPPED_MIME_TYPES = "image/*,video/*,audio/*,application/zip,application/gzip,application/x-gzip,application/x-bzip2,application/x-xz,application/x-7z-compressed,application/x-rar-compressed,application/zstd";
+	private static final long DEFAULT_COPY_MULTIPART_THRESHOLD = 5L * 1024 * 1024 * 1024;
+	private static final long DEFAULT_COPY_PART_SIZE = 512 * 1024 * 1024;
+	private static final int DEFAULT_COPY_CONCURRENCY = 8;
+	private static final int DEFAULT_COPY_PART_RETRIES = 3;
+	private static final boolean DEFAULT_COALESCE_ENABLED = false;
+	private static final long DEFAULT_COALESCE_MAX_CONTENT_SIZE = 1024 * 1024;
+	private static final String DEFAULT_WRITE_BEHIND_DIRECTORY = "";
+	private static final int DEFAULT_WRITE_BEHIND_THREADS = 4;
+	private static final int DEFAULT_WRITE_BEHIND_MAX_RETRIES = 10;
+	private static final int DEFAULT_UPLOAD_CONCURRENCY = 0;
+	private static final long DEFAULT_UPLOAD_BANDWIDTH = 0;
+	private static final int DEFAULT_URL_CACHE_SIZE = 10000;
+	private static final long DEFAULT_URL_CACHE_TTL = 60 * 1000;
+	private static final int DEFAULT_PARALLEL_LISTING_CONCURRENCY = 8;
+	private static final int DEFAULT_PARALLEL_LISTING_MAX_BUFFERED_PAGES = 32;
+	private static final boolean DEFAULT_CHECKSUM_ENABLED = false;
+	private static final int DEFAULT_SYNC_CONCURRENCY = 8;
 	
 	@Value("${clobaframe.amazon.credentials.file:" + DEFAULT_CREDENTIAL_FILE_NAME + "}")
 	private String credentialFilename;
@@ -64,10 +123,387 @@ public class S3ClientFactory implements ResourceLoaderAware, InitializingBean {
 	@Value("${clobaframe.blobstore.amazons3.secureConnection:" + DEFAULT_SECURE_CONNECTION + "}")
 	private boolean secureConnection;
 
+	/**
+	 * The blob which content length is equal to or larger than this value (in byte)
+	 * will be uploaded by multipart upload, set 0 to disable the multipart upload.
+	 * It is disabled by default, since the ETag of the blob that is uploaded by
+	 * multipart upload is not the MD5 of the content but in the form of "md5-N",
+	 * i.e. the callers that compare the ETag with the MD5 should not enable it.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.multipartThreshold:" + DEFAULT_MULTIPART_THRESHOLD + "}")
+	private long multipartThreshold;
+
+	/**
+	 * The size of each part (in byte), the minimum value is 5 MB.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.multipartPartSize:" + DEFAULT_MULTIPART_PART_SIZE + "}")
+	private long multipartPartSize;
+
+	/**
+	 * The max number of parts that are uploading at the same time.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.multipartConcurrency:" + DEFAULT_MULTIPART_CONCURRENCY + "}")
+	private int multipartConcurrency;
+
+	/**
+	 * The number of retries of each failed part.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.multipartPartRetries:" + DEFAULT_MULTIPART_PART_RETRIES + "}")
+	private int multipartPartRetries;
+
+	/**
+	 * The blob which content length is equal to or larger than this value (in byte)
+	 * will be downloaded by several byte ranges in parallel,
+	 * set 0 to disable the parallel download.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.parallelDownloadThreshold:" + DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD + "}")
+	private long parallelDownloadThreshold;
+
+	/**
+	 * The size of each range (in byte).
+	 */
+	@Value("${clobaframe.blobstore.amazons3.parallelDownloadRangeSize:" + DEFAULT_PARALLEL_DOWNLOAD_RANGE_SIZE + "}")
+	private long parallelDownloadRangeSize;
+
+	/**
+	 * The max number of ranges that are downloading (or waiting for reading)
+	 * at the same time.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.parallelDownloadConcurrency:" + DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY + "}")
+	private int parallelDownloadConcurrency;
+
+	/**
+	 * The number of retries of each failed range.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.parallelDownloadRangeRetries:" + DEFAULT_PARALLEL_DOWNLOAD_RANGE_RETRIES + "}")
+	private int parallelDownloadRangeRetries;
+
+	/**
+	 * The local directory of the blob content cache,
+	 * leave empty to disable the cache.
+	 *
+	 * The files are stored in the sub-directory "s3-content-cache",
+	 * and it is cleaned when the cache is created.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.cacheDirectory:" + DEFAULT_CACHE_DIRECTORY + "}")
+	private String cacheDirectory;
+
+	/**
+	 * The max total size (in byte) of the cached content.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.cacheMaxSize:" + DEFAULT_CACHE_MAX_SIZE + "}")
+	private long cacheMaxSize;
+
+	/**
+	 * The max number of the cached object metadata and bucket existence,
+	 * set 0 to disable the metadata cache.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.metadataCacheSize:" + DEFAULT_METADATA_CACHE_SIZE + "}")
+	private int metadataCacheSize;
+
+	/**
+	 * The time-to-live (in millisecond) of the cached metadata.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.metadataCacheTtl:" + DEFAULT_METADATA_CACHE_TTL + "}")
+	private long metadataCacheTtl;
+
+	/**
+	 * The time-to-live (in millisecond) of the cached non-exists object and bucket.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.metadataCacheNegativeTtl:" + DEFAULT_METADATA_CACHE_NEGATIVE_TTL + "}")
+	private long metadataCacheNegativeTtl;
+
+	/**
+	 * The max number of multi-object delete requests that are sending
+	 * at the same time.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.deleteConcurrency:" + DEFAULT_DELETE_CONCURRENCY + "}")
+	private int deleteConcurrency;
+
+	/**
+	 * The number of threads that list the next page in background for
+	 * the listing iterators that ask for prefetching, set 0 to disable
+	 * the background listing.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.listingPrefetchThreads:" + DEFAULT_LISTING_PREFETCH_THREADS + "}")
+	private int listingPrefetchThreads;
+
+	/**
+	 * The max number of HEAD requests sending at the same time when
+	 * prefetching the metadata (i.e. the mime type and user metadata)
+	 * of each page of the listings that ask for prefetching, set 0 to
+	 * disable the prefetching so the metadata is loaded when it is accessed.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.listingMetadataConcurrency:" + DEFAULT_LISTING_METADATA_CONCURRENCY + "}")
+	private int listingMetadataConcurrency;
+
+	/**
+	 * The number of threads that run the asynchronous operations.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.asyncThreads:" + DEFAULT_ASYNC_THREADS + "}")
+	private int asyncThreads;
+
+	/**
+	 * Run each asynchronous operation in a virtual thread if the JVM
+	 * supports (Java 21 and above), instead of the platform threads.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.asyncVirtualThreads:" + DEFAULT_ASYNC_VIRTUAL_THREADS + "}")
+	private boolean asyncVirtualThreads;
+
+	/**
+	 * The max number of in-flight asynchronous operations of each repository,
+	 * the exceeded operations are queued.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.asyncMaxInFlight:" + DEFAULT_ASYNC_MAX_IN_FLIGHT + "}")
+	private int asyncMaxInFlight;
+
+	/**
+	 * The max number of queued asynchronous operations of each repository,
+	 * the exceeded operations are rejected.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.asyncMaxPending:" + DEFAULT_ASYNC_MAX_PENDING + "}")
+	private int asyncMaxPending;
+
+	/**
+	 * The base delay of the capped exponential backoff (with jitter)
+	 * when retrying the failed request, in millisecond.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.retryBaseDelay:" + DEFAULT_RETRY_BASE_DELAY + "}")
+	private long retryBaseDelay;
+
+	/**
+	 * The max delay of the backoff, in millisecond.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.retryMaxDelay:" + DEFAULT_RETRY_MAX_DELAY + "}")
+	private long retryMaxDelay;
+
+	/**
+	 * Send a duplicate GET/HEAD request when the first one does not respond
+	 * within this percentile of the recent latencies, e.g. 95, 0 to disable.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.hedgePercentile:" + DEFAULT_HEDGE_PERCENTILE + "}")
+	private int hedgePercentile;
+
+	/**
+	 * The lower bound of the hedging delay, in millisecond.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.hedgeMinDelay:" + DEFAULT_HEDGE_MIN_DELAY + "}")
+	private long hedgeMinDelay;
+
+	/**
+	 * The upper bound of the hedging delay, it is also used before
+	 * enough latencies are sampled, in millisecond.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.hedgeMaxDelay:" + DEFAULT_HEDGE_MAX_DELAY + "}")
+	private long hedgeMaxDelay;
+
+	/**
+	 * The max number of retries of the retryable failed GET/HEAD request when hedging.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.hedgeRetries:" + DEFAULT_HEDGE_RETRIES + "}")
+	private int hedgeRetries;
+
+	/**
+	 * The max number of threads of the hedged requests, the request is sent
+	 * without hedging when all threads are busy.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.hedgeMaxThreads:" + DEFAULT_HEDGE_MAX_THREADS + "}")
+	private int hedgeMaxThreads;
+
+	/**
+	 * Measure the latency, throughput and errors of the blobstore operations.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.metricsEnabled:" + DEFAULT_METRICS_ENABLED + "}")
+	private boolean metricsEnabled;
+
+	/**
+	 * Expose the metrics by JMX.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.metricsJmxEnabled:" + DEFAULT_METRICS_JMX_ENABLED + "}")
+	private boolean metricsJmxEnabled;
+
+	/**
+	 * The blobs not larger than the threshold (in byte) are packed into
+	 * the segment objects, 0 to disable.
+	 *
+	 * It can not be enabled together with the cache directory.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.packThreshold:" + DEFAULT_PACK_THRESHOLD + "}")
+	private long packThreshold;
+
+	/**
+	 * The segment is uploaded when its size exceeds this value, in byte.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.packSegmentSize:" + DEFAULT_PACK_SEGMENT_SIZE + "}")
+	private long packSegmentSize;
+
+	/**
+	 * The interval of uploading the pending segment, in millisecond.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.packFlushInterval:" + DEFAULT_PACK_FLUSH_INTERVAL + "}")
+	private long packFlushInterval;
+
+	/**
+	 * The interval of compacting the segments, in millisecond.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.packCompactionInterval:" + DEFAULT_PACK_COMPACTION_INTERVAL + "}")
+	private long packCompactionInterval;
+
+	/**
+	 * The segments that the ratio of live bytes is less than this value
+	 * are rewritten by the compaction.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.packCompactionMinLiveRatio:" + DEFAULT_PACK_COMPACTION_MIN_LIVE_RATIO + "}")
+	private double packCompactionMinLiveRatio;
+
+	/**
+	 * The codec to compress the blobs, i.e. "gzip" or "zstd", empty to disable.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.compressionCodec:" + DEFAULT_COMPRESSION_CODEC + "}")
+	private String compressionCodec;
+
+	/**
+	 * The compression level of codec, -1 for the default level.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.compressionLevel:" + DEFAULT_COMPRESSION_LEVEL + "}")
+	private int compressionLevel;
+
+	/**
+	 * The blobs that smaller than this size (in byte) are not compressed.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.compressionMinSize:" + DEFAULT_COMPRESSION_MIN_SIZE + "}")
+	private long compressionMinSize;
+
+	/**
+	 * The comma separated content types that are compressed already,
+	 * e.g. "image/*,application/zip".
+	 */
+	@Value("${clobaframe.blobstore.amazons3.compressionSkippedMimeTypes:" + DEFAULT_COMPRESSION_SKIPPED_MIME_TYPES + "}")
+	private String compressionSkippedMimeTypes;
+
+	/**
+	 * The objects that not smaller than this size (in byte) are copied by
+	 * multipart copy, it should not exceed 5 GB.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.copyMultipartThreshold:" + DEFAULT_COPY_MULTIPART_THRESHOLD + "}")
+	private long copyMultipartThreshold;
+
+	/**
+	 * The part size of multipart copy, in byte.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.copyPartSize:" + DEFAULT_COPY_PART_SIZE + "}")
+	private long copyPartSize;
+
+	/**
+	 * The max number of the objects of bulk copy and the parts of multipart
+	 * copy that are copying at the same time.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.copyConcurrency:" + DEFAULT_COPY_CONCURRENCY + "}")
+	private int copyConcurrency;
+
+	/**
+	 * The retry times of the failed part of multipart copy.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.copyPartRetries:" + DEFAULT_COPY_PART_RETRIES + "}")
+	private int copyPartRetries;
+
+	/**
+	 * Share one in-flight HEAD/GET request among the concurrent identical
+	 * reads of the same blob. It is disabled by default since the shared
+	 * content is held in memory, enable it for the hot blobs.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.coalesceEnabled:" + DEFAULT_COALESCE_ENABLED + "}")
+	private boolean coalesceEnabled;
+
+	/**
+	 * The max size of the content that is read by the shared GET request and
+	 * held in memory, in byte, the larger content is read independently.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.coalesceMaxContentSize:" + DEFAULT_COALESCE_MAX_CONTENT_SIZE + "}")
+	private long coalesceMaxContentSize;
+
+	/**
+	 * The local spool directory of the write-behind puts and deletes, they return
+	 * once the content is synced to the spool, empty to disable.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.writeBehindDirectory:" + DEFAULT_WRITE_BEHIND_DIRECTORY + "}")
+	private String writeBehindDirectory;
+
+	/**
+	 * The number of the workers that drain the spool to Amazon S3.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.writeBehindThreads:" + DEFAULT_WRITE_BEHIND_THREADS + "}")
+	private int writeBehindThreads;
+
+	/**
+	 * The max number of the retries of draining one spooled operation, the
+	 * operation that still fails (or fails with the non-retryable error) is
+	 * kept in the spool as failed, see {@link S3UploadSpool#getFailedEntries()}.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.writeBehindMaxRetries:" + DEFAULT_WRITE_BEHIND_MAX_RETRIES + "}")
+	private int writeBehindMaxRetries;
+
+	/**
+	 * The max number of the concurrent uploads of each repository, the waiting
+	 * upload with higher priority starts first, 0 for unlimited.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.uploadConcurrency:" + DEFAULT_UPLOAD_CONCURRENCY + "}")
+	private int uploadConcurrency;
+
+	/**
+	 * The max aggregate upload bandwidth of each repository, in byte per second,
+	 * the higher priority upload is served first, 0 for unlimited.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.uploadBandwidth:" + DEFAULT_UPLOAD_BANDWIDTH + "}")
+	private long uploadBandwidth;
+
+	/**
+	 * The max number of the cached presigned URLs, set 0 to disable the URL cache.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.urlCacheSize:" + DEFAULT_URL_CACHE_SIZE + "}")
+	private int urlCacheSize;
+
+	/**
+	 * The max time-to-live (in millisecond) of the cached presigned URL,
+	 * it is limited to the half of the requested URL expiry.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.urlCacheTtl:" + DEFAULT_URL_CACHE_TTL + "}")
+	private long urlCacheTtl;
+
+	/**
+	 * The max number of the concurrent listing requests of each parallel listing,
+	 * and the parallelism of the listing pool, set 0 to disable the parallel listing.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.parallelListingConcurrency:" + DEFAULT_PARALLEL_LISTING_CONCURRENCY + "}")
+	private int parallelListingConcurrency;
+
+	/**
+	 * The max number of the listed pages that are waiting for consuming
+	 * of each parallel listing, the listing is paused when it is reached.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.parallelListingMaxBufferedPages:" + DEFAULT_PARALLEL_LISTING_MAX_BUFFERED_PAGES + "}")
+	private int parallelListingMaxBufferedPages;
+
+	/**
+	 * Whether to send the checksum of the content on put and verify the content on get.
+	 * The stored CRC-32C or the ETag is verified while the content is read.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.checksumEnabled:" + DEFAULT_CHECKSUM_ENABLED + "}")
+	private boolean checksumEnabled;
+
+	/**
+	 * The max number of the files that are uploading (or the batches of deletion)
+	 * at the same time when synchronizing the local directory, 0 to disable.
+	 */
+	@Value("${clobaframe.blobstore.amazons3.syncConcurrency:" + DEFAULT_SYNC_CONCURRENCY + "}")
+	private int syncConcurrency;
+
 	//@Inject
 	private ResourceLoader resourceLoader;
 
 	private AmazonS3 client;
+	private S3Metrics metrics;
+	private List<S3MetricsSink> metricsSinks;
 
 	private Logger logger = LoggerFactory.getLogger(S3ClientFactory.class);
 
@@ -92,6 +528,237 @@ public class S3ClientFactory implements ResourceLoaderAware, InitializingBean {
 		this.secureConnection = secureConnection;
 	}
 
+	public void setMultipartThreshold(long multipartThreshold) {
+		this.multipartThreshold = multipartThreshold;
+	}
+
+	public void setMultipartPartSize(long multipartPartSize) {
+		this.multipartPartSize = multipartPartSize;
+	}
+
+	public void setMultipartConcurrency(int multipartConcurrency) {
+		this.multipartConcurrency = multipartConcurrency;
+	}
+
+	public void setMultipartPartRetries(int multipartPartRetries) {
+		this.multipartPartRetries = multipartPartRetries;
+	}
+
+	public void setParallelDownloadThreshold(long parallelDownloadThreshold) {
+		this.parallelDownloadThreshold = parallelDownloadThreshold;
+	}
+
+	public void setParallelDownloadRangeSize(long parallelDownloadRangeSize) {
+		this.parallelDownloadRangeSize = parallelDownloadRangeSize;
+	}
+
+	public void setParallelDownloadConcurrency(int parallelDownloadConcurrency) {
+		this.parallelDownloadConcurrency = parallelDownloadConcurrency;
+	}
+
+	public void setParallelDownloadRangeRetries(int parallelDownloadRangeRetries) {
+		this.parallelDownloadRangeRetries = parallelDownloadRangeRetries;
+	}
+
+	public void setCacheDirectory(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public void setCacheMaxSize(long cacheMaxSize) {
+		this.cacheMaxSize = cacheMaxSize;
+	}
+
+	public void setMetadataCacheSize(int metadataCacheSize) {
+		this.metadataCacheSize = metadataCacheSize;
+	}
+
+	public void setMetadataCacheTtl(long metadataCacheTtl) {
+		this.metadataCacheTtl = metadataCacheTtl;
+	}
+
+	public void setMetadataCacheNegativeTtl(long metadataCacheNegativeTtl) {
+		this.metadataCacheNegativeTtl = metadataCacheNegativeTtl;
+	}
+
+	public void setDeleteConcurrency(int deleteConcurrency) {
+		this.deleteConcurrency = deleteConcurrency;
+	}
+
+	public void setListingPrefetchThreads(int listingPrefetchThreads) {
+		this.listingPrefetchThreads = listingPrefetchThreads;
+	}
+
+	public void setListingMetadataConcurrency(int listingMetadataConcurrency) {
+		this.listingMetadataConcurrency = listingMetadataConcurrency;
+	}
+
+	public void setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = asyncThreads;
+	}
+
+	public void setAsyncVirtualThreads(boolean asyncVirtualThreads) {
+		this.asyncVirtualThreads = asyncVirtualThreads;
+	}
+
+	public void setAsyncMaxInFlight(int asyncMaxInFlight) {
+		this.asyncMaxInFlight = asyncMaxInFlight;
+	}
+
+	public void setAsyncMaxPending(int asyncMaxPending) {
+		this.asyncMaxPending = asyncMaxPending;
+	}
+
+	public void setRetryBaseDelay(long retryBaseDelay) {
+		this.retryBaseDelay = retryBaseDelay;
+	}
+
+	public void setRetryMaxDelay(long retryMaxDelay) {
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
+	public void setHedgePercentile(int hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	public void setHedgeMinDelay(long hedgeMinDelay) {
+		this.hedgeMinDelay = hedgeMinDelay;
+	}
+
+	public void setHedgeMaxDelay(long hedgeMaxDelay) {
+		this.hedgeMaxDelay = hedgeMaxDelay;
+	}
+
+	public void setHedgeRetries(int hedgeRetries) {
+		this.hedgeRetries = hedgeRetries;
+	}
+
+	public void setHedgeMaxThreads(int hedgeMaxThreads) {
+		this.hedgeMaxThreads = hedgeMaxThreads;
+	}
+
+	public void setMetricsEnabled(boolean metricsEnabled) {
+		this.metricsEnabled = metricsEnabled;
+	}
+
+	public void setMetricsJmxEnabled(boolean metricsJmxEnabled) {
+		this.metricsJmxEnabled = metricsJmxEnabled;
+	}
+
+	/**
+	 * The optional metrics sinks, e.g. the beans that forward the metrics
+	 * to the external monitoring system.
+	 *
+	 * @param metricsSinks
+	 */
+	@Autowired(required = false)
+	public void setMetricsSinks(List<S3MetricsSink> metricsSinks) {
+		this.metricsSinks = metricsSinks;
+	}
+
+	public void setPackThreshold(long packThreshold) {
+		this.packThreshold = packThreshold;
+	}
+
+	public void setPackSegmentSize(long packSegmentSize) {
+		this.packSegmentSize = packSegmentSize;
+	}
+
+	public void setPackFlushInterval(long packFlushInterval) {
+		this.packFlushInterval = packFlushInterval;
+	}
+
+	public void setPackCompactionInterval(long packCompactionInterval) {
+		this.packCompactionInterval = packCompactionInterval;
+	}
+
+	public void setPackCompactionMinLiveRatio(double packCompactionMinLiveRatio) {
+		this.packCompactionMinLiveRatio = packCompactionMinLiveRatio;
+	}
+
+	public void setCompressionCodec(String compressionCodec) {
+		this.compressionCodec = compressionCodec;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public void setCompressionMinSize(long compressionMinSize) {
+		this.compressionMinSize = compressionMinSize;
+	}
+
+	public void setCompressionSkippedMimeTypes(String compressionSkippedMimeTypes) {
+		this.compressionSkippedMimeTypes = compressionSkippedMimeTypes;
+	}
+
+	public void setCopyMultipartThreshold(long copyMultipartThreshold) {
+		this.copyMultipartThreshold = copyMultipartThreshold;
+	}
+
+	public void setCopyPartSize(long copyPartSize) {
+		this.copyPartSize = copyPartSize;
+	}
+
+	public void setCopyConcurrency(int copyConcurrency) {
+		this.copyConcurrency = copyConcurrency;
+	}
+
+	public void setCopyPartRetries(int copyPartRetries) {
+		this.copyPartRetries = copyPartRetries;
+	}
+
+	public void setCoalesceEnabled(boolean coalesceEnabled) {
+		this.coalesceEnabled = coalesceEnabled;
+	}
+
+	public void setCoalesceMaxContentSize(long coalesceMaxContentSize) {
+		this.coalesceMaxContentSize = coalesceMaxContentSize;
+	}
+
+	public void setWriteBehindDirectory(String writeBehindDirectory) {
+		this.writeBehindDirectory = writeBehindDirectory;
+	}
+
+	public void setWriteBehindThreads(int writeBehindThreads) {
+		this.writeBehindThreads = writeBehindThreads;
+	}
+
+	public void setWriteBehindMaxRetries(int writeBehindMaxRetries) {
+		this.writeBehindMaxRetries = writeBehindMaxRetries;
+	}
+
+	public void setUploadConcurrency(int uploadConcurrency) {
+		this.uploadConcurrency = uploadConcurrency;
+	}
+
+	public void setUploadBandwidth(long uploadBandwidth) {
+		this.uploadBandwidth = uploadBandwidth;
+	}
+
+	public void setUrlCacheSize(int urlCacheSize) {
+		this.urlCacheSize = urlCacheSize;
+	}
+
+	public void setUrlCacheTtl(long urlCacheTtl) {
+		this.urlCacheTtl = urlCacheTtl;
+	}
+
+	public void setParallelListingConcurrency(int parallelListingConcurrency) {
+		this.parallelListingConcurrency = parallelListingConcurrency;
+	}
+
+	public void setParallelListingMaxBufferedPages(int parallelListingMaxBufferedPages) {
+		this.parallelListingMaxBufferedPages = parallelListingMaxBufferedPages;
+	}
+
+	public void setChecksumEnabled(boolean checksumEnabled) {
+		this.checksumEnabled = checksumEnabled;
+	}
+
+	public void setSyncConcurrency(int syncConcurrency) {
+		this.syncConcurrency = syncConcurrency;
+	}
+
 	//@PostConstruct
 	@Override
 	public void afterPropertiesSet() throws Exception {
@@ -115,9 +782,20 @@ public class S3ClientFactory implements ResourceLoaderAware, InitializingBean {
 			in =resource.getInputStream();
 			AWSCredentials credentials = new PropertiesCredentials(in);
 
+			if (metricsEnabled) {
+				metrics = new S3Metrics(metricsJmxEnabled);
+				if (metricsSinks != null) {
+					for (S3MetricsSink sink : metricsSinks) {
+						metrics.addSink(sink);
+					}
+				}
+			}
+
+			// the NULL request metric collector falls back to the default one.
 			client = new AmazonS3Client(
-					credentials,
-					createAWSClientConfiguration(secureConnection));
+					new FixedCredentialsProvider(credentials),
+					createAWSClientConfiguration(secureConnection),
+					(metrics == null) ? null : metrics.getRequestMetricCollector());
 
 			client.setEndpoint(endPoint);
 		}finally{
@@ -125,14 +803,249 @@ public class S3ClientFactory implements ResourceLoaderAware, InitializingBean {
 		}
 	}
 
+	@Override
+	public void destroy() throws Exception {
+		if (metrics != null) {
+			metrics.close();
+		}
+	}
+
 	public AmazonS3 getClient() {
 		return client;
 	}
 
+	/**
+	 *
+	 * @return NULL if the metrics is disabled.
+	 */
+	public S3Metrics getMetrics() {
+		return metrics;
+	}
+
 	public String getLocationConstraint() {
 		return locationConstraint;
 	}
 
+	public long getMultipartThreshold() {
+		return multipartThreshold;
+	}
+
+	public long getMultipartPartSize() {
+		return multipartPartSize;
+	}
+
+	public int getMultipartConcurrency() {
+		return multipartConcurrency;
+	}
+
+	public int getMultipartPartRetries() {
+		return multipartPartRetries;
+	}
+
+	public long getParallelDownloadThreshold() {
+		return parallelDownloadThreshold;
+	}
+
+	public long getParallelDownloadRangeSize() {
+		return parallelDownloadRangeSize;
+	}
+
+	public int getParallelDownloadConcurrency() {
+		return parallelDownloadConcurrency;
+	}
+
+	public int getParallelDownloadRangeRetries() {
+		return parallelDownloadRangeRetries;
+	}
+
+	public String getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	public long getCacheMaxSize() {
+		return cacheMaxSize;
+	}
+
+	public int getMetadataCacheSize() {
+		return metadataCacheSize;
+	}
+
+	public long getMetadataCacheTtl() {
+		return metadataCacheTtl;
+	}
+
+	public long getMetadataCacheNegativeTtl() {
+		return metadataCacheNegativeTtl;
+	}
+
+	public int getDeleteConcurrency() {
+		return deleteConcurrency;
+	}
+
+	public int getListingPrefetchThreads() {
+		return listingPrefetchThreads;
+	}
+
+	public int getListingMetadataConcurrency() {
+		return listingMetadataConcurrency;
+	}
+
+	public int getAsyncThreads() {
+		return asyncThreads;
+	}
+
+	public boolean isAsyncVirtualThreads() {
+		return asyncVirtualThreads;
+	}
+
+	public int getAsyncMaxInFlight() {
+		return asyncMaxInFlight;
+	}
+
+	public int getAsyncMaxPending() {
+		return asyncMaxPending;
+	}
+
+	public long getRetryBaseDelay() {
+		return retryBaseDelay;
+	}
+
+	public long getRetryMaxDelay() {
+		return retryMaxDelay;
+	}
+
+	public int getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	public long getHedgeMinDelay() {
+		return hedgeMinDelay;
+	}
+
+	public long getHedgeMaxDelay() {
+		return hedgeMaxDelay;
+	}
+
+	public int getHedgeRetries() {
+		return hedgeRetries;
+	}
+
+	public int getHedgeMaxThreads() {
+		return hedgeMaxThreads;
+	}
+
+	public boolean isMetricsEnabled() {
+		return metricsEnabled;
+	}
+
+	public boolean isMetricsJmxEnabled() {
+		return metricsJmxEnabled;
+	}
+
+	public long getPackThreshold() {
+		return packThreshold;
+	}
+
+	public long getPackSegmentSize() {
+		return packSegmentSize;
+	}
+
+	public long getPackFlushInterval() {
+		return packFlushInterval;
+	}
+
+	public long getPackCompactionInterval() {
+		return packCompactionInterval;
+	}
+
+	public double getPackCompactionMinLiveRatio() {
+		return packCompactionMinLiveRatio;
+	}
+
+	public String getCompressionCodec() {
+		return compressionCodec;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public long getCompressionMinSize() {
+		return compressionMinSize;
+	}
+
+	public String getCompressionSkippedMimeTypes() {
+		return compressionSkippedMimeTypes;
+	}
+
+	public long getCopyMultipartThreshold() {
+		return copyMultipartThreshold;
+	}
+
+	public long getCopyPartSize() {
+		return copyPartSize;
+	}
+
+	public int getCopyConcurrency() {
+		return copyConcurrency;
+	}
+
+	public int getCopyPartRetries() {
+		return copyPartRetries;
+	}
+
+	public boolean isCoalesceEnabled() {
+		return coalesceEnabled;
+	}
+
+	public long getCoalesceMaxContentSize() {
+		return coalesceMaxContentSize;
+	}
+
+	public String getWriteBehindDirectory() {
+		return writeBehindDirectory;
+	}
+
+	public int getWriteBehindThreads() {
+		return writeBehindThreads;
+	}
+
+	public int getWriteBehindMaxRetries() {
+		return writeBehindMaxRetries;
+	}
+
+	public int getUploadConcurrency() {
+		return uploadConcurrency;
+	}
+
+	public long getUploadBandwidth() {
+		return uploadBandwidth;
+	}
+
+	public int getUrlCacheSize() {
+		return urlCacheSize;
+	}
+
+	public long getUrlCacheTtl() {
+		return urlCacheTtl;
+	}
+
+	public int getParallelListingConcurrency() {
+		return parallelListingConcurrency;
+	}
+
+	public int getParallelListingMaxBufferedPages() {
+		return parallelListingMaxBufferedPages;
+	}
+
+	public boolean isChecksumEnabled() {
+		return checksumEnabled;
+	}
+
+	public int getSyncConcurrency() {
+		return syncConcurrency;
+	}
+
     private ClientConfiguration createAWSClientConfiguration(boolean isSecure) {
         
 		ClientConfiguration config = new ClientConfiguration();
@@ -152,4 +1065,26 @@ public class S3ClientFactory implements ResourceLoaderAware, InitializingBean {
 
         return config;
     }
+
+	/**
+	 * The provider of the credentials that are loaded from the file.
+	 */
+	private static class FixedCredentialsProvider implements AWSCredentialsProvider {
+
+		private AWSCredentials credentials;
+
+		public FixedCredentialsProvider(AWSCredentials credentials) {
+			this.credentials = credentials;
+		}
+
+		@Override
+		public AWSCredentials getCredentials() {
+			return credentials;
+		}
+
+		@Override
+		public void refresh() {
+			// the credentials are fixed.
+		}
+	}
 }
@@ -0,0 +1,202 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.AbstractList;
+import java.util.Date;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Function;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+
+/**
+ * The compact listing page.
+ *
+ * Unlike {@link S3PartialArrayList} it does not hold the object listing
+ * and the blob of each key, the keys, ETags, sizes and last modified times
+ * are stored in the parallel arrays (the MD5 ETag is stored as two longs),
+ * and only the marker is kept for listing the next page. The blob is
+ * created when it is accessed, so the long-running scan should read the
+ * fields by index instead.
+ *
+ * @author yang
+ *
+ */
+public class S3CompactPartialList
+		extends AbstractList<BlobResourceInfo>
+		implements PartialCollection<BlobResourceInfo>, RandomAccess {
+
+	private String bucketName;
+	private String prefix;
+	private String delimiter;
+	private String nextMarker; // NULL if there is no more page
+	private Function<S3ObjectSummary, BlobResourceInfo> converter;
+
+	private String[] keys;
+	private long[] eTagHighs;
+	private long[] eTagLows;
+	private String[] eTags; // the ETags that are not MD5 digest, e.g. of multipart upload
+	private long[] sizes;
+	private long[] lastModifieds;
+	private String[] commonPrefixes;
+
+	/**
+	 *
+	 * @param objectListing
+	 * @param converter Convert the object summary to the blob when it is accessed.
+	 */
+	public S3CompactPartialList(ObjectListing objectListing,
+			Function<S3ObjectSummary, BlobResourceInfo> converter) {
+		this.bucketName = objectListing.getBucketName();
+		this.prefix = objectListing.getPrefix();
+		this.delimiter = objectListing.getDelimiter();
+		this.converter = converter;
+
+		List<S3ObjectSummary> summaries = objectListing.getObjectSummaries();
+		int count = summaries.size();
+
+		keys = new String[count];
+		eTagHighs = new long[count];
+		eTagLows = new long[count];
+		sizes = new long[count];
+		lastModifieds = new long[count];
+
+		for (int idx = 0; idx < count; idx++) {
+			S3ObjectSummary summary = summaries.get(idx);
+			keys[idx] = summary.getKey();
+			setETag(idx, summary.getETag());
+			sizes[idx] = summary.getSize();
+			lastModifieds[idx] = (summary.getLastModified() == null) ? 0 :
+					summary.getLastModified().getTime();
+		}
+
+		List<String> prefixes = objectListing.getCommonPrefixes();
+		commonPrefixes = prefixes.toArray(new String[prefixes.size()]);
+
+		if (objectListing.isTruncated()) {
+			// the next marker is returned only when listing with delimiter.
+			nextMarker = objectListing.getNextMarker();
+			if (nextMarker == null && count > 0) {
+				nextMarker = keys[count - 1];
+			}
+			if (commonPrefixes.length > 0 && (nextMarker == null ||
+					nextMarker.compareTo(commonPrefixes[commonPrefixes.length - 1]) < 0)) {
+				nextMarker = commonPrefixes[commonPrefixes.length - 1];
+			}
+		}
+	}
+
+	@Override
+	public BlobResourceInfo get(int index) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setBucketName(bucketName);
+		summary.setKey(keys[index]);
+		summary.setETag(getETag(index));
+		summary.setSize(sizes[index]);
+		summary.setLastModified(new Date(lastModifieds[index]));
+		return converter.apply(summary);
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	@Override
+	public boolean hasMore() {
+		return nextMarker != null;
+	}
+
+	public String getKey(int index) {
+		return keys[index];
+	}
+
+	public String getETag(int index) {
+		if (eTags != null && eTags[index] != null) {
+			return eTags[index].isEmpty() ? null : eTags[index];
+		}
+
+		char[] chars = new char[32];
+		toHex(eTagHighs[index], chars, 0);
+		toHex(eTagLows[index], chars, 16);
+		return new String(chars);
+	}
+
+	public long getContentLength(int index) {
+		return sizes[index];
+	}
+
+	/**
+	 *
+	 * @param index
+	 * @return The last modified time in millisecond.
+	 */
+	public long getLastModified(int index) {
+		return lastModifieds[index];
+	}
+
+	/**
+	 * Get the common prefixes (i.e. the "sub-directories") of this page
+	 * when listing with delimiter.
+	 *
+	 * @return
+	 */
+	public String[] getCommonPrefixes() {
+		return commonPrefixes;
+	}
+
+	public String getBucketName() {
+		return bucketName;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public String getDelimiter() {
+		return delimiter;
+	}
+
+	/**
+	 *
+	 * @return NULL if there is no more page.
+	 */
+	public String getNextMarker() {
+		return nextMarker;
+	}
+
+	Function<S3ObjectSummary, BlobResourceInfo> getConverter() {
+		return converter;
+	}
+
+	private void setETag(int index, String eTag) {
+		if (eTag != null && eTag.length() == 32 && isLowerHex(eTag)) {
+			eTagHighs[index] = Long.parseUnsignedLong(eTag.substring(0, 16), 16);
+			eTagLows[index] = Long.parseUnsignedLong(eTag.substring(16), 16);
+			return;
+		}
+
+		if (eTags == null) {
+			eTags = new String[keys.length];
+		}
+		eTags[index] = (eTag == null) ? "" : eTag;
+	}
+
+	private static boolean isLowerHex(String value) {
+		for (int idx = 0; idx < value.length(); idx++) {
+			char c = value.charAt(idx);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void toHex(long value, char[] chars, int offset) {
+		for (int idx = 15; idx >= 0; idx--) {
+			chars[offset + idx] = Character.forDigit((int)(value & 0xf), 16);
+			value >>>= 4;
+		}
+	}
+}
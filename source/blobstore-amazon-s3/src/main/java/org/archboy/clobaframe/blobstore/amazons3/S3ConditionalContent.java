@@ -0,0 +1,154 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The result of the conditional GET, i.e. the content is returned only if
+ * the object is modified since the caller cached it.
+ *
+ * The not modified result carries no content, and its body is not
+ * transferred, so it is cheap to revalidate the cached blob, e.g. for
+ * serving the HTTP 304 response.
+ *
+ * @author yang
+ *
+ */
+public class S3ConditionalContent implements Closeable {
+
+	private ObjectMetadata objectMetadata; // NULL if not modified
+	private InputStream content; // NULL if not modified
+	private long contentLength;
+
+	/**
+	 * Create the not modified result.
+	 */
+	public S3ConditionalContent() {
+	}
+
+	/**
+	 *
+	 * @param objectMetadata
+	 * @param content
+	 * @param contentLength The length of content, it differs from the object
+	 *	size if the content is decompressed.
+	 */
+	public S3ConditionalContent(ObjectMetadata objectMetadata, InputStream content, long contentLength) {
+		this.objectMetadata = objectMetadata;
+		this.content = content;
+		this.contentLength = contentLength;
+	}
+
+	public boolean isModified() {
+		return content != null;
+	}
+
+	/**
+	 *
+	 * @return NULL if not modified.
+	 */
+	public InputStream getContent() {
+		return content;
+	}
+
+	/**
+	 *
+	 * @return -1 if not modified.
+	 */
+	public long getContentLength() {
+		return isModified() ? contentLength : -1;
+	}
+
+	/**
+	 * Get the new ETag of the modified object.
+	 *
+	 * @return NULL if not modified.
+	 */
+	public String getETag() {
+		return isModified() ? objectMetadata.getETag() : null;
+	}
+
+	/**
+	 *
+	 * @return NULL if not modified or the bucket is not versioned.
+	 */
+	public String getVersionId() {
+		return isModified() ? objectMetadata.getVersionId() : null;
+	}
+
+	/**
+	 *
+	 * @return NULL if not modified.
+	 */
+	public Date getLastModified() {
+		return isModified() ? objectMetadata.getLastModified() : null;
+	}
+
+	/**
+	 *
+	 * @return NULL if not modified.
+	 */
+	public String getMimeType() {
+		return isModified() ? objectMetadata.getContentType() : null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOUtils.closeQuietly(content);
+	}
+
+	/**
+	 * Create the conditional GET request.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param ifNoneMatch Optional, the ETag of the cached content.
+	 * @param ifModifiedSince Optional, the last modified time of the cached content.
+	 * @return
+	 */
+	static GetObjectRequest createRequest(String bucketName, String key,
+			String ifNoneMatch, Date ifModifiedSince) {
+		GetObjectRequest request = new GetObjectRequest(bucketName, key);
+
+		if (ifNoneMatch != null) {
+			request.setNonmatchingETagConstraints(Collections.singletonList(ifNoneMatch));
+		}
+
+		if (ifModifiedSince != null) {
+			request.setModifiedSinceConstraint(ifModifiedSince);
+		}
+
+		return request;
+	}
+
+	/**
+	 * Create the result of the conditional GET request.
+	 *
+	 * @param s3Object The response object, it is NULL if not modified.
+	 * @return
+	 * @throws IOException
+	 */
+	static S3ConditionalContent create(S3Object s3Object) throws IOException {
+		if (s3Object == null) {
+			return new S3ConditionalContent();
+		}
+
+		ObjectMetadata objectMetadata = s3Object.getObjectMetadata();
+		InputStream in = s3Object.getObjectContent();
+		long decodedLength = S3ContentCompressor.getDecodedLength(objectMetadata);
+
+		if (decodedLength >= 0) {
+			return new S3ConditionalContent(objectMetadata,
+					S3ContentCompressor.decompress(objectMetadata, in), decodedLength);
+		}
+
+		return new S3ConditionalContent(objectMetadata, in, objectMetadata.getContentLength());
+	}
+}
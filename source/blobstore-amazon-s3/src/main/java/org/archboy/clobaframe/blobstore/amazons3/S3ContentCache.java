@@ -0,0 +1,319 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+
+/**
+ * The local disk cache of the blob content.
+ *
+ * Each cached content is stored as one file, and is identified by the
+ * repository name, blob key and the ETag of object. The least recently
+ * used files are evicted when the total size exceeds the limit.
+ *
+ * The index is kept in memory only, so the files are stored in the
+ * sub-directory {@link #DIRECTORY_NAME} of the specified directory, and
+ * the sub-directory is cleaned when the cache is created.
+ *
+ * @author yang
+ *
+ */
+public class S3ContentCache {
+
+	/**
+	 * The name of the sub-directory that the cached files are stored in.
+	 */
+	public static final String DIRECTORY_NAME = "s3-content-cache";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String TEMP_FILE_PREFIX = "tmp-";
+
+	private File directory;
+	private long maxSize;
+	private long totalSize;
+
+	// the access ordered map, the first entry is the least recently used one.
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private Logger logger = LoggerFactory.getLogger(S3ContentCache.class);
+
+	/**
+	 *
+	 * @param directory The parent directory of the cache directory.
+	 * @param maxSize
+	 * @throws IOException
+	 */
+	public S3ContentCache(File directory, long maxSize) throws IOException {
+		Assert.notNull(directory);
+		Assert.isTrue(maxSize > 0);
+
+		this.directory = new File(directory, DIRECTORY_NAME);
+		this.maxSize = maxSize;
+
+		FileUtils.forceMkdir(this.directory);
+		FileUtils.cleanDirectory(this.directory);
+	}
+
+	/**
+	 * Check whether the content with the specify length can be cached.
+	 *
+	 * @param contentLength
+	 * @return
+	 */
+	public boolean isCacheable(long contentLength) {
+		return contentLength >= 0 && contentLength <= maxSize;
+	}
+
+	/**
+	 * Open the cached content file.
+	 *
+	 * The file is opened with the lock, so it is still readable after
+	 * it is evicted.
+	 *
+	 * @param repositoryName
+	 * @param key
+	 * @param eTag The current ETag of object.
+	 * @return NULL if the content is not cached or has been changed.
+	 * @throws IOException
+	 */
+	public synchronized FileChannel open(String repositoryName, String key, String eTag) throws IOException {
+		String cacheKey = getCacheKey(repositoryName, key);
+		Entry entry = entries.get(cacheKey);
+
+		if (entry == null) {
+			return null;
+		}
+
+		if (!entry.eTag.equals(eTag)) {
+			// the object has been changed
+			remove(cacheKey);
+			return null;
+		}
+
+		try{
+			return FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+		}catch(NoSuchFileException e){
+			// the file is deleted by the others.
+			logger.warn("The cached file of blob [{}] of repository [{}] is missing.",
+					key, repositoryName);
+			remove(cacheKey);
+			return null;
+		}
+	}
+
+	/**
+	 * Wrap the source content stream, the content will be written into cache
+	 * while reading, and it will be added into cache only when the whole
+	 * content and the end of stream are read without error, so the content
+	 * that is verified at the end of stream is not cached if it is corrupted.
+	 *
+	 * @param repositoryName
+	 * @param key
+	 * @param eTag
+	 * @param contentLength
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream wrap(String repositoryName, String key, String eTag,
+			long contentLength, InputStream in) throws IOException {
+		File tempFile = File.createTempFile(TEMP_FILE_PREFIX, null, directory);
+		return new CachingInputStream(in, tempFile, repositoryName, key, eTag, contentLength);
+	}
+
+	/**
+	 * Remove the cached content.
+	 *
+	 * @param repositoryName
+	 * @param key
+	 */
+	public synchronized void invalidate(String repositoryName, String key) {
+		remove(getCacheKey(repositoryName, key));
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	private synchronized void add(String repositoryName, String key,
+			String eTag, File tempFile, long size) throws IOException {
+		String cacheKey = getCacheKey(repositoryName, key);
+		remove(cacheKey);
+
+		// the opened cache file can still be read after the file is replaced or deleted.
+		File file = new File(directory, cacheKey);
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		entries.put(cacheKey, new Entry(file, eTag, size));
+		totalSize += size;
+
+		// evict the least recently used content
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (totalSize > maxSize && iterator.hasNext()) {
+			Entry eldest = iterator.next().getValue();
+			iterator.remove();
+			totalSize -= eldest.size;
+			FileUtils.deleteQuietly(eldest.file);
+		}
+	}
+
+	private void remove(String cacheKey) {
+		Entry entry = entries.remove(cacheKey);
+		if (entry != null) {
+			totalSize -= entry.size;
+			FileUtils.deleteQuietly(entry.file);
+		}
+	}
+
+	private String getCacheKey(String repositoryName, String key) {
+		return DigestUtils.md5DigestAsHex((repositoryName + "/" + key).getBytes(UTF8));
+	}
+
+	private static class Entry {
+		private File file;
+		private String eTag;
+		private long size;
+
+		public Entry(File file, String eTag, long size) {
+			this.file = file;
+			this.eTag = eTag;
+			this.size = size;
+		}
+	}
+
+	private class CachingInputStream extends FilterInputStream {
+
+		private File tempFile;
+		private OutputStream out;
+		private String repositoryName;
+		private String key;
+		private String eTag;
+		private long contentLength;
+		private long count;
+		private boolean failed;
+		private boolean ended; // the end of stream is read without error
+		private boolean closed;
+		private byte[] single = new byte[1];
+
+		public CachingInputStream(InputStream in, File tempFile,
+				String repositoryName, String key, String eTag,
+				long contentLength) throws IOException {
+			super(in);
+			this.tempFile = tempFile;
+			this.out = new FileOutputStream(tempFile);
+			this.repositoryName = repositoryName;
+			this.key = key;
+			this.eTag = eTag;
+			this.contentLength = contentLength;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b;
+			try{
+				b = super.read();
+			}catch(IOException | RuntimeException e){
+				failed = true;
+				throw e;
+			}
+
+			if (b >= 0) {
+				single[0] = (byte)b;
+				write(single, 0, 1);
+			}else{
+				ended = true;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int length;
+			try{
+				length = super.read(b, off, len);
+			}catch(IOException | RuntimeException e){
+				failed = true;
+				throw e;
+			}
+
+			if (length > 0) {
+				write(b, off, length);
+			}else if (length == -1) {
+				ended = true;
+			}
+			return length;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// the skipped content can not be cached.
+			failed = true;
+			return super.skip(n);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			try{
+				super.close();
+			}finally{
+				IOUtils.closeQuietly(out);
+
+				// the content is added only after the end of stream is read, i.e.
+				// the verifying stream has checked the content at the end.
+				if (!failed && ended && count == contentLength) {
+					try{
+						add(repositoryName, key, eTag, tempFile, count);
+					}catch(IOException e){
+						logger.warn("Can not add blob [{}] of repository [{}] into cache, error: {}",
+								new Object[]{key, repositoryName, e.getMessage()});
+						FileUtils.deleteQuietly(tempFile);
+					}
+				}else{
+					FileUtils.deleteQuietly(tempFile);
+				}
+			}
+		}
+
+		private void write(byte[] b, int off, int len) {
+			if (failed) {
+				return;
+			}
+
+			try{
+				out.write(b, off, len);
+				count += len;
+			}catch(IOException e){
+				// stop caching, but keep the source stream readable.
+				failed = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Send the checksum of the uploading content and verify the downloading content.
+ *
+ * The content that is in memory (e.g. the compressed content and the parts
+ * of multipart upload that are read from the stream) is sent with the
+ * "Content-MD5" so Amazon S3 rejects the corrupted request, and the CRC-32C
+ * of the single request content is stored in the user metadata
+ * {@link #CRC32C_KEY}.
+ *
+ * The other content (e.g. the local file and the single-use stream) is not
+ * read twice, its MD5 is computed by {@link S3DigestInputStream} while it is
+ * sent, and compared with the returned ETag by {@link #verifyUpload}, each
+ * part of multipart upload is compared with its own ETag. It has no CRC-32C,
+ * since the user metadata is sent before the content and it can not be changed
+ * by the completion of multipart upload, the stored content is verified by
+ * the ETag instead. It is not verified when the ETag is not the MD5, e.g.
+ * encrypted by KMS.
+ *
+ * The downloading content is verified while it is read by the stored CRC-32C,
+ * or by the ETag when it is the MD5 of the content. The ETag of the multipart
+ * upload is verified by the part size that is stored in the user metadata
+ * {@link #PART_SIZE_KEY}. The whole content that is read by one request is
+ * verified by the Amazon S3 client with the ETag already, so it is not
+ * verified with the ETag again.
+ *
+ * @author yang
+ *
+ */
+public class S3ContentChecksum {
+
+	/**
+	 * The user metadata key of the CRC-32C of the stored content.
+	 */
+	public static final String CRC32C_KEY = "content-crc32c";
+
+	/**
+	 * The user metadata key of the part size of multipart upload.
+	 */
+	public static final String PART_SIZE_KEY = "content-part-size";
+
+	/**
+	 * The user metadata key of the MD5 (in hex) of the original content,
+	 * it is stored by {@link S3DirectorySync} for detecting the change.
+	 */
+	public static final String MD5_KEY = "content-md5";
+
+	private static final String KMS_ALGORITHM = "aws:kms";
+
+	// the system property that disables the MD5 validation of the Amazon S3 client.
+	private static final String DISABLE_CLIENT_VALIDATION_PROPERTY =
+			"com.amazonaws.services.s3.disableGetObjectMD5Validation";
+
+	private static final int MD5_HEX_LENGTH = 32;
+
+	private Logger logger = LoggerFactory.getLogger(S3ContentChecksum.class);
+
+	/**
+	 * Set the "Content-MD5" and the CRC-32C of the content to the object metadata.
+	 *
+	 * @param objectMetadata
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public void prepare(ObjectMetadata objectMetadata, byte[] data, int offset, int length) {
+		MessageDigest digest = createMd5Digest();
+		digest.update(data, offset, length);
+		objectMetadata.setContentMD5(BinaryUtils.toBase64(digest.digest()));
+
+		S3Crc32c crc32c = new S3Crc32c();
+		crc32c.update(data, offset, length);
+		objectMetadata.addUserMetadata(CRC32C_KEY, Long.toHexString(crc32c.getValue()));
+	}
+
+	/**
+	 * Set the "Content-MD5" of the part of multipart upload.
+	 *
+	 * @param request
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public void preparePart(UploadPartRequest request, byte[] data, int offset, int length) {
+		MessageDigest digest = createMd5Digest();
+		digest.update(data, offset, length);
+		request.setMd5Digest(BinaryUtils.toBase64(digest.digest()));
+	}
+
+	/**
+	 * Compare the MD5 of the sent content with the returned ETag.
+	 *
+	 * @param in The sent content.
+	 * @param eTag The ETag of the object or the part.
+	 * @param objectMetadata The metadata of the uploading object.
+	 * @param bucketName
+	 * @param key
+	 * @throws AmazonClientException If the ETag does not match, it is retryable.
+	 */
+	public void verifyUpload(S3DigestInputStream in, String eTag, ObjectMetadata objectMetadata,
+			String bucketName, String key) {
+		eTag = unquote(eTag);
+		if (eTag == null || eTag.length() != MD5_HEX_LENGTH || isEncrypted(objectMetadata)) {
+			return;
+		}
+
+		String sent = BinaryUtils.toHex(in.getDigest());
+		if (!eTag.equals(sent)) {
+			throw new AmazonClientException(String.format(
+					"Checksum mismatch of uploading blob [%s] to the amazon s3 repository [%s], expected [%s] but got [%s].",
+					key, bucketName, sent, eTag));
+		}
+	}
+
+	/**
+	 * Record the part size of multipart upload for verifying the ETag.
+	 *
+	 * @param objectMetadata
+	 * @param partSize
+	 */
+	public void preparePartSize(ObjectMetadata objectMetadata, long partSize) {
+		objectMetadata.addUserMetadata(PART_SIZE_KEY, String.valueOf(partSize));
+	}
+
+	/**
+	 * Wrap the stored content with the verifying stream.
+	 *
+	 * @param in The whole stored content, i.e. not decompressed.
+	 * @param bucketName
+	 * @param key
+	 * @param objectMetadata The metadata of the same version of the content.
+	 * @param wholeRequest Whether the content is read by one request without
+	 *	the range, i.e. the single part ETag is verified by the client already.
+	 * @return The original stream if there is no checksum to verify,
+	 *	e.g. the ETag of the encrypted object.
+	 */
+	public InputStream verify(InputStream in, String bucketName, String key,
+			ObjectMetadata objectMetadata, boolean wholeRequest) {
+		Map<String, String> userMetadata = objectMetadata.getUserMetadata();
+
+		String crc32c = userMetadata.get(CRC32C_KEY);
+		if (crc32c != null) {
+			try{
+				return new S3VerifyingInputStream(in, bucketName, key, Long.parseLong(crc32c, 16));
+			}catch(NumberFormatException e){
+				logger.warn("Invalid checksum [{}] of blob [{}] in the amazon s3 repository [{}].",
+						new Object[]{crc32c, key, bucketName});
+			}
+		}
+
+		if (isEncrypted(objectMetadata)) {
+			return in;
+		}
+
+		String eTag = unquote(objectMetadata.getETag());
+		if (eTag == null) {
+			return in;
+		}
+
+		if (eTag.length() == MD5_HEX_LENGTH) {
+			return (wholeRequest && System.getProperty(DISABLE_CLIENT_VALIDATION_PROPERTY) == null) ? in :
+					new S3VerifyingInputStream(in, bucketName, key, eTag, 0);
+		}
+
+		String partSize = userMetadata.get(PART_SIZE_KEY);
+		if (partSize != null && eTag.indexOf('-') == MD5_HEX_LENGTH) {
+			try{
+				return new S3VerifyingInputStream(in, bucketName, key, eTag, Long.parseLong(partSize));
+			}catch(NumberFormatException e){
+				logger.warn("Invalid part size [{}] of blob [{}] in the amazon s3 repository [{}].",
+						new Object[]{partSize, key, bucketName});
+			}
+		}
+
+		return in;
+	}
+
+	/**
+	 * Check whether the user metadata is written by this class,
+	 * it is not a part of the blob metadata.
+	 *
+	 * @param userMetadataKey
+	 * @return
+	 */
+	public static boolean isReserved(String userMetadataKey) {
+		return CRC32C_KEY.equals(userMetadataKey) || PART_SIZE_KEY.equals(userMetadataKey) ||
+				MD5_KEY.equals(userMetadataKey);
+	}
+
+	// the ETag of the encrypted object by KMS or customer key is not the MD5.
+	private boolean isEncrypted(ObjectMetadata objectMetadata) {
+		return KMS_ALGORITHM.equals(objectMetadata.getSSEAlgorithm()) ||
+				objectMetadata.getSSECustomerAlgorithm() != null;
+	}
+
+	static MessageDigest createMd5Digest() {
+		try{
+			return MessageDigest.getInstance("MD5");
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 *
+	 * @param eTag Optional.
+	 * @return The lower case ETag without quotes.
+	 */
+	static String unquote(String eTag) {
+		if (eTag == null) {
+			return null;
+		}
+
+		if (eTag.length() >= 2 && eTag.startsWith("\"") && eTag.endsWith("\"")) {
+			eTag = eTag.substring(1, eTag.length() - 1);
+		}
+		return eTag.toLowerCase(Locale.ENGLISH);
+	}
+}
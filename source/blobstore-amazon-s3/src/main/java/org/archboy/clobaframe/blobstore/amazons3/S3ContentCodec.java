@@ -0,0 +1,39 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The compression of the blob content.
+ *
+ * @author yang
+ *
+ */
+public interface S3ContentCodec {
+
+	/**
+	 * The name of encoding, it is stored as the "Content-Encoding" of object,
+	 * e.g. "gzip".
+	 *
+	 * @return
+	 */
+	String getEncoding();
+
+	/**
+	 *
+	 * @param out
+	 * @return The stream that compresses the written data into the specified
+	 * stream, closing it finishes the compression and closes the specified stream.
+	 * @throws IOException
+	 */
+	OutputStream encode(OutputStream out) throws IOException;
+
+	/**
+	 *
+	 * @param in
+	 * @return The stream of decompressed data.
+	 * @throws IOException
+	 */
+	InputStream decode(InputStream in) throws IOException;
+}
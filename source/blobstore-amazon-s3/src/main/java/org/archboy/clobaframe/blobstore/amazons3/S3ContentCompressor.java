@@ -0,0 +1,204 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Compress the blob content on put and decompress it on get.
+ *
+ * The encoding is stored as the "Content-Encoding" of object, and the
+ * original length is stored in the user metadata {@link #DECODED_LENGTH_KEY},
+ * so the compressed blob is read transparently with the original length.
+ *
+ * The blob is decompressed whenever it is written by this class, i.e. it
+ * carries both the known encoding and the original length, regardless of
+ * whether the compression is enabled, and the object that is encoded by
+ * the others is read as it is stored.
+ *
+ * @author yang
+ *
+ */
+public class S3ContentCompressor {
+
+	/**
+	 * The user metadata key of the original content length.
+	 */
+	public static final String DECODED_LENGTH_KEY = "decoded-content-length";
+
+	// the codecs for decompression, include the codecs of the blobs
+	// that are put before the codec is changed or the compression is disabled.
+	private static final Map<String, S3ContentCodec> DECODERS = createDecoders();
+
+	private S3ContentCodec codec;
+	private long minSize;
+	private List<String> skippedMimeTypes = new ArrayList<String>();
+
+	/**
+	 *
+	 * @param codec
+	 * @param minSize The blob that smaller than this size is not compressed.
+	 * @param skippedMimeTypes Optional, the content types that are compressed
+	 *	already, e.g. "image/*", "application/zip".
+	 */
+	public S3ContentCompressor(S3ContentCodec codec, long minSize, List<String> skippedMimeTypes) {
+		Assert.notNull(codec);
+		Assert.isTrue(DECODERS.containsKey(codec.getEncoding()), String.format(
+				"The encoding [%s] can not be decompressed.", codec.getEncoding()));
+
+		this.codec = codec;
+		this.minSize = minSize;
+
+		if (skippedMimeTypes != null) {
+			for (String mimeType : skippedMimeTypes) {
+				this.skippedMimeTypes.add(mimeType.trim().toLowerCase(Locale.ENGLISH));
+			}
+		}
+	}
+
+	public String getEncoding() {
+		return codec.getEncoding();
+	}
+
+	/**
+	 * Check whether the blob should be compressed.
+	 *
+	 * @param mimeType Optional.
+	 * @param contentLength
+	 * @return
+	 */
+	public boolean isRequired(String mimeType, long contentLength) {
+		if (contentLength < minSize) {
+			return false;
+		}
+
+		if (mimeType == null) {
+			return true;
+		}
+
+		String type = mimeType.toLowerCase(Locale.ENGLISH);
+		int pos = type.indexOf(';');
+		if (pos > 0) {
+			type = type.substring(0, pos).trim();
+		}
+
+		for (String skippedMimeType : skippedMimeTypes) {
+			if (skippedMimeType.endsWith("/*") ?
+					type.startsWith(skippedMimeType.substring(0, skippedMimeType.length() - 1)) :
+					type.equals(skippedMimeType)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 *
+	 * @param in The source stream, it will be closed by the returned stream.
+	 * @return The stream of compressed data, the source is compressed while reading.
+	 * @throws IOException
+	 */
+	public InputStream compress(InputStream in) throws IOException {
+		return new S3EncodingInputStream(in, codec);
+	}
+
+	/**
+	 * Check whether the object is compressed by this class.
+	 *
+	 * @param objectMetadata
+	 * @return
+	 */
+	public static boolean isEncoded(ObjectMetadata objectMetadata) {
+		return getDecodedLength(objectMetadata) >= 0;
+	}
+
+	/**
+	 * Get the original length of the compressed content.
+	 *
+	 * @param objectMetadata
+	 * @return -1 if the content is not compressed by this class.
+	 */
+	public static long getDecodedLength(ObjectMetadata objectMetadata) {
+		String encoding = objectMetadata.getContentEncoding();
+		Map<String, String> userMetadata = objectMetadata.getUserMetadata();
+		if (encoding == null || !DECODERS.containsKey(encoding) || userMetadata == null) {
+			return -1;
+		}
+
+		String value = userMetadata.get(DECODED_LENGTH_KEY);
+		if (value == null) {
+			return -1;
+		}
+
+		try{
+			return Long.parseLong(value);
+		}catch(NumberFormatException e){
+			return -1;
+		}
+	}
+
+	/**
+	 *
+	 * @param objectMetadata The metadata of the same version of the content.
+	 * @param in
+	 * @return The stream of decompressed data, or the specified stream
+	 * if the object is not compressed by this class.
+	 * @throws IOException
+	 */
+	public static InputStream decompress(ObjectMetadata objectMetadata, InputStream in) throws IOException {
+		if (!isEncoded(objectMetadata)) {
+			return in;
+		}
+
+		try{
+			return DECODERS.get(objectMetadata.getContentEncoding()).decode(in);
+		}catch(IOException e){
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Decompress the content and skip the bytes before the start position.
+	 *
+	 * @param objectMetadata The metadata of the same version of the content.
+	 * @param in
+	 * @param start
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream decompress(ObjectMetadata objectMetadata, InputStream in,
+			long start, long length) throws IOException {
+		InputStream decoded = decompress(objectMetadata, in);
+		try{
+			IOUtils.skipFully(decoded, start);
+		}catch(IOException e){
+			decoded.close();
+			throw e;
+		}
+		return new BoundedInputStream(decoded, length);
+	}
+
+	private static Map<String, S3ContentCodec> createDecoders() {
+		Map<String, S3ContentCodec> decoders = new HashMap<String, S3ContentCodec>();
+		decoders.put(S3GzipContentCodec.ENCODING, new S3GzipContentCodec(-1));
+
+		if (ClassUtils.isPresent(S3ZstdContentCodec.REQUIRED_CLASS_NAME,
+				S3ContentCompressor.class.getClassLoader())) {
+			decoders.put(S3ZstdContentCodec.ENCODING, new S3ZstdContentCodec(-1));
+		}
+
+		return decoders;
+	}
+}
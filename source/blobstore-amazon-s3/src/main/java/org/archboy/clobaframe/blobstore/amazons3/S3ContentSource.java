@@ -0,0 +1,36 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The re-openable blob content.
+ *
+ * Unlike the single-use stream of {@link org.archboy.clobaframe.blobstore.BlobResourceInfo#getContent()},
+ * the content can be read again from any position, so the failed request
+ * can be retried by reopening the source instead of buffering the content
+ * in memory.
+ *
+ * @author yang
+ *
+ */
+public interface S3ContentSource {
+
+	/**
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	long getContentLength() throws IOException;
+
+	/**
+	 * Open a new stream of the specified range, the implementation should
+	 * support opening multiple streams at the same time.
+	 *
+	 * @param position
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	InputStream open(long position, long length) throws IOException;
+}
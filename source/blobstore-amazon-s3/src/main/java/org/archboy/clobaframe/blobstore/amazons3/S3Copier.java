@@ -0,0 +1,595 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Copy objects by the Amazon S3 server-side copy, the content is not
+ * transferred through this client.
+ *
+ * The object that exceeds the threshold is copied by multipart copy, its
+ * parts are copied concurrently. The content type, encoding and user
+ * metadata and the storage class are kept, the copy fails if the source
+ * object is modified during copying. The source object of move is deleted
+ * only if it is still the copied one.
+ *
+ * @author yang
+ *
+ */
+public class S3Copier {
+
+	/**
+	 * The max object size of single copy request allowed by Amazon S3.
+	 */
+	public static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+	/**
+	 * The headers of the source object that are kept by multipart copy.
+	 */
+	private static final String[] COPIED_HEADERS = new String[]{
+		Headers.CONTENT_TYPE,
+		Headers.CONTENT_ENCODING,
+		Headers.CACHE_CONTROL,
+		Headers.CONTENT_DISPOSITION,
+		Headers.EXPIRES,
+		Headers.SERVER_SIDE_ENCRYPTION};
+
+	private static final long RETRY_INTERVAL = 500; // millisecond
+	private static final long MAX_RETRY_INTERVAL = 10 * 1000; // millisecond
+
+	private AmazonS3 client;
+	private long threshold;
+	private long partSize;
+	private int concurrency;
+	private int partRetries;
+	private S3MetadataCache metadataCache; // optional
+	private S3Backoff backoff = new S3Backoff(RETRY_INTERVAL, MAX_RETRY_INTERVAL);
+
+	private ExecutorService executorService; // for the objects of bulk copy
+	private ExecutorService partExecutorService; // for the parts of multipart copy
+
+	private Logger logger = LoggerFactory.getLogger(S3Copier.class);
+
+	/**
+	 *
+	 * @param client
+	 * @param threshold The object that not smaller than this size is copied
+	 *	by multipart copy, it should not exceed {@link #MAX_SINGLE_COPY_SIZE}.
+	 * @param partSize
+	 * @param concurrency The max number of the objects (of bulk copy) and the
+	 *	parts that are copying at the same time.
+	 * @param partRetries
+	 * @param metadataCache Optional.
+	 */
+	public S3Copier(AmazonS3 client, long threshold, long partSize, int concurrency,
+			int partRetries, S3MetadataCache metadataCache) {
+		Assert.notNull(client);
+		Assert.isTrue(threshold > 0 && threshold <= MAX_SINGLE_COPY_SIZE);
+		Assert.isTrue(partSize >= S3MultipartUploader.MIN_PART_SIZE && partSize <= MAX_SINGLE_COPY_SIZE);
+		Assert.isTrue(concurrency > 0);
+
+		this.client = client;
+		this.threshold = threshold;
+		this.partSize = partSize;
+		this.concurrency = concurrency;
+		this.partRetries = partRetries;
+		this.metadataCache = metadataCache;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-copy-");
+		threadFactory.setDaemon(true);
+		this.executorService = Executors.newFixedThreadPool(concurrency, threadFactory);
+
+		CustomizableThreadFactory partThreadFactory = new CustomizableThreadFactory("s3-copy-part-");
+		partThreadFactory.setDaemon(true);
+		this.partExecutorService = Executors.newFixedThreadPool(concurrency, partThreadFactory);
+	}
+
+	public void setBackoff(S3Backoff backoff) {
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Copy the object.
+	 *
+	 * @param sourceBucketName
+	 * @param sourceKey
+	 * @param targetBucketName
+	 * @param targetKey
+	 * @param cannedAcl Optional.
+	 * @param deleteSource Delete the source object after copying, i.e. move.
+	 * @throws IOException
+	 * @throws FileNotFoundException If the source object does not exist.
+	 */
+	public void copy(String sourceBucketName, String sourceKey,
+			String targetBucketName, String targetKey,
+			CannedAccessControlList cannedAcl, boolean deleteSource) throws IOException {
+		Assert.isTrue(!(sourceBucketName.equals(targetBucketName) && sourceKey.equals(targetKey)),
+				"The source and the target should not be the same object.");
+
+		ObjectMetadata sourceMetadata = null;
+		try{
+			sourceMetadata = client.getObjectMetadata(sourceBucketName, sourceKey);
+		}catch(AmazonS3Exception e){
+			if (e.getStatusCode() == 404) {
+				throw new FileNotFoundException(String.format(
+						"Blob object [%s] not found in the amazon s3 repository [%s].",
+						sourceKey, sourceBucketName));
+			}
+			throw new IOException(e);
+		}catch(AmazonClientException e){
+			throw new IOException(e);
+		}
+
+		S3ObjectSummary source = new S3ObjectSummary();
+		source.setBucketName(sourceBucketName);
+		source.setKey(sourceKey);
+		source.setSize(sourceMetadata.getContentLength());
+		source.setETag(sourceMetadata.getETag());
+		source.setStorageClass((String)sourceMetadata.getRawMetadataValue(Headers.STORAGE_CLASS));
+
+		copy(source, sourceMetadata, targetBucketName, targetKey, cannedAcl, deleteSource);
+	}
+
+	/**
+	 * Copy the objects which key starts with the source prefix, the prefix
+	 * of key is replaced by the target prefix.
+	 *
+	 * The objects are listed page by page and copied concurrently, at most
+	 * {@code concurrency} objects are copying at the same time.
+	 *
+	 * @param sourceBucketName
+	 * @param sourcePrefix
+	 * @param targetBucketName
+	 * @param targetPrefix
+	 * @param cannedAcl Optional.
+	 * @param deleteSource Delete each source object after copying, i.e. move.
+	 * @param filter Optional, copy the objects which key is accepted only.
+	 * @return The source keys that fail to copy and the error messages.
+	 * @throws IOException
+	 */
+	public Map<String, String> copyAll(String sourceBucketName, String sourcePrefix,
+			String targetBucketName, String targetPrefix,
+			CannedAccessControlList cannedAcl, boolean deleteSource,
+			Predicate<String> filter) throws IOException {
+		Assert.notNull(sourcePrefix);
+		Assert.notNull(targetPrefix);
+
+		// the copied objects would be listed again.
+		Assert.isTrue(!(sourceBucketName.equals(targetBucketName) && targetPrefix.startsWith(sourcePrefix)),
+				"The target prefix should not be under the source prefix.");
+
+		Semaphore semaphore = new Semaphore(concurrency);
+		LinkedList<Future<String>> futures = new LinkedList<Future<String>>();
+		LinkedList<String> keys = new LinkedList<String>();
+		Map<String, String> failures = new HashMap<String, String>();
+
+		try{
+			ObjectListing objectListing = client.listObjects(sourceBucketName, sourcePrefix);
+			while (true) {
+				for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+					if (filter != null && !filter.test(summary.getKey())) {
+						continue;
+					}
+
+					String targetKey = targetPrefix + summary.getKey().substring(sourcePrefix.length());
+
+					semaphore.acquire();
+					futures.add(executorService.submit(new CopyTask(summary,
+							targetBucketName, targetKey, cannedAcl, deleteSource, semaphore)));
+					keys.add(summary.getKey());
+
+					// collect the finished objects, so the results do not pile up.
+					while (!futures.isEmpty() && futures.getFirst().isDone()) {
+						putFailure(failures, keys.removeFirst(), futures.removeFirst().get());
+					}
+				}
+
+				if (!objectListing.isTruncated()) {
+					break;
+				}
+
+				objectListing = client.listNextBatchOfObjects(objectListing);
+			}
+
+			while (!futures.isEmpty()) {
+				putFailure(failures, keys.removeFirst(), futures.removeFirst().get());
+			}
+		}catch(InterruptedException e){
+			for (Future<String> future : futures) {
+				future.cancel(true);
+			}
+
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format(
+					"Copy objects in the amazon s3 repository [%s] is interrupted.",
+					sourceBucketName));
+		}catch(ExecutionException e){
+			// stop copying the remaining objects.
+			for (Future<String> future : futures) {
+				future.cancel(true);
+			}
+			throw new IOException(e.getCause());
+		}catch(AmazonClientException e){
+			// thrown by the listing.
+			for (Future<String> future : futures) {
+				future.cancel(true);
+			}
+			throw new IOException(e);
+		}
+
+		return failures;
+	}
+
+	/**
+	 * Shutdown the copy threads.
+	 */
+	public void close() {
+		executorService.shutdownNow();
+		partExecutorService.shutdownNow();
+	}
+
+	/**
+	 *
+	 * @param source
+	 * @param sourceMetadata Optional, it is required by multipart copy only.
+	 * @param targetBucketName
+	 * @param targetKey
+	 * @param cannedAcl
+	 * @param deleteSource
+	 * @throws IOException
+	 */
+	private void copy(S3ObjectSummary source, ObjectMetadata sourceMetadata,
+			String targetBucketName, String targetKey,
+			CannedAccessControlList cannedAcl, boolean deleteSource) throws IOException {
+		try{
+			if (source.getSize() >= threshold) {
+				if (sourceMetadata == null) {
+					sourceMetadata = client.getObjectMetadata(source.getBucketName(), source.getKey());
+				}
+				copyMultipart(source, sourceMetadata, targetBucketName, targetKey, cannedAcl);
+			}else{
+				CopyObjectRequest request = new CopyObjectRequest(
+						source.getBucketName(), source.getKey(),
+						targetBucketName, targetKey)
+						.withMatchingETagConstraint(source.getETag());
+
+				if (cannedAcl != null) {
+					request.setCannedAccessControlList(cannedAcl);
+				}
+
+				if (source.getStorageClass() != null) {
+					request.setStorageClass(source.getStorageClass());
+				}
+
+				// the result is NULL if the constraint is not met.
+				if (client.copyObject(request) == null) {
+					throw new IOException(String.format(
+							"Blob object [%s] in the amazon s3 repository [%s] is modified during copying.",
+							source.getKey(), source.getBucketName()));
+				}
+			}
+
+			if (deleteSource) {
+				deleteSource(source);
+			}
+		}catch(AmazonClientException e){
+			throw new IOException(e);
+		}finally{
+			if (metadataCache != null) {
+				metadataCache.invalidate(targetBucketName, targetKey);
+				if (deleteSource) {
+					metadataCache.invalidate(source.getBucketName(), source.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete the source object of move if it is not modified after copying.
+	 *
+	 * Amazon S3 does not support the conditional delete, so the ETag is
+	 * checked right before deleting, the object that is replaced after
+	 * copying is kept.
+	 *
+	 * @param source
+	 * @throws IOException
+	 */
+	private void deleteSource(S3ObjectSummary source) throws IOException {
+		ObjectMetadata metadata = null;
+		try{
+			metadata = client.getObjectMetadata(source.getBucketName(), source.getKey());
+		}catch(AmazonS3Exception e){
+			if (e.getStatusCode() == 404) {
+				// it is deleted by others already.
+				return;
+			}
+			throw e;
+		}
+
+		if (!S3ContentChecksum.unquote(source.getETag()).equals(
+				S3ContentChecksum.unquote(metadata.getETag()))) {
+			throw new IOException(String.format(
+					"Blob object [%s] in the amazon s3 repository [%s] is modified after copying, it is not deleted.",
+					source.getKey(), source.getBucketName()));
+		}
+
+		client.deleteObject(source.getBucketName(), source.getKey());
+	}
+
+	private void copyMultipart(S3ObjectSummary source, ObjectMetadata sourceMetadata,
+			String targetBucketName, String targetKey,
+			CannedAccessControlList cannedAcl) throws IOException {
+
+		long contentLength = source.getSize();
+		long size = getPartSize(contentLength);
+
+		ObjectMetadata targetMetadata = createObjectMetadata(sourceMetadata);
+		if (targetMetadata.getUserMetadata().containsKey(S3ContentChecksum.PART_SIZE_KEY)) {
+			// the ETag of the copy is changed by the part size.
+			targetMetadata.addUserMetadata(S3ContentChecksum.PART_SIZE_KEY, String.valueOf(size));
+		}
+
+		InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(
+				targetBucketName, targetKey, targetMetadata);
+
+		if (cannedAcl != null) {
+			initRequest.setCannedACL(cannedAcl);
+		}
+
+		if (source.getStorageClass() != null) {
+			initRequest.setStorageClass(StorageClass.fromValue(source.getStorageClass()));
+		}
+
+		String uploadId = client.initiateMultipartUpload(initRequest).getUploadId();
+
+		S3RunningParts runningParts = new S3RunningParts();
+		List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+		boolean completed = false;
+
+		try{
+			int partNumber = 1;
+			for (long position = 0; position < contentLength; position += size) {
+				CopyPartRequest request = new CopyPartRequest()
+						.withSourceBucketName(source.getBucketName())
+						.withSourceKey(source.getKey())
+						.withDestinationBucketName(targetBucketName)
+						.withDestinationKey(targetKey)
+						.withUploadId(uploadId)
+						.withPartNumber(partNumber)
+						.withFirstByte(position)
+						.withLastByte(Math.min(position + size, contentLength) - 1) // include
+						.withMatchingETagConstraint(source.getETag());
+
+				futures.add(partExecutorService.submit(new PartCopyTask(request, runningParts)));
+				partNumber++;
+			}
+
+			List<PartETag> partETags = new ArrayList<PartETag>();
+			for (Future<PartETag> future : futures) {
+				partETags.add(future.get());
+			}
+
+			client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+					targetBucketName, targetKey, uploadId, partETags));
+
+			completed = true;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format(
+					"Multipart copy of blob [%s] in the amazon s3 repository [%s] is interrupted.",
+					source.getKey(), source.getBucketName()));
+		}catch(ExecutionException e){
+			throw new IOException(e.getCause());
+		}finally{
+			if (!completed) {
+				// interrupt the running parts and wait until they finish, otherwise
+				// the part that is copied after aborting will be left in the bucket.
+				for (Future<PartETag> future : futures) {
+					future.cancel(true);
+				}
+				runningParts.closeAndAwait();
+				abort(targetBucketName, targetKey, uploadId);
+			}
+		}
+	}
+
+	/**
+	 * Create the metadata of the new object, it includes the headers that
+	 * can be set by request only.
+	 *
+	 * @param source
+	 * @return
+	 */
+	private ObjectMetadata createObjectMetadata(ObjectMetadata source) {
+		ObjectMetadata meta = new ObjectMetadata();
+		meta.setUserMetadata(new HashMap<String, String>(source.getUserMetadata()));
+
+		// the NULL value should not be set to the raw metadata.
+		for (String name : COPIED_HEADERS) {
+			Object value = source.getRawMetadataValue(name);
+			if (value != null) {
+				meta.setHeader(name, value);
+			}
+		}
+
+		return meta;
+	}
+
+	/**
+	 * Abort the copy so that the copied parts will not be left in the bucket,
+	 * the failed request is retried as the part.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param uploadId
+	 */
+	private void abort(String bucketName, String key, String uploadId) {
+		// the interruption is deferred, the copy is aborted anyway.
+		boolean interrupted = Thread.interrupted();
+
+		int retry = 0;
+		while(true) {
+			try{
+				client.abortMultipartUpload(new AbortMultipartUploadRequest(
+						bucketName, key, uploadId));
+				break;
+			}catch(AmazonClientException e){
+				if (!S3Backoff.isRetryable(e) || retry >= partRetries) {
+					logger.error("Can not abort the multipart copy [{}] of blob [{}] in the amazon s3 repository [{}], error: {}",
+							new Object[]{uploadId, key, bucketName, e.getMessage()});
+					break;
+				}
+
+				retry++;
+				try{
+					backoff.sleep(retry);
+				}catch(InterruptedException ie){
+					interrupted = true;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Enlarge the part size when the number of parts exceeds the limit.
+	 *
+	 * @param contentLength
+	 * @return
+	 */
+	private long getPartSize(long contentLength) {
+		long minSize = (contentLength + S3MultipartUploader.MAX_PARTS - 1) / S3MultipartUploader.MAX_PARTS;
+		return Math.max(partSize, minSize);
+	}
+
+	private void putFailure(Map<String, String> failures, String key, String message) {
+		if (message != null) {
+			failures.put(key, message);
+		}
+	}
+
+	/**
+	 * Copy one object of bulk copy.
+	 */
+	private class CopyTask implements Callable<String> {
+
+		private S3ObjectSummary source;
+		private String targetBucketName;
+		private String targetKey;
+		private CannedAccessControlList cannedAcl;
+		private boolean deleteSource;
+		private Semaphore semaphore;
+
+		public CopyTask(S3ObjectSummary source, String targetBucketName, String targetKey,
+				CannedAccessControlList cannedAcl, boolean deleteSource, Semaphore semaphore) {
+			this.source = source;
+			this.targetBucketName = targetBucketName;
+			this.targetKey = targetKey;
+			this.cannedAcl = cannedAcl;
+			this.deleteSource = deleteSource;
+			this.semaphore = semaphore;
+		}
+
+		/**
+		 *
+		 * @return The error message, or NULL if success.
+		 * @throws Exception
+		 */
+		@Override
+		public String call() throws Exception {
+			try{
+				copy(source, null, targetBucketName, targetKey, cannedAcl, deleteSource);
+				return null;
+			}catch(IOException e){
+				Throwable cause = (e.getCause() == null) ? e : e.getCause();
+				return cause.getMessage();
+			}finally{
+				semaphore.release();
+			}
+		}
+	}
+
+	private class PartCopyTask implements Callable<PartETag> {
+
+		private CopyPartRequest request;
+		private S3RunningParts runningParts;
+
+		public PartCopyTask(CopyPartRequest request, S3RunningParts runningParts) {
+			this.request = request;
+			this.runningParts = runningParts;
+		}
+
+		@Override
+		public PartETag call() throws Exception {
+			if (!runningParts.enter()) {
+				throw new CancellationException("The multipart copy is aborted.");
+			}
+
+			try{
+				int retry = 0;
+				while(true) {
+					try{
+						CopyPartResult result = client.copyPart(request);
+
+						// the result is NULL if the constraint is not met.
+						if (result == null) {
+							throw new IOException(String.format(
+									"Blob object [%s] in the amazon s3 repository [%s] is modified during copying.",
+									request.getSourceKey(), request.getSourceBucketName()));
+						}
+
+						return result.getPartETag();
+					}catch(AmazonClientException e){
+						if (!S3Backoff.isRetryable(e) || retry >= partRetries) {
+							throw e;
+						}
+
+						retry++;
+						logger.warn("Copy part [{}] of blob [{}] failed, retry {}, error: {}",
+								new Object[]{request.getPartNumber(), request.getSourceKey(), retry, e.getMessage()});
+						backoff.sleep(retry);
+					}
+				}
+			}finally{
+				runningParts.exit();
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.util.zip.Checksum;
+
+/**
+ * The CRC-32C (Castagnoli) checksum, it is not available in Java 8.
+ *
+ * It is computed by the "slicing-by-8" tables, i.e. 8 bytes are
+ * processed by each step.
+ *
+ * @author yang
+ *
+ */
+public class S3Crc32c implements Checksum {
+
+	private static final int POLYNOMIAL = 0x82F63B78; // reversed
+
+	private static final int[][] TABLES = createTables();
+
+	private int crc = 0xFFFFFFFF;
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int value = crc;
+		int end = off + len;
+
+		while (end - off >= 8) {
+			int low = value ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 |
+					(b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+
+			value = TABLES[7][low & 0xFF] ^
+					TABLES[6][(low >>> 8) & 0xFF] ^
+					TABLES[5][(low >>> 16) & 0xFF] ^
+					TABLES[4][low >>> 24] ^
+					TABLES[3][b[off + 4] & 0xFF] ^
+					TABLES[2][b[off + 5] & 0xFF] ^
+					TABLES[1][b[off + 6] & 0xFF] ^
+					TABLES[0][b[off + 7] & 0xFF];
+			off += 8;
+		}
+
+		while (off < end) {
+			value = (value >>> 8) ^ TABLES[0][(value ^ b[off++]) & 0xFF];
+		}
+
+		crc = value;
+	}
+
+	@Override
+	public long getValue() {
+		return (~crc) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+
+	private static int[][] createTables() {
+		int[][] tables = new int[8][256];
+
+		for (int idx = 0; idx < 256; idx++) {
+			int value = idx;
+			for (int bit = 0; bit < 8; bit++) {
+				value = ((value & 1) != 0) ? (value >>> 1) ^ POLYNOMIAL : value >>> 1;
+			}
+			tables[0][idx] = value;
+		}
+
+		for (int idx = 0; idx < 256; idx++) {
+			int value = tables[0][idx];
+			for (int table = 1; table < 8; table++) {
+				value = (value >>> 8) ^ tables[0][value & 0xFF];
+				tables[table][idx] = value;
+			}
+		}
+
+		return tables;
+	}
+}
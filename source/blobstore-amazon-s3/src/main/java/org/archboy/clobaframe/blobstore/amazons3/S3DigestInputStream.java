@@ -0,0 +1,76 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Compute the MD5 of the uploading content while it is sent.
+ *
+ * The Amazon S3 client resets the request stream before retrying, so the
+ * digest is saved at the mark and restored at the reset, i.e. the digest
+ * always covers the bytes from the beginning to the current position once.
+ *
+ * @author yang
+ *
+ */
+public class S3DigestInputStream extends FilterInputStream {
+
+	private MessageDigest digest;
+	private MessageDigest markDigest;
+	private byte[] single = new byte[1];
+
+	public S3DigestInputStream(InputStream in) {
+		super(in);
+		this.digest = S3ContentChecksum.createMd5Digest();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int value = super.read();
+		if (value != -1) {
+			single[0] = (byte)value;
+			digest.update(single, 0, 1);
+		}
+		return value;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = super.read(b, off, len);
+		if (count > 0) {
+			digest.update(b, off, count);
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		super.mark(readlimit);
+		markDigest = copy(digest);
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		super.reset();
+		digest = (markDigest == null) ? S3ContentChecksum.createMd5Digest() : copy(markDigest);
+	}
+
+	/**
+	 * Get the MD5 of the read content.
+	 *
+	 * @return
+	 */
+	public byte[] getDigest() {
+		return copy(digest).digest();
+	}
+
+	private static MessageDigest copy(MessageDigest digest) {
+		try{
+			return (MessageDigest)digest.clone();
+		}catch(CloneNotSupportedException e){
+			throw new IllegalStateException(e);
+		}
+	}
+}
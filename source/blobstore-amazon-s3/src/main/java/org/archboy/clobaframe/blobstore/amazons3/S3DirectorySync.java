@@ -0,0 +1,658 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.internal.Mimetypes;
+import com.amazonaws.util.BinaryUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Synchronize the local directory to the repository incrementally.
+ *
+ * The local files are compared with the listing of the repository, only
+ * the new and the changed files are uploaded, and the blobs that their files
+ * are removed can be deleted. The uploads and the deletions run concurrently,
+ * at most {@code concurrency} tasks are running at the same time.
+ *
+ * The size, the last modified time and the ETag of the synchronized files
+ * are kept in the state file. The file that is not changed since the last
+ * synchronizing, and its blob is not changed either, is skipped without
+ * reading, so synchronizing the unchanged tree costs the listing only.
+ * Otherwise the MD5 of the file is compared with the ETag when the ETag is
+ * the MD5 of the stored content of the same size, or with the MD5 that is
+ * stored in the user metadata {@link #CONTENT_MD5_KEY} on uploading, e.g.
+ * the blob of multipart upload or compressed. The file is uploaded when
+ * neither of them matches.
+ *
+ * The blobs are listed by the wrapped repository of the write-behind one,
+ * so the blobs that are pending in the spool may be uploaded again, and the
+ * files that are uploaded by the write-behind repository are hashed once
+ * more by the next synchronizing for recording the state of the listed blob.
+ *
+ * @author yang
+ *
+ */
+public class S3DirectorySync {
+
+	/**
+	 * The user metadata key of the MD5 (in hex) of the uploaded file, it is
+	 * reserved, i.e. not included in the blob metadata.
+	 */
+	public static final String CONTENT_MD5_KEY = S3ContentChecksum.MD5_KEY;
+
+	private static final String STATE_HEADER = "s3sync-1";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	// the max number of keys of one multi-object delete request.
+	private static final int DELETE_BATCH_SIZE = 1000;
+
+	private static final int MD5_HEX_LENGTH = 32;
+
+	// the prefix of the state that is the last modified time of blob,
+	// e.g. the packed blob which has no ETag.
+	private static final String TIME_STATE_PREFIX = "@";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private int concurrency;
+	private ExecutorService executorService;
+
+	private Logger logger = LoggerFactory.getLogger(S3DirectorySync.class);
+
+	/**
+	 *
+	 * @param concurrency The max number of the files that are uploading
+	 *	(or the batches of deletion) at the same time.
+	 */
+	public S3DirectorySync(int concurrency) {
+		Assert.isTrue(concurrency > 0);
+
+		this.concurrency = concurrency;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-sync-");
+		threadFactory.setDaemon(true);
+		this.executorService = Executors.newFixedThreadPool(concurrency, threadFactory);
+	}
+
+	/**
+	 * Synchronize the regular files of the directory (include the sub-directories)
+	 * to the blobs, the key of blob is the prefix and the relative path
+	 * of the file, e.g. "static/css/a.css".
+	 *
+	 * @param repository
+	 * @param directory
+	 * @param prefix Optional, e.g. "static/".
+	 * @param stateFile Optional, it is created if not exists, and it is ignored
+	 *	if it is not written by the same repository and prefix.
+	 * @param deleteRemoved Whether to delete the blobs that their files are removed,
+	 *	it is refused when the directory is empty.
+	 * @return
+	 * @throws IOException
+	 */
+	public S3SyncResult sync(S3ExtendedBlobResourceRepository repository, File directory, String prefix,
+			File stateFile, boolean deleteRemoved) throws IOException {
+		Assert.notNull(repository);
+		Assert.notNull(directory);
+
+		if (!directory.isDirectory()) {
+			throw new FileNotFoundException(String.format(
+					"Directory [%s] not found.", directory));
+		}
+
+		String keyPrefix = (prefix == null) ? "" : prefix;
+
+		Map<String, FileEntry> states = (stateFile == null) ?
+				new HashMap<String, FileEntry>() :
+				readState(stateFile, repository.getName(), keyPrefix);
+		Map<String, FileEntry> files = walk(directory, keyPrefix, stateFile);
+
+		if (deleteRemoved && files.isEmpty()) {
+			// e.g. the directory is not mounted, do not wipe out the blobs.
+			throw new IOException(String.format(
+					"Directory [%s] is empty, refuse to delete the blobs in the amazon s3 repository [%s].",
+					directory, repository.getName()));
+		}
+
+		Progress progress = new Progress();
+		Semaphore semaphore = new Semaphore(concurrency);
+		LinkedList<Future<Map<String, String>>> futures = new LinkedList<Future<Map<String, String>>>();
+		Map<String, String> failures = new HashMap<String, String>();
+		List<String> deletions = new ArrayList<String>();
+
+		try{
+			Lister lister = new Lister(repository, keyPrefix.isEmpty() ? null : keyPrefix);
+			List<BlobEntry> page;
+			while ((page = lister.next()) != null) {
+				for (BlobEntry blob : page) {
+					String key = blob.key;
+					FileEntry file = files.remove(key);
+
+					if (file == null) {
+						if (deleteRemoved) {
+							deletions.add(key);
+							if (deletions.size() == DELETE_BATCH_SIZE) {
+								submit(new DeleteTask(repository, deletions, progress, semaphore),
+										semaphore, futures, failures);
+								deletions = new ArrayList<String>();
+							}
+						}
+						continue;
+					}
+
+					FileEntry state = states.get(key);
+
+					if (state != null && state.size == file.size &&
+							state.lastModified == file.lastModified && state.eTag.equals(blob.eTag)) {
+						progress.states.put(key, state);
+						progress.unchangedCount.incrementAndGet();
+						continue;
+					}
+
+					submit(new UploadTask(repository, key, file, blob, progress, semaphore),
+							semaphore, futures, failures);
+				}
+			}
+
+			// the new files
+			for (Map.Entry<String, FileEntry> entry : files.entrySet()) {
+				submit(new UploadTask(repository, entry.getKey(), entry.getValue(),
+						null, progress, semaphore),
+						semaphore, futures, failures);
+			}
+
+			if (!deletions.isEmpty()) {
+				submit(new DeleteTask(repository, deletions, progress, semaphore),
+						semaphore, futures, failures);
+			}
+
+			while (!futures.isEmpty()) {
+				failures.putAll(futures.removeFirst().get());
+			}
+		}catch(InterruptedException e){
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format(
+					"Synchronize directory [%s] to the amazon s3 repository [%s] is interrupted.",
+					directory, repository.getName()));
+		}catch(ExecutionException e){
+			cancel(futures);
+			throw new IOException(e.getCause());
+		}catch(AmazonClientException e){
+			// thrown by the listing.
+			cancel(futures);
+			throw new IOException(e);
+		}
+
+		if (stateFile != null) {
+			writeState(stateFile, repository.getName(), keyPrefix, progress.states);
+		}
+
+		return new S3SyncResult(progress.uploadedCount.get(), progress.deletedCount.get(),
+				progress.unchangedCount.get(), progress.hashedCount.get(), failures);
+	}
+
+	/**
+	 * Shutdown the synchronizing threads.
+	 */
+	public void close() {
+		executorService.shutdownNow();
+	}
+
+	private void submit(Callable<Map<String, String>> task, Semaphore semaphore,
+			LinkedList<Future<Map<String, String>>> futures, Map<String, String> failures)
+			throws InterruptedException, ExecutionException {
+		semaphore.acquire();
+		futures.add(executorService.submit(task));
+
+		// collect the finished tasks, so the results do not pile up.
+		while (!futures.isEmpty() && futures.getFirst().isDone()) {
+			failures.putAll(futures.removeFirst().get());
+		}
+	}
+
+	private void cancel(List<Future<Map<String, String>>> futures) {
+		for (Future<Map<String, String>> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	private Map<String, FileEntry> walk(File directory, final String prefix,
+			File stateFile) throws IOException {
+		final Path root = directory.toPath();
+
+		// the state file and its temporary file are not synchronized.
+		final Set<Path> excludedPaths = new HashSet<Path>();
+		if (stateFile != null) {
+			Path statePath = stateFile.getAbsoluteFile().toPath().normalize();
+			excludedPaths.add(statePath);
+			excludedPaths.add(statePath.resolveSibling(statePath.getFileName() + TEMP_FILE_SUFFIX));
+		}
+
+		final Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile() &&
+						!excludedPaths.contains(file.toAbsolutePath().normalize())) {
+					String key = prefix + root.relativize(file).toString().replace(File.separatorChar, '/');
+					files.put(key, new FileEntry(file, attrs.size(),
+							attrs.lastModifiedTime().toMillis(), null));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return files;
+	}
+
+	private Map<String, FileEntry> readState(File stateFile, String bucketName,
+			String prefix) throws IOException {
+		Map<String, FileEntry> states = new HashMap<String, FileEntry>();
+		if (!stateFile.exists()) {
+			return states;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(stateFile), "UTF-8"));
+		try{
+			if (!getStateHeader(bucketName, prefix).equals(reader.readLine())) {
+				logger.info("Ignore the state file [{}] of the other repository or prefix.", stateFile);
+				return states;
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				try{
+					String[] fields = line.split("\t", -1);
+					states.put(S3SegmentStore.decode(fields[0]), new FileEntry(null,
+							Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+				}catch(RuntimeException e){
+					logger.warn("Skip the broken sync state record: {}", line);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+
+		return states;
+	}
+
+	/**
+	 * Replace the state file with the states of the synchronized files.
+	 */
+	private void writeState(File stateFile, String bucketName, String prefix,
+			Map<String, FileEntry> states) throws IOException {
+		File parent = stateFile.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException(String.format(
+					"Can not create the directory of the state file [%s].", stateFile));
+		}
+
+		File tempFile = new File(parent, stateFile.getName() + TEMP_FILE_SUFFIX);
+
+		StringBuilder record = new StringBuilder();
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try{
+			out.write((getStateHeader(bucketName, prefix) + "\n").getBytes("UTF-8"));
+
+			for (Map.Entry<String, FileEntry> entry : new TreeMap<String, FileEntry>(states).entrySet()) {
+				FileEntry state = entry.getValue();
+				record.setLength(0);
+				record.append(S3SegmentStore.encode(entry.getKey())).append('\t')
+						.append(state.size).append('\t')
+						.append(state.lastModified).append('\t')
+						.append(state.eTag).append('\n');
+				out.write(record.toString().getBytes("UTF-8"));
+			}
+			out.getFD().sync();
+		}finally{
+			out.close();
+		}
+
+		Files.move(tempFile.toPath(), stateFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private String getStateHeader(String bucketName, String prefix) throws IOException {
+		return STATE_HEADER + "\t" + S3SegmentStore.encode(bucketName) +
+				"\t" + S3SegmentStore.encode(prefix);
+	}
+
+	private static String getMd5Hex(Path path) throws IOException {
+		MessageDigest digest = S3ContentChecksum.createMd5Digest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+
+		InputStream in = Files.newInputStream(path);
+		try{
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		}finally{
+			in.close();
+		}
+
+		return BinaryUtils.toHex(digest.digest());
+	}
+
+	/**
+	 * Get the state of the blob for detecting the change.
+	 *
+	 * @param info Optional.
+	 * @return The ETag without quotes, or the last modified time if the
+	 *	blob has no ETag, NULL if it is unknown.
+	 */
+	private static String getBlobState(BlobResourceInfo info) {
+		String eTag = null;
+		if (info instanceof S3BlobResourceInfo) {
+			eTag = ((S3BlobResourceInfo)info).getETag();
+		}else if (info instanceof S3BlobResourceInfoBySummary) {
+			eTag = ((S3BlobResourceInfoBySummary)info).getETag();
+		}else if (info instanceof S3CachedBlobResourceInfo) {
+			eTag = ((S3CachedBlobResourceInfo)info).getETag();
+		}
+
+		if (eTag != null) {
+			return S3ContentChecksum.unquote(eTag);
+		}
+
+		return (info == null || info.getLastModified() == null) ? null :
+				TIME_STATE_PREFIX + info.getLastModified().getTime();
+	}
+
+	/**
+	 * Get the MD5 that is stored on uploading, it is not a part of the blob metadata.
+	 *
+	 * @param info
+	 * @return NULL if it is not stored.
+	 */
+	private static String getStoredMd5(BlobResourceInfo info) {
+		if (info instanceof S3ETaggedBlobResourceInfo) {
+			return ((S3ETaggedBlobResourceInfo)info).getUserMetadata(CONTENT_MD5_KEY);
+		}else if (info instanceof S3PackedBlobResourceInfo) {
+			return ((S3PackedBlobResourceInfo)info).getUserMetadata(CONTENT_MD5_KEY);
+		}
+
+		// e.g. the blob that is pending in the write-behind spool.
+		Map<String, Object> metadata = info.getMetadata();
+		Object md5 = (metadata == null) ? null : metadata.get(CONTENT_MD5_KEY);
+		return (md5 == null) ? null : md5.toString();
+	}
+
+	/**
+	 * The listed blob.
+	 */
+	private static class BlobEntry {
+		private String key;
+		private long size; // the stored size, i.e. the compressed size of the compressed blob
+		private String eTag; // see getBlobState()
+
+		public BlobEntry(String key, long size, String eTag) {
+			this.key = key;
+			this.size = size;
+			this.eTag = eTag;
+		}
+	}
+
+	/**
+	 * List the blobs page by page, the plain and cached repositories are
+	 * listed by the compact pages.
+	 */
+	private static class Lister {
+
+		private BlobResourceRepository repository;
+		private String prefix; // optional
+		private PartialCollection<BlobResourceInfo> page;
+
+		public Lister(BlobResourceRepository repository, String prefix) {
+			// the pending blobs of the write-behind repository are not listed.
+			while (repository instanceof S3WriteBehindBlobResourceRepository) {
+				repository = ((S3WriteBehindBlobResourceRepository)repository).getRepository();
+			}
+
+			this.repository = repository;
+			this.prefix = prefix;
+		}
+
+		/**
+		 *
+		 * @return NULL if there is no more page.
+		 */
+		public List<BlobEntry> next() {
+			if (page == null) {
+				page = listFirst();
+			}else if (page.hasMore()) {
+				page = repository.listNext(page);
+			}else{
+				return null;
+			}
+
+			List<BlobEntry> blobs = new ArrayList<BlobEntry>(page.size());
+
+			if (page instanceof S3CompactPartialList) {
+				S3CompactPartialList compactPage = (S3CompactPartialList)page;
+				for (int idx = 0; idx < compactPage.size(); idx++) {
+					blobs.add(new BlobEntry(compactPage.getKey(idx), compactPage.getContentLength(idx),
+							S3ContentChecksum.unquote(compactPage.getETag(idx))));
+				}
+				return blobs;
+			}
+
+			for (BlobResourceInfo info : page) {
+				if (prefix != null && !info.getKey().startsWith(prefix)) {
+					continue;
+				}
+
+				// the listed size, without loading the object metadata.
+				long size = (info instanceof S3BlobResourceInfoBySummary) ?
+						((S3BlobResourceInfoBySummary)info).getStoredContentLength() :
+						info.getContentLength();
+				blobs.add(new BlobEntry(info.getKey(), size, getBlobState(info)));
+			}
+			return blobs;
+		}
+
+		private PartialCollection<BlobResourceInfo> listFirst() {
+			if (repository instanceof S3BlobResourceRepository) {
+				return ((S3BlobResourceRepository)repository).listCompact(prefix, null);
+			}else if (repository instanceof S3CachedBlobResourceRepository) {
+				return ((S3CachedBlobResourceRepository)repository).listCompact(prefix, null);
+			}else if (repository instanceof S3PackedBlobResourceRepository) {
+				return ((S3PackedBlobResourceRepository)repository).list(prefix);
+			}else{
+				return repository.list();
+			}
+		}
+	}
+
+	/**
+	 * The local file, or the state of the synchronized file.
+	 */
+	private static class FileEntry {
+		private Path path; // NULL if it is the state
+		private long size;
+		private long lastModified;
+		private String eTag; // NULL if it is the local file
+
+		public FileEntry(Path path, long size, long lastModified, String eTag) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.eTag = eTag;
+		}
+	}
+
+	private static class Progress {
+		private Map<String, FileEntry> states = new ConcurrentHashMap<String, FileEntry>();
+		private AtomicInteger uploadedCount = new AtomicInteger();
+		private AtomicInteger deletedCount = new AtomicInteger();
+		private AtomicInteger unchangedCount = new AtomicInteger();
+		private AtomicInteger hashedCount = new AtomicInteger();
+	}
+
+	/**
+	 * Compare the file with the blob, and upload it if it is changed.
+	 */
+	private static class UploadTask implements Callable<Map<String, String>> {
+
+		private S3ExtendedBlobResourceRepository repository;
+		private String key;
+		private FileEntry file;
+		private BlobEntry blob; // NULL if the blob does not exist
+		private Progress progress;
+		private Semaphore semaphore;
+
+		public UploadTask(S3ExtendedBlobResourceRepository repository, String key, FileEntry file,
+				BlobEntry blob, Progress progress, Semaphore semaphore) {
+			this.repository = repository;
+			this.key = key;
+			this.file = file;
+			this.blob = blob;
+			this.progress = progress;
+			this.semaphore = semaphore;
+		}
+
+		/**
+		 *
+		 * @return The key and the error message if it fails.
+		 * @throws Exception
+		 */
+		@Override
+		public Map<String, String> call() throws Exception {
+			try{
+				String md5 = getMd5Hex(file.path);
+
+				if (blob != null) {
+					progress.hashedCount.incrementAndGet();
+
+					if (isUnchanged(md5)) {
+						if (blob.eTag != null) {
+							progress.states.put(key, new FileEntry(null, file.size, file.lastModified, blob.eTag));
+						}
+						progress.unchangedCount.incrementAndGet();
+						return Collections.emptyMap();
+					}
+				}
+
+				repository.put(key, new S3FileContentSource(file.path),
+						Mimetypes.getInstance().getMimetype(file.path.toFile()),
+						Collections.<String, Object>singletonMap(CONTENT_MD5_KEY, md5),
+						false, BlobResourceRepository.PRIORITY_DEFAULT);
+				progress.uploadedCount.incrementAndGet();
+
+				// the ETag is not known until the upload is completed, e.g. the blob
+				// of multipart upload or compressed. The blob that is pending in the
+				// write-behind spool has no state until it is listed, otherwise its
+				// state would differ from the listed one and it is hashed every time.
+				String eTag = (repository instanceof S3WriteBehindBlobResourceRepository) ?
+						null : getBlobState(repository.get(key));
+				if (eTag != null) {
+					progress.states.put(key, new FileEntry(null, file.size, file.lastModified, eTag));
+				}
+
+				return Collections.emptyMap();
+			}catch(IOException | AmazonClientException e){
+				Throwable cause = (e.getCause() == null) ? e : e.getCause();
+				return Collections.singletonMap(key, String.valueOf(cause.getMessage()));
+			}finally{
+				semaphore.release();
+			}
+		}
+
+		private boolean isUnchanged(String md5) {
+			if (blob.eTag != null && blob.eTag.length() == MD5_HEX_LENGTH && blob.size == file.size) {
+				// the ETag is the MD5 of the stored content.
+				return md5.equals(blob.eTag);
+			}
+
+			// the blob of multipart upload or compressed, compare with
+			// the original length and the MD5 that stored on uploading.
+			BlobResourceInfo info = repository.get(key);
+			if (info == null || info.getContentLength() != file.size) {
+				return false;
+			}
+
+			return md5.equals(getStoredMd5(info));
+		}
+	}
+
+	/**
+	 * Delete one batch of blobs.
+	 */
+	private static class DeleteTask implements Callable<Map<String, String>> {
+
+		private S3ExtendedBlobResourceRepository repository;
+		private List<String> keys;
+		private Progress progress;
+		private Semaphore semaphore;
+
+		public DeleteTask(S3ExtendedBlobResourceRepository repository, List<String> keys,
+				Progress progress, Semaphore semaphore) {
+			this.repository = repository;
+			this.keys = keys;
+			this.progress = progress;
+			this.semaphore = semaphore;
+		}
+
+		/**
+		 *
+		 * @return The keys and the error messages of the failed deletions.
+		 * @throws Exception
+		 */
+		@Override
+		public Map<String, String> call() throws Exception {
+			try{
+				Map<String, String> errors = repository.delete(keys);
+				progress.deletedCount.addAndGet(keys.size() - errors.size());
+				return errors;
+			}catch(IOException | AmazonClientException e){
+				Throwable cause = (e.getCause() == null) ? e : e.getCause();
+				Map<String, String> errors = new HashMap<String, String>();
+				for (String key : keys) {
+					errors.put(key, String.valueOf(cause.getMessage()));
+				}
+				return errors;
+			}finally{
+				semaphore.release();
+			}
+		}
+	}
+}
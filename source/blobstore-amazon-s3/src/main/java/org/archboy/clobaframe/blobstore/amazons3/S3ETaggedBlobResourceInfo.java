@@ -0,0 +1,42 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+
+/**
+ * The blob which content can be read by the ETag of a specified version,
+ * so the ranges that are read by the separate requests are not mixed
+ * when the blob is overwritten in the meantime.
+ *
+ * @author yang
+ *
+ */
+public interface S3ETaggedBlobResourceInfo extends BlobResourceInfo {
+
+	/**
+	 *
+	 * @return NULL if the ETag is unknown.
+	 */
+	String getETag();
+
+	/**
+	 * Get the content of the range only if the blob is still the specified version.
+	 *
+	 * @param start
+	 * @param length
+	 * @param ifMatch The ETag of the expected version.
+	 * @return
+	 * @throws IOException If the blob is modified, i.e. the ETag is not matched.
+	 */
+	InputStream getContent(long start, long length, String ifMatch) throws IOException;
+
+	/**
+	 * Get the stored user metadata, include the reserved ones that are not
+	 * a part of the blob metadata, e.g. the checksum.
+	 *
+	 * @param name
+	 * @return NULL if it does not exist.
+	 */
+	String getUserMetadata(String name);
+}
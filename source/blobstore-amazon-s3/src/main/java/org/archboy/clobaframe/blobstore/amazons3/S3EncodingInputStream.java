@@ -0,0 +1,125 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The stream of the compressed data of source stream.
+ *
+ * The source is compressed on demand while this stream is reading, only
+ * the output of the last chunk is held in memory.
+ *
+ * @author yang
+ *
+ */
+public class S3EncodingInputStream extends InputStream {
+
+	private static final int CHUNK_SIZE = 32 * 1024;
+
+	private InputStream in;
+	private Buffer buffer = new Buffer();
+	private OutputStream encoder;
+	private byte[] chunk = new byte[CHUNK_SIZE];
+	private boolean finished;
+	private boolean encoderClosed;
+
+	/**
+	 *
+	 * @param in The source stream, it will be closed by this stream.
+	 * @param codec
+	 * @throws IOException
+	 */
+	public S3EncodingInputStream(InputStream in, S3ContentCodec codec) throws IOException {
+		this.in = in;
+		this.encoder = codec.encode(buffer);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int count = read(b, 0, 1);
+		return (count == -1) ? -1 : (b[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		while (buffer.available() == 0) {
+			if (finished) {
+				return -1;
+			}
+
+			int count = in.read(chunk);
+			if (count == -1) {
+				encoderClosed = true;
+				encoder.close(); // flush the trailer
+				finished = true;
+			}else{
+				encoder.write(chunk, 0, count);
+			}
+		}
+
+		return buffer.read(b, off, len);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return buffer.available();
+	}
+
+	/**
+	 * Close the source stream, and the encoder if it is closed before the end,
+	 * e.g. to release the deflater or the native zstd context.
+	 */
+	@Override
+	public void close() throws IOException {
+		finished = true;
+		try{
+			if (!encoderClosed) {
+				encoderClosed = true;
+				encoder.close();
+			}
+		}finally{
+			buffer.reset();
+			in.close();
+		}
+	}
+
+	/**
+	 * The output of encoder, it is reused once all data is read.
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+
+		private int position;
+
+		public Buffer() {
+			super(CHUNK_SIZE);
+		}
+
+		public int available() {
+			return count - position;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			int length = Math.min(len, count - position);
+			System.arraycopy(buf, position, b, off, length);
+			position += length;
+
+			if (position == count) {
+				reset();
+			}
+			return length;
+		}
+
+		@Override
+		public synchronized void reset() {
+			super.reset();
+			position = 0;
+		}
+	}
+}
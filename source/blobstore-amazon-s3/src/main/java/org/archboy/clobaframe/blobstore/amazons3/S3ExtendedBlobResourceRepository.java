@@ -0,0 +1,111 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+
+/**
+ * The operations that are supported by all Amazon S3 repositories, include
+ * the cached, packed and write-behind ones, so the repository that returned
+ * by {@link S3Blobstore#getRepository(java.lang.String)} can be cast to
+ * this interface whatever it is wrapped.
+ *
+ * @author yang
+ *
+ */
+public interface S3ExtendedBlobResourceRepository extends BlobResourceRepository {
+
+	/**
+	 * Put the blob from the re-openable content source, e.g. the local file.
+	 *
+	 * @param key
+	 * @param source
+	 * @param mimeType
+	 * @param metadata Optional.
+	 * @param publicReadable
+	 * @param priority
+	 * @throws IOException
+	 */
+	void put(String key, S3ContentSource source, String mimeType,
+			Map<String, Object> metadata, boolean publicReadable, int priority) throws IOException;
+
+	/**
+	 * Delete blobs.
+	 *
+	 * @param keys
+	 * @return The keys that fail to delete and the error messages.
+	 * @throws IOException
+	 */
+	Map<String, String> delete(Iterable<String> keys) throws IOException;
+
+	/**
+	 * Copy the blob, the metadata is kept.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName The repository of the copy, it can be this repository.
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 * @throws java.io.FileNotFoundException If the source blob does not exist.
+	 */
+	void copy(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException;
+
+	/**
+	 * Move the blob, the source blob is deleted after it is copied.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName The repository of the copy, it can be this repository.
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 * @throws java.io.FileNotFoundException If the source blob does not exist.
+	 */
+	void move(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException;
+
+	/**
+	 * Copy the blobs which key starts with the source prefix, the prefix
+	 * of key is replaced by the target prefix.
+	 *
+	 * @param sourcePrefix E.g. "2015/".
+	 * @param targetRepositoryName The repository of the copies, it can be this repository.
+	 * @param targetPrefix E.g. "archive/2015/".
+	 * @param publicReadable
+	 * @return The keys that fail to copy and the error messages.
+	 * @throws IOException
+	 */
+	Map<String, String> copyAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException;
+
+	/**
+	 * Move the blobs which key starts with the source prefix.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @return The keys that fail to move and the error messages.
+	 * @throws IOException
+	 * @see #copyAll(java.lang.String, java.lang.String, java.lang.String, boolean)
+	 */
+	Map<String, String> moveAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException;
+
+	/**
+	 * Synchronize the local directory to the blobs which key starts with the prefix,
+	 * only the new and the changed files are uploaded.
+	 *
+	 * @param directory
+	 * @param prefix Optional, e.g. "static/".
+	 * @param stateFile Optional, the state of the last synchronizing, it makes
+	 *	the files that are not changed skipped without reading.
+	 * @param deleteRemoved Whether to delete the blobs that their files are removed.
+	 * @return
+	 * @throws IOException
+	 * @see S3DirectorySync
+	 */
+	S3SyncResult sync(File directory, String prefix, File stateFile,
+			boolean deleteRemoved) throws IOException;
+}
@@ -0,0 +1,133 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.springframework.util.Assert;
+
+/**
+ * The {@link S3ContentSource} that streams the content from the local file
+ * by positional reads, so the ranges can be read concurrently
+ * (e.g. the parts of multipart upload) without loading them into memory.
+ *
+ * @author yang
+ *
+ */
+public class S3FileContentSource implements S3ContentSource {
+
+	private Path path;
+	private FileChannel channel;
+
+	/**
+	 *
+	 * @param path A new channel is opened for each stream.
+	 */
+	public S3FileContentSource(Path path) {
+		Assert.notNull(path);
+		this.path = path;
+	}
+
+	/**
+	 *
+	 * @param channel The shared channel, it will NOT be closed by this source.
+	 */
+	public S3FileContentSource(FileChannel channel) {
+		Assert.notNull(channel);
+		this.channel = channel;
+	}
+
+	@Override
+	public long getContentLength() throws IOException {
+		if (channel != null) {
+			return channel.size();
+		}
+
+		FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+		try{
+			return fileChannel.size();
+		}finally{
+			fileChannel.close();
+		}
+	}
+
+	@Override
+	public InputStream open(long position, long length) throws IOException {
+		if (channel != null) {
+			return new ChannelInputStream(channel, position, length, false);
+		}
+
+		return new ChannelInputStream(
+				FileChannel.open(path, StandardOpenOption.READ),
+				position, length, true);
+	}
+
+	/**
+	 * Read the channel by the absolute position, the position of
+	 * channel is not changed.
+	 */
+	private static class ChannelInputStream extends InputStream {
+
+		private FileChannel channel;
+		private long position;
+		private long remain;
+		private boolean closeChannel;
+
+		public ChannelInputStream(FileChannel channel, long position, long length,
+				boolean closeChannel) {
+			this.channel = channel;
+			this.position = position;
+			this.remain = length;
+			this.closeChannel = closeChannel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buffer = new byte[1];
+			int count = read(buffer, 0, 1);
+			return (count == -1) ? -1 : (buffer[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			if (remain <= 0) {
+				return -1;
+			}
+
+			int count = channel.read(
+					ByteBuffer.wrap(b, off, (int)Math.min(len, remain)), position);
+			if (count > 0) {
+				position += count;
+				remain -= count;
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long count = Math.max(0, Math.min(n, remain));
+			position += count;
+			remain -= count;
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(Integer.MAX_VALUE, remain);
+		}
+
+		@Override
+		public void close() throws IOException {
+			remain = 0;
+			if (closeChannel) {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.springframework.util.Assert;
+
+/**
+ * The gzip {@link S3ContentCodec} by the JDK deflater.
+ *
+ * @author yang
+ *
+ */
+public class S3GzipContentCodec implements S3ContentCodec {
+
+	public static final String ENCODING = "gzip";
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private int level;
+
+	/**
+	 *
+	 * @param level 1 (fastest) to 9 (best compression), or -1 for the default level.
+	 */
+	public S3GzipContentCodec(int level) {
+		Assert.isTrue(level == Deflater.DEFAULT_COMPRESSION ||
+				(level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION));
+		this.level = level;
+	}
+
+	@Override
+	public String getEncoding() {
+		return ENCODING;
+	}
+
+	@Override
+	public OutputStream encode(OutputStream out) throws IOException {
+		return new GZIPOutputStream(out, BUFFER_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+
+	@Override
+	public InputStream decode(InputStream in) throws IOException {
+		return new GZIPInputStream(in, BUFFER_SIZE);
+	}
+}
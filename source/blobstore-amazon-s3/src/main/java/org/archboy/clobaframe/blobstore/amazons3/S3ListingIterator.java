@@ -0,0 +1,243 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+
+/**
+ * Iterate the objects of bucket lazily.
+ *
+ * The next page is listed in background while the current page
+ * is consuming, so at most two pages are held in memory. The metadata
+ * of each page is prefetched in background too if the metadata
+ * prefetcher is set.
+ *
+ * @author yang
+ *
+ */
+public class S3ListingIterator implements Iterator<BlobResourceInfo>, Closeable {
+
+	private AmazonS3 client;
+	private S3ParallelDownloader parallelDownloader; // optional
+	private S3RequestHedger requestHedger; // optional
+	private S3Metrics metrics; // optional
+	private S3ContentChecksum contentChecksum; // optional
+	private S3MetadataPrefetcher metadataPrefetcher; // optional
+	private ExecutorService executorService; // optional
+	private Function<BlobResourceInfo, BlobResourceInfo> converter; // optional
+	private boolean encodingExpected;
+
+	private Iterator<BlobResourceInfo> items;
+	private Future<Page> nextPage;
+	private List<String> commonPrefixes = new ArrayList<String>();
+
+	/**
+	 *
+	 * @param client
+	 * @param request
+	 * @param parallelDownloader Optional.
+	 * @param requestHedger Optional.
+	 * @param metrics Optional.
+	 * @param contentChecksum Optional.
+	 * @param metadataPrefetcher Optional.
+	 * @param executorService Optional, the pages are listed synchronously if it is NULL.
+	 */
+	public S3ListingIterator(AmazonS3 client, ListObjectsRequest request,
+			S3ParallelDownloader parallelDownloader,
+			S3RequestHedger requestHedger,
+			S3Metrics metrics,
+			S3ContentChecksum contentChecksum,
+			S3MetadataPrefetcher metadataPrefetcher,
+			ExecutorService executorService) {
+		this(client, request, parallelDownloader, requestHedger, metrics,
+				contentChecksum, metadataPrefetcher, executorService, null, false);
+	}
+
+	/**
+	 *
+	 * @param client
+	 * @param request
+	 * @param parallelDownloader Optional.
+	 * @param requestHedger Optional.
+	 * @param metrics Optional.
+	 * @param contentChecksum Optional.
+	 * @param metadataPrefetcher Optional.
+	 * @param executorService Optional, the pages are listed synchronously if it is NULL.
+	 * @param converter Optional, wrap each blob of the listed pages, e.g. by the cache.
+	 * @param encodingExpected Whether the listed blobs may be compressed,
+	 *	see {@link S3BlobResourceInfoBySummary#setEncodingExpected(boolean)}.
+	 */
+	public S3ListingIterator(AmazonS3 client, ListObjectsRequest request,
+			S3ParallelDownloader parallelDownloader,
+			S3RequestHedger requestHedger,
+			S3Metrics metrics,
+			S3ContentChecksum contentChecksum,
+			S3MetadataPrefetcher metadataPrefetcher,
+			ExecutorService executorService,
+			Function<BlobResourceInfo, BlobResourceInfo> converter,
+			boolean encodingExpected) {
+		this.client = client;
+		this.parallelDownloader = parallelDownloader;
+		this.requestHedger = requestHedger;
+		this.metrics = metrics;
+		this.contentChecksum = contentChecksum;
+		this.metadataPrefetcher = metadataPrefetcher;
+		this.executorService = executorService;
+		this.converter = converter;
+		this.encodingExpected = encodingExpected;
+
+		setPage(createPage(client.listObjects(request)));
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!items.hasNext() && nextPage != null) {
+			setPage(get(nextPage));
+		}
+
+		return items.hasNext();
+	}
+
+	@Override
+	public BlobResourceInfo next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		return items.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Get the common prefixes (i.e. the "sub-directories") when listing
+	 * with delimiter.
+	 *
+	 * @return The common prefixes of the pages that have been listed, it is
+	 *	complete after {@link #hasNext()} returns false.
+	 */
+	public List<String> getCommonPrefixes() {
+		return commonPrefixes;
+	}
+
+	/**
+	 * Cancel the background listing, call this method when the iteration
+	 * is stopped before the end.
+	 */
+	@Override
+	public void close() {
+		if (nextPage != null) {
+			nextPage.cancel(true);
+			nextPage = null;
+		}
+	}
+
+	private Page createPage(ObjectListing objectListing) {
+		List<BlobResourceInfo> infos = new ArrayList<BlobResourceInfo>();
+		for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+			S3BlobResourceInfoBySummary info = new S3BlobResourceInfoBySummary(
+					summary, client, parallelDownloader);
+			info.setRequestHedger(requestHedger);
+			info.setMetrics(metrics);
+			info.setContentChecksum(contentChecksum);
+			info.setEncodingExpected(encodingExpected);
+			infos.add(info);
+		}
+
+		if (metadataPrefetcher != null) {
+			metadataPrefetcher.prefetch(infos);
+		}
+
+		if (converter != null) {
+			for (int idx = 0; idx < infos.size(); idx++) {
+				infos.set(idx, converter.apply(infos.get(idx)));
+			}
+		}
+
+		return new Page(objectListing, infos);
+	}
+
+	private void setPage(Page page) {
+		final ObjectListing objectListing = page.objectListing;
+
+		items = page.infos.iterator();
+		commonPrefixes.addAll(objectListing.getCommonPrefixes());
+
+		if (!objectListing.isTruncated()) {
+			nextPage = null;
+			return;
+		}
+
+		Callable<Page> task = new Callable<Page>() {
+			@Override
+			public Page call() throws Exception {
+				return createPage(client.listNextBatchOfObjects(objectListing));
+			}
+		};
+
+		if (executorService == null) {
+			nextPage = new LazyFuture<Page>(task);
+		}else{
+			nextPage = executorService.submit(task);
+		}
+	}
+
+	private Page get(Future<Page> future) {
+		try{
+			return future.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Listing objects is interrupted.", e);
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof AmazonClientException) {
+				throw (AmazonClientException)cause;
+			}else{
+				throw new AmazonClientException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	private static class Page {
+		private ObjectListing objectListing;
+		private List<BlobResourceInfo> infos;
+
+		public Page(ObjectListing objectListing, List<BlobResourceInfo> infos) {
+			this.objectListing = objectListing;
+			this.infos = infos;
+		}
+	}
+
+	/**
+	 * The future that runs the task in the caller thread when getting.
+	 */
+	private static class LazyFuture<T> extends FutureTask<T> {
+
+		public LazyFuture(Callable<T> callable) {
+			super(callable);
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			run();
+			return super.get();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.List;
+
+/**
+ * One partition of the keyspace of bucket, it is listed independently
+ * by the {@link S3ParallelLister}.
+ *
+ * The partition is either the key range of a prefix, i.e. the keys that
+ * start with the prefix, after the start key (exclusive) and not after the
+ * end key (inclusive), or the object summaries that have been listed
+ * by the partition discovery.
+ *
+ * @author yang
+ *
+ */
+public class S3ListingPartition {
+
+	private String prefix;
+	private String startAfter;
+	private String endKey;
+	private List<S3ObjectSummary> summaries;
+
+	/**
+	 *
+	 * @param prefix Optional.
+	 * @param startAfter Optional, the exclusive start key.
+	 * @param endKey Optional, the inclusive end key.
+	 */
+	public S3ListingPartition(String prefix, String startAfter, String endKey) {
+		this.prefix = prefix;
+		this.startAfter = startAfter;
+		this.endKey = endKey;
+	}
+
+	/**
+	 *
+	 * @param summaries The listed object summaries in key order.
+	 */
+	public S3ListingPartition(List<S3ObjectSummary> summaries) {
+		this.summaries = summaries;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public String getStartAfter() {
+		return startAfter;
+	}
+
+	public String getEndKey() {
+		return endKey;
+	}
+
+	/**
+	 *
+	 * @return NULL if the partition is not listed yet.
+	 */
+	public List<S3ObjectSummary> getSummaries() {
+		return summaries;
+	}
+
+	@Override
+	public String toString() {
+		return (summaries != null) ?
+				String.format("[%s .. %s]", summaries.get(0).getKey(),
+						summaries.get(summaries.size() - 1).getKey()) :
+				String.format("%s(%s .. %s]", prefix == null ? "" : prefix,
+						startAfter == null ? "" : startAfter,
+						endKey == null ? "" : endKey);
+	}
+}
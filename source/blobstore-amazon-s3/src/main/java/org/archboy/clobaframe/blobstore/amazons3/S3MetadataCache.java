@@ -0,0 +1,265 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.util.Assert;
+
+/**
+ * The bounded, time-to-live cache of the object metadata and the
+ * bucket existence.
+ *
+ * The non-exists object and bucket are cached too, but with a shorter
+ * time-to-live, so the repeated lookups of a missing blob do not go to
+ * Amazon S3 every time. The returned metadata is a copy, so the caller
+ * can modify it without changing the cached one.
+ *
+ * @author yang
+ *
+ */
+public class S3MetadataCache {
+
+	private AmazonS3 client;
+	private S3RequestHedger requestHedger; // optional
+	private S3RequestCoalescer requestCoalescer; // optional
+	private S3Metrics metrics; // optional
+	private long ttl; // millisecond
+	private long negativeTtl; // millisecond
+
+	private LruMap<String, Entry<ObjectMetadata>> objectMetadatas;
+	private LruMap<String, Entry<Boolean>> buckets;
+
+	// the generation of each key that is loading, it is removed on the
+	// invalidation of the key, so the value loaded before an invalidation
+	// is not cached since it may be stale.
+	private Map<String, Long> objectGenerations = new HashMap<String, Long>();
+	private Map<String, Long> bucketGenerations = new HashMap<String, Long>();
+	private AtomicLong generationSequence = new AtomicLong();
+
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+
+	/**
+	 *
+	 * @param client
+	 * @param maxEntries The max number of cached objects (and buckets).
+	 * @param ttl The time-to-live of the exists entries, in millisecond.
+	 * @param negativeTtl The time-to-live of the non-exists entries, in millisecond.
+	 */
+	public S3MetadataCache(AmazonS3 client, int maxEntries, long ttl, long negativeTtl) {
+		Assert.notNull(client);
+		Assert.isTrue(maxEntries > 0);
+
+		this.client = client;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+
+		this.objectMetadatas = new LruMap<String, Entry<ObjectMetadata>>(maxEntries);
+		this.buckets = new LruMap<String, Entry<Boolean>>(maxEntries);
+	}
+
+	public void setRequestHedger(S3RequestHedger requestHedger) {
+		this.requestHedger = requestHedger;
+	}
+
+	public void setRequestCoalescer(S3RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	/**
+	 * Record the HEAD requests that are sent on the cache misses.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(S3Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Get the object metadata.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @return NULL if the object does not exist.
+	 */
+	public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+		String cacheKey = getCacheKey(bucketName, key);
+		Long generation;
+
+		synchronized (objectMetadatas) {
+			Entry<ObjectMetadata> entry = objectMetadatas.get(cacheKey);
+			if (entry != null && !entry.isExpired()) {
+				hitCount.incrementAndGet();
+				return copy(entry.value);
+			}
+			generation = generationSequence.incrementAndGet();
+			objectGenerations.put(cacheKey, generation);
+		}
+
+		missCount.incrementAndGet();
+
+		ObjectMetadata objectMetadata = null;
+		boolean loaded = false;
+		try{
+			try{
+				objectMetadata = (requestCoalescer == null) ?
+						loadObjectMetadata(bucketName, key) :
+						requestCoalescer.getObjectMetadata(bucketName, key,
+							() -> loadObjectMetadata(bucketName, key));
+			}catch (AmazonS3Exception e) {
+				if (e.getStatusCode() != 404){
+					throw e;
+				}
+			}
+			loaded = true;
+		}finally{
+			synchronized (objectMetadatas) {
+				if (objectGenerations.remove(cacheKey, generation) && loaded) {
+					objectMetadatas.put(cacheKey, new Entry<ObjectMetadata>(copy(objectMetadata),
+							objectMetadata == null ? negativeTtl : ttl));
+				}
+			}
+		}
+
+		return objectMetadata;
+	}
+
+	private ObjectMetadata loadObjectMetadata(String bucketName, String key) {
+		long begin = (metrics == null) ? 0 : metrics.begin(bucketName, S3Operation.HEAD);
+		boolean failed = true;
+
+		try{
+			ObjectMetadata objectMetadata = (requestHedger == null) ?
+					client.getObjectMetadata(bucketName, key) :
+					requestHedger.getObjectMetadata(bucketName, key);
+			failed = false;
+			return objectMetadata;
+		}catch (AmazonS3Exception e) {
+			// the non-exists object is not a failure.
+			failed = (e.getStatusCode() != 404);
+			throw e;
+		}finally{
+			if (metrics != null) {
+				metrics.end(bucketName, S3Operation.HEAD, begin, 0, failed);
+			}
+		}
+	}
+
+	/**
+	 * Check whether the bucket exists.
+	 *
+	 * @param bucketName
+	 * @return
+	 */
+	public boolean doesBucketExist(String bucketName) {
+		Long generation;
+
+		synchronized (buckets) {
+			Entry<Boolean> entry = buckets.get(bucketName);
+			if (entry != null && !entry.isExpired()) {
+				hitCount.incrementAndGet();
+				return entry.value;
+			}
+			generation = generationSequence.incrementAndGet();
+			bucketGenerations.put(bucketName, generation);
+		}
+
+		missCount.incrementAndGet();
+
+		boolean exist = false;
+		boolean loaded = false;
+		try{
+			exist = client.doesBucketExist(bucketName);
+			loaded = true;
+		}finally{
+			synchronized (buckets) {
+				if (bucketGenerations.remove(bucketName, generation) && loaded) {
+					buckets.put(bucketName, new Entry<Boolean>(exist, exist ? ttl : negativeTtl));
+				}
+			}
+		}
+
+		return exist;
+	}
+
+	/**
+	 * Remove the cached object metadata.
+	 *
+	 * @param bucketName
+	 * @param key
+	 */
+	public void invalidate(String bucketName, String key) {
+		if (requestCoalescer != null) {
+			requestCoalescer.invalidate(bucketName, key);
+		}
+
+		synchronized (objectMetadatas) {
+			String cacheKey = getCacheKey(bucketName, key);
+			objectMetadatas.remove(cacheKey);
+			objectGenerations.remove(cacheKey);
+		}
+	}
+
+	/**
+	 * Remove the cached bucket existence.
+	 *
+	 * @param bucketName
+	 */
+	public void invalidateBucket(String bucketName) {
+		synchronized (buckets) {
+			buckets.remove(bucketName);
+			bucketGenerations.remove(bucketName);
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	private ObjectMetadata copy(ObjectMetadata objectMetadata) {
+		return (objectMetadata == null) ? null : objectMetadata.clone();
+	}
+
+	private String getCacheKey(String bucketName, String key) {
+		return bucketName + "/" + key;
+	}
+
+	private static class Entry<T> {
+		private T value;
+		private long expireTime;
+
+		public Entry(T value, long ttl) {
+			this.value = value;
+			this.expireTime = System.currentTimeMillis() + ttl;
+		}
+
+		public boolean isExpired() {
+			return System.currentTimeMillis() >= expireTime;
+		}
+	}
+
+	private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int maxEntries;
+
+		public LruMap(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxEntries;
+		}
+	}
+}
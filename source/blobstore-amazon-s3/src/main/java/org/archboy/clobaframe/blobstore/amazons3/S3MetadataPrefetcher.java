@@ -0,0 +1,106 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Load the object metadata (i.e. the mime type and the user metadata)
+ * of a whole listing page with bounded concurrency, instead of one HEAD
+ * request per blob when it is accessed.
+ *
+ * @author yang
+ *
+ */
+public class S3MetadataPrefetcher {
+
+	private AmazonS3 client;
+	private S3MetadataCache metadataCache; // optional
+
+	private ExecutorService executorService;
+
+	private Logger logger = LoggerFactory.getLogger(S3MetadataPrefetcher.class);
+
+	/**
+	 *
+	 * @param client
+	 * @param concurrency The max number of HEAD requests sending at the same time.
+	 * @param metadataCache Optional.
+	 */
+	public S3MetadataPrefetcher(AmazonS3 client, int concurrency, S3MetadataCache metadataCache) {
+		Assert.notNull(client);
+		Assert.isTrue(concurrency > 0);
+
+		this.client = client;
+		this.metadataCache = metadataCache;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-metadata-");
+		threadFactory.setDaemon(true);
+		this.executorService = Executors.newFixedThreadPool(concurrency, threadFactory);
+	}
+
+	/**
+	 * Load the metadata and wait until all of them are done.
+	 *
+	 * The failed one is skipped, and it will be loaded again when it is accessed.
+	 *
+	 * @param infos
+	 */
+	public void prefetch(List<BlobResourceInfo> infos) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (BlobResourceInfo info : infos) {
+			if (info instanceof S3BlobResourceInfoBySummary) {
+				tasks.add(new PrefetchTask((S3BlobResourceInfoBySummary)info));
+			}
+		}
+
+		try{
+			executorService.invokeAll(tasks);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Shutdown the prefetch threads.
+	 */
+	public void close() {
+		executorService.shutdownNow();
+	}
+
+	private class PrefetchTask implements Callable<Void> {
+
+		private S3BlobResourceInfoBySummary info;
+
+		public PrefetchTask(S3BlobResourceInfoBySummary info) {
+			this.info = info;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			try{
+				ObjectMetadata objectMetadata = (metadataCache == null) ?
+						client.getObjectMetadata(info.getRepositoryName(), info.getKey()) :
+						metadataCache.getObjectMetadata(info.getRepositoryName(), info.getKey());
+
+				if (objectMetadata != null) {
+					info.setObjectMetadata(objectMetadata);
+				}
+			}catch(AmazonClientException e){
+				logger.debug("Prefetch metadata of blob [{}] failed, error: {}",
+						info.getKey(), e.getMessage());
+			}
+			return null;
+		}
+	}
+}
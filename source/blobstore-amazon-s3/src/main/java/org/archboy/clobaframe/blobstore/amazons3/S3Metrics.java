@@ -0,0 +1,256 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * The latency, throughput and error metrics of the blobstore operations
+ * of each repository, and the retry and connection pool metrics of the
+ * Amazon S3 client.
+ *
+ * The metrics are exposed by JMX under the domain {@link #JMX_DOMAIN}, and
+ * are forwarded to the {@link S3MetricsSink} if there is any.
+ *
+ * @author yang
+ *
+ */
+public class S3Metrics implements S3MetricsMBean {
+
+	public static final String JMX_DOMAIN = "org.archboy.clobaframe.blobstore.amazons3";
+
+	private boolean jmxEnabled;
+	private MBeanServer mbeanServer;
+	private List<ObjectName> objectNames = new ArrayList<ObjectName>();
+
+	private ConcurrentMap<String, S3OperationMetrics[]> repositories =
+			new ConcurrentHashMap<String, S3OperationMetrics[]>();
+
+	// the array is replaced when a sink is added, so it is iterated without lock.
+	private volatile S3MetricsSink[] sinks = new S3MetricsSink[0];
+
+	private LongAdder requestCount = new LongAdder();
+	private LongAdder retryCount = new LongAdder();
+	private volatile long poolLeased;
+	private volatile long poolPending;
+	private volatile long poolAvailable;
+	private AtomicLong maxPoolPending = new AtomicLong();
+
+	private RequestMetricCollector requestMetricCollector = new Collector();
+
+	private Logger logger = LoggerFactory.getLogger(S3Metrics.class);
+
+	/**
+	 *
+	 * @param jmxEnabled Register the MBeans to the platform MBean server.
+	 */
+	public S3Metrics(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+
+		if (jmxEnabled) {
+			mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			register(this, "type=Client");
+		}
+	}
+
+	public synchronized void addSink(S3MetricsSink sink) {
+		Assert.notNull(sink);
+
+		S3MetricsSink[] newSinks = Arrays.copyOf(sinks, sinks.length + 1);
+		newSinks[sinks.length] = sink;
+		sinks = newSinks;
+	}
+
+	/**
+	 * Get the collector that should be set to the Amazon S3 client, it
+	 * collects the retry and the connection pool metrics.
+	 *
+	 * @return
+	 */
+	public RequestMetricCollector getRequestMetricCollector() {
+		return requestMetricCollector;
+	}
+
+	/**
+	 * Mark the operation starts.
+	 *
+	 * @param repositoryName
+	 * @param operation
+	 * @return The start time that should be passed to {@link #end}.
+	 */
+	public long begin(String repositoryName, S3Operation operation) {
+		get(repositoryName, operation).begin();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Mark the operation ends.
+	 *
+	 * @param repositoryName
+	 * @param operation
+	 * @param begin The value returned by {@link #begin}.
+	 * @param bytes
+	 * @param failed
+	 */
+	public void end(String repositoryName, S3Operation operation,
+			long begin, long bytes, boolean failed) {
+		long latency = System.nanoTime() - begin;
+		get(repositoryName, operation).end(latency, bytes, failed);
+
+		S3MetricsSink[] currentSinks = sinks;
+		for (int idx = 0; idx < currentSinks.length; idx++) {
+			try{
+				currentSinks[idx].record(repositoryName, operation, latency, bytes, failed);
+			}catch(RuntimeException e){
+				logger.debug("Metrics sink fails, error: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param repositoryName
+	 * @param operation
+	 * @return
+	 */
+	public S3OperationMetrics get(String repositoryName, S3Operation operation) {
+		S3OperationMetrics[] metrics = repositories.get(repositoryName);
+		if (metrics == null) {
+			metrics = createRepositoryMetrics(repositoryName);
+		}
+		return metrics[operation.ordinal()];
+	}
+
+	@Override
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+
+	@Override
+	public long getRetryCount() {
+		return retryCount.sum();
+	}
+
+	@Override
+	public long getPoolLeased() {
+		return poolLeased;
+	}
+
+	@Override
+	public long getPoolPending() {
+		return poolPending;
+	}
+
+	@Override
+	public long getPoolAvailable() {
+		return poolAvailable;
+	}
+
+	@Override
+	public long getMaxPoolPending() {
+		return maxPoolPending.get();
+	}
+
+	/**
+	 * Unregister the MBeans.
+	 */
+	public synchronized void close() {
+		for (ObjectName objectName : objectNames) {
+			try{
+				mbeanServer.unregisterMBean(objectName);
+			}catch(JMException e){
+				logger.debug("Can not unregister the MBean [{}], error: {}",
+						objectName, e.getMessage());
+			}
+		}
+		objectNames.clear();
+	}
+
+	private synchronized S3OperationMetrics[] createRepositoryMetrics(String repositoryName) {
+		S3OperationMetrics[] metrics = repositories.get(repositoryName);
+		if (metrics != null) {
+			return metrics;
+		}
+
+		S3Operation[] operations = S3Operation.values();
+		metrics = new S3OperationMetrics[operations.length];
+		for (int idx = 0; idx < operations.length; idx++) {
+			metrics[idx] = new S3OperationMetrics();
+
+			if (jmxEnabled) {
+				register(metrics[idx], String.format("type=Operation,repository=%s,operation=%s",
+						ObjectName.quote(repositoryName), operations[idx].name()));
+			}
+		}
+
+		repositories.put(repositoryName, metrics);
+		return metrics;
+	}
+
+	private void register(Object mbean, String properties) {
+		try{
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":" + properties);
+			mbeanServer.registerMBean(mbean, objectName);
+			objectNames.add(objectName);
+		}catch(JMException e){
+			logger.warn("Can not register the MBean [{}], error: {}",
+					properties, e.getMessage());
+		}
+	}
+
+	private class Collector extends RequestMetricCollector {
+
+		@Override
+		public void collectMetrics(Request<?> request, Response<?> response) {
+			TimingInfo timingInfo = request.getAWSRequestMetrics().getTimingInfo();
+
+			// the counter is increased on every attempt, includes the retries.
+			Number attempts = timingInfo.getCounter(
+					AWSRequestMetrics.Field.RequestCount.name());
+			if (attempts != null && attempts.longValue() > 0) {
+				requestCount.add(attempts.longValue());
+				retryCount.add(attempts.longValue() - 1);
+			}
+
+			Number leased = timingInfo.getCounter(
+					AWSRequestMetrics.Field.HttpClientPoolLeasedCount.name());
+			if (leased != null) {
+				poolLeased = leased.longValue();
+			}
+
+			Number available = timingInfo.getCounter(
+					AWSRequestMetrics.Field.HttpClientPoolAvailableCount.name());
+			if (available != null) {
+				poolAvailable = available.longValue();
+			}
+
+			Number pending = timingInfo.getCounter(
+					AWSRequestMetrics.Field.HttpClientPoolPendingCount.name());
+			if (pending != null) {
+				long value = pending.longValue();
+				poolPending = value;
+
+				long max = maxPoolPending.get();
+				while (value > max && !maxPoolPending.compareAndSet(max, value)) {
+					max = maxPoolPending.get();
+				}
+			}
+		}
+	}
+}
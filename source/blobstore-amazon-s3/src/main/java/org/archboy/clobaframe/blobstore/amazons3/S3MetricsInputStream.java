@@ -0,0 +1,106 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Count the bytes that are actually read from the content stream, and
+ * end the operation metrics when the stream is closed.
+ *
+ * The latency covers the whole transfer, and the stream that is
+ * closed before the end reports the bytes read only.
+ *
+ * @author yang
+ *
+ */
+public class S3MetricsInputStream extends FilterInputStream {
+
+	private S3Metrics metrics;
+	private String repositoryName;
+	private S3Operation operation;
+	private long begin;
+
+	private long bytes;
+	private boolean failed;
+	private boolean closed;
+
+	/**
+	 *
+	 * @param in
+	 * @param metrics
+	 * @param repositoryName
+	 * @param operation
+	 * @param begin The value returned by {@link S3Metrics#begin}.
+	 */
+	public S3MetricsInputStream(InputStream in, S3Metrics metrics,
+			String repositoryName, S3Operation operation, long begin) {
+		super(in);
+		this.metrics = metrics;
+		this.repositoryName = repositoryName;
+		this.operation = operation;
+		this.begin = begin;
+	}
+
+	@Override
+	public int read() throws IOException {
+		try{
+			int b = super.read();
+			if (b >= 0) {
+				bytes++;
+			}
+			return b;
+		}catch(IOException e){
+			failed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		try{
+			int count = super.read(b, off, len);
+			if (count > 0) {
+				bytes += count;
+			}
+			return count;
+		}catch(IOException e){
+			failed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		try{
+			long count = super.skip(n);
+			if (count > 0) {
+				bytes += count;
+			}
+			return count;
+		}catch(IOException e){
+			failed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try{
+			super.close();
+		}finally{
+			metrics.end(repositoryName, operation, begin, bytes, failed);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+/**
+ * The JMX interface of {@link S3Metrics}, the client-wide metrics.
+ *
+ * @author yang
+ *
+ */
+public interface S3MetricsMBean {
+
+	/**
+	 *
+	 * @return The number of the HTTP requests that sent by the client, includes the retries.
+	 */
+	long getRequestCount();
+
+	/**
+	 *
+	 * @return The number of the retries that made by the client.
+	 */
+	long getRetryCount();
+
+	/**
+	 *
+	 * @return The number of the leased connections, sampled at the last request.
+	 */
+	long getPoolLeased();
+
+	/**
+	 *
+	 * @return The number of the requests waiting for connection, sampled at the last request.
+	 */
+	long getPoolPending();
+
+	/**
+	 *
+	 * @return The number of the idle connections, sampled at the last request.
+	 */
+	long getPoolAvailable();
+
+	/**
+	 *
+	 * @return The max number of the requests waiting for connection.
+	 */
+	long getMaxPoolPending();
+}
@@ -0,0 +1,25 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+/**
+ * Receive each measured operation, e.g. to forward them to the external
+ * monitoring system.
+ *
+ * The sink is called in the thread that performs the operation, so it
+ * should be fast and non-blocking.
+ *
+ * @author yang
+ *
+ */
+public interface S3MetricsSink {
+
+	/**
+	 *
+	 * @param repositoryName
+	 * @param operation
+	 * @param latency In nanosecond.
+	 * @param bytes The bytes of content that transferred, 0 for the operations without content.
+	 * @param failed
+	 */
+	void record(String repositoryName, S3Operation operation,
+			long latency, long bytes, boolean failed);
+}
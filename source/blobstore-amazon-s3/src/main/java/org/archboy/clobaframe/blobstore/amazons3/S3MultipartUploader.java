@@ -0,0 +1,429 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Upload the large blob by Amazon S3 multipart upload.
+ *
+ * The parts are read from the source stream one by one and uploaded
+ * concurrently, at most {@code concurrency} parts of each upload are
+ * held in memory at the same time. When the content is a re-openable
+ * {@link S3ContentSource}, each part is streamed from the source directly
+ * and reopened on retry, so nothing is held in memory.
+ *
+ * @author yang
+ *
+ */
+public class S3MultipartUploader {
+
+	/**
+	 * The minimum part size allowed by Amazon S3, except the last part.
+	 */
+	public static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	/**
+	 * The max number of parts of one upload allowed by Amazon S3.
+	 */
+	public static final int MAX_PARTS = 10000;
+
+	private static final long RETRY_INTERVAL = 500; // millisecond
+	private static final long MAX_RETRY_INTERVAL = 10 * 1000; // millisecond
+
+	private AmazonS3 client;
+	private long threshold;
+	private long partSize;
+	private int concurrency;
+	private int partRetries;
+	private S3Backoff backoff = new S3Backoff(RETRY_INTERVAL, MAX_RETRY_INTERVAL);
+	private S3ContentChecksum contentChecksum; // optional
+
+	private ExecutorService executorService;
+
+	private Logger logger = LoggerFactory.getLogger(S3MultipartUploader.class);
+
+	public S3MultipartUploader(AmazonS3 client, long threshold, long partSize,
+			int concurrency, int partRetries) {
+		Assert.notNull(client);
+		Assert.isTrue(partSize >= MIN_PART_SIZE, "The part size should not less than 5 MB.");
+		Assert.isTrue(concurrency > 0);
+
+		this.client = client;
+		this.threshold = threshold;
+		this.partSize = partSize;
+		this.concurrency = concurrency;
+		this.partRetries = partRetries;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-multipart-");
+		threadFactory.setDaemon(true);
+		this.executorService = Executors.newFixedThreadPool(concurrency, threadFactory);
+	}
+
+	public void setBackoff(S3Backoff backoff) {
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Send the "Content-MD5" of the parts, and record the part
+	 * size for verifying the ETag of the uploaded object.
+	 *
+	 * @param contentChecksum
+	 */
+	public void setContentChecksum(S3ContentChecksum contentChecksum) {
+		this.contentChecksum = contentChecksum;
+	}
+
+	/**
+	 * Check whether the blob should be uploaded by multipart upload.
+	 *
+	 * @param contentLength
+	 * @return
+	 */
+	public boolean isRequired(long contentLength) {
+		return threshold > 0 && contentLength >= threshold;
+	}
+
+	public long getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Upload the content, the uncompleted upload will be aborted when any
+	 * part fails after all retries.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param in The source stream, it will NOT be closed by this method.
+	 * @param contentLength -1 if the length is unknown, e.g. the compressed stream,
+	 *	the parts of the default size are read until the end of stream.
+	 * @param objectMetadata The object metadata without the content length.
+	 * @param cannedAcl Optional.
+	 * @param storageClass Optional.
+	 * @throws IOException
+	 */
+	public void upload(String bucketName, String key, InputStream in, long contentLength,
+			ObjectMetadata objectMetadata, CannedAccessControlList cannedAcl,
+			StorageClass storageClass) throws IOException {
+		Assert.notNull(in);
+		upload(bucketName, key, in, null, contentLength, objectMetadata, cannedAcl, storageClass);
+	}
+
+	/**
+	 * Upload the content from the re-openable source.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param source
+	 * @param objectMetadata The object metadata without the content length.
+	 * @param cannedAcl Optional.
+	 * @param storageClass Optional.
+	 * @throws IOException
+	 */
+	public void upload(String bucketName, String key, S3ContentSource source,
+			ObjectMetadata objectMetadata, CannedAccessControlList cannedAcl,
+			StorageClass storageClass) throws IOException {
+		Assert.notNull(source);
+		upload(bucketName, key, null, source, source.getContentLength(),
+				objectMetadata, cannedAcl, storageClass);
+	}
+
+	private void upload(String bucketName, String key, InputStream in, S3ContentSource source,
+			long contentLength, ObjectMetadata objectMetadata, CannedAccessControlList cannedAcl,
+			StorageClass storageClass) throws IOException {
+
+		long size = (contentLength < 0) ? partSize : getPartSize(contentLength);
+		if (contentChecksum != null) {
+			contentChecksum.preparePartSize(objectMetadata, size);
+		}
+
+		InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(
+				bucketName, key, objectMetadata);
+
+		if (cannedAcl != null) {
+			initRequest.setCannedACL(cannedAcl);
+		}
+
+		if (storageClass != null) {
+			initRequest.setStorageClass(storageClass);
+		}
+
+		String uploadId = null;
+		try{
+			uploadId = client.initiateMultipartUpload(initRequest).getUploadId();
+		}catch(AmazonClientException e){
+			throw new IOException(e);
+		}
+
+		Semaphore semaphore = new Semaphore(concurrency);
+		AtomicBoolean failed = new AtomicBoolean(false);
+		S3RunningParts runningParts = new S3RunningParts();
+		List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+		boolean completed = false;
+
+		try{
+			long position = 0;
+			int partNumber = 1;
+			boolean lastPart = (contentLength == 0);
+
+			while (!lastPart && !failed.get()) {
+				if (partNumber > MAX_PARTS) {
+					throw new IOException(String.format(
+							"Blob [%s] exceeds the max number of parts of multipart upload.", key));
+				}
+
+				int length = (int)((contentLength < 0) ? size : Math.min(size, contentLength - position));
+
+				// wait until there is a free slot, so the memory used by
+				// one upload is limited to (concurrency * partSize).
+				semaphore.acquire();
+
+				S3ContentSource partSource = source;
+				long partPosition = position;
+
+				if (source == null) {
+					byte[] data = new byte[length];
+					int count = length;
+					try{
+						if (contentLength < 0) {
+							count = IOUtils.read(in, data);
+						}else{
+							IOUtils.readFully(in, data);
+						}
+					}catch(IOException e){
+						semaphore.release();
+						throw e;
+					}
+
+					if (count < length) {
+						// the end of the stream of unknown length
+						if (count == 0 && partNumber > 1) {
+							semaphore.release();
+							break;
+						}
+
+						data = Arrays.copyOf(data, count);
+						length = count;
+						lastPart = true;
+					}
+
+					partSource = new S3ByteArrayContentSource(data);
+					partPosition = 0;
+				}
+
+				position += length;
+				if (contentLength >= 0) {
+					lastPart = (position == contentLength);
+				}
+
+				UploadPartRequest request = new UploadPartRequest()
+						.withBucketName(bucketName)
+						.withKey(key)
+						.withUploadId(uploadId)
+						.withPartNumber(partNumber)
+						.withPartSize(length)
+						.withLastPart(lastPart);
+
+				futures.add(executorService.submit(
+						new PartUploadTask(request, partSource, partPosition, objectMetadata,
+								semaphore, failed, runningParts)));
+
+				partNumber++;
+			}
+
+			List<PartETag> partETags = new ArrayList<PartETag>();
+			for (Future<PartETag> future : futures) {
+				partETags.add(future.get());
+			}
+
+			client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+					bucketName, key, uploadId, partETags));
+
+			completed = true;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format(
+					"Multipart upload of blob [%s] in the amazon s3 repository [%s] is interrupted.",
+					key, bucketName));
+		}catch(ExecutionException e){
+			throw new IOException(e.getCause());
+		}catch(AmazonClientException e){
+			throw new IOException(e);
+		}finally{
+			if (!completed) {
+				// interrupt the running parts and wait until they finish, otherwise
+				// the part that is uploaded after aborting will be left in the bucket.
+				for (Future<PartETag> future : futures) {
+					future.cancel(true);
+				}
+				runningParts.closeAndAwait();
+				abort(bucketName, key, uploadId);
+			}
+		}
+	}
+
+	/**
+	 * Shutdown the upload threads.
+	 */
+	public void close() {
+		executorService.shutdownNow();
+	}
+
+	/**
+	 * Abort the upload so that the uploaded parts will not be left in the bucket,
+	 * the failed request is retried as the part.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param uploadId
+	 */
+	private void abort(String bucketName, String key, String uploadId) {
+		// the interruption is deferred, the upload is aborted anyway.
+		boolean interrupted = Thread.interrupted();
+
+		int retry = 0;
+		while(true) {
+			try{
+				client.abortMultipartUpload(new AbortMultipartUploadRequest(
+						bucketName, key, uploadId));
+				break;
+			}catch(AmazonClientException e){
+				if (!S3Backoff.isRetryable(e) || retry >= partRetries) {
+					logger.error("Can not abort the multipart upload [{}] of blob [{}] in the amazon s3 repository [{}], error: {}",
+							new Object[]{uploadId, key, bucketName, e.getMessage()});
+					break;
+				}
+
+				retry++;
+				try{
+					backoff.sleep(retry);
+				}catch(InterruptedException ie){
+					interrupted = true;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Enlarge the part size when the number of parts exceeds the limit.
+	 *
+	 * @param contentLength
+	 * @return
+	 */
+	private long getPartSize(long contentLength) {
+		long minSize = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+		return Math.max(partSize, minSize);
+	}
+
+	private class PartUploadTask implements Callable<PartETag> {
+
+		private UploadPartRequest request;
+		private S3ContentSource source;
+		private long position;
+		private ObjectMetadata objectMetadata;
+		private Semaphore semaphore;
+		private AtomicBoolean failed;
+		private S3RunningParts runningParts;
+
+		public PartUploadTask(UploadPartRequest request, S3ContentSource source,
+				long position, ObjectMetadata objectMetadata, Semaphore semaphore,
+				AtomicBoolean failed, S3RunningParts runningParts) {
+			this.request = request;
+			this.source = source;
+			this.position = position;
+			this.objectMetadata = objectMetadata;
+			this.semaphore = semaphore;
+			this.failed = failed;
+			this.runningParts = runningParts;
+		}
+
+		@Override
+		public PartETag call() throws Exception {
+			if (!runningParts.enter()) {
+				semaphore.release();
+				throw new CancellationException("The multipart upload is aborted.");
+			}
+
+			try{
+				// the buffered part is digested as a whole, the part from the other
+				// source is digested while it is sent, i.e. the source is read once.
+				boolean digested = (contentChecksum != null && !(source instanceof S3ByteArrayContentSource));
+				if (contentChecksum != null && !digested) {
+					// it is computed by the upload thread rather than the reading thread.
+					contentChecksum.preparePart(request, ((S3ByteArrayContentSource)source).getData(),
+							(int)position, (int)request.getPartSize());
+				}
+
+				int retry = 0;
+				while(true) {
+					InputStream in = new S3ReopenableInputStream(
+							source, position, request.getPartSize());
+					S3DigestInputStream digestIn = null;
+					if (digested) {
+						digestIn = new S3DigestInputStream(in);
+						in = digestIn;
+					}
+
+					request.setInputStream(in);
+					try{
+						PartETag partETag = client.uploadPart(request).getPartETag();
+						if (digestIn != null) {
+							contentChecksum.verifyUpload(digestIn, partETag.getETag(),
+									objectMetadata, request.getBucketName(), request.getKey());
+						}
+						return partETag;
+					}catch(AmazonClientException e){
+						if (!S3Backoff.isRetryable(e) || retry >= partRetries) {
+							throw e;
+						}
+
+						retry++;
+						logger.warn("Upload part [{}] of blob [{}] failed, retry {}, error: {}",
+								new Object[]{request.getPartNumber(), request.getKey(), retry, e.getMessage()});
+						backoff.sleep(retry);
+					}finally{
+						IOUtils.closeQuietly(in);
+					}
+				}
+			}catch(Exception e){
+				failed.set(true);
+				throw e;
+			}finally{
+				source = null;
+				request.setInputStream(null);
+				semaphore.release();
+				runningParts.exit();
+			}
+		}
+	}
+}
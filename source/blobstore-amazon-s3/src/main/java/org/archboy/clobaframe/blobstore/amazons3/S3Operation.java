@@ -0,0 +1,40 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+/**
+ * The operations that are measured by {@link S3Metrics}.
+ *
+ * @author yang
+ *
+ */
+public enum S3Operation {
+
+	/**
+	 * Put object, including the multipart upload.
+	 */
+	PUT,
+
+	/**
+	 * Get the object content.
+	 */
+	GET,
+
+	/**
+	 * Get the object metadata.
+	 */
+	HEAD,
+
+	/**
+	 * List objects.
+	 */
+	LIST,
+
+	/**
+	 * Delete one or more objects.
+	 */
+	DELETE,
+
+	/**
+	 * Copy or move one or more objects by server-side copy.
+	 */
+	COPY
+}
@@ -0,0 +1,141 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of one operation of one repository.
+ *
+ * The latencies are counted in the base-2 logarithmic buckets (of microsecond),
+ * so the recording is lock-free and allocation-free, and the percentiles
+ * are approximate (within a factor of 2).
+ *
+ * @author yang
+ *
+ */
+public class S3OperationMetrics implements S3OperationMetricsMBean {
+
+	private static final int BUCKETS = 40;
+
+	private LongAdder count = new LongAdder();
+	private LongAdder errorCount = new LongAdder();
+	private LongAdder bytes = new LongAdder();
+	private LongAdder inFlight = new LongAdder();
+	private LongAdder totalLatency = new LongAdder(); // microsecond
+	private AtomicLong maxLatency = new AtomicLong(); // microsecond
+	private AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Mark the operation starts.
+	 */
+	public void begin() {
+		inFlight.increment();
+	}
+
+	/**
+	 * Mark the operation ends.
+	 *
+	 * @param latency In nanosecond.
+	 * @param bytes
+	 * @param failed
+	 */
+	public void end(long latency, long bytes, boolean failed) {
+		inFlight.decrement();
+		count.increment();
+
+		if (failed) {
+			errorCount.increment();
+		}
+
+		if (bytes > 0) {
+			this.bytes.add(bytes);
+		}
+
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(latency, 0));
+		totalLatency.add(micros);
+		histogram.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+
+		long max = maxLatency.get();
+		while (micros > max && !maxLatency.compareAndSet(max, micros)) {
+			max = maxLatency.get();
+		}
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+
+	@Override
+	public double getMeanLatency() {
+		long total = count.sum();
+		return (total == 0) ? 0 : totalLatency.sum() / 1000.0 / total;
+	}
+
+	@Override
+	public double getMaxLatency() {
+		return maxLatency.get() / 1000.0;
+	}
+
+	@Override
+	public double getLatency50() {
+		return getLatencyPercentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getLatency95() {
+		return getLatencyPercentile(95) / 1000.0;
+	}
+
+	@Override
+	public double getLatency99() {
+		return getLatencyPercentile(99) / 1000.0;
+	}
+
+	/**
+	 * Get the upper bound of the bucket that contains the percentile.
+	 *
+	 * @param percentile 0 to 100.
+	 * @return In microsecond.
+	 */
+	public long getLatencyPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int idx = 0; idx < BUCKETS; idx++) {
+			counts[idx] = histogram.get(idx);
+			total += counts[idx];
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long)Math.ceil(total * percentile / 100);
+		long sum = 0;
+		for (int idx = 0; idx < BUCKETS; idx++) {
+			sum += counts[idx];
+			if (sum >= rank && counts[idx] > 0) {
+				return Math.min((1L << idx) - 1, maxLatency.get());
+			}
+		}
+
+		return maxLatency.get();
+	}
+}
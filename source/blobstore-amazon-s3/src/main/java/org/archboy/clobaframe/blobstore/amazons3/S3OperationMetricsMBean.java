@@ -0,0 +1,48 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+/**
+ * The JMX interface of {@link S3OperationMetrics}.
+ *
+ * @author yang
+ *
+ */
+public interface S3OperationMetricsMBean {
+
+	long getCount();
+
+	long getErrorCount();
+
+	long getBytes();
+
+	long getInFlight();
+
+	/**
+	 *
+	 * @return In millisecond.
+	 */
+	double getMeanLatency();
+
+	/**
+	 *
+	 * @return In millisecond.
+	 */
+	double getMaxLatency();
+
+	/**
+	 *
+	 * @return The approximate median latency in millisecond.
+	 */
+	double getLatency50();
+
+	/**
+	 *
+	 * @return The approximate 95th percentile latency in millisecond.
+	 */
+	double getLatency95();
+
+	/**
+	 *
+	 * @return The approximate 99th percentile latency in millisecond.
+	 */
+	double getLatency99();
+}
@@ -0,0 +1,113 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceInfo;
+import org.springframework.util.Assert;
+
+/**
+ * The {@link BlobResourceInfo} of the blob that packed in the segment object,
+ * the content is read by the byte range of segment.
+ *
+ * @author yang
+ *
+ */
+public class S3PackedBlobResourceInfo extends AbstractBlobResourceInfo {
+
+	private String key;
+	private S3SegmentEntry entry;
+	private S3SegmentStore segmentStore;
+
+	public S3PackedBlobResourceInfo(String key, S3SegmentEntry entry,
+			S3SegmentStore segmentStore) {
+		this.key = key;
+		this.entry = entry;
+		this.segmentStore = segmentStore;
+	}
+
+	@Override
+	public String getRepositoryName() {
+		return segmentStore.getName();
+	}
+
+	@Override
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public long getContentLength() {
+		return entry.getLength();
+	}
+
+	@Override
+	public String getMimeType() {
+		return entry.getMimeType();
+	}
+
+	@Override
+	public Date getLastModified() {
+		return new Date(entry.getLastModified());
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return getContent(0, entry.getLength());
+	}
+
+	@Override
+	public InputStream getContent(long start, long length) throws IOException {
+		Assert.isTrue(start >= 0 && start <= entry.getLength());
+
+		int actualLength = (int)Math.min(length, entry.getLength() - start);
+
+		if (entry.isPending()) {
+			return new ByteArrayInputStream(entry.getContent(), (int)start, actualLength);
+		}
+
+		if (actualLength == 0) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		return segmentStore.getContent(entry, start, actualLength);
+	}
+
+	@Override
+	public boolean isSeekable() {
+		return true;
+	}
+
+	@Override
+	public Map<String, Object> getMetadata() {
+		Map<String, Object> metadata = entry.getMetadata();
+		if (metadata == null) {
+			return null;
+		}
+
+		Map<String, Object> meta = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> item : metadata.entrySet()) {
+			if (!S3ContentChecksum.isReserved(item.getKey())) {
+				meta.put(item.getKey(), item.getValue());
+			}
+		}
+		return meta.isEmpty() ? null : meta;
+	}
+
+	/**
+	 * Get the stored metadata, include the reserved ones, see
+	 * {@link S3ETaggedBlobResourceInfo#getUserMetadata(java.lang.String)}.
+	 *
+	 * @param name
+	 * @return NULL if it does not exist.
+	 */
+	public String getUserMetadata(String name) {
+		Map<String, Object> metadata = entry.getMetadata();
+		Object value = (metadata == null) ? null : metadata.get(name);
+		return (value == null) ? null : value.toString();
+	}
+}
@@ -0,0 +1,449 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.apache.commons.io.IOUtils;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceRepository;
+import org.springframework.util.Assert;
+
+/**
+ * The {@link BlobResourceRepository} that packs the small blobs into
+ * the segment objects by {@link S3SegmentStore}, to save the per-request
+ * latency and cost of the tiny blobs.
+ *
+ * The blobs that larger than the threshold, or public readable (the ACL is
+ * per object), are stored as the plain objects. The packed blob takes
+ * precedence over the plain object with the same key.
+ *
+ * The packed blob is copied to the segment store of the target repository,
+ * or it is unpacked to the plain object and then copied by the server-side
+ * copy if the target repository is not packed.
+ *
+ * @author yang
+ *
+ */
+public class S3PackedBlobResourceRepository extends AbstractBlobResourceRepository
+		implements S3ExtendedBlobResourceRepository {
+
+	private static final int PAGE_SIZE = 1000;
+
+	private S3BlobResourceRepository repository;
+	private S3SegmentStore segmentStore;
+	private long packThreshold;
+	private S3DirectorySync directorySync; // optional
+	private Function<String, S3SegmentStore> segmentStores; // optional
+
+	/**
+	 *
+	 * @param repository
+	 * @param segmentStore The segment store of the same bucket.
+	 * @param packThreshold The blobs not larger than this size are packed.
+	 */
+	public S3PackedBlobResourceRepository(S3BlobResourceRepository repository,
+			S3SegmentStore segmentStore, long packThreshold) {
+		Assert.notNull(repository);
+		Assert.notNull(segmentStore);
+		Assert.isTrue(packThreshold > 0 && packThreshold <= Integer.MAX_VALUE);
+
+		this.repository = repository;
+		this.segmentStore = segmentStore;
+		this.packThreshold = packThreshold;
+	}
+
+	public void setDirectorySync(S3DirectorySync directorySync) {
+		this.directorySync = directorySync;
+	}
+
+	/**
+	 * Set the segment stores of the other repositories, for copying
+	 * the blobs to them.
+	 *
+	 * @param segmentStores Get the segment store by the repository name.
+	 */
+	public void setSegmentStores(Function<String, S3SegmentStore> segmentStores) {
+		this.segmentStores = segmentStores;
+	}
+
+	@Override
+	public String getName() {
+		return repository.getName();
+	}
+
+	public S3SegmentStore getSegmentStore() {
+		return segmentStore;
+	}
+
+	@Override
+	public void put(BlobResourceInfo blobResourceInfo, boolean publicReadable, int priority) throws IOException {
+		Assert.notNull(blobResourceInfo);
+
+		long contentLength = blobResourceInfo.getContentLength();
+		if (!isPackable(contentLength, publicReadable)) {
+			repository.put(blobResourceInfo, publicReadable, priority);
+			segmentStore.delete(blobResourceInfo.getKey());
+			return;
+		}
+
+		segmentStore.put(blobResourceInfo.getKey(),
+				read(blobResourceInfo.getContent(), contentLength),
+				blobResourceInfo.getMimeType(),
+				blobResourceInfo.getMetadata());
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#put(java.lang.String, org.archboy.clobaframe.blobstore.amazons3.S3ContentSource, java.lang.String, java.util.Map, boolean, int)}.
+	 *
+	 * @param key
+	 * @param source
+	 * @param mimeType
+	 * @param metadata
+	 * @param publicReadable
+	 * @param priority
+	 * @throws IOException
+	 */
+	@Override
+	public void put(String key, S3ContentSource source, String mimeType,
+			Map<String, Object> metadata, boolean publicReadable, int priority) throws IOException {
+		Assert.notNull(key);
+		Assert.notNull(source);
+
+		long contentLength = source.getContentLength();
+		if (!isPackable(contentLength, publicReadable)) {
+			repository.put(key, source, mimeType, metadata, publicReadable, priority);
+			segmentStore.delete(key);
+			return;
+		}
+
+		segmentStore.put(key, read(source.open(0, contentLength), contentLength),
+				mimeType, metadata);
+	}
+
+	@Override
+	public BlobResourceInfo get(String key) {
+		Assert.notNull(key);
+
+		S3SegmentEntry entry = segmentStore.get(key);
+		if (entry != null) {
+			return new S3PackedBlobResourceInfo(key, entry, segmentStore);
+		}
+
+		return repository.get(key);
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		Assert.notNull(key);
+
+		segmentStore.delete(key);
+		repository.delete(key);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#delete(java.lang.Iterable)}.
+	 *
+	 * @param keys
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> delete(Iterable<String> keys) throws IOException {
+		Assert.notNull(keys);
+
+		// the keys may be generated lazily, iterate them once only.
+		List<String> keyList = new ArrayList<String>();
+		for (String key : keys) {
+			segmentStore.delete(key);
+			keyList.add(key);
+		}
+
+		return repository.delete(keyList);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#copy(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 */
+	@Override
+	public void copy(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException {
+		copy(sourceKey, targetRepositoryName, targetKey, publicReadable, false);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#move(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 */
+	@Override
+	public void move(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException {
+		copy(sourceKey, targetRepositoryName, targetKey, publicReadable, true);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#copyAll(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * The plain objects are copied concurrently, and then the packed blobs
+	 * are copied one by one.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> copyAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException {
+		return copyAll(sourcePrefix, targetRepositoryName, targetPrefix, publicReadable, false);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#moveAll(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> moveAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException {
+		return copyAll(sourcePrefix, targetRepositoryName, targetPrefix, publicReadable, true);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#sync(java.io.File, java.lang.String, java.io.File, boolean)}.
+	 *
+	 * @param directory
+	 * @param prefix
+	 * @param stateFile
+	 * @param deleteRemoved
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public S3SyncResult sync(File directory, String prefix, File stateFile,
+			boolean deleteRemoved) throws IOException {
+		Assert.state(directorySync != null, "The directory sync is not set.");
+		return directorySync.sync(this, directory, prefix, stateFile, deleteRemoved);
+	}
+
+	/**
+	 * Upload the pending segment, see {@link S3SegmentStore#flush()}.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		segmentStore.flush();
+	}
+
+	@Override
+	public PartialCollection<BlobResourceInfo> list() {
+		return list(null);
+	}
+
+	/**
+	 * List the blobs which key starts with the prefix.
+	 *
+	 * @param prefix Optional.
+	 * @return
+	 */
+	public PartialCollection<BlobResourceInfo> list(String prefix) {
+		return listPacked(prefix, null);
+	}
+
+	@Override
+	public PartialCollection<BlobResourceInfo> listNext(PartialCollection<BlobResourceInfo> prevCollection) {
+		Assert.isInstanceOf(S3PackedPartialArrayList.class, prevCollection);
+
+		S3PackedPartialArrayList collection = (S3PackedPartialArrayList)prevCollection;
+		if (collection.getMarker() != null) {
+			return listPacked(collection.getPrefix(), collection.getMarker());
+		}
+
+		return listPlain(new ArrayList<BlobResourceInfo>(), collection.getPrefix(),
+				repository.listNext(collection.getCollection()));
+	}
+
+	private PartialCollection<BlobResourceInfo> listPacked(String prefix, String marker) {
+		List<BlobResourceInfo> items = new ArrayList<BlobResourceInfo>();
+		String lastKey = null;
+
+		for (Map.Entry<String, S3SegmentEntry> entry : segmentStore.list(prefix, marker, PAGE_SIZE).entrySet()) {
+			items.add(new S3PackedBlobResourceInfo(entry.getKey(), entry.getValue(), segmentStore));
+			lastKey = entry.getKey();
+		}
+
+		if (items.size() == PAGE_SIZE) {
+			return new S3PackedPartialArrayList(items, prefix, lastKey, null, true);
+		}
+
+		// the packed blobs are listed completely, continue with the plain objects.
+		return listPlain(items, prefix, repository.list(prefix, null));
+	}
+
+	private PartialCollection<BlobResourceInfo> listPlain(List<BlobResourceInfo> items,
+			String prefix, PartialCollection<BlobResourceInfo> collection) {
+		for (BlobResourceInfo info : collection) {
+			// skip the segments and the plain objects that overridden by the packed blobs.
+			if (!info.getKey().startsWith(S3SegmentStore.SEGMENT_PREFIX) &&
+					segmentStore.get(info.getKey()) == null) {
+				items.add(info);
+			}
+		}
+
+		return new S3PackedPartialArrayList(items, prefix, null, collection, collection.hasMore());
+	}
+
+	private void copy(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable, boolean deleteSource) throws IOException {
+		Assert.notNull(sourceKey);
+		Assert.hasText(targetRepositoryName);
+		Assert.notNull(targetKey);
+
+		S3SegmentEntry entry = segmentStore.get(sourceKey);
+		if (entry != null) {
+			copyPacked(sourceKey, entry, targetRepositoryName, targetKey, publicReadable, deleteSource);
+			return;
+		}
+
+		if (deleteSource) {
+			repository.move(sourceKey, targetRepositoryName, targetKey, publicReadable);
+		}else{
+			repository.copy(sourceKey, targetRepositoryName, targetKey, publicReadable);
+		}
+
+		// the packed blob of the target key takes precedence over the copy.
+		S3SegmentStore targetSegmentStore = getSegmentStore(targetRepositoryName);
+		if (targetSegmentStore != null) {
+			targetSegmentStore.delete(targetKey);
+		}
+	}
+
+	private void copyPacked(String sourceKey, S3SegmentEntry entry, String targetRepositoryName,
+			String targetKey, boolean publicReadable, boolean deleteSource) throws IOException {
+		BlobResourceInfo source = new S3PackedBlobResourceInfo(sourceKey, entry, segmentStore);
+		byte[] content = read(source.getContent(), source.getContentLength());
+
+		S3SegmentStore targetSegmentStore = getSegmentStore(targetRepositoryName);
+		if (targetSegmentStore != null && isPackable(content.length, publicReadable)) {
+			targetSegmentStore.put(targetKey, content, source.getMimeType(), source.getMetadata());
+			if (deleteSource) {
+				// the plain object with the same key is deleted too.
+				delete(sourceKey);
+			}
+			return;
+		}
+
+		// unpack the blob to the plain object, then copy it by the server-side copy.
+		repository.put(sourceKey, new S3ByteArrayContentSource(content), source.getMimeType(),
+				source.getMetadata(), false, BlobResourceRepository.PRIORITY_DEFAULT);
+		segmentStore.delete(sourceKey);
+		copy(sourceKey, targetRepositoryName, targetKey, publicReadable, deleteSource);
+	}
+
+	private Map<String, String> copyAll(final String sourcePrefix, String targetRepositoryName,
+			final String targetPrefix, boolean publicReadable, boolean deleteSource) throws IOException {
+		Assert.notNull(sourcePrefix);
+		Assert.hasText(targetRepositoryName);
+		Assert.notNull(targetPrefix);
+
+		// the copied blobs would be listed again.
+		Assert.isTrue(!(getName().equals(targetRepositoryName) && targetPrefix.startsWith(sourcePrefix)),
+				"The target prefix should not be under the source prefix.");
+
+		final S3SegmentStore targetSegmentStore = getSegmentStore(targetRepositoryName);
+		final List<String> overriddenKeys = new ArrayList<String>();
+
+		// skip the segments and the plain objects that overridden by the packed blobs.
+		Map<String, String> failures = new HashMap<String, String>(repository.copyAll(
+				sourcePrefix, targetRepositoryName, targetPrefix, publicReadable, deleteSource,
+				key -> {
+					if (key.startsWith(S3SegmentStore.SEGMENT_PREFIX) || segmentStore.get(key) != null) {
+						return false;
+					}
+
+					if (targetSegmentStore != null && targetSegmentStore.get(
+							targetPrefix + key.substring(sourcePrefix.length())) != null) {
+						overriddenKeys.add(key);
+					}
+					return true;
+				}));
+
+		// the packed blobs of the target keys take precedence over the copies.
+		for (String key : overriddenKeys) {
+			if (!failures.containsKey(key)) {
+				targetSegmentStore.delete(targetPrefix + key.substring(sourcePrefix.length()));
+			}
+		}
+
+		String marker = null;
+		while (true) {
+			Map<String, S3SegmentEntry> entries = segmentStore.list(sourcePrefix, marker, PAGE_SIZE);
+			for (Map.Entry<String, S3SegmentEntry> entry : entries.entrySet()) {
+				String key = entry.getKey();
+				try{
+					copyPacked(key, entry.getValue(), targetRepositoryName,
+							targetPrefix + key.substring(sourcePrefix.length()),
+							publicReadable, deleteSource);
+				}catch(IOException e){
+					failures.put(key, e.getMessage());
+				}
+				marker = key;
+			}
+
+			if (entries.size() < PAGE_SIZE) {
+				break;
+			}
+		}
+
+		return failures;
+	}
+
+	/**
+	 *
+	 * @param repositoryName
+	 * @return NULL if the repository is not packed or its segment store is unknown.
+	 */
+	private S3SegmentStore getSegmentStore(String repositoryName) {
+		if (repositoryName.equals(getName())) {
+			return segmentStore;
+		}
+
+		return (segmentStores == null) ? null : segmentStores.apply(repositoryName);
+	}
+
+	private boolean isPackable(long contentLength, boolean publicReadable) {
+		return !publicReadable && contentLength > 0 && contentLength <= packThreshold;
+	}
+
+	private byte[] read(InputStream in, long contentLength) throws IOException {
+		try{
+			return IOUtils.toByteArray(in, contentLength);
+		}finally{
+			IOUtils.closeQuietly(in);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+
+/**
+ * The listing page of {@link S3PackedBlobResourceRepository}, the packed
+ * blobs are listed first and then the plain objects.
+ *
+ * @author yang
+ */
+public class S3PackedPartialArrayList
+		extends ArrayList<BlobResourceInfo>
+		implements PartialCollection<BlobResourceInfo> {
+
+	private static final long serialVersionUID = 1L;
+
+	private String prefix;
+	private String marker; // the last packed key, NULL if the packed blobs are listed completely
+	private PartialCollection<BlobResourceInfo> collection; // the page of plain objects
+	private boolean hasMore;
+
+	public S3PackedPartialArrayList(Collection<? extends BlobResourceInfo> c, String prefix,
+			String marker, PartialCollection<BlobResourceInfo> collection, boolean hasMore) {
+		super(c);
+		this.prefix = prefix;
+		this.marker = marker;
+		this.collection = collection;
+		this.hasMore = hasMore;
+	}
+
+	@Override
+	public boolean hasMore() {
+		return hasMore;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public String getMarker() {
+		return marker;
+	}
+
+	public PartialCollection<BlobResourceInfo> getCollection() {
+		return collection;
+	}
+}
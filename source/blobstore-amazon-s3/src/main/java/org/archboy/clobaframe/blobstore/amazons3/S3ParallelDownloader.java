@@ -0,0 +1,80 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Download the large blob content by several byte ranges in parallel.
+ *
+ * @author yang
+ *
+ */
+public class S3ParallelDownloader {
+
+	private static final long RETRY_INTERVAL = 500; // millisecond
+	private static final long MAX_RETRY_INTERVAL = 10 * 1000; // millisecond
+
+	private AmazonS3 client;
+	private long threshold;
+	private long rangeSize;
+	private int concurrency;
+	private int rangeRetries;
+	private S3Backoff backoff = new S3Backoff(RETRY_INTERVAL, MAX_RETRY_INTERVAL);
+
+	private ExecutorService executorService;
+
+	public S3ParallelDownloader(AmazonS3 client, long threshold, long rangeSize,
+			int concurrency, int rangeRetries) {
+		Assert.notNull(client);
+		Assert.isTrue(rangeSize > 0 && rangeSize <= Integer.MAX_VALUE);
+		Assert.isTrue(concurrency > 0);
+
+		this.client = client;
+		this.threshold = threshold;
+		this.rangeSize = rangeSize;
+		this.concurrency = concurrency;
+		this.rangeRetries = rangeRetries;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-download-");
+		threadFactory.setDaemon(true);
+		this.executorService = Executors.newFixedThreadPool(concurrency, threadFactory);
+	}
+
+	public void setBackoff(S3Backoff backoff) {
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Check whether the content should be downloaded in parallel.
+	 *
+	 * @param contentLength
+	 * @return
+	 */
+	public boolean isRequired(long contentLength) {
+		return threshold > 0 && contentLength >= threshold;
+	}
+
+	/**
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param eTag Optional.
+	 * @param contentLength
+	 * @return
+	 */
+	public InputStream open(String bucketName, String key, String eTag, long contentLength) {
+		return new S3ParallelInputStream(client, bucketName, key, eTag,
+				contentLength, rangeSize, concurrency, rangeRetries, backoff, executorService);
+	}
+
+	/**
+	 * Shutdown the download threads.
+	 */
+	public void close() {
+		executorService.shutdownNow();
+	}
+}
@@ -0,0 +1,259 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The input stream that downloads the object by several byte ranges
+ * in parallel, and returns the ranges in order.
+ *
+ * At most {@code readAhead} ranges are downloading or waiting for
+ * reading at the same time, so the memory used by one stream is
+ * limited to (readAhead + 1) * rangeSize.
+ *
+ * @author yang
+ *
+ */
+public class S3ParallelInputStream extends InputStream {
+
+	private AmazonS3 client;
+	private String bucketName;
+	private String key;
+	private String eTag;
+	private long contentLength;
+	private long rangeSize;
+	private int readAhead;
+	private int rangeRetries;
+	private S3Backoff backoff;
+	private ExecutorService executorService;
+
+	private long nextStart; // the start position of the next range to download
+	private LinkedList<Future<byte[]>> futures = new LinkedList<Future<byte[]>>();
+	private byte[] buffer;
+	private int position;
+	private boolean closed;
+
+	private Logger logger = LoggerFactory.getLogger(S3ParallelInputStream.class);
+
+	/**
+	 *
+	 * @param client
+	 * @param bucketName
+	 * @param key
+	 * @param eTag Optional, the ranges must match this ETag, so the stream
+	 *	fails rather than mixing two versions when the object is overwritten.
+	 * @param contentLength
+	 * @param rangeSize
+	 * @param readAhead
+	 * @param rangeRetries
+	 * @param backoff
+	 * @param executorService
+	 */
+	public S3ParallelInputStream(AmazonS3 client, String bucketName, String key,
+			String eTag, long contentLength, long rangeSize, int readAhead,
+			int rangeRetries, S3Backoff backoff, ExecutorService executorService) {
+		this.client = client;
+		this.bucketName = bucketName;
+		this.key = key;
+		this.eTag = eTag;
+		this.contentLength = contentLength;
+		this.rangeSize = rangeSize;
+		this.readAhead = readAhead;
+		this.rangeRetries = rangeRetries;
+		this.backoff = backoff;
+		this.executorService = executorService;
+
+		fill();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureBuffer()) {
+			return -1;
+		}
+
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		if (!ensureBuffer()) {
+			return -1;
+		}
+
+		int count = Math.min(len, buffer.length - position);
+		System.arraycopy(buffer, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (buffer == null) ? 0 : buffer.length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		buffer = null;
+
+		for (Future<byte[]> future : futures) {
+			future.cancel(true);
+		}
+		futures.clear();
+	}
+
+	/**
+	 * Make sure there are unread bytes in the buffer.
+	 *
+	 * @return false if reach the end of object.
+	 * @throws IOException
+	 */
+	private boolean ensureBuffer() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed.");
+		}
+
+		while (buffer == null || position >= buffer.length) {
+			if (futures.isEmpty()) {
+				return false;
+			}
+
+			Future<byte[]> future = futures.removeFirst();
+			fill();
+
+			buffer = get(future);
+			position = 0;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Submit the following ranges until the read-ahead limit is reached.
+	 */
+	private void fill() {
+		while (futures.size() < readAhead && nextStart < contentLength) {
+			long length = Math.min(rangeSize, contentLength - nextStart);
+			futures.add(executorService.submit(new RangeDownloadTask(nextStart, (int)length)));
+			nextStart += length;
+		}
+	}
+
+	private byte[] get(Future<byte[]> future) throws IOException {
+		try{
+			return future.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format(
+					"Download blob [%s] in the amazon s3 repository [%s] is interrupted.",
+					key, bucketName));
+		}catch(ExecutionException e){
+			close();
+
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}else{
+				throw new IOException(cause);
+			}
+		}
+	}
+
+	private class RangeDownloadTask implements Callable<byte[]> {
+
+		private long start;
+		private int length;
+
+		public RangeDownloadTask(long start, int length) {
+			this.start = start;
+			this.length = length;
+		}
+
+		@Override
+		public byte[] call() throws Exception {
+			int retry = 0;
+			while(true) {
+				try{
+					return download();
+				}catch(FileNotFoundException e){
+					throw e;
+				}catch(IOException e){
+					if (retry >= rangeRetries || !isRetryable(e)) {
+						throw e;
+					}
+
+					retry++;
+					logger.warn("Download range [{}] of blob [{}] failed, retry {}, error: {}",
+							new Object[]{start, key, retry, e.getMessage()});
+					backoff.sleep(retry);
+				}
+			}
+		}
+
+		private boolean isRetryable(IOException e) {
+			Throwable cause = e.getCause();
+			return !(cause instanceof AmazonClientException) ||
+					S3Backoff.isRetryable((AmazonClientException)cause);
+		}
+
+		private byte[] download() throws IOException {
+			GetObjectRequest request = new GetObjectRequest(bucketName, key);
+			request.setRange(start, start + length - 1); // both start and end byte are include.
+
+			if (eTag != null) {
+				request.withMatchingETagConstraint(eTag);
+			}
+
+			S3Object s3Object = null;
+			try{
+				s3Object = client.getObject(request);
+			}catch (AmazonS3Exception e) {
+				if (e.getStatusCode() == 404){
+					throw new FileNotFoundException(String.format(
+							"Blob object [%s] not found in the amazon s3 repository [%s].",
+							key, bucketName));
+				}else{
+					throw new IOException(e);
+				}
+			}catch (AmazonClientException e) {
+				throw new IOException(e);
+			}
+
+			if (s3Object == null) {
+				// the matching ETag constraint is not met.
+				throw new FileNotFoundException(String.format(
+						"Blob object [%s] in the amazon s3 repository [%s] has been changed while downloading.",
+						key, bucketName));
+			}
+
+			InputStream in = s3Object.getObjectContent();
+			try{
+				byte[] data = new byte[length];
+				IOUtils.readFully(in, data);
+				return data;
+			}finally{
+				IOUtils.closeQuietly(in);
+			}
+		}
+	}
+}
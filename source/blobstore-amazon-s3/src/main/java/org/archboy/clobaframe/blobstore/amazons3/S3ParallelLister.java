@@ -0,0 +1,266 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.springframework.util.Assert;
+
+/**
+ * List the large bucket in parallel.
+ *
+ * The keyspace is split into partitions, either by discovering the common
+ * prefixes (i.e. the "directories") level by level, or by the specified
+ * split keys. The partitions are listed concurrently and merged into one
+ * iterator by {@link S3PartitionedListingIterator}.
+ *
+ * @author yang
+ *
+ */
+public class S3ParallelLister {
+
+	// the prefix that has more objects than this directly is not expanded,
+	// so the flat "directory" is not listed into memory by the discovery.
+	private static final int MAX_DISCOVERED_OBJECTS = 10000;
+
+	private AmazonS3 client;
+	private ExecutorService executorService;
+	private int concurrency;
+	private int maxBufferedPages;
+
+	/**
+	 *
+	 * @param client
+	 * @param executorService The pool that lists the partitions, e.g. the ForkJoinPool.
+	 * @param concurrency The max number of the listing requests of each iterator.
+	 * @param maxBufferedPages The max number of the listed pages that are waiting
+	 *	for consuming of each iterator.
+	 */
+	public S3ParallelLister(AmazonS3 client, ExecutorService executorService,
+			int concurrency, int maxBufferedPages) {
+		Assert.notNull(client);
+		Assert.notNull(executorService);
+		Assert.isTrue(concurrency > 0);
+		Assert.isTrue(maxBufferedPages > 0);
+
+		this.client = client;
+		this.executorService = executorService;
+		this.concurrency = concurrency;
+		this.maxBufferedPages = maxBufferedPages;
+	}
+
+	/**
+	 * Split the keyspace by the common prefixes.
+	 *
+	 * The prefixes are expanded level by level until there are at least
+	 * the specified number of prefix partitions, or there is no deeper level.
+	 * The objects that are listed during the discovery are kept in
+	 * the partitions, so they are not listed again, and the prefix that
+	 * contains too many objects directly is not expanded.
+	 *
+	 * @param bucketName
+	 * @param prefix Optional.
+	 * @param delimiter E.g. "/".
+	 * @param minPartitions
+	 * @return The partitions in key order.
+	 */
+	public List<S3ListingPartition> partitionByDelimiter(final String bucketName,
+			String prefix, final String delimiter, int minPartitions) {
+		Assert.hasText(bucketName);
+		Assert.hasText(delimiter);
+
+		List<S3ListingPartition> partitions = Collections.singletonList(
+				new S3ListingPartition(prefix, null, null));
+
+		while (true) {
+			int prefixCount = 0;
+			for (S3ListingPartition partition : partitions) {
+				if (partition.getSummaries() == null) {
+					prefixCount++;
+				}
+			}
+
+			if (prefixCount == 0 || prefixCount >= minPartitions) {
+				return partitions;
+			}
+
+			// expand the prefixes of this level concurrently.
+			List<Future<List<S3ListingPartition>>> futures =
+					new ArrayList<Future<List<S3ListingPartition>>>();
+			for (final S3ListingPartition partition : partitions) {
+				if (partition.getSummaries() == null) {
+					futures.add(executorService.submit(new Callable<List<S3ListingPartition>>() {
+						@Override
+						public List<S3ListingPartition> call() throws Exception {
+							return expand(bucketName, partition.getPrefix(), delimiter);
+						}
+					}));
+				}else{
+					futures.add(null);
+				}
+			}
+
+			List<S3ListingPartition> expanded = new ArrayList<S3ListingPartition>();
+			boolean changed = false;
+			for (int idx = 0; idx < partitions.size(); idx++) {
+				Future<List<S3ListingPartition>> future = futures.get(idx);
+				List<S3ListingPartition> children = (future == null) ? null : get(future, futures);
+				if (children == null) {
+					expanded.add(partitions.get(idx));
+				}else{
+					expanded.addAll(children);
+					changed = true;
+				}
+			}
+
+			if (!changed) {
+				return partitions;
+			}
+
+			partitions = expanded;
+		}
+	}
+
+	/**
+	 * Split the keyspace by the key ranges, e.g. the split keys "4", "8" and "c"
+	 * for the hexadecimal keys, the range of each partition is (splitKey[n-1], splitKey[n]].
+	 *
+	 * @param prefix Optional.
+	 * @param splitKeys The split keys.
+	 * @return The partitions in key order.
+	 */
+	public List<S3ListingPartition> partitionByKeys(String prefix, List<String> splitKeys) {
+		Assert.notNull(splitKeys);
+
+		List<String> keys = new ArrayList<String>(splitKeys);
+		Collections.sort(keys);
+
+		List<S3ListingPartition> partitions = new ArrayList<S3ListingPartition>();
+		String startAfter = null;
+		for (String key : keys) {
+			if (!key.equals(startAfter)) {
+				partitions.add(new S3ListingPartition(prefix, startAfter, key));
+				startAfter = key;
+			}
+		}
+		partitions.add(new S3ListingPartition(prefix, startAfter, null));
+		return partitions;
+	}
+
+	/**
+	 * List the partitions concurrently.
+	 *
+	 * @param bucketName
+	 * @param partitions The partitions in key order.
+	 * @param ordered Whether to iterate the blobs in key order, otherwise the blobs
+	 *	are iterated as soon as they are listed.
+	 * @param converter Convert the object summary to the blob.
+	 * @return
+	 */
+	public S3PartitionedListingIterator iterate(String bucketName, List<S3ListingPartition> partitions,
+			boolean ordered, Function<S3ObjectSummary, BlobResourceInfo> converter) {
+		Assert.hasText(bucketName);
+		Assert.notNull(partitions);
+		Assert.notNull(converter);
+
+		return new S3PartitionedListingIterator(client, executorService, bucketName,
+				partitions, ordered, concurrency, maxBufferedPages, converter);
+	}
+
+	/**
+	 * List one level of the prefix, the objects and the common prefixes
+	 * are merged into the partitions in key order.
+	 *
+	 * @return NULL if the prefix contains too many objects directly.
+	 */
+	private List<S3ListingPartition> expand(String bucketName, String prefix, String delimiter) {
+		List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
+		List<String> commonPrefixes = new ArrayList<String>();
+
+		ObjectListing objectListing = client.listObjects(new ListObjectsRequest()
+				.withBucketName(bucketName)
+				.withPrefix(prefix)
+				.withDelimiter(delimiter));
+
+		while (true) {
+			summaries.addAll(objectListing.getObjectSummaries());
+			commonPrefixes.addAll(objectListing.getCommonPrefixes());
+
+			if (summaries.size() > MAX_DISCOVERED_OBJECTS) {
+				return null;
+			}
+
+			if (!objectListing.isTruncated()) {
+				break;
+			}
+
+			objectListing = client.listNextBatchOfObjects(objectListing);
+		}
+
+		Collections.sort(commonPrefixes);
+
+		List<S3ListingPartition> partitions = new ArrayList<S3ListingPartition>();
+		List<S3ObjectSummary> run = new ArrayList<S3ObjectSummary>();
+		int idx = 0;
+
+		for (String commonPrefix : commonPrefixes) {
+			while (idx < summaries.size() && summaries.get(idx).getKey().compareTo(commonPrefix) < 0) {
+				run.add(summaries.get(idx++));
+			}
+
+			if (!run.isEmpty()) {
+				partitions.add(new S3ListingPartition(run));
+				run = new ArrayList<S3ObjectSummary>();
+			}
+
+			partitions.add(new S3ListingPartition(commonPrefix, null, null));
+		}
+
+		while (idx < summaries.size()) {
+			run.add(summaries.get(idx++));
+		}
+
+		if (!run.isEmpty()) {
+			partitions.add(new S3ListingPartition(run));
+		}
+
+		return partitions;
+	}
+
+	private List<S3ListingPartition> get(Future<List<S3ListingPartition>> future,
+			List<Future<List<S3ListingPartition>>> futures) {
+		try{
+			return future.get();
+		}catch(InterruptedException e){
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Listing objects is interrupted.", e);
+		}catch(ExecutionException e){
+			cancel(futures);
+			Throwable cause = e.getCause();
+			if (cause instanceof AmazonClientException) {
+				throw (AmazonClientException)cause;
+			}else{
+				throw new AmazonClientException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	private void cancel(List<Future<List<S3ListingPartition>>> futures) {
+		for (Future<List<S3ListingPartition>> future : futures) {
+			if (future != null) {
+				future.cancel(true);
+			}
+		}
+	}
+}
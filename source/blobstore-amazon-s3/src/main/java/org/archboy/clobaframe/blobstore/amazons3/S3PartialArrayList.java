@@ -17,11 +17,25 @@ public class S3PartialArrayList<T>
 	
 	private ObjectListing objectListing;
 	private boolean hasMore;
+	private boolean prefetch;
 
 	public S3PartialArrayList(Collection<? extends T> c, ObjectListing objectListing, boolean hasMore) {
+		this(c, objectListing, hasMore, false);
+	}
+
+	/**
+	 *
+	 * @param c
+	 * @param objectListing
+	 * @param hasMore
+	 * @param prefetch Whether the metadata of the following pages is prefetched.
+	 */
+	public S3PartialArrayList(Collection<? extends T> c, ObjectListing objectListing,
+			boolean hasMore, boolean prefetch) {
 		super(c);
 		this.objectListing = objectListing;
 		this.hasMore = hasMore;
+		this.prefetch = prefetch;
 	}
 
 	@Override
@@ -32,4 +46,8 @@ public class S3PartialArrayList<T>
 	public ObjectListing getObjectListing() {
 		return objectListing;
 	}
+
+	public boolean isPrefetch() {
+		return prefetch;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,344 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+
+/**
+ * Iterate the partitions of bucket that are listed concurrently.
+ *
+ * Each listing task lists one page of a partition and then submits itself
+ * again for the next page, so the pool threads are never blocked by
+ * a slow consumer. The listed pages that are not consumed yet are limited,
+ * the listing is paused when the limit is reached, and it is resumed
+ * when the pages are consumed.
+ *
+ * In key order mode the partitions are consumed one by one, the following
+ * partitions are listed ahead within the page limit, and the consuming
+ * partition is always listed so the iterator never stalls. Otherwise
+ * the pages are consumed as soon as they are listed.
+ *
+ * @author yang
+ *
+ */
+public class S3PartitionedListingIterator implements Iterator<BlobResourceInfo>, Closeable {
+
+	private AmazonS3 client;
+	private ExecutorService executorService;
+	private boolean ordered;
+	private int concurrency;
+	private int maxBufferedPages;
+	private Function<S3ObjectSummary, BlobResourceInfo> converter;
+
+	private List<Partition> partitions = new ArrayList<Partition>();
+
+	// the consuming partition in key order mode, otherwise
+	// the first partition that is not finished.
+	private int head;
+
+	private Deque<Page> readyPages = new ArrayDeque<Page>(); // unordered mode only
+	private int runningCount;
+	private int bufferedPages; // includes the pages that are listing
+	private int finishedCount;
+	private AmazonClientException error;
+	private boolean closed;
+
+	private Iterator<S3ObjectSummary> items = Collections.<S3ObjectSummary>emptyList().iterator();
+
+	/**
+	 *
+	 * @param client
+	 * @param executorService
+	 * @param bucketName
+	 * @param partitions The partitions in key order.
+	 * @param ordered
+	 * @param concurrency
+	 * @param maxBufferedPages
+	 * @param converter
+	 */
+	public S3PartitionedListingIterator(AmazonS3 client, ExecutorService executorService,
+			String bucketName, List<S3ListingPartition> partitions, boolean ordered,
+			int concurrency, int maxBufferedPages,
+			Function<S3ObjectSummary, BlobResourceInfo> converter) {
+		this.client = client;
+		this.executorService = executorService;
+		this.ordered = ordered;
+		this.concurrency = concurrency;
+		this.maxBufferedPages = maxBufferedPages;
+		this.converter = converter;
+
+		for (S3ListingPartition partition : partitions) {
+			this.partitions.add(new Partition(bucketName, partition));
+		}
+
+		synchronized (this) {
+			schedule();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!items.hasNext()) {
+			List<S3ObjectSummary> page = takePage();
+			if (page == null) {
+				return false;
+			}
+			items = page.iterator();
+		}
+
+		return true;
+	}
+
+	@Override
+	public BlobResourceInfo next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		return converter.apply(items.next());
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Cancel the background listing, call this method when the iteration
+	 * is stopped before the end.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		cancel();
+		notifyAll();
+	}
+
+	private synchronized List<S3ObjectSummary> takePage() {
+		while (true) {
+			if (error != null) {
+				throw error;
+			}
+
+			if (closed) {
+				return null;
+			}
+
+			if (ordered) {
+				while (head < partitions.size()) {
+					Partition partition = partitions.get(head);
+					if (!partition.pages.isEmpty()) {
+						return release(partition.pages.poll());
+					}else if (partition.finished) {
+						head++;
+					}else{
+						break;
+					}
+				}
+
+				if (head == partitions.size()) {
+					return null;
+				}
+			}else{
+				if (!readyPages.isEmpty()) {
+					return release(readyPages.poll());
+				}
+
+				if (finishedCount == partitions.size()) {
+					return null;
+				}
+			}
+
+			// the consuming partition may be changed.
+			schedule();
+
+			try{
+				wait();
+			}catch(InterruptedException e){
+				close();
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException("Listing objects is interrupted.", e);
+			}
+		}
+	}
+
+	private List<S3ObjectSummary> release(Page page) {
+		if (page.reserved) {
+			bufferedPages--;
+			schedule();
+		}
+		return page.summaries;
+	}
+
+	/**
+	 * Submit the listing tasks within the concurrency and the page limit.
+	 */
+	private void schedule() {
+		if (closed || error != null) {
+			return;
+		}
+
+		if (!ordered) {
+			while (head < partitions.size() && partitions.get(head).finished) {
+				head++;
+			}
+		}
+
+		for (int idx = head; idx < partitions.size() && runningCount < concurrency; idx++) {
+			Partition partition = partitions.get(idx);
+			if (partition.running || partition.finished) {
+				continue;
+			}
+
+			if (bufferedPages >= maxBufferedPages && !(ordered && idx == head)) {
+				break;
+			}
+
+			partition.running = true;
+			runningCount++;
+			bufferedPages++;
+			partition.future = executorService.submit(partition);
+		}
+	}
+
+	private synchronized void onListed(Partition partition, List<S3ObjectSummary> summaries, boolean last) {
+		partition.running = false;
+		runningCount--;
+
+		if (closed) {
+			return;
+		}
+
+		if (summaries.isEmpty()) {
+			bufferedPages--;
+		}else{
+			Page page = new Page(summaries, true);
+			if (ordered) {
+				partition.pages.add(page);
+			}else{
+				readyPages.add(page);
+			}
+		}
+
+		if (last) {
+			partition.finished = true;
+			finishedCount++;
+		}
+
+		schedule();
+		notifyAll();
+	}
+
+	private synchronized void onFailed(Partition partition, RuntimeException e) {
+		partition.running = false;
+		runningCount--;
+
+		if (closed || error != null) {
+			return;
+		}
+
+		error = (e instanceof AmazonClientException) ? (AmazonClientException)e :
+				new AmazonClientException(e.getMessage(), e);
+		cancel();
+		notifyAll();
+	}
+
+	private void cancel() {
+		for (Partition partition : partitions) {
+			if (partition.running) {
+				partition.future.cancel(true);
+			}
+		}
+	}
+
+	private static class Page {
+		private List<S3ObjectSummary> summaries;
+		private boolean reserved; // whether it is counted in the page limit
+
+		public Page(List<S3ObjectSummary> summaries, boolean reserved) {
+			this.summaries = summaries;
+			this.reserved = reserved;
+		}
+	}
+
+	private class Partition implements Runnable {
+
+		private ListObjectsRequest request; // NULL if the partition is listed
+		private String endKey;
+
+		private Deque<Page> pages = new ArrayDeque<Page>(); // key order mode only
+		private boolean running;
+		private boolean finished;
+		private Future<?> future;
+
+		public Partition(String bucketName, S3ListingPartition partition) {
+			List<S3ObjectSummary> summaries = partition.getSummaries();
+			if (summaries != null) {
+				Page page = new Page(summaries, false);
+				if (ordered) {
+					pages.add(page);
+				}else{
+					readyPages.add(page);
+				}
+
+				finished = true;
+				finishedCount++;
+				return;
+			}
+
+			request = new ListObjectsRequest()
+					.withBucketName(bucketName)
+					.withPrefix(partition.getPrefix())
+					.withMarker(partition.getStartAfter());
+			endKey = partition.getEndKey();
+		}
+
+		@Override
+		public void run() {
+			List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
+			boolean last;
+
+			try{
+				ObjectListing objectListing = client.listObjects(request);
+				last = !objectListing.isTruncated();
+
+				for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+					if (endKey != null && summary.getKey().compareTo(endKey) > 0) {
+						last = true;
+						break;
+					}
+					summaries.add(summary);
+				}
+
+				// keep the marker only rather than the whole listing.
+				if (!last) {
+					String marker = objectListing.getNextMarker();
+					if (marker == null) {
+						List<S3ObjectSummary> listed = objectListing.getObjectSummaries();
+						marker = listed.get(listed.size() - 1).getKey();
+					}
+					request.setMarker(marker);
+				}
+			}catch(RuntimeException e){
+				onFailed(this, e);
+				return;
+			}
+
+			onListed(this, summaries, last);
+		}
+	}
+}
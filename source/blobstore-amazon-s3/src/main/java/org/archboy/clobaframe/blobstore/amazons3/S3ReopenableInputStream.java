@@ -0,0 +1,98 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The stream that supports mark/reset by reopening the {@link S3ContentSource}.
+ *
+ * The Amazon S3 client resets the request stream before retrying, it wraps
+ * the stream that does not support mark with a memory buffer, this stream
+ * avoids the buffer and makes the retry of large content possible.
+ *
+ * @author yang
+ *
+ */
+public class S3ReopenableInputStream extends InputStream {
+
+	private S3ContentSource source;
+	private long start;
+	private long length;
+
+	private InputStream in;
+	private long position; // relative to start
+	private long markPosition;
+
+	public S3ReopenableInputStream(S3ContentSource source, long start, long length) {
+		this.source = source;
+		this.start = start;
+		this.length = length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = getStream().read();
+		if (b != -1) {
+			position++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = getStream().read(b, off, len);
+		if (count > 0) {
+			position += count;
+		}
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long count = getStream().skip(n);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (in == null) ? 0 : in.available();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	/**
+	 * The read limit is ignored since the content is not buffered.
+	 *
+	 * @param readLimit
+	 */
+	@Override
+	public synchronized void mark(int readLimit) {
+		markPosition = position;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		close();
+		position = markPosition;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			InputStream current = in;
+			in = null;
+			current.close();
+		}
+	}
+
+	private InputStream getStream() throws IOException {
+		if (in == null) {
+			in = source.open(start + position, length - position);
+		}
+		return in;
+	}
+}
@@ -0,0 +1,157 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.util.Assert;
+
+/**
+ * Coalesce the concurrent identical requests (single-flight).
+ *
+ * The first caller of a key sends the request, the other callers that
+ * arrive before it completes wait for and share the same result (or error)
+ * rather than sending their own. Only the content not larger than the
+ * max size is shared, since it is held in memory.
+ *
+ * @author yang
+ *
+ */
+public class S3RequestCoalescer {
+
+	private long maxContentSize;
+
+	private ConcurrentMap<String, CompletableFuture<Object>> inFlights =
+			new ConcurrentHashMap<String, CompletableFuture<Object>>();
+
+	private AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 *
+	 * @param maxContentSize The max size of the shared content, in byte, 0 to
+	 *	coalesce the metadata requests only.
+	 */
+	public S3RequestCoalescer(long maxContentSize) {
+		Assert.isTrue(maxContentSize >= 0);
+		this.maxContentSize = maxContentSize;
+	}
+
+	/**
+	 * Check whether the content of the specified length can be shared.
+	 *
+	 * @param contentLength
+	 * @return
+	 */
+	public boolean isCoalescable(long contentLength) {
+		return contentLength >= 0 && contentLength <= maxContentSize;
+	}
+
+	/**
+	 * Get the object metadata with the shared HEAD request.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param loader Send the HEAD request.
+	 * @return A copy of the shared metadata, so each caller can modify it.
+	 */
+	public ObjectMetadata getObjectMetadata(String bucketName, String key,
+			Callable<ObjectMetadata> loader) {
+		try{
+			ObjectMetadata objectMetadata = execute(getMetadataRequestKey(bucketName, key), loader);
+			return (objectMetadata == null) ? null : objectMetadata.clone();
+		}catch(RuntimeException e){
+			throw e;
+		}catch(Exception e){
+			throw new AmazonClientException("Get object metadata failed.", e);
+		}
+	}
+
+	/**
+	 * Get the whole content of the specified version with the shared GET request.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param eTag
+	 * @param loader Send the GET request and read the content, it
+	 *	returns NULL if the object is changed.
+	 * @return NULL if the object is changed.
+	 * @throws IOException
+	 */
+	public byte[] getContent(String bucketName, String key, String eTag,
+			Callable<byte[]> loader) throws IOException {
+		try{
+			return execute(getContentRequestKey(bucketName, key, eTag), loader);
+		}catch(IOException | RuntimeException e){
+			throw e;
+		}catch(Exception e){
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Detach the in-flight metadata request of the object, the subsequent
+	 * callers do not share the result that may be loaded before the object
+	 * is changed.
+	 *
+	 * @param bucketName
+	 * @param key
+	 */
+	public void invalidate(String bucketName, String key) {
+		inFlights.remove(getMetadataRequestKey(bucketName, key));
+	}
+
+	/**
+	 * Get the number of the requests that share the result of another request.
+	 *
+	 * @return
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T execute(String requestKey, Callable<T> loader) throws Exception {
+		CompletableFuture<Object> future = new CompletableFuture<Object>();
+		CompletableFuture<Object> inFlight = inFlights.putIfAbsent(requestKey, future);
+
+		if (inFlight != null) {
+			coalescedCount.incrementAndGet();
+			try{
+				return (T)inFlight.get();
+			}catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				if (cause instanceof Error) {
+					throw (Error)cause;
+				}
+				throw (Exception)cause;
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw e;
+			}
+		}
+
+		try{
+			T result = loader.call();
+			future.complete(result);
+			return result;
+		}catch(Exception | Error e){
+			future.completeExceptionally(e);
+			throw e;
+		}finally{
+			inFlights.remove(requestKey, future);
+		}
+	}
+
+	private String getMetadataRequestKey(String bucketName, String key) {
+		return "HEAD " + bucketName + "/" + key;
+	}
+
+	private String getContentRequestKey(String bucketName, String key, String eTag) {
+		return "GET " + bucketName + "/" + key + " " + eTag;
+	}
+}
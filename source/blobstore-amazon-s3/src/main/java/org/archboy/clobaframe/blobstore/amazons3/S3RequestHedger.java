@@ -0,0 +1,364 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Send the hedged GET/HEAD requests to cut the tail latency.
+ *
+ * When the first request does not respond within the delay (the specified
+ * percentile of the recent latencies), a duplicate request is sent, the
+ * first response wins and the other one is cancelled. The retryable failed
+ * requests are retried with the capped exponential backoff.
+ *
+ * The requests are sent by a bounded thread pool, the request is sent
+ * by the calling thread without hedging when all threads are busy.
+ *
+ * @author yang
+ *
+ */
+public class S3RequestHedger {
+
+	private static final int SAMPLE_SIZE = 1024;
+	private static final int MIN_SAMPLES = 32;
+	private static final int UPDATE_INTERVAL = 64; // recompute the delay every N samples
+
+	private AmazonS3 client;
+	private int percentile;
+	private long minDelay; // millisecond
+	private long maxDelay; // millisecond
+	private int retries;
+	private S3Backoff backoff;
+
+	private ExecutorService executorService;
+
+	// the ring buffer of the recent latencies of all completed attempts,
+	// in millisecond, it is accessed with the lock of itself.
+	private final long[] samples = new long[SAMPLE_SIZE];
+	private int sampleCount;
+	private volatile long delay;
+
+	private AtomicLong hedgedCount = new AtomicLong();
+
+	private Logger logger = LoggerFactory.getLogger(S3RequestHedger.class);
+
+	/**
+	 *
+	 * @param client
+	 * @param percentile The percentile of the recent latencies, 1 to 99.
+	 * @param minDelay The lower bound of the hedging delay, in millisecond.
+	 * @param maxDelay The upper bound of the hedging delay, in millisecond.
+	 * @param retries The max number of retries of the retryable failed request.
+	 * @param backoff
+	 * @param maxThreads The max number of the concurrent attempts.
+	 */
+	public S3RequestHedger(AmazonS3 client, int percentile, long minDelay, long maxDelay,
+			int retries, S3Backoff backoff, int maxThreads) {
+		Assert.notNull(client);
+		Assert.isTrue(percentile > 0 && percentile < 100);
+		Assert.isTrue(minDelay >= 0 && maxDelay >= minDelay);
+		Assert.notNull(backoff);
+		Assert.isTrue(maxThreads > 0);
+
+		this.client = client;
+		this.percentile = percentile;
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		this.retries = retries;
+		this.backoff = backoff;
+		this.delay = maxDelay;
+
+		// the requests are blocking, the attempt is rejected rather than
+		// queued when all threads are busy.
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-hedge-");
+		threadFactory.setDaemon(true);
+		this.executorService = new ThreadPoolExecutor(0, maxThreads,
+				60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+	}
+
+	/**
+	 * The hedged and retried {@link AmazonS3#getObjectMetadata(java.lang.String, java.lang.String)}.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @return
+	 */
+	public ObjectMetadata getObjectMetadata(final String bucketName, final String key) {
+		return execute(new Callable<ObjectMetadata>() {
+			@Override
+			public ObjectMetadata call() throws Exception {
+				return client.getObjectMetadata(bucketName, key);
+			}
+		}, null);
+	}
+
+	/**
+	 * The hedged and retried {@link AmazonS3#getObject(com.amazonaws.services.s3.model.GetObjectRequest)},
+	 * the connection of the losing request is aborted.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public S3Object getObject(final GetObjectRequest request) {
+		return execute(new Callable<S3Object>() {
+			@Override
+			public S3Object call() throws Exception {
+				return client.getObject(request);
+			}
+		}, new Consumer<S3Object>() {
+			@Override
+			public void accept(S3Object s3Object) {
+				if (s3Object != null) {
+					s3Object.getObjectContent().abort();
+					IOUtils.closeQuietly(s3Object.getObjectContent());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Execute the request with hedging and retrying.
+	 *
+	 * @param request
+	 * @param discarder Optional, release the result of the losing request.
+	 * @return
+	 */
+	public <T> T execute(Callable<T> request, Consumer<T> discarder) {
+		int retry = 0;
+		while(true) {
+			try{
+				return hedge(request, discarder);
+			}catch(AmazonClientException e){
+				if (!S3Backoff.isRetryable(e) || retry >= retries) {
+					throw e;
+				}
+
+				retry++;
+				logger.debug("Request failed, retry {}, error: {}", retry, e.getMessage());
+
+				try{
+					backoff.sleep(retry);
+				}catch(InterruptedException ie){
+					Thread.currentThread().interrupt();
+					throw new AmazonClientException("Request is interrupted.", ie);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the current hedging delay.
+	 *
+	 * @return In millisecond.
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	/**
+	 * Get the number of the duplicate requests that have been sent.
+	 *
+	 * @return
+	 */
+	public long getHedgedCount() {
+		return hedgedCount.get();
+	}
+
+	/**
+	 * Shutdown the request threads.
+	 */
+	public void close() {
+		executorService.shutdownNow();
+	}
+
+	private <T> T hedge(Callable<T> request, Consumer<T> discarder) {
+		Attempts<T> attempts = new Attempts<T>(discarder);
+		Future<?> first;
+		Future<?> second = null;
+
+		try{
+			first = executorService.submit(new Attempt<T>(request, attempts));
+		}catch(RejectedExecutionException e){
+			return call(request);
+		}
+
+		try{
+			try{
+				return attempts.result.get(delay, TimeUnit.MILLISECONDS);
+			}catch(TimeoutException e){
+				// count the attempt before sending, so the failure of the first
+				// attempt does not fail the request while the second one is running.
+				if (attempts.launch()) {
+					try{
+						second = executorService.submit(new Attempt<T>(request, attempts));
+						hedgedCount.incrementAndGet();
+					}catch(RejectedExecutionException re){
+						// all threads are busy, wait for the first attempt only.
+						attempts.unlaunch();
+					}
+				}
+			}
+
+			return attempts.result.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Request is interrupted.", e);
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof AmazonClientException) {
+				throw (AmazonClientException)cause;
+			}else{
+				throw new AmazonClientException(cause.getMessage(), cause);
+			}
+		}finally{
+			// cancel the losing (or both when interrupted) request.
+			first.cancel(true);
+			if (second != null) {
+				second.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Send the request by the calling thread.
+	 *
+	 * @param request
+	 * @return
+	 */
+	private <T> T call(Callable<T> request) {
+		long begin = System.nanoTime();
+		try{
+			T value = request.call();
+			addSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+			return value;
+		}catch(AmazonClientException e){
+			throw e;
+		}catch(Exception e){
+			throw new AmazonClientException(e.getMessage(), e);
+		}
+	}
+
+	private void addSample(long latency) {
+		long[] sorted = null;
+		synchronized (samples) {
+			samples[sampleCount % SAMPLE_SIZE] = latency;
+			sampleCount++;
+
+			if (sampleCount >= MIN_SAMPLES && sampleCount % UPDATE_INTERVAL == 0) {
+				sorted = Arrays.copyOf(samples, Math.min(sampleCount, SAMPLE_SIZE));
+			}
+		}
+
+		if (sorted != null) {
+			Arrays.sort(sorted);
+			long value = sorted[(int)((sorted.length - 1) * percentile / 100L)];
+			delay = Math.max(minDelay, Math.min(maxDelay, value));
+		}
+	}
+
+	/**
+	 * The shared state of the attempts of one request.
+	 */
+	private static class Attempts<T> {
+		private CompletableFuture<T> result = new CompletableFuture<T>();
+		private Consumer<T> discarder;
+
+		// the counters are accessed with the lock of this object.
+		private int launched = 1;
+		private int failed;
+		private Throwable error;
+
+		public Attempts(Consumer<T> discarder) {
+			this.discarder = discarder;
+		}
+
+		/**
+		 * Count the hedged attempt before it is sent.
+		 *
+		 * @return FALSE if the request is completed already.
+		 */
+		public synchronized boolean launch() {
+			if (result.isDone()) {
+				return false;
+			}
+
+			launched++;
+			return true;
+		}
+
+		/**
+		 * Fail the request only when all launched attempts fail,
+		 * the hedged attempt may be still running.
+		 *
+		 * @param e
+		 */
+		public synchronized void fail(Throwable e) {
+			failed++;
+			error = e;
+			if (failed >= launched) {
+				result.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Uncount the hedged attempt that is not sent.
+		 */
+		public synchronized void unlaunch() {
+			launched--;
+			if (failed > 0 && failed >= launched) {
+				result.completeExceptionally(error);
+			}
+		}
+	}
+
+	private class Attempt<T> implements Runnable {
+
+		private Callable<T> request;
+		private Attempts<T> attempts;
+
+		public Attempt(Callable<T> request, Attempts<T> attempts) {
+			this.request = request;
+			this.attempts = attempts;
+		}
+
+		@Override
+		public void run() {
+			long begin = System.nanoTime();
+			try{
+				T value = request.call();
+
+				// sample the losing attempt too, otherwise the slow
+				// responses are never sampled once they are hedged.
+				addSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+
+				if (!attempts.result.complete(value) && attempts.discarder != null) {
+					// lose the race
+					attempts.discarder.accept(value);
+				}
+			}catch(Throwable e){
+				attempts.fail(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+/**
+ * Count the running part requests of one multipart upload (or copy),
+ * no part starts after it is closed.
+ *
+ * The upload is aborted only after the running parts finish, otherwise
+ * the part that completes after aborting will be left in the bucket.
+ *
+ * @author yang
+ *
+ */
+class S3RunningParts {
+
+	private int count;
+	private boolean closed;
+
+	/**
+	 *
+	 * @return FALSE if the upload is aborting, the part should not start.
+	 */
+	public synchronized boolean enter() {
+		if (closed) {
+			return false;
+		}
+
+		count++;
+		return true;
+	}
+
+	public synchronized void exit() {
+		count--;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until all running parts finish, the interruption is
+	 * deferred since the upload is aborted after this.
+	 */
+	public synchronized void closeAndAwait() {
+		closed = true;
+
+		boolean interrupted = false;
+		while (count > 0) {
+			try{
+				wait();
+			}catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.springframework.util.Assert;
+
+/**
+ * The read-only {@link SeekableByteChannel} of blob, for the random access
+ * readers such as the ZIP central directory and the columnar file footer.
+ *
+ * The content is read by the fixed-size aligned blocks, the recent blocks
+ * are held in an LRU cache so the small reads of the same block are served
+ * from memory. When the blocks are read sequentially, the following blocks
+ * are read ahead by the same ranged request, and the read-ahead size is
+ * doubled on each sequential miss, so the readers make only a few large
+ * ranged requests.
+ *
+ * The ETag of the {@link S3ETaggedBlobResourceInfo} is captured when the
+ * channel is opened, and each ranged request is sent with "If-Match", so the
+ * blocks of different versions are never mixed, the read fails with
+ * {@link IOException} once the blob is overwritten.
+ *
+ * @author yang
+ *
+ */
+public class S3SeekableByteChannel implements SeekableByteChannel {
+
+	public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+	public static final int DEFAULT_MAX_CACHED_BLOCKS = 64;
+	public static final int DEFAULT_MAX_READ_AHEAD_BLOCKS = 16;
+
+	private BlobResourceInfo blobResourceInfo;
+	private String eTag; // optional
+	private long size;
+	private int blockSize;
+	private int maxReadAheadBlocks;
+
+	private Map<Long, byte[]> blocks;
+	private long position;
+	private boolean open = true;
+
+	// the block index after the last fetched range, and the read-ahead
+	// blocks of the next sequential fetch.
+	private long nextBlockIndex = -1;
+	private int readAheadBlocks = 1;
+
+	private long requestCount;
+
+	public S3SeekableByteChannel(BlobResourceInfo blobResourceInfo) {
+		this(blobResourceInfo, DEFAULT_BLOCK_SIZE,
+				DEFAULT_MAX_CACHED_BLOCKS, DEFAULT_MAX_READ_AHEAD_BLOCKS);
+	}
+
+	/**
+	 *
+	 * @param blobResourceInfo The seekable blob, note that the content length
+	 *	of the compressed blob is the decoded length only if it is got by key.
+	 * @param blockSize The size of block, in byte.
+	 * @param maxCachedBlocks The max number of the cached blocks.
+	 * @param maxReadAheadBlocks The max number of the blocks of one ranged request.
+	 */
+	public S3SeekableByteChannel(BlobResourceInfo blobResourceInfo, int blockSize,
+			final int maxCachedBlocks, int maxReadAheadBlocks) {
+		Assert.notNull(blobResourceInfo);
+		Assert.isTrue(blobResourceInfo.isSeekable(), "The blob is not seekable.");
+		Assert.isTrue(blockSize > 0);
+		Assert.isTrue(maxCachedBlocks >= maxReadAheadBlocks && maxReadAheadBlocks > 0);
+
+		this.blobResourceInfo = blobResourceInfo;
+		this.size = blobResourceInfo.getContentLength();
+
+		if (blobResourceInfo instanceof S3ETaggedBlobResourceInfo) {
+			this.eTag = ((S3ETaggedBlobResourceInfo)blobResourceInfo).getETag();
+		}
+		this.blockSize = blockSize;
+		this.maxReadAheadBlocks = maxReadAheadBlocks;
+
+		this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > maxCachedBlocks;
+			}
+		};
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		checkOpen();
+
+		if (position >= size) {
+			return -1;
+		}
+
+		int count = 0;
+		while (dst.hasRemaining() && position < size) {
+			long blockIndex = position / blockSize;
+			byte[] block = getBlock(blockIndex);
+
+			int offset = (int)(position - blockIndex * blockSize);
+			int length = Math.min(dst.remaining(), block.length - offset);
+			dst.put(block, offset, length);
+
+			position += length;
+			count += length;
+		}
+
+		return count;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		checkOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		checkOpen();
+		Assert.isTrue(newPosition >= 0);
+
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		checkOpen();
+		return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		open = false;
+		blocks.clear();
+	}
+
+	/**
+	 *
+	 * @return The ETag of the version that is read, NULL if the reads are not
+	 *	tied to a version, e.g. the packed blob.
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 * Get the number of the ranged requests that have been sent.
+	 *
+	 * @return
+	 */
+	public synchronized long getRequestCount() {
+		return requestCount;
+	}
+
+	private byte[] getBlock(long blockIndex) throws IOException {
+		byte[] block = blocks.get(blockIndex);
+		if (block != null) {
+			return block;
+		}
+
+		readAheadBlocks = (blockIndex == nextBlockIndex) ?
+				Math.min(readAheadBlocks * 2, maxReadAheadBlocks) : 1;
+
+		// stop at the end of content and the cached block.
+		long lastBlockIndex = (size - 1) / blockSize;
+		int count = 1;
+		while (count < readAheadBlocks && blockIndex + count <= lastBlockIndex &&
+				!blocks.containsKey(blockIndex + count)) {
+			count++;
+		}
+
+		fetch(blockIndex, count);
+		nextBlockIndex = blockIndex + count;
+
+		return blocks.get(blockIndex);
+	}
+
+	private void fetch(long blockIndex, int count) throws IOException {
+		long start = blockIndex * blockSize;
+		long length = Math.min((long)count * blockSize, size - start);
+
+		requestCount++;
+		InputStream in = (eTag == null) ?
+				blobResourceInfo.getContent(start, length) :
+				((S3ETaggedBlobResourceInfo)blobResourceInfo).getContent(start, length, eTag);
+		try{
+			for (int idx = 0; idx < count; idx++) {
+				long blockStart = start + (long)idx * blockSize;
+				byte[] block = new byte[(int)Math.min(blockSize, size - blockStart)];
+
+				int read = IOUtils.read(in, block);
+				if (read < block.length) {
+					throw new EOFException(String.format(
+							"Unexpected end of blob [%s] at position %d.",
+							blobResourceInfo.getKey(), blockStart + read));
+				}
+
+				blocks.put(blockIndex + idx, block);
+			}
+		}finally{
+			in.close();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+}
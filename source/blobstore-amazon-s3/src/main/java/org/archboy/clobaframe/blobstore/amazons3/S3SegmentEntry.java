@@ -0,0 +1,104 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.Map;
+
+/**
+ * The location of the packed blob, i.e. the byte range of segment object.
+ *
+ * The entry that is not flushed yet holds the content in memory, and its
+ * offset is assigned when the segment is built.
+ *
+ * @author yang
+ *
+ */
+public class S3SegmentEntry {
+
+	private S3ObjectSummary segment; // NULL if it is not flushed
+	private byte[] content; // NULL if it is flushed
+	private int offset; // the offset in segment
+	private int length;
+	private String mimeType;
+	private long lastModified;
+	private Map<String, Object> metadata; // optional
+
+	/**
+	 * Create the pending entry.
+	 *
+	 * @param content
+	 * @param mimeType
+	 * @param lastModified
+	 * @param metadata
+	 */
+	public S3SegmentEntry(byte[] content, String mimeType,
+			long lastModified, Map<String, Object> metadata) {
+		this.content = content;
+		this.length = content.length;
+		this.mimeType = mimeType;
+		this.lastModified = lastModified;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Create the flushed entry.
+	 *
+	 * @param segment
+	 * @param offset
+	 * @param length
+	 * @param mimeType
+	 * @param lastModified
+	 * @param metadata
+	 */
+	public S3SegmentEntry(S3ObjectSummary segment, int offset, int length,
+			String mimeType, long lastModified, Map<String, Object> metadata) {
+		this.segment = segment;
+		this.offset = offset;
+		this.length = length;
+		this.mimeType = mimeType;
+		this.lastModified = lastModified;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Get the flushed entry which locates in the specified segment.
+	 *
+	 * @param segment
+	 * @param offset
+	 * @return
+	 */
+	public S3SegmentEntry flushTo(S3ObjectSummary segment, int offset) {
+		return new S3SegmentEntry(segment, offset, length, mimeType, lastModified, metadata);
+	}
+
+	public boolean isPending() {
+		return segment == null;
+	}
+
+	public S3ObjectSummary getSegment() {
+		return segment;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public Map<String, Object> getMetadata() {
+		return metadata;
+	}
+}
@@ -0,0 +1,771 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Pack the small blobs of one bucket into the large segment objects.
+ *
+ * The blobs are appended to the pending segment in memory, and the segment
+ * is uploaded (flushed) when it is full or by {@link #flush()}. Each segment
+ * object "_segments/{id}" has an index object "_segments/{id}.index" that
+ * records the key, offset and length of its blobs and the deleted keys
+ * (the tombstones). The index of all segments is loaded into memory by
+ * {@link #load()}, the later segment overrides the earlier one.
+ *
+ * The put and delete are durable after the segment is flushed, and the
+ * segments of a bucket should be written by one process only.
+ *
+ * The segments that most of its bytes are deleted or overwritten are
+ * rewritten by {@link #compact(double)}. The old segment objects are deleted
+ * by the next compaction once the flush of their relocated blobs succeeds,
+ * so the readers that hold the old location have time to finish.
+ *
+ * @author yang
+ *
+ */
+public class S3SegmentStore {
+
+	public static final String SEGMENT_PREFIX = "_segments/";
+	private static final String INDEX_SUFFIX = ".index";
+
+	private static final String ENTRY_FLAG = "+";
+	private static final String TOMBSTONE_FLAG = "-";
+
+	private S3BlobResourceRepository repository;
+	private long segmentSize;
+
+	// the flushed entries, it is modified with the lock of this object.
+	private ConcurrentSkipListMap<String, S3SegmentEntry> entries =
+			new ConcurrentSkipListMap<String, S3SegmentEntry>();
+	private ConcurrentSkipListMap<String, Segment> segments =
+			new ConcurrentSkipListMap<String, Segment>();
+	private List<Segment> retiredSegments = new ArrayList<Segment>();
+
+	private Buffer buffer = new Buffer(1);
+	private Buffer flushingBuffer;
+
+	// the generation of the last flushed buffer, the blobs that are put into
+	// the buffer of this or earlier generation are durable.
+	private long flushedGeneration;
+
+	private AtomicLong lastSegmentId = new AtomicLong();
+
+	private final Object flushLock = new Object();
+	private final Object compactLock = new Object();
+
+	private Logger logger = LoggerFactory.getLogger(S3SegmentStore.class);
+
+	/**
+	 *
+	 * @param repository
+	 * @param segmentSize The pending segment is flushed when its size exceeds this value.
+	 */
+	public S3SegmentStore(S3BlobResourceRepository repository, long segmentSize) {
+		Assert.notNull(repository);
+		Assert.isTrue(segmentSize > 0 && segmentSize <= Integer.MAX_VALUE);
+
+		this.repository = repository;
+		this.segmentSize = segmentSize;
+	}
+
+	public String getName() {
+		return repository.getName();
+	}
+
+	/**
+	 * Read the content of the packed blob by the byte range of its segment.
+	 *
+	 * @param entry The flushed entry.
+	 * @param start The position in the blob.
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream getContent(S3SegmentEntry entry, long start, long length) throws IOException {
+		return getSegmentObject(entry.getSegment()).getContent(entry.getOffset() + start, length);
+	}
+
+	/**
+	 * Load the index of all segments.
+	 *
+	 * @throws IOException
+	 */
+	public void load() throws IOException {
+		Map<String, S3ObjectSummary> dataObjects = new LinkedHashMap<String, S3ObjectSummary>();
+		List<S3ObjectSummary> indexObjects = new ArrayList<S3ObjectSummary>();
+
+		try{
+			S3ListingIterator iterator = repository.iterate(SEGMENT_PREFIX, null);
+			while (iterator.hasNext()) {
+				// the listed size, without loading the object metadata.
+				S3BlobResourceInfoBySummary info = (S3BlobResourceInfoBySummary)iterator.next();
+				S3ObjectSummary summary = createSummary(info.getKey(), info.getStoredContentLength());
+
+				if (info.getKey().endsWith(INDEX_SUFFIX)) {
+					indexObjects.add(summary);
+				}else{
+					dataObjects.put(info.getKey(), summary);
+				}
+			}
+		}catch(AmazonClientException e){
+			throw new IOException(e);
+		}
+
+		synchronized (compactLock) {
+			synchronized (this) {
+				// the listing is ordered by key, i.e. the segment id.
+				for (S3ObjectSummary indexObject : indexObjects) {
+					String segmentKey = indexObject.getKey().substring(
+							0, indexObject.getKey().length() - INDEX_SUFFIX.length());
+					S3ObjectSummary dataObject = dataObjects.remove(segmentKey);
+
+					if (dataObject == null) {
+						logger.warn("The data of segment [{}] in repository [{}] is missing.",
+								segmentKey, getName());
+						retiredSegments.add(new Segment(createSummary(segmentKey, 0)));
+						continue;
+					}
+
+					loadSegment(dataObject, indexObject);
+					updateSegmentId(segmentKey);
+				}
+
+				// the segment that its index is not written, e.g. the process is
+				// terminated while flushing.
+				for (S3ObjectSummary dataObject : dataObjects.values()) {
+					retiredSegments.add(new Segment(dataObject));
+					updateSegmentId(dataObject.getKey());
+				}
+
+				for (S3SegmentEntry entry : entries.values()) {
+					segments.get(entry.getSegment().getKey()).liveBytes.addAndGet(entry.getLength());
+				}
+			}
+		}
+
+		logger.info("Loaded {} blobs in {} segments of repository [{}].",
+				entries.size(), segments.size(), getName());
+	}
+
+	/**
+	 * Append the blob to the pending segment.
+	 *
+	 * @param key
+	 * @param content
+	 * @param mimeType
+	 * @param metadata Optional.
+	 * @throws IOException
+	 */
+	public void put(String key, byte[] content, String mimeType,
+			Map<String, Object> metadata) throws IOException {
+		Assert.notNull(key);
+		Assert.notNull(content);
+
+		boolean full;
+		synchronized (this) {
+			buffer.put(key, new S3SegmentEntry(content, mimeType,
+					System.currentTimeMillis(), metadata));
+			full = buffer.size >= segmentSize;
+		}
+
+		if (full) {
+			flush();
+		}
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return NULL if the blob is not packed.
+	 */
+	public S3SegmentEntry get(String key) {
+		synchronized (this) {
+			S3SegmentEntry entry = buffer.entries.get(key);
+			if (entry != null) {
+				return entry;
+			}
+
+			if (buffer.tombstones.contains(key)) {
+				return null;
+			}
+
+			if (flushingBuffer != null) {
+				entry = flushingBuffer.entries.get(key);
+				if (entry != null) {
+					return entry;
+				}
+			}
+		}
+
+		return entries.get(key);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return FALSE if the blob is not packed.
+	 */
+	public boolean delete(String key) {
+		synchronized (this) {
+			boolean pending = buffer.remove(key);
+			boolean flushing = (flushingBuffer != null && flushingBuffer.entries.containsKey(key));
+
+			S3SegmentEntry entry = entries.remove(key);
+			if (entry != null) {
+				release(entry);
+			}
+
+			if (entry != null || flushing) {
+				buffer.tombstones.add(key);
+			}
+
+			return pending || flushing || entry != null;
+		}
+	}
+
+	/**
+	 * List the packed blobs in key order.
+	 *
+	 * @param prefix Optional.
+	 * @param marker Optional, list the blobs after this key.
+	 * @param maxKeys
+	 * @return
+	 */
+	public Map<String, S3SegmentEntry> list(String prefix, String marker, int maxKeys) {
+		TreeMap<String, S3SegmentEntry> pendingEntries = new TreeMap<String, S3SegmentEntry>();
+
+		synchronized (this) {
+			if (flushingBuffer != null) {
+				for (Map.Entry<String, S3SegmentEntry> entry : flushingBuffer.entries.entrySet()) {
+					if (!buffer.tombstones.contains(entry.getKey())) {
+						pendingEntries.put(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+			pendingEntries.putAll(buffer.entries);
+		}
+
+		// the first N items of union are in the union of the first N items of each.
+		TreeMap<String, S3SegmentEntry> result = new TreeMap<String, S3SegmentEntry>();
+		collect(entries, prefix, marker, maxKeys, result);
+		collect(pendingEntries, prefix, marker, maxKeys, result);
+
+		while (result.size() > maxKeys) {
+			result.pollLastEntry();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Upload the pending segment.
+	 *
+	 * The pending blobs are kept in memory and uploaded by the next flush
+	 * if it fails.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		synchronized (flushLock) {
+			Buffer flushing;
+			synchronized (this) {
+				if (buffer.isEmpty()) {
+					flushedGeneration = buffer.generation;
+					return;
+				}
+
+				flushing = buffer;
+				flushingBuffer = flushing;
+				buffer = new Buffer(flushing.generation + 1);
+			}
+
+			Map<String, S3SegmentEntry> flushedEntries = new LinkedHashMap<String, S3SegmentEntry>();
+			Segment segment = null;
+
+			try{
+				segment = write(flushing, flushedEntries);
+			}finally{
+				synchronized (this) {
+					if (segment == null) {
+						buffer = Buffer.merge(flushing, buffer);
+					}else{
+						apply(segment, flushedEntries);
+						flushedGeneration = flushing.generation;
+					}
+					flushingBuffer = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the segments that the ratio of live bytes is less than the
+	 * specified value, and delete the segments that rewritten by the
+	 * previous compaction if their relocated blobs are flushed.
+	 *
+	 * @param minLiveRatio E.g. 0.5
+	 * @return The number of rewritten segments.
+	 * @throws IOException
+	 */
+	public int compact(double minLiveRatio) throws IOException {
+		synchronized (compactLock) {
+			deleteRetiredSegments();
+
+			List<Segment> candidates = new ArrayList<Segment>();
+			Map<String, Map<String, S3SegmentEntry>> liveEntries =
+					new HashMap<String, Map<String, S3SegmentEntry>>();
+
+			for (Segment segment : segments.values()) {
+				if (segment.dataBytes == 0 ?
+						!hasOlderSegment(segment) :
+						(double)segment.liveBytes.get() / segment.dataBytes < minLiveRatio) {
+					candidates.add(segment);
+					liveEntries.put(segment.getKey(), new LinkedHashMap<String, S3SegmentEntry>());
+				}
+			}
+
+			if (candidates.isEmpty()) {
+				return 0;
+			}
+
+			for (Map.Entry<String, S3SegmentEntry> entry : entries.entrySet()) {
+				Map<String, S3SegmentEntry> segmentEntries =
+						liveEntries.get(entry.getValue().getSegment().getKey());
+				if (segmentEntries != null) {
+					segmentEntries.put(entry.getKey(), entry.getValue());
+				}
+			}
+
+			for (Segment segment : candidates) {
+				Map<String, S3SegmentEntry> segmentEntries = liveEntries.get(segment.getKey());
+				if (!segmentEntries.isEmpty()) {
+					byte[] data = read(segment.summary);
+					for (Map.Entry<String, S3SegmentEntry> entry : segmentEntries.entrySet()) {
+						relocate(entry.getKey(), entry.getValue(), data);
+					}
+				}
+
+				synchronized (this) {
+					// the tombstones are still required if there are older segments.
+					if (hasOlderSegment(segment)) {
+						for (String key : segment.tombstones) {
+							if (!isLive(key)) {
+								buffer.tombstones.add(key);
+							}
+						}
+					}
+
+					// the relocated blobs are in the current buffer or flushed already.
+					segments.remove(segment.getKey());
+					segment.retiredGeneration = buffer.generation;
+					retiredSegments.add(segment);
+				}
+			}
+
+			flush();
+
+			logger.info("Compacted {} segments of repository [{}].", candidates.size(), getName());
+			return candidates.size();
+		}
+	}
+
+	/**
+	 * Get the number of flushed segments.
+	 *
+	 * @return
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Get the number of flushed blobs.
+	 *
+	 * @return
+	 */
+	public int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the size of the pending segment.
+	 *
+	 * @return
+	 */
+	public synchronized long getPendingSize() {
+		return buffer.size;
+	}
+
+	private void loadSegment(S3ObjectSummary dataObject, S3ObjectSummary indexObject) throws IOException {
+		Segment segment = new Segment(dataObject);
+
+		BufferedReader reader = null;
+		try{
+			reader = new BufferedReader(new InputStreamReader(
+					getSegmentObject(indexObject).getContent(), "UTF-8"));
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				String[] fields = line.split("\t", -1);
+				String key = decode(fields[1]);
+
+				if (TOMBSTONE_FLAG.equals(fields[0])) {
+					entries.remove(key);
+					segment.tombstones.add(key);
+				}else{
+					entries.put(key, new S3SegmentEntry(dataObject,
+							Integer.parseInt(fields[2]),
+							Integer.parseInt(fields[3]),
+							fields[5].isEmpty() ? null : decode(fields[5]),
+							Long.parseLong(fields[4]),
+							decodeMetadata(fields[6])));
+				}
+			}
+		}finally{
+			IOUtils.closeQuietly(reader);
+		}
+
+		segments.put(segment.getKey(), segment);
+	}
+
+	private Segment write(Buffer flushing, Map<String, S3SegmentEntry> flushedEntries) throws IOException {
+		String segmentKey = SEGMENT_PREFIX + String.format("%016d", lastSegmentId.incrementAndGet());
+		S3ObjectSummary summary = createSummary(segmentKey, flushing.size);
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream((int)flushing.size);
+		StringBuilder index = new StringBuilder();
+
+		// the tombstones go first, so the blob that put again after deleting wins.
+		for (String key : flushing.tombstones) {
+			index.append(TOMBSTONE_FLAG).append('\t').append(encode(key)).append('\n');
+		}
+
+		for (Map.Entry<String, S3SegmentEntry> entry : flushing.entries.entrySet()) {
+			S3SegmentEntry pendingEntry = entry.getValue();
+			int offset = data.size();
+			data.write(pendingEntry.getContent(), 0, pendingEntry.getLength());
+			flushedEntries.put(entry.getKey(), pendingEntry.flushTo(summary, offset));
+
+			index.append(ENTRY_FLAG).append('\t')
+					.append(encode(entry.getKey())).append('\t')
+					.append(offset).append('\t')
+					.append(pendingEntry.getLength()).append('\t')
+					.append(pendingEntry.getLastModified()).append('\t')
+					.append(pendingEntry.getMimeType() == null ? "" : encode(pendingEntry.getMimeType())).append('\t')
+					.append(encodeMetadata(pendingEntry.getMetadata())).append('\n');
+		}
+
+		// the index is written after the data, so the segment which has
+		// index is complete.
+		repository.put(segmentKey, new S3ByteArrayContentSource(data.toByteArray()),
+				"application/octet-stream", null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+		repository.put(segmentKey + INDEX_SUFFIX,
+				new S3ByteArrayContentSource(index.toString().getBytes("UTF-8")),
+				"text/plain", null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+
+		Segment segment = new Segment(summary);
+		segment.tombstones.addAll(flushing.tombstones);
+		return segment;
+	}
+
+	private void apply(Segment segment, Map<String, S3SegmentEntry> flushedEntries) {
+		segments.put(segment.getKey(), segment);
+
+		for (Map.Entry<String, S3SegmentEntry> entry : flushedEntries.entrySet()) {
+			String key = entry.getKey();
+
+			// skip the blob that deleted while flushing.
+			if (buffer.tombstones.contains(key) && !buffer.entries.containsKey(key)) {
+				continue;
+			}
+
+			S3SegmentEntry previous = entries.put(key, entry.getValue());
+			if (previous != null) {
+				release(previous);
+			}
+			segment.liveBytes.addAndGet(entry.getValue().getLength());
+		}
+	}
+
+	private void relocate(String key, S3SegmentEntry entry, byte[] data) throws IOException {
+		boolean full;
+		synchronized (this) {
+			// skip the blob that has been overwritten or deleted.
+			if (entries.get(key) != entry ||
+					buffer.entries.containsKey(key) ||
+					buffer.tombstones.contains(key) ||
+					(flushingBuffer != null && flushingBuffer.entries.containsKey(key))) {
+				return;
+			}
+
+			byte[] content = Arrays.copyOfRange(data,
+					entry.getOffset(), entry.getOffset() + entry.getLength());
+			buffer.put(key, new S3SegmentEntry(content, entry.getMimeType(),
+					entry.getLastModified(), entry.getMetadata()));
+			full = buffer.size >= segmentSize;
+		}
+
+		if (full) {
+			flush();
+		}
+	}
+
+	private S3BlobResourceInfoBySummary getSegmentObject(S3ObjectSummary summary) {
+		S3BlobResourceInfoBySummary info = repository.getBySummary(summary);
+		// the segments are never compressed, so the ranged read needs no HEAD request.
+		info.setEncodingExpected(false);
+		return info;
+	}
+
+		private byte[] read(S3ObjectSummary summary) throws IOException {
+		return IOUtils.toByteArray(getSegmentObject(summary).getContent());
+	}
+
+	private void deleteRetiredSegments() {
+		long generation;
+		synchronized (this) {
+			generation = flushedGeneration;
+		}
+
+		Iterator<Segment> iterator = retiredSegments.iterator();
+		while (iterator.hasNext()) {
+			Segment segment = iterator.next();
+			if (segment.retiredGeneration > generation) {
+				// the relocated blobs are not durable yet, e.g. the flush failed.
+				continue;
+			}
+
+			try{
+				// delete the index first, so the segment is never loaded partially.
+				repository.delete(segment.getKey() + INDEX_SUFFIX);
+				repository.delete(segment.getKey());
+				iterator.remove();
+			}catch(IOException e){
+				logger.warn("Delete segment [{}] of repository [{}] failed, error: {}",
+						segment.getKey(), getName(), e.getMessage());
+			}
+		}
+	}
+
+	private boolean hasOlderSegment(Segment segment) {
+		if (!segments.headMap(segment.getKey()).isEmpty()) {
+			return true;
+		}
+
+		for (Segment retiredSegment : retiredSegments) {
+			if (retiredSegment.getKey().compareTo(segment.getKey()) < 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isLive(String key) {
+		return entries.containsKey(key) ||
+				buffer.entries.containsKey(key) ||
+				(flushingBuffer != null && flushingBuffer.entries.containsKey(key));
+	}
+
+	private void release(S3SegmentEntry entry) {
+		Segment segment = segments.get(entry.getSegment().getKey());
+		if (segment != null) {
+			segment.liveBytes.addAndGet(-entry.getLength());
+		}
+	}
+
+	private void updateSegmentId(String segmentKey) {
+		try{
+			long id = Long.parseLong(segmentKey.substring(SEGMENT_PREFIX.length()));
+			if (id > lastSegmentId.get()) {
+				lastSegmentId.set(id);
+			}
+		}catch(NumberFormatException e){
+			// ignore the unknown object
+		}
+	}
+
+	private void collect(NavigableMap<String, S3SegmentEntry> source, String prefix,
+			String marker, int maxKeys, Map<String, S3SegmentEntry> result) {
+		NavigableMap<String, S3SegmentEntry> tail;
+		if (marker != null && (prefix == null || marker.compareTo(prefix) >= 0)) {
+			tail = source.tailMap(marker, false);
+		}else if (prefix != null) {
+			tail = source.tailMap(prefix, true);
+		}else{
+			tail = source;
+		}
+
+		int count = 0;
+		for (Map.Entry<String, S3SegmentEntry> entry : tail.entrySet()) {
+			if (count >= maxKeys || (prefix != null && !entry.getKey().startsWith(prefix))) {
+				break;
+			}
+			result.put(entry.getKey(), entry.getValue());
+			count++;
+		}
+	}
+
+	private S3ObjectSummary createSummary(String key, long size) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setBucketName(getName());
+		summary.setKey(key);
+		summary.setSize(size);
+		return summary;
+	}
+
+	static String encode(String value) throws UnsupportedEncodingException {
+		return URLEncoder.encode(value, "UTF-8");
+	}
+
+	static String decode(String value) throws UnsupportedEncodingException {
+		return URLDecoder.decode(value, "UTF-8");
+	}
+
+	static String encodeMetadata(Map<String, Object> metadata) throws UnsupportedEncodingException {
+		if (metadata == null || metadata.isEmpty()) {
+			return "";
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+			if (builder.length() > 0) {
+				builder.append('&');
+			}
+			builder.append(encode(entry.getKey())).append('=')
+					.append(encode(entry.getValue().toString()));
+		}
+		return builder.toString();
+	}
+
+	static Map<String, Object> decodeMetadata(String value) throws UnsupportedEncodingException {
+		if (value.isEmpty()) {
+			return null;
+		}
+
+		Map<String, Object> metadata = new HashMap<String, Object>();
+		for (String pair : value.split("&")) {
+			int pos = pair.indexOf('=');
+			metadata.put(decode(pair.substring(0, pos)), decode(pair.substring(pos + 1)));
+		}
+		return metadata;
+	}
+
+	private static class Segment {
+
+		private S3ObjectSummary summary;
+		private long dataBytes;
+		private AtomicLong liveBytes = new AtomicLong();
+		private Set<String> tombstones = new HashSet<String>();
+
+		// the generation of the buffer that holds the relocated blobs.
+		private long retiredGeneration;
+
+		public Segment(S3ObjectSummary summary) {
+			this.summary = summary;
+			this.dataBytes = summary.getSize();
+		}
+
+		public String getKey() {
+			return summary.getKey();
+		}
+	}
+
+	/**
+	 * The pending segment.
+	 */
+	private static class Buffer {
+
+		private long generation;
+		private Map<String, S3SegmentEntry> entries = new LinkedHashMap<String, S3SegmentEntry>();
+		private Set<String> tombstones = new LinkedHashSet<String>();
+		private long size;
+
+		public Buffer(long generation) {
+			this.generation = generation;
+		}
+
+		public void put(String key, S3SegmentEntry entry) {
+			S3SegmentEntry previous = entries.put(key, entry);
+			if (previous != null) {
+				size -= previous.getLength();
+			}
+			size += entry.getLength();
+		}
+
+		/**
+		 *
+		 * @param key
+		 * @return TRUE if the entry is removed.
+		 */
+		public boolean remove(String key) {
+			S3SegmentEntry entry = entries.remove(key);
+			if (entry == null) {
+				return false;
+			}
+
+			size -= entry.getLength();
+			return true;
+		}
+
+		public boolean isEmpty() {
+			return entries.isEmpty() && tombstones.isEmpty();
+		}
+
+		/**
+		 * Merge the failed flushing segment and the pending segment.
+		 *
+		 * @param older
+		 * @param newer
+		 * @return The buffer of the newer generation.
+		 */
+		public static Buffer merge(Buffer older, Buffer newer) {
+			Buffer merged = new Buffer(newer.generation);
+			merged.tombstones.addAll(older.tombstones);
+			merged.tombstones.addAll(newer.tombstones);
+
+			for (Map.Entry<String, S3SegmentEntry> entry : older.entries.entrySet()) {
+				if (!newer.tombstones.contains(entry.getKey())) {
+					merged.put(entry.getKey(), entry.getValue());
+				}
+			}
+
+			for (Map.Entry<String, S3SegmentEntry> entry : newer.entries.entrySet()) {
+				merged.put(entry.getKey(), entry.getValue());
+			}
+
+			return merged;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * The pending operation of the write-behind spool, i.e. the blob that
+ * is waiting for uploading, or the blob that is waiting for deleting.
+ *
+ * @author yang
+ *
+ */
+public class S3SpoolEntry {
+
+	private long id;
+	private String repositoryName;
+	private String key;
+	private File file; // NULL if it is the deletion
+	private long contentLength;
+	private String mimeType;
+	private long lastModified;
+	private Map<String, Object> metadata; // optional
+	private boolean publicReadable;
+	private int priority;
+
+	/**
+	 * Create the deletion entry.
+	 *
+	 * @param id
+	 * @param repositoryName
+	 * @param key
+	 * @param lastModified
+	 */
+	public S3SpoolEntry(long id, String repositoryName, String key, long lastModified) {
+		this.id = id;
+		this.repositoryName = repositoryName;
+		this.key = key;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Create the upload entry.
+	 *
+	 * @param id
+	 * @param repositoryName
+	 * @param key
+	 * @param file The spooled content.
+	 * @param contentLength
+	 * @param mimeType
+	 * @param lastModified
+	 * @param metadata
+	 * @param publicReadable
+	 * @param priority
+	 */
+	public S3SpoolEntry(long id, String repositoryName, String key,
+			File file, long contentLength, String mimeType, long lastModified,
+			Map<String, Object> metadata, boolean publicReadable, int priority) {
+		this.id = id;
+		this.repositoryName = repositoryName;
+		this.key = key;
+		this.file = file;
+		this.contentLength = contentLength;
+		this.mimeType = mimeType;
+		this.lastModified = lastModified;
+		this.metadata = metadata;
+		this.publicReadable = publicReadable;
+		this.priority = priority;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getRepositoryName() {
+		return repositoryName;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public boolean isDeletion() {
+		return file == null;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public Map<String, Object> getMetadata() {
+		return metadata;
+	}
+
+	public boolean isPublicReadable() {
+		return publicReadable;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+}
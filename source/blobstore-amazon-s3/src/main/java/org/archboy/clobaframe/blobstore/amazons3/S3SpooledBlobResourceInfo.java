@@ -0,0 +1,115 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceInfo;
+
+/**
+ * The {@link BlobResourceInfo} of the blob that is pending in the
+ * write-behind spool, the content is read from the spooled file.
+ *
+ * The spooled file is removed once the blob is uploaded, the content
+ * is then read from the target repository.
+ *
+ * @author yang
+ *
+ */
+public class S3SpooledBlobResourceInfo extends AbstractBlobResourceInfo {
+
+	private S3SpoolEntry entry;
+	private BlobResourceRepository repository; // optional
+
+	/**
+	 *
+	 * @param entry
+	 * @param repository Optional, the target repository of the blob.
+	 */
+	public S3SpooledBlobResourceInfo(S3SpoolEntry entry, BlobResourceRepository repository) {
+		this.entry = entry;
+		this.repository = repository;
+	}
+
+	@Override
+	public String getRepositoryName() {
+		return entry.getRepositoryName();
+	}
+
+	@Override
+	public String getKey() {
+		return entry.getKey();
+	}
+
+	@Override
+	public long getContentLength() {
+		return entry.getContentLength();
+	}
+
+	@Override
+	public String getMimeType() {
+		return entry.getMimeType();
+	}
+
+	@Override
+	public Date getLastModified() {
+		return new Date(entry.getLastModified());
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return getContent(0, entry.getContentLength());
+	}
+
+	@Override
+	public InputStream getContent(long start, long length) throws IOException {
+		FileChannel channel;
+		try{
+			channel = FileChannel.open(entry.getFile().toPath(), StandardOpenOption.READ);
+		}catch(NoSuchFileException e){
+			return getUploadedContent(start, length);
+		}
+
+		try{
+			channel.position(start);
+		}catch(IOException e){
+			channel.close();
+			throw e;
+		}
+
+		return new BoundedInputStream(Channels.newInputStream(channel), length);
+	}
+
+	private InputStream getUploadedContent(long start, long length) throws IOException {
+		BlobResourceInfo blobResourceInfo = (repository == null) ? null :
+				repository.get(entry.getKey());
+
+		if (blobResourceInfo == null) {
+			throw new FileNotFoundException(String.format(
+					"Blob [%s] not found in the spool of repository [%s].",
+					entry.getKey(), entry.getRepositoryName()));
+		}
+
+		return (start == 0 && length == entry.getContentLength()) ?
+				blobResourceInfo.getContent() :
+				blobResourceInfo.getContent(start, length);
+	}
+
+	@Override
+	public boolean isSeekable() {
+		return true;
+	}
+
+	@Override
+	public Map<String, Object> getMetadata() {
+		return entry.getMetadata();
+	}
+}
@@ -0,0 +1,63 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.util.Map;
+
+/**
+ * The result of synchronizing the local directory to the repository.
+ *
+ * @author yang
+ *
+ */
+public class S3SyncResult {
+
+	private int uploadedCount;
+	private int deletedCount;
+	private int unchangedCount;
+	private int hashedCount;
+	private Map<String, String> failures;
+
+	public S3SyncResult(int uploadedCount, int deletedCount, int unchangedCount,
+			int hashedCount, Map<String, String> failures) {
+		this.uploadedCount = uploadedCount;
+		this.deletedCount = deletedCount;
+		this.unchangedCount = unchangedCount;
+		this.hashedCount = hashedCount;
+		this.failures = failures;
+	}
+
+	public int getUploadedCount() {
+		return uploadedCount;
+	}
+
+	public int getDeletedCount() {
+		return deletedCount;
+	}
+
+	public int getUnchangedCount() {
+		return unchangedCount;
+	}
+
+	/**
+	 * Get the number of the local files that are read for comparing
+	 * with the existing blobs, i.e. they are not found in the state file.
+	 *
+	 * @return
+	 */
+	public int getHashedCount() {
+		return hashedCount;
+	}
+
+	/**
+	 *
+	 * @return The keys that fail to upload or delete and the error messages.
+	 */
+	public Map<String, String> getFailures() {
+		return failures;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("uploaded: %d, deleted: %d, unchanged: %d, hashed: %d, failed: %d",
+				uploadedCount, deletedCount, unchangedCount, hashedCount, failures.size());
+	}
+}
@@ -0,0 +1,238 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import org.springframework.util.Assert;
+
+/**
+ * Schedule the uploads of one repository by the priority, and shape
+ * the aggregate upload bandwidth.
+ *
+ * The number of the concurrent uploads is limited, the waiting upload
+ * with higher priority starts first. The content of the uploads is read
+ * through a token bucket, and the bytes are granted to the higher priority
+ * upload first when the bandwidth is contended, so the bulk uploads do not
+ * starve the user-facing ones.
+ *
+ * @author yang
+ *
+ */
+public class S3UploadScheduler {
+
+	private static final int MAX_READ_SIZE = 64 * 1024;
+
+	private int maxConcurrency;
+	private long maxBandwidth; // byte per second
+
+	// the slots of concurrent uploads.
+	private int running;
+	private PriorityQueue<Waiter> slotWaiters = new PriorityQueue<Waiter>();
+
+	// the token bucket, the tokens may be negative (borrowed) after
+	// a large read, the borrowed tokens are paid back by the refilling.
+	private double tokens;
+	private long refillTime = System.nanoTime();
+	private PriorityQueue<Waiter> tokenWaiters = new PriorityQueue<Waiter>();
+
+	private long sequence;
+
+	/**
+	 *
+	 * @param maxConcurrency The max number of the concurrent uploads, 0 for unlimited.
+	 * @param maxBandwidth The max aggregate bandwidth in byte per second, 0 for unlimited.
+	 */
+	public S3UploadScheduler(int maxConcurrency, long maxBandwidth) {
+		Assert.isTrue(maxConcurrency >= 0);
+		Assert.isTrue(maxBandwidth >= 0);
+
+		this.maxConcurrency = maxConcurrency;
+		this.maxBandwidth = maxBandwidth;
+		this.tokens = maxBandwidth;
+	}
+
+	/**
+	 * Wait for the upload slot, the slot should be released by {@link #release()}.
+	 *
+	 * @param priority The higher priority is scheduled first.
+	 * @throws IOException
+	 */
+	public synchronized void acquire(int priority) throws IOException {
+		if (maxConcurrency == 0) {
+			return;
+		}
+
+		Waiter waiter = new Waiter(priority, sequence++);
+		slotWaiters.add(waiter);
+
+		try{
+			while (slotWaiters.peek() != waiter || running >= maxConcurrency) {
+				wait();
+			}
+		}catch(InterruptedException e){
+			slotWaiters.remove(waiter);
+			notifyAll();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Wait for the upload slot is interrupted.");
+		}
+
+		slotWaiters.poll();
+		running++;
+		notifyAll();
+	}
+
+	public synchronized void release() {
+		if (maxConcurrency == 0) {
+			return;
+		}
+
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * Read the content at the shaped bandwidth.
+	 *
+	 * @param in
+	 * @param priority
+	 * @return
+	 */
+	public InputStream throttle(InputStream in, int priority) {
+		return (maxBandwidth == 0) ? in : new ThrottledInputStream(in, priority);
+	}
+
+	/**
+	 * Read the content of the source at the shaped bandwidth.
+	 *
+	 * The in-memory source is still a {@link S3ByteArrayContentSource},
+	 * so the checksum of its data can be computed without reading it.
+	 *
+	 * @param source
+	 * @param priority
+	 * @return
+	 */
+	public S3ContentSource throttle(final S3ContentSource source, final int priority) {
+		if (maxBandwidth == 0) {
+			return source;
+		}
+
+		if (source instanceof S3ByteArrayContentSource) {
+			return new S3ByteArrayContentSource(((S3ByteArrayContentSource)source).getData()) {
+				@Override
+				public InputStream open(long position, long length) {
+					return new ThrottledInputStream(super.open(position, length), priority);
+				}
+			};
+		}
+
+		return new S3ContentSource() {
+			@Override
+			public long getContentLength() throws IOException {
+				return source.getContentLength();
+			}
+
+			@Override
+			public InputStream open(long position, long length) throws IOException {
+				return new ThrottledInputStream(source.open(position, length), priority);
+			}
+		};
+	}
+
+	public synchronized int getRunningCount() {
+		return running;
+	}
+
+	public synchronized int getWaitingCount() {
+		return slotWaiters.size();
+	}
+
+	/**
+	 * Take the tokens of the read bytes, wait until the bucket is not empty.
+	 *
+	 * @param bytes
+	 * @param priority
+	 * @throws IOException
+	 */
+	private synchronized void consume(int bytes, int priority) throws IOException {
+		Waiter waiter = new Waiter(priority, sequence++);
+		tokenWaiters.add(waiter);
+
+		try{
+			while (true) {
+				refill();
+				if (tokenWaiters.peek() == waiter && tokens > 0) {
+					break;
+				}
+
+				// wait until the borrowed tokens are paid back, or
+				// the higher priority waiter is done.
+				long delay = (tokens > 0) ? 0 : (long)Math.ceil(-tokens * 1000 / maxBandwidth);
+				wait(Math.max(delay, 1));
+			}
+		}catch(InterruptedException e){
+			tokenWaiters.remove(waiter);
+			notifyAll();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Wait for the upload bandwidth is interrupted.");
+		}
+
+		tokenWaiters.poll();
+		tokens -= bytes;
+		notifyAll();
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(maxBandwidth, tokens + (now - refillTime) * maxBandwidth / 1e9);
+		refillTime = now;
+	}
+
+	private static class Waiter implements Comparable<Waiter> {
+
+		private int priority;
+		private long sequence;
+
+		public Waiter(int priority, long sequence) {
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Waiter other) {
+			if (priority != other.priority) {
+				return (priority > other.priority) ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private class ThrottledInputStream extends FilterInputStream {
+
+		private int priority;
+
+		public ThrottledInputStream(InputStream in, int priority) {
+			super(in);
+			this.priority = priority;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = super.read();
+			if (value != -1) {
+				consume(1, priority);
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = super.read(b, off, Math.min(len, MAX_READ_SIZE));
+			if (count > 0) {
+				consume(count, priority);
+			}
+			return count;
+		}
+	}
+}
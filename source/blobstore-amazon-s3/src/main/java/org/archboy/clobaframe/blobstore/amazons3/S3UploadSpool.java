@@ -0,0 +1,715 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * The durable local spool of the write-behind puts and deletes.
+ *
+ * The content is written to the spool directory and the operation is
+ * appended to the journal, both are synced to disk before the put returns,
+ * including the directory entry of the new content file and of the
+ * rewritten journal. The directory sync is skipped on the platforms that
+ * can not open the directory, e.g. Windows, i.e. a newly created file may
+ * be lost by the power failure there.
+ * The background workers then drain the operations to the target
+ * repositories, and the journal is replayed by {@link #open()} so the
+ * pending operations are resumed after the process restarts.
+ *
+ * The operations of the same blob are drained by the same worker in order,
+ * and only the latest one is applied. The failed operation is retried with
+ * backoff, and the operation that still fails after the max retries, or
+ * fails with the non-retryable error (e.g. access denied), is logged and
+ * kept in the spool as failed, until it is retried by {@link #retryFailed()}
+ * or replaced by the later operation of the same blob.
+ *
+ * @author yang
+ *
+ */
+public class S3UploadSpool {
+
+	private static final String JOURNAL_FILE_NAME = "journal";
+	private static final String CONTENT_FILE_SUFFIX = ".data";
+
+	private static final String UPLOAD_FLAG = "+";
+	private static final String DELETION_FLAG = "-";
+	private static final String DONE_FLAG = "=";
+	private static final String FAILED_FLAG = "!";
+
+	// rewrite the journal with the pending entries after this
+	// number of operations are done.
+	private static final int COMPACTION_THRESHOLD = 1024;
+
+	private File directory;
+	private int maxRetries;
+	private S3Backoff backoff;
+	private Function<String, S3ExtendedBlobResourceRepository> repositories;
+	private ScheduledExecutorService[] workers;
+
+	// the pending entries in the journal order, and the latest entry of each blob.
+	private Map<Long, S3SpoolEntry> entries = new LinkedHashMap<Long, S3SpoolEntry>();
+	private Map<String, S3SpoolEntry> latestEntries = new HashMap<String, S3SpoolEntry>();
+
+	// the entries that are failed after all retries, they are not drained.
+	private Map<Long, S3SpoolEntry> failedEntries = new LinkedHashMap<Long, S3SpoolEntry>();
+
+	private FileOutputStream journal;
+	private int doneCount;
+	private AtomicLong lastId = new AtomicLong();
+
+	private Logger logger = LoggerFactory.getLogger(S3UploadSpool.class);
+
+	/**
+	 *
+	 * @param directory The spool directory, it should be used by one process only.
+	 * @param threads The number of the drain workers.
+	 * @param maxRetries The max number of the retries of each operation.
+	 * @param backoff
+	 * @param repositories Get the target repository by the repository name.
+	 */
+	public S3UploadSpool(File directory, int threads, int maxRetries, S3Backoff backoff,
+			Function<String, S3ExtendedBlobResourceRepository> repositories) {
+		Assert.notNull(directory);
+		Assert.isTrue(threads > 0);
+		Assert.isTrue(maxRetries >= 0);
+		Assert.notNull(backoff);
+		Assert.notNull(repositories);
+
+		this.directory = directory;
+		this.maxRetries = maxRetries;
+		this.backoff = backoff;
+		this.repositories = repositories;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-spool-");
+		threadFactory.setDaemon(true);
+
+		this.workers = new ScheduledExecutorService[threads];
+		for (int idx = 0; idx < threads; idx++) {
+			workers[idx] = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		}
+	}
+
+	/**
+	 * Replay the journal and resume the pending operations.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException(String.format(
+					"Can not create the spool directory [%s].", directory));
+		}
+
+		File journalFile = new File(directory, JOURNAL_FILE_NAME);
+		if (journalFile.exists()) {
+			replay(journalFile);
+			removeLostEntries(entries);
+			removeLostEntries(failedEntries);
+		}
+
+		// the content that is written before the crash but not journaled,
+		// or that is drained before the done record is synced.
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				long id = parseId(name);
+				if (name.endsWith(CONTENT_FILE_SUFFIX) &&
+						!entries.containsKey(id) && !failedEntries.containsKey(id)) {
+					file.delete();
+				}
+			}
+		}
+
+		rewriteJournal();
+
+		for (S3SpoolEntry entry : entries.values()) {
+			latestEntries.put(getBlobKey(entry.getRepositoryName(), entry.getKey()), entry);
+			submit(entry, 0);
+		}
+
+		if (!entries.isEmpty()) {
+			logger.info("Resume {} pending operations of the spool.", entries.size());
+		}
+
+		if (!failedEntries.isEmpty()) {
+			logger.warn("There are {} failed operations in the spool.", failedEntries.size());
+		}
+	}
+
+	/**
+	 * Spool the blob, the content is synced to disk before returning.
+	 *
+	 * @param repositoryName
+	 * @param key
+	 * @param in The content, it is NOT closed by this method.
+	 * @param mimeType
+	 * @param metadata Optional.
+	 * @param publicReadable
+	 * @param priority
+	 * @throws IOException
+	 */
+	public void put(String repositoryName, String key, InputStream in, String mimeType,
+			Map<String, Object> metadata, boolean publicReadable, int priority) throws IOException {
+		Assert.notNull(repositoryName);
+		Assert.notNull(key);
+		Assert.notNull(in);
+
+		long id = lastId.incrementAndGet();
+		File file = getContentFile(id);
+
+		long contentLength;
+		FileOutputStream out = new FileOutputStream(file);
+		try{
+			contentLength = IOUtils.copyLarge(in, out);
+			out.getFD().sync();
+		}catch(IOException e){
+			IOUtils.closeQuietly(out);
+			file.delete();
+			throw e;
+		}
+		out.close();
+
+		try{
+			syncDirectory();
+		}catch(IOException e){
+			file.delete();
+			throw e;
+		}
+
+		S3SpoolEntry entry = new S3SpoolEntry(id, repositoryName, key, file, contentLength,
+				mimeType, System.currentTimeMillis(), metadata, publicReadable, priority);
+
+		try{
+			append(entry);
+		}catch(IOException e){
+			file.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Spool the deletion of blob.
+	 *
+	 * @param repositoryName
+	 * @param key
+	 * @throws IOException
+	 */
+	public void delete(String repositoryName, String key) throws IOException {
+		Assert.notNull(repositoryName);
+		Assert.notNull(key);
+
+		append(new S3SpoolEntry(lastId.incrementAndGet(), repositoryName, key,
+				System.currentTimeMillis()));
+	}
+
+	/**
+	 * Spool the deletions of blobs, the journal is synced once for all of them.
+	 *
+	 * If it fails, none of the deletions is pending, but they may still be
+	 * replayed by the next opening since the records may be written partly.
+	 *
+	 * @param repositoryName
+	 * @param keys
+	 * @throws IOException
+	 */
+	public void delete(String repositoryName, Iterable<String> keys) throws IOException {
+		Assert.notNull(repositoryName);
+		Assert.notNull(keys);
+
+		long lastModified = System.currentTimeMillis();
+		List<S3SpoolEntry> deletions = new ArrayList<S3SpoolEntry>();
+		for (String key : keys) {
+			Assert.notNull(key);
+			deletions.add(new S3SpoolEntry(lastId.incrementAndGet(), repositoryName, key, lastModified));
+		}
+
+		append(deletions);
+	}
+
+	/**
+	 * Get the latest pending operation of the blob.
+	 *
+	 * @param repositoryName
+	 * @param key
+	 * @return NULL if there is no pending operation of the blob.
+	 */
+	public synchronized S3SpoolEntry get(String repositoryName, String key) {
+		return latestEntries.get(getBlobKey(repositoryName, key));
+	}
+
+	public synchronized int getPendingCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the operations that are failed after all retries.
+	 *
+	 * @return
+	 */
+	public synchronized List<S3SpoolEntry> getFailedEntries() {
+		return new ArrayList<S3SpoolEntry>(failedEntries.values());
+	}
+
+	/**
+	 * Drain the failed operations again, e.g. after the permission is fixed.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void retryFailed() throws IOException {
+		Assert.state(journal != null, "The spool is not opened.");
+
+		List<S3SpoolEntry> retryEntries = new ArrayList<S3SpoolEntry>(failedEntries.values());
+		for (S3SpoolEntry entry : retryEntries) {
+			// the record of the same id makes the entry pending again.
+			journal.write(toRecord(entry).getBytes("UTF-8"));
+		}
+		journal.getFD().sync();
+
+		for (S3SpoolEntry entry : retryEntries) {
+			failedEntries.remove(entry.getId());
+			entries.put(entry.getId(), entry);
+			latestEntries.put(getBlobKey(entry.getRepositoryName(), entry.getKey()), entry);
+			submit(entry, 0);
+		}
+	}
+
+	/**
+	 * Wait until all pending operations are drained.
+	 *
+	 * @param timeout In millisecond.
+	 * @return FALSE if it is timeout.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitDrained(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!entries.isEmpty()) {
+			long remain = deadline - System.currentTimeMillis();
+			if (remain <= 0) {
+				return false;
+			}
+			wait(remain);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until the pending operations of the blobs which key starts
+	 * with the prefix are drained.
+	 *
+	 * @param repositoryName
+	 * @param prefix E.g. the key of one blob.
+	 * @param timeout In millisecond.
+	 * @return FALSE if it is timeout.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitDrained(String repositoryName, String prefix,
+			long timeout) throws InterruptedException {
+		String blobPrefix = getBlobKey(repositoryName, prefix);
+
+		long deadline = System.currentTimeMillis() + timeout;
+		while (hasPending(blobPrefix)) {
+			long remain = deadline - System.currentTimeMillis();
+			if (remain <= 0) {
+				return false;
+			}
+			wait(remain);
+		}
+		return true;
+	}
+
+	/**
+	 * Stop the workers, the pending operations are resumed when the spool
+	 * directory is opened again by a new spool.
+	 */
+	public void close() {
+		for (ScheduledExecutorService worker : workers) {
+			worker.shutdownNow();
+		}
+
+		synchronized (this) {
+			IOUtils.closeQuietly(journal);
+			journal = null;
+		}
+	}
+
+	private void append(S3SpoolEntry entry) throws IOException {
+		append(Collections.singletonList(entry));
+	}
+
+	private synchronized void append(List<S3SpoolEntry> newEntries) throws IOException {
+		Assert.state(journal != null, "The spool is not opened.");
+
+		if (newEntries.isEmpty()) {
+			return;
+		}
+
+		StringBuilder records = new StringBuilder();
+		for (S3SpoolEntry entry : newEntries) {
+			records.append(toRecord(entry));
+		}
+
+		journal.write(records.toString().getBytes("UTF-8"));
+		journal.getFD().sync();
+
+		for (S3SpoolEntry entry : newEntries) {
+			entries.put(entry.getId(), entry);
+			latestEntries.put(getBlobKey(entry.getRepositoryName(), entry.getKey()), entry);
+
+			// the failed operation of the same blob is replaced.
+			S3SpoolEntry failedEntry = findFailedEntry(entry.getRepositoryName(), entry.getKey());
+			if (failedEntry != null) {
+				failedEntries.remove(failedEntry.getId());
+				discard(failedEntry);
+			}
+
+			// submit in the journal order, so the later operation of
+			// the same blob is drained later.
+			submit(entry, 0);
+		}
+	}
+
+	private void submit(final S3SpoolEntry entry, final int retry) {
+		int index = (getBlobKey(entry.getRepositoryName(), entry.getKey()).hashCode()
+				& Integer.MAX_VALUE) % workers.length;
+
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				drain(entry, retry);
+			}
+		};
+
+		try{
+			if (retry == 0) {
+				workers[index].execute(task);
+			}else{
+				workers[index].schedule(task, backoff.getDelay(retry), TimeUnit.MILLISECONDS);
+			}
+		}catch(RejectedExecutionException e){
+			// the spool is closed, the entry is resumed by the next opening.
+		}
+	}
+
+	private void drain(S3SpoolEntry entry, int retry) {
+		if (isLatest(entry)) {
+			try{
+				S3ExtendedBlobResourceRepository repository = repositories.apply(entry.getRepositoryName());
+				if (entry.isDeletion()) {
+					repository.delete(entry.getKey());
+				}else{
+					// the failed request is retried by reopening the file rather than buffering.
+					repository.put(entry.getKey(), new S3FileContentSource(entry.getFile().toPath()),
+							entry.getMimeType(), entry.getMetadata(),
+							entry.isPublicReadable(), entry.getPriority());
+				}
+			}catch(IOException | RuntimeException e){
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+
+				if (retry < maxRetries && isRetryable(e)) {
+					logger.warn("Drain the blob [{}] of repository [{}] failed, retry {}, error: {}",
+							entry.getKey(), entry.getRepositoryName(), retry + 1, e.getMessage());
+					submit(entry, retry + 1);
+				}else{
+					logger.error("Drain the blob [{}] of repository [{}] failed after {} retries, " +
+							"it is kept in the spool as failed, error: {}",
+							entry.getKey(), entry.getRepositoryName(), retry, e.getMessage());
+					fail(entry);
+				}
+				return;
+			}
+		}
+
+		done(entry);
+	}
+
+	/**
+	 * Check whether the error is transient, i.e. the local IO error and
+	 * the retryable error of Amazon S3.
+	 *
+	 * @param e
+	 * @return
+	 */
+	private boolean isRetryable(Exception e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof AmazonClientException) {
+				return S3Backoff.isRetryable((AmazonClientException)cause);
+			}
+		}
+		return e instanceof IOException;
+	}
+
+	private synchronized boolean isLatest(S3SpoolEntry entry) {
+		return latestEntries.get(getBlobKey(entry.getRepositoryName(), entry.getKey())) == entry;
+	}
+
+	private synchronized void done(S3SpoolEntry entry) {
+		entries.remove(entry.getId());
+		latestEntries.remove(getBlobKey(entry.getRepositoryName(), entry.getKey()), entry);
+		discard(entry);
+		notifyAll();
+	}
+
+	private synchronized void fail(S3SpoolEntry entry) {
+		if (!isLatest(entry)) {
+			// it is replaced by the later operation while draining.
+			done(entry);
+			return;
+		}
+
+		entries.remove(entry.getId());
+		latestEntries.remove(getBlobKey(entry.getRepositoryName(), entry.getKey()), entry);
+		failedEntries.put(entry.getId(), entry);
+
+		// the failed record is not synced, the operation is drained
+		// again in the worst case.
+		writeRecord(FAILED_FLAG + "\t" + entry.getId() + "\n");
+		notifyAll();
+	}
+
+	/**
+	 * Remove the content of the finished entry, and write the done record.
+	 *
+	 * @param entry
+	 */
+	private void discard(S3SpoolEntry entry) {
+		if (!entry.isDeletion()) {
+			entry.getFile().delete();
+		}
+
+		// the done record is not synced, the operation is drained
+		// again in the worst case.
+		writeRecord(DONE_FLAG + "\t" + entry.getId() + "\n");
+	}
+
+	private void writeRecord(String record) {
+		try{
+			if (journal != null) {
+				journal.write(record.getBytes("UTF-8"));
+
+				doneCount++;
+				if (doneCount >= COMPACTION_THRESHOLD) {
+					rewriteJournal();
+				}
+			}
+		}catch(IOException e){
+			logger.warn("Write the spool journal failed, error: {}", e.getMessage());
+		}
+	}
+
+	private S3SpoolEntry findFailedEntry(String repositoryName, String key) {
+		for (S3SpoolEntry entry : failedEntries.values()) {
+			if (entry.getRepositoryName().equals(repositoryName) && entry.getKey().equals(key)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void replay(File journalFile) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(journalFile), "UTF-8"));
+		try{
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				try{
+					String[] fields = line.split("\t", -1);
+					long id = Long.parseLong(fields[1]);
+					lastId.set(Math.max(lastId.get(), id));
+
+					if (DONE_FLAG.equals(fields[0])) {
+						entries.remove(id);
+						failedEntries.remove(id);
+					}else if (FAILED_FLAG.equals(fields[0])) {
+						S3SpoolEntry entry = entries.remove(id);
+						if (entry != null) {
+							failedEntries.put(id, entry);
+						}
+					}else if (DELETION_FLAG.equals(fields[0])) {
+						failedEntries.remove(id);
+						entries.put(id, new S3SpoolEntry(id,
+								S3SegmentStore.decode(fields[2]),
+								S3SegmentStore.decode(fields[3]),
+								Long.parseLong(fields[4])));
+					}else{
+						failedEntries.remove(id);
+						entries.put(id, new S3SpoolEntry(id,
+								S3SegmentStore.decode(fields[2]),
+								S3SegmentStore.decode(fields[3]),
+								getContentFile(id),
+								Long.parseLong(fields[4]),
+								fields[6].isEmpty() ? null : S3SegmentStore.decode(fields[6]),
+								Long.parseLong(fields[5]),
+								S3SegmentStore.decodeMetadata(fields[9]),
+								Boolean.parseBoolean(fields[7]),
+								Integer.parseInt(fields[8])));
+					}
+				}catch(RuntimeException e){
+					// the record that is torn by the crash.
+					logger.warn("Skip the broken spool journal record: {}", line);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Remove the replayed upload entries that the content is lost,
+	 * e.g. it is deleted before the done record is synced.
+	 *
+	 * @param replayedEntries
+	 */
+	private void removeLostEntries(Map<Long, S3SpoolEntry> replayedEntries) {
+		Iterator<S3SpoolEntry> iterator = replayedEntries.values().iterator();
+		while (iterator.hasNext()) {
+			S3SpoolEntry entry = iterator.next();
+			if (!entry.isDeletion() && !entry.getFile().exists()) {
+				logger.warn("Skip the spooled blob [{}] of repository [{}] that its content is lost.",
+						entry.getKey(), entry.getRepositoryName());
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Replace the journal with the records of the pending and failed entries.
+	 *
+	 * @throws IOException
+	 */
+	private void rewriteJournal() throws IOException {
+		IOUtils.closeQuietly(journal);
+		journal = null;
+
+		File journalFile = new File(directory, JOURNAL_FILE_NAME);
+		File tempFile = new File(directory, JOURNAL_FILE_NAME + ".tmp");
+
+		List<S3SpoolEntry> pendingEntries = new ArrayList<S3SpoolEntry>(entries.values());
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try{
+			for (S3SpoolEntry entry : failedEntries.values()) {
+				out.write(toRecord(entry).getBytes("UTF-8"));
+				out.write((FAILED_FLAG + "\t" + entry.getId() + "\n").getBytes("UTF-8"));
+			}
+			for (S3SpoolEntry entry : pendingEntries) {
+				out.write(toRecord(entry).getBytes("UTF-8"));
+			}
+			out.getFD().sync();
+		}finally{
+			out.close();
+		}
+
+		Files.move(tempFile.toPath(), journalFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+
+		journal = new FileOutputStream(journalFile, true);
+		doneCount = 0;
+	}
+
+	/**
+	 * Sync the spool directory, so the created or renamed file is durable.
+	 *
+	 * @throws IOException
+	 */
+	private void syncDirectory() throws IOException {
+		FileChannel channel;
+		try{
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		}catch(IOException e){
+			// the directory can not be opened on some platforms, e.g. Windows.
+			return;
+		}
+
+		try{
+			channel.force(true);
+		}finally{
+			channel.close();
+		}
+	}
+
+	private String toRecord(S3SpoolEntry entry) throws IOException {
+		StringBuilder record = new StringBuilder();
+
+		if (entry.isDeletion()) {
+			record.append(DELETION_FLAG).append('\t')
+					.append(entry.getId()).append('\t')
+					.append(S3SegmentStore.encode(entry.getRepositoryName())).append('\t')
+					.append(S3SegmentStore.encode(entry.getKey())).append('\t')
+					.append(entry.getLastModified()).append('\n');
+		}else{
+			record.append(UPLOAD_FLAG).append('\t')
+					.append(entry.getId()).append('\t')
+					.append(S3SegmentStore.encode(entry.getRepositoryName())).append('\t')
+					.append(S3SegmentStore.encode(entry.getKey())).append('\t')
+					.append(entry.getContentLength()).append('\t')
+					.append(entry.getLastModified()).append('\t')
+					.append(entry.getMimeType() == null ? "" : S3SegmentStore.encode(entry.getMimeType())).append('\t')
+					.append(entry.isPublicReadable()).append('\t')
+					.append(entry.getPriority()).append('\t')
+					.append(S3SegmentStore.encodeMetadata(entry.getMetadata())).append('\n');
+		}
+
+		return record.toString();
+	}
+
+	private File getContentFile(long id) {
+		return new File(directory, String.format("%016d", id) + CONTENT_FILE_SUFFIX);
+	}
+
+	private long parseId(String contentFileName) {
+		try{
+			return Long.parseLong(contentFileName.substring(0,
+					contentFileName.length() - CONTENT_FILE_SUFFIX.length()));
+		}catch(NumberFormatException e){
+			return -1;
+		}
+	}
+
+	private boolean hasPending(String blobPrefix) {
+		for (String blobKey : latestEntries.keySet()) {
+			if (blobKey.startsWith(blobPrefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String getBlobKey(String repositoryName, String key) {
+		return repositoryName + "/" + key;
+	}
+}
@@ -0,0 +1,203 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
+import java.net.URL;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.util.Assert;
+
+/**
+ * Generate the presigned URLs, so the clients download and upload the
+ * blobs from/to Amazon S3 directly rather than through the application.
+ *
+ * The URLs are signed locally without any request. The issued URLs are
+ * cached for a short time, the cached URL is reused only if it is still
+ * valid for at least the half of the requested expiry, so a page that
+ * lists many blobs is signed from the cache mostly.
+ *
+ * @author yang
+ *
+ */
+public class S3UrlSigner {
+
+	private AmazonS3 client;
+	private long cacheTtl; // millisecond
+
+	private LruMap<String, Entry> urls; // NULL if the cache is disabled
+
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+
+	/**
+	 *
+	 * @param client
+	 * @param maxCachedUrls The max number of the cached URLs, 0 to disable the cache.
+	 * @param cacheTtl The max time-to-live of the cached URL, in millisecond.
+	 */
+	public S3UrlSigner(AmazonS3 client, int maxCachedUrls, long cacheTtl) {
+		Assert.notNull(client);
+		Assert.isTrue(maxCachedUrls >= 0);
+
+		this.client = client;
+		this.cacheTtl = cacheTtl;
+
+		if (maxCachedUrls > 0 && cacheTtl > 0) {
+			this.urls = new LruMap<String, Entry>(maxCachedUrls);
+		}
+	}
+
+	/**
+	 * Get the presigned GET URL.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param expiry The valid period of the URL, in millisecond.
+	 * @param overrides Optional, the response headers, e.g. the "Content-Disposition"
+	 *	for saving the blob with the specified file name.
+	 * @return
+	 */
+	public URL getDownloadUrl(String bucketName, String key, long expiry,
+			ResponseHeaderOverrides overrides) {
+		return getUrl(HttpMethod.GET, bucketName, key, expiry, overrides, null);
+	}
+
+	/**
+	 * Get the presigned PUT URL.
+	 *
+	 * @param bucketName
+	 * @param key
+	 * @param expiry The valid period of the URL, in millisecond.
+	 * @param mimeType Optional, the uploading request must have the same "Content-Type".
+	 * @return
+	 */
+	public URL getUploadUrl(String bucketName, String key, long expiry, String mimeType) {
+		return getUrl(HttpMethod.PUT, bucketName, key, expiry, null, mimeType);
+	}
+
+	/**
+	 * Get the presigned GET URLs of the blobs.
+	 *
+	 * @param bucketName
+	 * @param keys
+	 * @param expiry The valid period of the URLs, in millisecond.
+	 * @param overrides Optional.
+	 * @return The URLs in the order of keys.
+	 */
+	public Map<String, URL> getDownloadUrls(String bucketName, Iterable<String> keys,
+			long expiry, ResponseHeaderOverrides overrides) {
+		Assert.notNull(keys);
+
+		Map<String, URL> result = new LinkedHashMap<String, URL>();
+		for (String key : keys) {
+			result.put(key, getUrl(HttpMethod.GET, bucketName, key, expiry, overrides, null));
+		}
+		return result;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	private URL getUrl(HttpMethod method, String bucketName, String key, long expiry,
+			ResponseHeaderOverrides overrides, String mimeType) {
+		Assert.notNull(bucketName);
+		Assert.notNull(key);
+		Assert.isTrue(expiry > 0);
+
+		long now = System.currentTimeMillis();
+		long ttl = Math.min(cacheTtl, expiry / 2);
+
+		String cacheKey = null;
+		if (urls != null && ttl > 0) {
+			cacheKey = getCacheKey(method, bucketName, key, expiry, overrides, mimeType);
+
+			synchronized (urls) {
+				Entry entry = urls.get(cacheKey);
+				if (entry != null && now < entry.expireTime) {
+					hitCount.incrementAndGet();
+					return entry.url;
+				}
+			}
+		}
+
+		missCount.incrementAndGet();
+
+		GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, key, method);
+		request.setExpiration(new Date(now + expiry));
+		request.setResponseHeaders(overrides);
+		request.setContentType(mimeType);
+
+		URL url;
+		try{
+			url = client.generatePresignedUrl(request);
+		}catch(AmazonClientException e){
+			throw new IllegalStateException("Sign the URL failed.", e);
+		}
+
+		if (cacheKey != null) {
+			synchronized (urls) {
+				urls.put(cacheKey, new Entry(url, now + ttl));
+			}
+		}
+
+		return url;
+	}
+
+	private String getCacheKey(HttpMethod method, String bucketName, String key, long expiry,
+			ResponseHeaderOverrides overrides, String mimeType) {
+		StringBuilder builder = new StringBuilder()
+				.append(method).append('\n')
+				.append(bucketName).append('\n')
+				.append(key).append('\n')
+				.append(expiry).append('\n')
+				.append(mimeType);
+
+		if (overrides != null) {
+			builder.append('\n').append(overrides.getContentType())
+					.append('\n').append(overrides.getContentLanguage())
+					.append('\n').append(overrides.getExpires())
+					.append('\n').append(overrides.getCacheControl())
+					.append('\n').append(overrides.getContentDisposition())
+					.append('\n').append(overrides.getContentEncoding());
+		}
+
+		return builder.toString();
+	}
+
+	private static class Entry {
+		private URL url;
+		private long expireTime;
+
+		public Entry(URL url, long expireTime) {
+			this.url = url;
+			this.expireTime = expireTime;
+		}
+	}
+
+	private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int maxEntries;
+
+		public LruMap(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxEntries;
+		}
+	}
+}
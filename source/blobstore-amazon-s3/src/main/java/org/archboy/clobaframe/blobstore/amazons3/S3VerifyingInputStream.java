@@ -0,0 +1,203 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Verify the checksum of the stored content incrementally while it is read.
+ *
+ * The checksum is updated by each read without buffering, and the mismatch
+ * is thrown at the end of stream, i.e. before the reader sees the end, so
+ * the corrupted content is never taken as complete. The stream that is
+ * closed before the end is not verified.
+ *
+ * @author yang
+ *
+ */
+public class S3VerifyingInputStream extends FilterInputStream {
+
+	private static final int SKIP_BUFFER_SIZE = 8192;
+
+	private String bucketName;
+	private String key;
+
+	// the expected CRC-32C, or the ETag of the MD5 or the multipart upload.
+	private long expectedCrc32c = -1;
+	private String expectedETag;
+
+	private Checksum crc32c;
+	private MessageDigest digest;
+
+	// the composite MD5 of the multipart upload, i.e. the MD5 of
+	// the MD5 of each part.
+	private long partSize;
+	private long partRemaining;
+	private MessageDigest partsDigest;
+	private int partCount;
+
+	private boolean finished;
+	private IOException mismatch;
+	private byte[] single = new byte[1];
+
+	/**
+	 * Verify the CRC-32C.
+	 *
+	 * @param in
+	 * @param bucketName
+	 * @param key
+	 * @param expectedCrc32c
+	 */
+	public S3VerifyingInputStream(InputStream in, String bucketName, String key, long expectedCrc32c) {
+		super(in);
+		this.bucketName = bucketName;
+		this.key = key;
+		this.expectedCrc32c = expectedCrc32c;
+		this.crc32c = new S3Crc32c();
+	}
+
+	/**
+	 * Verify the ETag, i.e. the MD5 of the content, or the composite MD5
+	 * of the multipart upload.
+	 *
+	 * @param in
+	 * @param bucketName
+	 * @param key
+	 * @param expectedETag
+	 * @param partSize The part size of the multipart upload, 0 if the ETag is the MD5.
+	 */
+	public S3VerifyingInputStream(InputStream in, String bucketName, String key,
+			String expectedETag, long partSize) {
+		super(in);
+		this.bucketName = bucketName;
+		this.key = key;
+		this.expectedETag = expectedETag;
+		this.digest = S3ContentChecksum.createMd5Digest();
+
+		if (partSize > 0) {
+			this.partSize = partSize;
+			this.partRemaining = partSize;
+			this.partsDigest = S3ContentChecksum.createMd5Digest();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int value = super.read();
+		if (value == -1) {
+			finish();
+		}else{
+			single[0] = (byte)value;
+			update(single, 0, 1);
+		}
+		return value;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = super.read(b, off, len);
+		if (count == -1) {
+			finish();
+		}else{
+			update(b, off, count);
+		}
+		return count;
+	}
+
+	/**
+	 * The skipped bytes are read for the checksum.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buffer = new byte[(int)Math.min(n, SKIP_BUFFER_SIZE)];
+		long total = 0;
+		while (total < n) {
+			int count = read(buffer, 0, (int)Math.min(buffer.length, n - total));
+			if (count == -1) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+		// not supported
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("Mark/reset is not supported.");
+	}
+
+	private void update(byte[] b, int off, int len) {
+		if (crc32c != null) {
+			crc32c.update(b, off, len);
+			return;
+		}
+
+		if (partsDigest == null) {
+			digest.update(b, off, len);
+			return;
+		}
+
+		while (len > 0) {
+			int count = (int)Math.min(len, partRemaining);
+			digest.update(b, off, count);
+			off += count;
+			len -= count;
+			partRemaining -= count;
+
+			if (partRemaining == 0) {
+				partsDigest.update(digest.digest());
+				partCount++;
+				partRemaining = partSize;
+			}
+		}
+	}
+
+	private void finish() throws IOException {
+		if (mismatch != null) {
+			throw mismatch;
+		}
+
+		if (finished) {
+			return;
+		}
+		finished = true;
+
+		String expected;
+		String actual;
+
+		if (crc32c != null) {
+			expected = Long.toHexString(expectedCrc32c);
+			actual = Long.toHexString(crc32c.getValue());
+		}else if (partsDigest != null) {
+			if (partRemaining < partSize || partCount == 0) {
+				partsDigest.update(digest.digest());
+				partCount++;
+			}
+			expected = S3ContentChecksum.unquote(expectedETag);
+			actual = BinaryUtils.toHex(partsDigest.digest()) + "-" + partCount;
+		}else{
+			expected = S3ContentChecksum.unquote(expectedETag);
+			actual = BinaryUtils.toHex(digest.digest());
+		}
+
+		if (!expected.equals(actual)) {
+			mismatch = new IOException(String.format(
+					"Checksum mismatch of blob [%s] in the amazon s3 repository [%s], expected [%s] but got [%s].",
+					key, bucketName, expected, actual));
+			throw mismatch;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.archboy.clobaframe.blobstore.BlobResourceInfo;
+import org.archboy.clobaframe.blobstore.BlobResourceRepository;
+import org.archboy.clobaframe.blobstore.PartialCollection;
+import org.archboy.clobaframe.blobstore.impl.AbstractBlobResourceRepository;
+import org.springframework.util.Assert;
+
+/**
+ * The write-behind {@link BlobResourceRepository}, the put and delete
+ * return once they are written to the local {@link S3UploadSpool}, and
+ * they are applied to the wrapped repository in the background.
+ *
+ * The blob that is pending in the spool is read from the spool. The list
+ * does not include the pending blobs, i.e. it is eventually consistent.
+ *
+ * The copy and move are applied to the target repository directly, so
+ * they wait until the pending operations of the source and the target
+ * blobs are drained.
+ *
+ * @author yang
+ *
+ */
+public class S3WriteBehindBlobResourceRepository extends AbstractBlobResourceRepository
+		implements S3ExtendedBlobResourceRepository {
+
+	// the max time of waiting for the pending operations before copying.
+	private static final long DRAIN_TIMEOUT = 60 * 1000; // millisecond
+
+	private S3ExtendedBlobResourceRepository repository;
+	private S3UploadSpool uploadSpool;
+	private S3DirectorySync directorySync; // optional
+
+	/**
+	 *
+	 * @param repository The target repository, it should be the one
+	 *	that the spool drains to.
+	 * @param uploadSpool
+	 */
+	public S3WriteBehindBlobResourceRepository(S3ExtendedBlobResourceRepository repository,
+			S3UploadSpool uploadSpool) {
+		Assert.notNull(repository);
+		Assert.notNull(uploadSpool);
+
+		this.repository = repository;
+		this.uploadSpool = uploadSpool;
+	}
+
+	public void setDirectorySync(S3DirectorySync directorySync) {
+		this.directorySync = directorySync;
+	}
+
+	@Override
+	public String getName() {
+		return repository.getName();
+	}
+
+	/**
+	 * Get the target repository, e.g. for the operations that are not spooled.
+	 *
+	 * @return
+	 */
+	public S3ExtendedBlobResourceRepository getRepository() {
+		return repository;
+	}
+
+	@Override
+	public void put(BlobResourceInfo blobResourceInfo, boolean publicReadable, int priority) throws IOException {
+		Assert.notNull(blobResourceInfo);
+
+		InputStream in = blobResourceInfo.getContent();
+		try{
+			uploadSpool.put(getName(), blobResourceInfo.getKey(), in,
+					blobResourceInfo.getMimeType(), blobResourceInfo.getMetadata(),
+					publicReadable, priority);
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#put(java.lang.String, org.archboy.clobaframe.blobstore.amazons3.S3ContentSource, java.lang.String, java.util.Map, boolean, int)}.
+	 *
+	 * The content is copied to the spool.
+	 *
+	 * @param key
+	 * @param source
+	 * @param mimeType
+	 * @param metadata
+	 * @param publicReadable
+	 * @param priority
+	 * @throws IOException
+	 */
+	@Override
+	public void put(String key, S3ContentSource source, String mimeType,
+			Map<String, Object> metadata, boolean publicReadable, int priority) throws IOException {
+		Assert.notNull(key);
+		Assert.notNull(source);
+
+		InputStream in = source.open(0, source.getContentLength());
+		try{
+			uploadSpool.put(getName(), key, in, mimeType, metadata, publicReadable, priority);
+		}finally{
+			in.close();
+		}
+	}
+
+	@Override
+	public BlobResourceInfo get(String key) {
+		Assert.notNull(key);
+
+		S3SpoolEntry entry = uploadSpool.get(getName(), key);
+		if (entry == null) {
+			return repository.get(key);
+		}
+
+		return entry.isDeletion() ? null :
+				new S3SpooledBlobResourceInfo(entry, repository);
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		Assert.notNull(key);
+		uploadSpool.delete(getName(), key);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#delete(java.lang.Iterable)}.
+	 *
+	 * The deletions are spooled together, i.e. the journal is synced once,
+	 * so either all of them are spooled or all of them are failed.
+	 *
+	 * @param keys
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> delete(Iterable<String> keys) throws IOException {
+		Assert.notNull(keys);
+
+		Map<String, String> failures = new LinkedHashMap<String, String>();
+		try{
+			uploadSpool.delete(getName(), keys);
+		}catch(IOException e){
+			for (String key : keys) {
+				failures.put(key, e.getMessage());
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#copy(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 */
+	@Override
+	public void copy(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException {
+		awaitDrained(getName(), sourceKey);
+		awaitDrained(targetRepositoryName, targetKey);
+		repository.copy(sourceKey, targetRepositoryName, targetKey, publicReadable);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#move(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourceKey
+	 * @param targetRepositoryName
+	 * @param targetKey
+	 * @param publicReadable
+	 * @throws IOException
+	 */
+	@Override
+	public void move(String sourceKey, String targetRepositoryName, String targetKey,
+			boolean publicReadable) throws IOException {
+		awaitDrained(getName(), sourceKey);
+		awaitDrained(targetRepositoryName, targetKey);
+		repository.move(sourceKey, targetRepositoryName, targetKey, publicReadable);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#copyAll(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> copyAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException {
+		awaitDrained(getName(), sourcePrefix);
+		awaitDrained(targetRepositoryName, targetPrefix);
+		return repository.copyAll(sourcePrefix, targetRepositoryName, targetPrefix, publicReadable);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#moveAll(java.lang.String, java.lang.String, java.lang.String, boolean)}.
+	 *
+	 * @param sourcePrefix
+	 * @param targetRepositoryName
+	 * @param targetPrefix
+	 * @param publicReadable
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public Map<String, String> moveAll(String sourcePrefix, String targetRepositoryName,
+			String targetPrefix, boolean publicReadable) throws IOException {
+		awaitDrained(getName(), sourcePrefix);
+		awaitDrained(targetRepositoryName, targetPrefix);
+		return repository.moveAll(sourcePrefix, targetRepositoryName, targetPrefix, publicReadable);
+	}
+
+	/**
+	 * See {@link S3BlobResourceRepository#sync(java.io.File, java.lang.String, java.io.File, boolean)}.
+	 *
+	 * @param directory
+	 * @param prefix
+	 * @param stateFile
+	 * @param deleteRemoved
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public S3SyncResult sync(File directory, String prefix, File stateFile,
+			boolean deleteRemoved) throws IOException {
+		Assert.state(directorySync != null, "The directory sync is not set.");
+		return directorySync.sync(this, directory, prefix, stateFile, deleteRemoved);
+	}
+
+	@Override
+	public PartialCollection<BlobResourceInfo> list() {
+		return repository.list();
+	}
+
+	@Override
+	public PartialCollection<BlobResourceInfo> listNext(PartialCollection<BlobResourceInfo> prevCollection) {
+		return repository.listNext(prevCollection);
+	}
+
+	private void awaitDrained(String repositoryName, String prefix) throws IOException {
+		try{
+			if (!uploadSpool.awaitDrained(repositoryName, prefix, DRAIN_TIMEOUT)) {
+				throw new IOException(String.format(
+						"The pending operations of blob [%s] in the repository [%s] are not drained.",
+						prefix, repositoryName));
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format(
+					"Wait for the pending operations of blob [%s] in the repository [%s] is interrupted.",
+					prefix, repositoryName));
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.archboy.clobaframe.blobstore.amazons3;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The Zstandard {@link S3ContentCodec}, it requires the optional
+ * dependency "zstd-jni".
+ *
+ * @author yang
+ *
+ */
+public class S3ZstdContentCodec implements S3ContentCodec {
+
+	public static final String ENCODING = "zstd";
+
+	/**
+	 * The class that should be present to use this codec.
+	 */
+	public static final String REQUIRED_CLASS_NAME = "com.github.luben.zstd.ZstdOutputStream";
+
+	private int level;
+
+	/**
+	 *
+	 * @param level 1 (fastest) to 22 (best compression), or -1 for the default level.
+	 */
+	public S3ZstdContentCodec(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public String getEncoding() {
+		return ENCODING;
+	}
+
+	@Override
+	public OutputStream encode(OutputStream out) throws IOException {
+		ZstdOutputStream encoder = new ZstdOutputStream(out);
+		if (level > 0) {
+			encoder.setLevel(level);
+		}
+		return encoder;
+	}
+
+	@Override
+	public InputStream decode(InputStream in) throws IOException {
+		return new ZstdInputStream(in);
+	}
+}
@@ -1,20 +1,45 @@
 package org.archboy.clobaframe.blobstore.amazons3;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import javax.inject.Inject;
 import javax.inject.Named;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.DigestUtils;
 import org.archboy.clobaframe.blobstore.BlobResourceInfo;
 import org.archboy.clobaframe.blobstore.BlobResourceInfoFactory;
 import org.archboy.clobaframe.blobstore.BlobResourceRepository;
@@ -31,6 +56,9 @@ public class S3BlobResourceRepositoryTest {
 
 	@Inject
 	private BlobstoreManager blobstoreManager;
+
+	@Inject
+	private S3ClientFactory clientFactory;
 	
 	private BlobResourceInfoFactory blobResourceInfoFactory = new DefaultBlobResourceInfoFactory();
 
@@ -133,97 +161,1763 @@ public class S3BlobResourceRepositoryTest {
 		repository.delete("none-exists");
 	}
 
-	public void testPutWithParams() {
-		//
+	@Test
+	public void testPutMultipart() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		long partSize = S3MultipartUploader.MIN_PART_SIZE;
+		S3MultipartUploader multipartUploader = new S3MultipartUploader(
+				clientFactory.getClient(), partSize, partSize, 2, 3);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setMultipartUploader(multipartUploader);
+
+		String key1 = "m001";
+
+		// 3 parts, the last one is smaller than others.
+		byte[] data = new byte[(int)(partSize * 2 + 1024)];
+		for (int idx = 0; idx < data.length; idx++) {
+			data[idx] = (byte)(idx % 251);
+		}
+
+		BlobResourceInfo blobResourceInfo = blobResourceInfoFactory.make(
+				testRepositoryName1, key1, data, "application/octet-stream", null, null);
+
+		try{
+			repository.put(blobResourceInfo);
+
+			BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+			assertEquals(data.length, blobResourceInfo1.getContentLength());
+			assertEquals("application/octet-stream", blobResourceInfo1.getMimeType());
+
+			InputStream in = blobResourceInfo1.getContent();
+			byte[] content = IOUtils.toByteArray(in);
+			in.close();
+			assertArrayEquals(data, content);
+
+			// read across the part boundary
+			InputStream in2 = blobResourceInfo1.getContent(partSize - 2, 4);
+			byte[] content2 = IOUtils.toByteArray(in2);
+			in2.close();
+			assertEquals(data[(int)partSize - 2], content2[0]);
+			assertEquals(data[(int)partSize + 1], content2[3]);
+
+			repository.delete(key1);
+			assertNull(repository.get(key1));
+		}finally{
+			multipartUploader.close();
+		}
 	}
 
-	public void testGet() {
-		//
+	@Test
+	public void testPutFile() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		long partSize = S3MultipartUploader.MIN_PART_SIZE;
+		S3MultipartUploader multipartUploader = new S3MultipartUploader(
+				clientFactory.getClient(), partSize, partSize, 2, 3);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+
+		String key1 = "f001";
+
+		byte[] data = new byte[(int)(partSize * 2 + 1024)];
+		for (int idx = 0; idx < data.length; idx++) {
+			data[idx] = (byte)(idx % 251);
+		}
+
+		File file = File.createTempFile("clobaframe-", ".bin");
+		FileUtils.writeByteArrayToFile(file, data);
+
+		try{
+			// test put by single request
+			repository.put(key1, new S3FileContentSource(file.toPath()),
+					"application/octet-stream", null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+
+			BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+			assertEquals(data.length, blobResourceInfo1.getContentLength());
+
+			InputStream in1 = blobResourceInfo1.getContent();
+			assertArrayEquals(data, IOUtils.toByteArray(in1));
+			in1.close();
+
+			// test put by multipart upload from the shared channel
+			repository.setMultipartUploader(multipartUploader);
+
+			FileChannel channel = FileChannel.open(file.toPath());
+			try{
+				repository.put(key1, new S3FileContentSource(channel),
+						"application/octet-stream", null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+			}finally{
+				channel.close();
+			}
+
+			BlobResourceInfo blobResourceInfo2 = repository.get(key1);
+			assertEquals(data.length, blobResourceInfo2.getContentLength());
+
+			InputStream in2 = blobResourceInfo2.getContent();
+			assertArrayEquals(data, IOUtils.toByteArray(in2));
+			in2.close();
+
+			repository.delete(key1);
+			assertNull(repository.get(key1));
+		}finally{
+			multipartUploader.close();
+			file.delete();
+		}
 	}
 
-	public void testDelete() {
-		//
+	@Test
+	public void testCopy() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3Copier copier = new S3Copier(clientFactory.getClient(),
+				S3Copier.MAX_SINGLE_COPY_SIZE, S3MultipartUploader.MIN_PART_SIZE, 2, 3, null);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setCopier(copier);
+
+		String key1 = "y001";
+		String key2 = "y002";
+		String key3 = "y003";
+
+		Map<String, Object> meta1 = new HashMap<String, Object>();
+		meta1.put("foo", "bar");
+
+		try{
+			writeContent(repository, key1, "hello", "text/plain", meta1);
+
+			// the metadata is kept
+			repository.copy(key1, testRepositoryName1, key2, false);
+			BlobResourceInfo blobResourceInfo2 = repository.get(key2);
+			assertEquals("hello", readContent(blobResourceInfo2));
+			assertEquals("text/plain", blobResourceInfo2.getMimeType());
+			assertEquals(meta1, blobResourceInfo2.getMetadata());
+
+			repository.move(key2, testRepositoryName1, key3, false);
+			assertNull(repository.get(key2));
+			assertEquals("hello", readContent(repository.get(key3)));
+
+			// copy the non-exists blob
+			try{
+				repository.copy(key2, testRepositoryName1, key1, false);
+				fail();
+			}catch(FileNotFoundException e){
+				// pass
+			}
+
+			// copy by prefix
+			Map<String, String> errors = repository.copyAll("y00", testRepositoryName1, "z/y00", false);
+			assertTrue(errors.isEmpty());
+			assertEquals("hello", readContent(repository.get("z/" + key1)));
+			assertEquals("hello", readContent(repository.get("z/" + key3)));
+
+			errors = repository.moveAll("z/", testRepositoryName1, "x/", false);
+			assertTrue(errors.isEmpty());
+			assertNull(repository.get("z/" + key1));
+			assertEquals("hello", readContent(repository.get("x/" + key1)));
+		}finally{
+			repository.delete(key1);
+			repository.delete(key3);
+			repository.delete("x/" + key1);
+			repository.delete("x/" + key3);
+			copier.close();
+		}
 	}
 
 	@Test
-	public void testList() throws IOException {
+	public void testGetContentIfModified() throws IOException {
 		Blobstore blobstore = blobstoreManager.getDefault();
-		
+
 		// check bucket first
-		if (!blobstore.exist(testRepositoryName2)){
-			blobstore.create(testRepositoryName2);
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
 		}
-		
-		// clean all
-		BlobResourceRepository repository = blobstore.getRepository(testRepositoryName2);
-		for(BlobResourceInfo info : repository.list()){
-			repository.delete(info.getKey());
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+
+		checkGetContentIfModified(repository);
+	}
+
+	@Test
+	public void testGetContentIfModifiedWithMetrics() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
 		}
-		
-		String key1 = "i001";
-		String key2 = "i002";
-		String key3 = "i003";
-		
-		Calendar calendar = Calendar.getInstance();
-		Date now = calendar.getTime();
-		
-		// test put blob
-		writeContent(repository, key1, "body {}", "text/css"); //, now);
-		writeContent(repository, key2, "div {}", "text/css"); //, now);
-		writeContent(repository, key3, "p {}", "text/css"); //, now);
 
-		// test list
-		PartialCollection<BlobResourceInfo> blobs1 = repository.list();
-		assertEquals(3, blobs1.size());
-		assertFalse(blobs1.hasMore());
+		S3Metrics metrics = new S3Metrics(false);
 
-		assertContainsKey(blobs1, key1);
-		assertContainsKey(blobs1, key2);
-		assertContainsKey(blobs1, key3);
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setMetrics(metrics);
+
+		checkGetContentIfModified(repository);
+
+		// the not modified responses are not errors
+		S3OperationMetrics get = metrics.get(testRepositoryName1, S3Operation.GET);
+		assertEquals(4, get.getCount());
+		assertEquals(1, get.getErrorCount());
+		assertEquals(5, get.getBytes());
+		assertEquals(0, get.getInFlight());
 	}
 
-	public void testListNext() {
-		//
+	private void checkGetContentIfModified(S3BlobResourceRepository repository) throws IOException {
+		String key1 = "v001";
+
+		try{
+			writeContent(repository, key1, "hello", "text/plain");
+
+			S3BlobResourceInfo blobResourceInfo1 = (S3BlobResourceInfo)repository.get(key1);
+			String eTag = blobResourceInfo1.getETag();
+			assertNotNull(eTag);
+
+			// not modified
+			S3ConditionalContent content1 = repository.getContent(key1, eTag, null);
+			assertFalse(content1.isModified());
+			assertNull(content1.getContent());
+
+			content1 = blobResourceInfo1.getContent(null,
+					new Date(blobResourceInfo1.getLastModified().getTime() + 60 * 1000));
+			assertFalse(content1.isModified());
+
+			// modified
+			writeContent(repository, key1, "world", "text/plain");
+			S3ConditionalContent content2 = repository.getContent(key1, eTag, null);
+			try{
+				assertTrue(content2.isModified());
+				assertEquals("world", IOUtils.toString(content2.getContent()));
+				assertEquals(5, content2.getContentLength());
+				assertFalse(eTag.equals(content2.getETag()));
+			}finally{
+				content2.close();
+			}
+
+			// get the non-exists blob
+			try{
+				repository.getContent("v002", eTag, null);
+				fail();
+			}catch(FileNotFoundException e){
+				// pass
+			}
+		}finally{
+			repository.delete(key1);
+		}
 	}
 
-	private void writeContent(
-			BlobResourceRepository repository,
-			String key,
-			String content,
-			String mimeType //,
-			//Date lastModified
-			) throws IOException{
-		writeContent(repository, key, content, mimeType, null); // lastModified, null);
+	@Test
+	public void testGetUrl() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		S3UrlSigner urlSigner = new S3UrlSigner(clientFactory.getClient(), 100, 60 * 1000);
+		repository.setUrlSigner(urlSigner);
+
+		String key1 = "u001";
+		String key2 = "u002";
+		long expiry = 10 * 60 * 1000;
+
+		try{
+			// upload by the presigned URL
+			URL uploadUrl = repository.getUploadUrl(key1, expiry, "text/plain");
+			HttpURLConnection connection = (HttpURLConnection)uploadUrl.openConnection();
+			connection.setRequestMethod("PUT");
+			connection.setRequestProperty("Content-Type", "text/plain");
+			connection.setDoOutput(true);
+			connection.getOutputStream().write("hello".getBytes("UTF-8"));
+			assertEquals(200, connection.getResponseCode());
+			connection.disconnect();
+
+			// download by the presigned URL
+			ResponseHeaderOverrides overrides = new ResponseHeaderOverrides()
+					.withContentDisposition("attachment; filename=\"hello.txt\"");
+			URL downloadUrl = repository.getDownloadUrl(key1, expiry, overrides);
+			InputStream in = downloadUrl.openStream();
+			try{
+				assertEquals("hello", IOUtils.toString(in));
+			}finally{
+				in.close();
+			}
+
+			// the URL is signed from cache
+			assertSame(downloadUrl, repository.getDownloadUrl(key1, expiry, overrides));
+			assertEquals(1, urlSigner.getHitCount());
+
+			// the different overrides
+			assertNotSame(downloadUrl, repository.getDownloadUrl(key1, expiry, null));
+
+			// bulk
+			Map<String, URL> urls = repository.getDownloadUrls(Arrays.asList(key1, key2), expiry, overrides);
+			assertEquals(2, urls.size());
+			assertSame(downloadUrl, urls.get(key1));
+			assertNotNull(urls.get(key2));
+		}finally{
+			repository.delete(key1);
+		}
 	}
 
-	private void writeContent(
-			BlobResourceRepository repository,
-			String key,
-			String content,
-			String mimeType,
-			//Date lastModified,
-			Map<String, Object> metadata) throws IOException{
-		
-		byte[] data = content.getBytes();
-		BlobResourceInfo blobResourceInfo = blobResourceInfoFactory.make(
-				testRepositoryName1, key, data, mimeType, null, metadata);
-		repository.put(blobResourceInfo);
+	@Test
+	public void testPutScheduled() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		// one upload at a time, 64 KB per second.
+		S3UploadScheduler uploadScheduler = new S3UploadScheduler(1, 64 * 1024);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setUploadScheduler(uploadScheduler);
+
+		String key1 = "s001";
+		byte[] data = new byte[128 * 1024];
+		Arrays.fill(data, (byte)'a');
+
+		try{
+			// the first 64 KB is the burst, the rest is shaped.
+			long begin = System.currentTimeMillis();
+			repository.put(key1, new S3ByteArrayContentSource(data), "application/octet-stream",
+					null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+			assertTrue(System.currentTimeMillis() - begin >= 900);
+
+			assertEquals(0, uploadScheduler.getRunningCount());
+			assertEquals(0, uploadScheduler.getWaitingCount());
+
+			BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+			assertEquals(data.length, blobResourceInfo1.getContentLength());
+		}finally{
+			repository.delete(key1);
+		}
 	}
 
-	private String readContent(
-			BlobResourceInfo blob) throws IOException{
-		InputStream in = blob.getContent();
-		String content = IOUtils.toString(in);
-		in.close();
-		return content;
+	@Test
+	public void testPutChecksum() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setContentChecksum(new S3ContentChecksum());
+
+		String key1 = "k001";
+		String key2 = "k002";
+		byte[] data = "hello world".getBytes();
+
+		try{
+			// the in-memory content is put with the checksum.
+			repository.put(key1, new S3ByteArrayContentSource(data), "text/plain",
+					null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+
+			BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+			assertEquals("hello world", readContent(blobResourceInfo1));
+			assertNull(blobResourceInfo1.getMetadata());
+			String checksum = getStoredChecksum(key1);
+			assertNotNull(checksum);
+
+			// the throttled in-memory content is put with the checksum too.
+			repository.setUploadScheduler(new S3UploadScheduler(0, 64 * 1024));
+			repository.put(key1, new S3ByteArrayContentSource(data), "text/plain",
+					null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+			assertEquals(checksum, getStoredChecksum(key1));
+
+			// the file content is digested while it is sent, and
+			// verified by the ETag instead of the CRC-32C.
+			String md5 = DigestUtils.md5DigestAsHex(data);
+			File file = File.createTempFile("clobaframe-", ".bin");
+			try{
+				FileUtils.writeByteArrayToFile(file, data);
+				repository.put(key1, new S3FileContentSource(file.toPath()), "text/plain",
+						null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+				assertNull(getStoredChecksum(key1));
+				assertEquals(md5, ((S3ETaggedBlobResourceInfo)repository.get(key1)).getETag());
+				assertEquals("hello world", readContent(repository.get(key1)));
+			}finally{
+				file.delete();
+			}
+			repository.setUploadScheduler(null);
+
+			// the streamed content is digested while it is sent too.
+			writeContent(repository, key2, "hello world", "text/plain");
+			assertEquals("hello world", readContent(repository.get(key2)));
+			assertNull(getStoredChecksum(key2));
+			assertEquals(md5, ((S3ETaggedBlobResourceInfo)repository.get(key2)).getETag());
+
+			// test the corrupted content
+			ObjectMetadata meta = new ObjectMetadata();
+			meta.setContentLength(data.length);
+			meta.addUserMetadata(S3ContentChecksum.CRC32C_KEY, "0");
+			clientFactory.getClient().putObject(testRepositoryName1, key1,
+					new ByteArrayInputStream(data), meta);
+
+			InputStream in = repository.get(key1).getContent();
+			try{
+				IOUtils.toByteArray(in);
+				fail();
+			}catch(IOException e){
+				// pass
+			}finally{
+				in.close();
+			}
+		}finally{
+			repository.delete(key1);
+			repository.delete(key2);
+		}
 	}
 
-	private String readContent(
-			BlobResourceInfo blob, long start, long length) throws IOException{
-		InputStream in = blob.getContent(start, length);
-		String content = IOUtils.toString(in);
-		in.close();
-		return content;
+	@Test
+	public void testGetContentParallel() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		// download by 3 bytes per range, 2 ranges at the same time.
+		S3ParallelDownloader parallelDownloader = new S3ParallelDownloader(
+				clientFactory.getClient(), 1, 3, 2, 3);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setParallelDownloader(parallelDownloader);
+
+		String key1 = "p001";
+
+		try{
+			writeContent(repository, key1, "hello world", "text/plain");
+
+			BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+			assertEquals("hello world", readContent(blobResourceInfo1));
+
+			// the partial content is not affected.
+			assertEquals("lo w", readContent(blobResourceInfo1, 3, 4));
+
+			// test get content by listing
+			for (BlobResourceInfo info : repository.list()) {
+				if (info.getKey().equals(key1)) {
+					assertEquals("hello world", readContent(info));
+				}
+			}
+
+			repository.delete(key1);
+		}finally{
+			parallelDownloader.close();
+		}
+	}
+
+	@Test
+	public void testGetChannel() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+
+		String key1 = "b001";
+		byte[] data = new byte[10 * 1024 + 10];
+		for (int idx = 0; idx < data.length; idx++) {
+			data[idx] = (byte)idx;
+		}
+
+		try{
+			repository.put(key1, new S3ByteArrayContentSource(data), "application/octet-stream",
+					null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+
+			// 1 KB blocks, read 4 blocks ahead at most.
+			S3SeekableByteChannel channel = new S3SeekableByteChannel(
+					repository.get(key1), 1024, 8, 4);
+			assertEquals(data.length, channel.size());
+
+			// the small reads of the same block share one request.
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			channel.position(data.length - 8);
+			assertEquals(4, channel.read(buffer));
+			assertEquals(data[data.length - 8], buffer.get(0));
+
+			buffer.clear();
+			assertEquals(4, channel.read(buffer));
+			assertEquals(data[data.length - 1], buffer.get(3));
+			assertEquals(-1, channel.read(buffer));
+			assertEquals(1, channel.getRequestCount());
+
+			// the sequential reads are read ahead.
+			ByteBuffer all = ByteBuffer.allocate(data.length);
+			channel.position(0);
+			while (all.hasRemaining() && channel.read(all) > 0) {
+				// continue
+			}
+			assertTrue(Arrays.equals(data, all.array()));
+			assertTrue(channel.getRequestCount() < 11);
+
+			channel.close();
+			assertFalse(channel.isOpen());
+
+			// the blob is overwritten while reading.
+			S3SeekableByteChannel channel2 = new S3SeekableByteChannel(
+					repository.get(key1), 1024, 8, 4);
+			assertNotNull(channel2.getETag());
+			assertEquals(4, channel2.read(ByteBuffer.allocate(4)));
+
+			byte[] data2 = Arrays.copyOf(data, data.length);
+			data2[data2.length - 1]++;
+			repository.put(key1, new S3ByteArrayContentSource(data2), "application/octet-stream",
+					null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+
+			channel2.position(data.length - 1);
+			try{
+				channel2.read(ByteBuffer.allocate(1));
+				fail();
+			}catch(IOException e){
+				// pass
+			}finally{
+				channel2.close();
+			}
+		}finally{
+			repository.delete(key1);
+		}
+	}
+
+	@Test
+	public void testPutCompressed() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3ContentCompressor compressor = new S3ContentCompressor(
+				new S3GzipContentCodec(-1), 16, Arrays.asList("image/*"));
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setCompressor(compressor);
+
+		S3BlobResourceRepository rawRepository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+
+		String key1 = "c001";
+		String key2 = "c002";
+
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			builder.append("{\"id\":").append(i).append("}\n");
+		}
+		String content = builder.toString();
+
+		Map<String, Object> meta1 = new HashMap<String, Object>();
+		meta1.put("foo", "bar");
+
+		writeContent(repository, key1, content, "application/json", meta1);
+		writeContent(repository, key2, content, "image/png");
+
+		BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+		assertEquals(content.length(), blobResourceInfo1.getContentLength());
+		assertEquals(content, readContent(blobResourceInfo1));
+		assertEquals(content.substring(20, 30), readContent(blobResourceInfo1, 20, 10));
+		assertEquals(meta1, blobResourceInfo1.getMetadata());
+
+		// the stored content is compressed
+		assertTrue(clientFactory.getClient().getObjectMetadata(
+				testRepositoryName1, key1).getContentLength() < content.length());
+
+		// the compressed blob is decompressed without the compressor
+		BlobResourceInfo rawInfo1 = rawRepository.get(key1);
+		assertEquals(content.length(), rawInfo1.getContentLength());
+		assertEquals(content, readContent(rawInfo1));
+		assertEquals(content.substring(20, 30), readContent(rawInfo1, 20, 10));
+
+		// test get content by listing
+		for (BlobResourceInfo info : repository.list()) {
+			if (info.getKey().equals(key1)) {
+				assertEquals(content.length(), info.getContentLength());
+				assertEquals(content, readContent(info));
+				assertEquals(content.substring(20, 30), readContent(info, 20, 10));
+			}
+		}
+
+		// the listing without the compressor does not load the metadata,
+		// it reports the stored size but the content is still decompressed.
+		for (BlobResourceInfo info : rawRepository.list()) {
+			if (info.getKey().equals(key1)) {
+				assertEquals(((S3BlobResourceInfoBySummary)info).getStoredContentLength(),
+						info.getContentLength());
+				assertEquals(content.substring(20, 30), readContent(info, 20, 10));
+				assertEquals(content, readContent(info));
+			}
+		}
+
+		// the skipped type is not compressed
+		assertEquals(content.length(), clientFactory.getClient().getObjectMetadata(
+				testRepositoryName1, key2).getContentLength());
+
+		// the object that is encoded by the others is read as it is stored
+		String key3 = "c003";
+		byte[] stored = "not compressed".getBytes();
+		ObjectMetadata objectMetadata = new ObjectMetadata();
+		objectMetadata.setContentLength(stored.length);
+		objectMetadata.setContentEncoding(S3GzipContentCodec.ENCODING);
+		clientFactory.getClient().putObject(testRepositoryName1, key3,
+				new ByteArrayInputStream(stored), objectMetadata);
+
+		BlobResourceInfo blobResourceInfo3 = repository.get(key3);
+		assertEquals(stored.length, blobResourceInfo3.getContentLength());
+		assertEquals("not compressed", readContent(blobResourceInfo3));
+
+		// the large blob is not compressed without multipart upload,
+		// so its compressed content is not buffered in memory.
+		String key4 = "c004";
+		byte[] data4 = new byte[(int)S3BlobResourceRepository.MAX_BUFFERED_ENCODED_LENGTH + 1];
+		Arrays.fill(data4, (byte)'a');
+		repository.put(key4, new S3ByteArrayContentSource(data4), "application/octet-stream",
+				null, false, BlobResourceRepository.PRIORITY_DEFAULT);
+		assertEquals(data4.length, clientFactory.getClient().getObjectMetadata(
+				testRepositoryName1, key4).getContentLength());
+
+		repository.delete(key1);
+		repository.delete(key2);
+		repository.delete(key3);
+		repository.delete(key4);
+	}
+
+	@Test
+	public void testGetHedged() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3RequestHedger requestHedger = new S3RequestHedger(
+				clientFactory.getClient(), 95, 0, 50, 2, new S3Backoff(10, 100), 4);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setRequestHedger(requestHedger);
+
+		String key1 = "h001";
+
+		try{
+			writeContent(repository, key1, "hello", "text/plain");
+
+			// the duplicate request is sent when the response is slower than 50 ms,
+			// the result should be the same.
+			for (int idx = 0; idx < 10; idx++) {
+				BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+				assertEquals(5, blobResourceInfo1.getContentLength());
+				assertEquals("hello", readContent(blobResourceInfo1));
+			}
+
+			assertTrue(requestHedger.getDelay() <= 50);
+
+			repository.delete(key1);
+			assertNull(repository.get(key1));
+		}finally{
+			requestHedger.close();
+		}
+	}
+
+	@Test
+	public void testHedgeSlowRequest() throws InterruptedException {
+		S3RequestHedger requestHedger = new S3RequestHedger(
+				clientFactory.getClient(), 95, 20, 20, 0, new S3Backoff(10, 100), 4);
+
+		final AtomicInteger attempts = new AtomicInteger();
+		final CountDownLatch discarded = new CountDownLatch(1);
+		final List<String> discardedValues = Collections.synchronizedList(new ArrayList<String>());
+
+		try{
+			// the first attempt is slow and ignores the interruption,
+			// like the blocking socket read.
+			String value = requestHedger.execute(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					if (attempts.incrementAndGet() == 1) {
+						long end = System.currentTimeMillis() + 500;
+						while (System.currentTimeMillis() < end) {
+							try{
+								Thread.sleep(10);
+							}catch(InterruptedException e){
+								// ignore
+							}
+						}
+						return "slow";
+					}
+					return "fast";
+				}
+			}, (String loser) -> {
+				discardedValues.add(loser);
+				discarded.countDown();
+			});
+
+			assertEquals("fast", value);
+			assertEquals(2, attempts.get());
+			assertEquals(1, requestHedger.getHedgedCount());
+
+			// the result of the losing attempt is released
+			assertTrue(discarded.await(5, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("slow"), discardedValues);
+		}finally{
+			requestHedger.close();
+		}
+	}
+
+	@Test
+	public void testGetCoalesced() throws IOException, InterruptedException, ExecutionException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3RequestCoalescer requestCoalescer = new S3RequestCoalescer(1024);
+
+		final S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setRequestCoalescer(requestCoalescer);
+
+		final String key1 = "c001";
+		ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+		try{
+			writeContent(repository, key1, "hello", "text/plain");
+
+			// the concurrent readers share the result.
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int idx = 0; idx < 16; idx++) {
+				futures.add(executorService.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return readContent(repository.get(key1));
+					}
+				}));
+			}
+
+			for (Future<String> future : futures) {
+				assertEquals("hello", future.get());
+			}
+
+			// the changed content is not shared with the stale blob.
+			BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+			writeContent(repository, key1, "world", "text/plain");
+			assertEquals("world", readContent(blobResourceInfo1));
+
+			repository.delete(key1);
+			assertNull(repository.get(key1));
+		}finally{
+			executorService.shutdown();
+		}
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3Metrics metrics = new S3Metrics(false);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setMetrics(metrics);
+
+		String key1 = "t001";
+
+		writeContent(repository, key1, "hello", "text/plain");
+
+		BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+		assertEquals("hello", readContent(blobResourceInfo1));
+
+		// only the bytes actually read are counted
+		InputStream in = blobResourceInfo1.getContent();
+		assertEquals('h', in.read());
+		in.close();
+
+		repository.delete(key1);
+		assertNull(repository.get(key1));
+
+		S3OperationMetrics put = metrics.get(testRepositoryName1, S3Operation.PUT);
+		assertEquals(1, put.getCount());
+		assertEquals(0, put.getErrorCount());
+		assertEquals(5, put.getBytes());
+		assertEquals(0, put.getInFlight());
+
+		S3OperationMetrics get = metrics.get(testRepositoryName1, S3Operation.GET);
+		assertEquals(2, get.getCount());
+		assertEquals(6, get.getBytes());
+		assertEquals(0, get.getInFlight());
+
+		// the non-exists blob is not an error
+		S3OperationMetrics head = metrics.get(testRepositoryName1, S3Operation.HEAD);
+		assertEquals(2, head.getCount());
+		assertEquals(0, head.getErrorCount());
+		assertTrue(head.getMaxLatency() >= head.getLatency50());
+
+		assertEquals(1, metrics.get(testRepositoryName1, S3Operation.DELETE).getCount());
+
+		// the hits of the metadata cache send no HEAD request
+		S3Metrics cachedMetrics = new S3Metrics(false);
+		S3MetadataCache metadataCache = new S3MetadataCache(
+				clientFactory.getClient(), 100, 60 * 1000, 60 * 1000);
+		metadataCache.setMetrics(cachedMetrics);
+		repository.setMetrics(cachedMetrics);
+		repository.setMetadataCache(metadataCache);
+
+		assertNull(repository.get(key1));
+		assertNull(repository.get(key1));
+		assertEquals(1, cachedMetrics.get(testRepositoryName1, S3Operation.HEAD).getCount());
+	}
+
+	@Test
+	public void testPutPacked() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+
+		S3SegmentStore segmentStore = new S3SegmentStore(repository, 1024);
+		segmentStore.load();
+
+		S3PackedBlobResourceRepository packedRepository =
+				new S3PackedBlobResourceRepository(repository, segmentStore, 100);
+
+		String key1 = "p001";
+		String key2 = "p002";
+		String key3 = "p003";
+		String key4 = "p004";
+		String key5 = "p005";
+
+		try{
+			// read from the pending segment
+			writeContent(packedRepository, key1, "hello", "text/plain");
+			writeContent(packedRepository, key2, "world", "text/plain");
+			assertEquals("hello", readContent(packedRepository.get(key1)));
+
+			// read by the byte range of segment
+			packedRepository.flush();
+			BlobResourceInfo blobResourceInfo2 = packedRepository.get(key2);
+			assertTrue(blobResourceInfo2 instanceof S3PackedBlobResourceInfo);
+			assertEquals(5, blobResourceInfo2.getContentLength());
+			assertEquals("world", readContent(blobResourceInfo2));
+			assertEquals("orl", readContent(blobResourceInfo2, 1, 3));
+
+			// the large blob is not packed
+			char[] chars = new char[200];
+			Arrays.fill(chars, 'a');
+			writeContent(packedRepository, key3, new String(chars), "text/plain");
+			assertFalse(packedRepository.get(key3) instanceof S3PackedBlobResourceInfo);
+
+			// reload the index
+			packedRepository.delete(key1);
+			packedRepository.flush();
+
+			S3SegmentStore segmentStore2 = new S3SegmentStore(repository, 1024);
+			segmentStore2.load();
+			assertNull(segmentStore2.get(key1));
+			assertNotNull(segmentStore2.get(key2));
+
+			// the segment is rewritten since the half of it is deleted
+			assertEquals(1, segmentStore.compact(0.6));
+			assertEquals("world", readContent(packedRepository.get(key2)));
+
+			// the packed blob is copied and moved within the segment store
+			packedRepository.copy(key2, testRepositoryName1, key4, false);
+			assertTrue(packedRepository.get(key4) instanceof S3PackedBlobResourceInfo);
+			assertEquals("world", readContent(packedRepository.get(key4)));
+
+			packedRepository.move(key4, testRepositoryName1, key5, false);
+			assertNull(packedRepository.get(key4));
+			assertEquals("world", readContent(packedRepository.get(key5)));
+		}finally{
+			packedRepository.delete(key1);
+			packedRepository.delete(key2);
+			packedRepository.delete(key3);
+			packedRepository.delete(key5);
+			packedRepository.flush();
+
+			// delete the retired segments
+			segmentStore.compact(0.5);
+			segmentStore.compact(0.5);
+		}
+	}
+
+	@Test
+	public void testGetContentCached() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		File directory = new File(System.getProperty("java.io.tmpdir"), "clobaframe-s3-cache-test");
+		File otherFile = new File(directory, "other.txt");
+		FileUtils.writeStringToFile(otherFile, "other");
+
+		// the files out of the cache directory are kept
+		S3ContentCache contentCache = new S3ContentCache(directory, 1024);
+		assertTrue(otherFile.exists());
+
+		BlobResourceRepository repository = new S3CachedBlobResourceRepository(
+				new S3BlobResourceRepository(clientFactory.getClient(), testRepositoryName1),
+				contentCache);
+
+		String key1 = "c001";
+		writeContent(repository, key1, "hello world", "text/plain");
+
+		// the content is cached after reading
+		BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+		assertEquals(0, contentCache.getTotalSize());
+		assertEquals("hello world", readContent(blobResourceInfo1));
+		assertEquals(11, contentCache.getTotalSize());
+
+		// read from cache
+		assertEquals("hello world", readContent(blobResourceInfo1));
+		assertEquals("lo w", readContent(blobResourceInfo1, 3, 4));
+
+		// the opened cached file is readable after it is evicted
+		InputStream in = blobResourceInfo1.getContent();
+		contentCache.invalidate(testRepositoryName1, key1);
+		assertEquals("hello world", IOUtils.toString(in));
+		in.close();
+		assertEquals("hello world", readContent(blobResourceInfo1));
+
+		// test overwrite
+		writeContent(repository, key1, "foo", "text/plain");
+		assertEquals(0, contentCache.getTotalSize());
+
+		BlobResourceInfo blobResourceInfo2 = repository.get(key1);
+		assertEquals("foo", readContent(blobResourceInfo2));
+		assertEquals(3, contentCache.getTotalSize());
+
+		// the iterated blobs are cached too
+		S3ListingIterator iterator1 = ((S3CachedBlobResourceRepository)repository).iterate("c0", null);
+		try{
+			assertTrue(iterator1.hasNext());
+			BlobResourceInfo blobResourceInfo3 = iterator1.next();
+			assertTrue(blobResourceInfo3 instanceof S3CachedBlobResourceInfo);
+			assertEquals("foo", readContent(blobResourceInfo3));
+		}finally{
+			iterator1.close();
+		}
+
+		// the content is not cached until the end of stream is read,
+		// e.g. the checksum is verified at the end.
+		InputStream in2 = contentCache.wrap(testRepositoryName1, "c002", "e002", 5,
+				new ByteArrayInputStream("hello".getBytes()));
+		IOUtils.readFully(in2, new byte[5]);
+		in2.close();
+		assertNull(contentCache.open(testRepositoryName1, "c002", "e002"));
+		assertEquals(3, contentCache.getTotalSize());
+
+		// test delete
+		repository.delete(key1);
+		assertEquals(0, contentCache.getTotalSize());
+	}
+
+	@Test
+	public void testPutWriteBehind() throws IOException, InterruptedException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		final S3BlobResourceRepository target = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+
+		File directory = new File(System.getProperty("java.io.tmpdir"), "clobaframe-s3-spool-test");
+		FileUtils.deleteQuietly(directory);
+
+		S3UploadSpool uploadSpool = new S3UploadSpool(directory, 2, 3,
+				new S3Backoff(10, 100), repoName -> target);
+		uploadSpool.open();
+
+		BlobResourceRepository repository = new S3WriteBehindBlobResourceRepository(
+				target, uploadSpool);
+
+		String key1 = "w001";
+		String key2 = "w002";
+
+		try{
+			// the pending blob is read from the spool
+			writeContent(repository, key1, "hello", "text/plain");
+			writeContent(repository, key2, "world", "text/plain");
+			repository.delete(key2);
+
+			assertEquals("hello", readContent(repository.get(key1)));
+			assertNull(repository.get(key2));
+
+			// the blobs are uploaded in the background
+			assertTrue(uploadSpool.awaitDrained(10000));
+			assertEquals(0, uploadSpool.getPendingCount());
+			assertEquals("hello", readContent(target.get(key1)));
+			assertNull(target.get(key2));
+
+			// the pending blob is resumed by the new spool
+			uploadSpool.close();
+			uploadSpool = new S3UploadSpool(directory, 2, 3,
+					new S3Backoff(10, 100), repoName -> target);
+			uploadSpool.open();
+			assertEquals(0, uploadSpool.getPendingCount());
+		}finally{
+			uploadSpool.close();
+			target.delete(key1);
+			FileUtils.deleteQuietly(directory);
+		}
+	}
+
+	@Test
+	public void testPutWriteBehindFailed() throws IOException, InterruptedException {
+		// the bucket does not exist, i.e. the non-retryable error.
+		final S3BlobResourceRepository target = new S3BlobResourceRepository(
+				clientFactory.getClient(), "clobaframe-missing-" + UUID.randomUUID().toString());
+
+		File directory = new File(System.getProperty("java.io.tmpdir"), "clobaframe-s3-spool-failed-test");
+		FileUtils.deleteQuietly(directory);
+
+		S3UploadSpool uploadSpool = new S3UploadSpool(directory, 1, 3,
+				new S3Backoff(10, 100), repoName -> target);
+		uploadSpool.open();
+
+		BlobResourceRepository repository = new S3WriteBehindBlobResourceRepository(
+				target, uploadSpool);
+
+		String key1 = "f001";
+
+		try{
+			// the failed blob is kept in the spool instead of retrying forever.
+			writeContent(repository, key1, "hello", "text/plain");
+			assertTrue(uploadSpool.awaitDrained(10000));
+			assertEquals(1, uploadSpool.getFailedEntries().size());
+			assertEquals(key1, uploadSpool.getFailedEntries().get(0).getKey());
+
+			// the failed blob is kept after the spool is opened again.
+			uploadSpool.close();
+			uploadSpool = new S3UploadSpool(directory, 1, 3,
+					new S3Backoff(10, 100), repoName -> target);
+			uploadSpool.open();
+			assertEquals(0, uploadSpool.getPendingCount());
+			assertEquals(1, uploadSpool.getFailedEntries().size());
+
+			// retry it, it fails again.
+			uploadSpool.retryFailed();
+			assertTrue(uploadSpool.awaitDrained(10000));
+			assertEquals(1, uploadSpool.getFailedEntries().size());
+
+			// the later operation of the same blob replaces the failed one.
+			repository = new S3WriteBehindBlobResourceRepository(target, uploadSpool);
+			repository.delete(key1);
+			assertTrue(uploadSpool.awaitDrained(10000));
+			assertEquals(0, uploadSpool.getFailedEntries().size());
+		}finally{
+			uploadSpool.close();
+			FileUtils.deleteQuietly(directory);
+		}
+	}
+
+	@Test
+	public void testGetWithMetadataCache() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		S3MetadataCache metadataCache = new S3MetadataCache(
+				clientFactory.getClient(), 100, 60 * 1000, 60 * 1000);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName1);
+		repository.setMetadataCache(metadataCache);
+
+		String key1 = "h001";
+		repository.delete(key1);
+
+		// test negative cache
+		assertNull(repository.get(key1));
+		assertNull(repository.get(key1));
+		assertEquals(1, metadataCache.getMissCount());
+		assertEquals(1, metadataCache.getHitCount());
+
+		// test invalidate by put
+		writeContent(repository, key1, "hello", "text/plain");
+		BlobResourceInfo blobResourceInfo1 = repository.get(key1);
+		assertEquals(5, blobResourceInfo1.getContentLength());
+		assertEquals(2, metadataCache.getMissCount());
+
+		BlobResourceInfo blobResourceInfo2 = repository.get(key1);
+		assertEquals(5, blobResourceInfo2.getContentLength());
+		assertEquals(2, metadataCache.getHitCount());
+
+		// the returned metadata is a copy
+		metadataCache.getObjectMetadata(testRepositoryName1, key1).setContentLength(0);
+		assertEquals(5, metadataCache.getObjectMetadata(testRepositoryName1, key1).getContentLength());
+
+		// test invalidate by delete
+		repository.delete(key1);
+		assertNull(repository.get(key1));
+		assertEquals(3, metadataCache.getMissCount());
+	}
+
+	@Test
+	public void testPutAsync() throws IOException, InterruptedException, ExecutionException {
+		S3Blobstore blobstore = (S3Blobstore)blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.existAsync(testRepositoryName1).get()){
+			blobstore.createAsync(testRepositoryName1).get();
+		}
+
+		S3AsyncBlobResourceRepository repository = blobstore.getRepositoryAsync(testRepositoryName1).get();
+		assertEquals(testRepositoryName1, repository.getName());
+
+		String key1 = "a001";
+
+		BlobResourceInfo blobResourceInfo = blobResourceInfoFactory.make(
+				testRepositoryName1, key1, "hello".getBytes(), "text/plain", null, null);
+
+		// test put then get
+		BlobResourceInfo blobResourceInfo1 = repository.put(blobResourceInfo)
+				.thenCompose(v -> repository.get(key1))
+				.get();
+
+		assertEquals(5, blobResourceInfo1.getContentLength());
+		assertEquals("hello", readContent(blobResourceInfo1));
+
+		// test delete
+		repository.delete(key1).get();
+		assertNull(repository.get(key1).get());
+
+		// test get none-exists repository, the bucket name is global so it is random.
+		assertNull(blobstore.getRepositoryAsync("none-exists-" + UUID.randomUUID()).get());
+	}
+
+	@Test
+	public void testAsyncCancel() throws Exception {
+		S3AsyncExecutor asyncExecutor = new S3AsyncExecutor(
+				Executors.newFixedThreadPool(2), 1, 10);
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+
+		try{
+			Future<Void> future1 = asyncExecutor.submit(testRepositoryName1, () -> {
+				started.countDown();
+				try{
+					Thread.sleep(60 * 1000);
+				}catch(InterruptedException e){
+					interrupted.countDown();
+				}
+				return null;
+			});
+
+			// it is queued behind the first one.
+			Future<String> future2 = asyncExecutor.submit(testRepositoryName1, () -> "done");
+
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			future1.cancel(true);
+
+			// the running operation is interrupted, and it releases the slot.
+			assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+			assertEquals("done", future2.get(10, TimeUnit.SECONDS));
+		}finally{
+			asyncExecutor.close();
+		}
+	}
+
+	public void testPutWithParams() {
+		//
+	}
+
+	public void testGet() {
+		//
+	}
+
+	public void testDelete() {
+		//
+	}
+
+	@Test
+	public void testList() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+		
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName2)){
+			blobstore.create(testRepositoryName2);
+		}
+		
+		// clean all
+		BlobResourceRepository repository = blobstore.getRepository(testRepositoryName2);
+		for(BlobResourceInfo info : repository.list()){
+			repository.delete(info.getKey());
+		}
+		
+		String key1 = "i001";
+		String key2 = "i002";
+		String key3 = "i003";
+		
+		Calendar calendar = Calendar.getInstance();
+		Date now = calendar.getTime();
+		
+		// test put blob
+		writeContent(repository, key1, "body {}", "text/css"); //, now);
+		writeContent(repository, key2, "div {}", "text/css"); //, now);
+		writeContent(repository, key3, "p {}", "text/css"); //, now);
+
+		// test list
+		PartialCollection<BlobResourceInfo> blobs1 = repository.list();
+		assertEquals(3, blobs1.size());
+		assertFalse(blobs1.hasMore());
+
+		assertContainsKey(blobs1, key1);
+		assertContainsKey(blobs1, key2);
+		assertContainsKey(blobs1, key3);
+	}
+
+	@Test
+	public void testDeleteBatch() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName2)){
+			blobstore.create(testRepositoryName2);
+		}
+
+		S3BlobResourceRepository repository = (S3BlobResourceRepository)blobstore.getRepository(testRepositoryName2);
+
+		String key1 = "d001";
+		String key2 = "d002";
+		String key3 = "d003";
+
+		writeContent(repository, key1, "foo", "text/plain");
+		writeContent(repository, key2, "bar", "text/plain");
+		writeContent(repository, key3, "baz", "text/plain");
+
+		// test delete multiple keys, include the none-exists key
+		Map<String, String> failures1 = repository.delete(Arrays.asList(key1, key2, "none-exists"));
+		assertTrue(failures1.isEmpty());
+		assertNull(repository.get(key1));
+		assertNull(repository.get(key2));
+		assertNotNull(repository.get(key3));
+
+		// test purge
+		Map<String, String> failures2 = repository.purge();
+		assertTrue(failures2.isEmpty());
+		assertTrue(repository.list().isEmpty());
+	}
+
+	@Test
+	public void testIterate() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName2)){
+			blobstore.create(testRepositoryName2);
+		}
+
+		S3BlobResourceRepository repository = (S3BlobResourceRepository)blobstore.getRepository(testRepositoryName2);
+		repository.purge();
+
+		writeContent(repository, "css/a.css", "body {}", "text/css");
+		writeContent(repository, "css/b.css", "div {}", "text/css");
+		writeContent(repository, "css/theme/c.css", "p {}", "text/css");
+		writeContent(repository, "js/d.js", "var d;", "text/javascript");
+
+		// test iterate all, the next page is listed in background
+		S3ListingIterator iterator1 = repository.iterate(null, null, true);
+		int count = 0;
+		while (iterator1.hasNext()) {
+			iterator1.next();
+			count++;
+		}
+		assertEquals(4, count);
+
+		// test iterate with prefix and delimiter
+		S3ListingIterator iterator2 = repository.iterate("css/", "/");
+		assertEquals("css/a.css", iterator2.next().getKey());
+		assertEquals("css/b.css", iterator2.next().getKey());
+		assertFalse(iterator2.hasNext());
+		assertEquals(Arrays.asList("css/theme/"), iterator2.getCommonPrefixes());
+
+		// test list with prefix
+		PartialCollection<BlobResourceInfo> blobs1 = repository.list("css/", null);
+		assertEquals(3, blobs1.size());
+		assertFalse(blobs1.hasMore());
+
+		repository.purge();
+	}
+
+	@Test
+	public void testListCompact() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName2)){
+			blobstore.create(testRepositoryName2);
+		}
+
+		S3BlobResourceRepository repository = (S3BlobResourceRepository)blobstore.getRepository(testRepositoryName2);
+		repository.purge();
+
+		writeContent(repository, "css/a.css", "body {}", "text/css");
+		writeContent(repository, "css/b.css", "div {}", "text/css");
+		writeContent(repository, "css/theme/c.css", "p {}", "text/css");
+		writeContent(repository, "js/d.js", "var d;", "text/javascript");
+
+		try{
+			// test list all
+			S3CompactPartialList blobs1 = repository.listCompact(null, null);
+			assertEquals(4, blobs1.size());
+			assertFalse(blobs1.hasMore());
+			assertEquals("css/a.css", blobs1.getKey(0));
+			assertEquals(7, blobs1.getContentLength(0));
+			assertNotNull(blobs1.getETag(0));
+			assertTrue(blobs1.getLastModified(0) > 0);
+
+			// the blob is created when it is accessed
+			BlobResourceInfo blobResourceInfo1 = blobs1.get(3);
+			assertEquals("js/d.js", blobResourceInfo1.getKey());
+			assertEquals("var d;", readContent(blobResourceInfo1));
+
+			// test list with prefix and delimiter
+			S3CompactPartialList blobs2 = repository.listCompact("css/", "/");
+			assertEquals(2, blobs2.size());
+			assertArrayEquals(new String[]{"css/theme/"}, blobs2.getCommonPrefixes());
+		}finally{
+			repository.purge();
+		}
+	}
+
+	@Test
+	public void testSync() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName2)){
+			blobstore.create(testRepositoryName2);
+		}
+
+		// the repository may be wrapped, e.g. cached, packed or write-behind.
+		S3ExtendedBlobResourceRepository repository =
+				(S3ExtendedBlobResourceRepository)blobstore.getRepository(testRepositoryName2);
+		List<String> keys = Arrays.asList("site/a.txt", "site/css/b.css", "site/c.txt");
+		repository.delete(keys);
+
+		File directory = new File(FileUtils.getTempDirectory(), "s3sync-test");
+		File stateFile = new File(FileUtils.getTempDirectory(), "s3sync-test.state");
+		FileUtils.deleteQuietly(directory);
+		FileUtils.deleteQuietly(stateFile);
+
+		try{
+			FileUtils.writeStringToFile(new File(directory, "a.txt"), "hello");
+			FileUtils.writeStringToFile(new File(directory, "css/b.css"), "body {}");
+			writeContent(repository, "site/c.txt", "removed", "text/plain");
+
+			S3SyncResult result1 = repository.sync(directory, "site/", stateFile, true);
+			assertEquals(2, result1.getUploadedCount());
+			assertEquals(1, result1.getDeletedCount());
+			assertTrue(result1.getFailures().isEmpty());
+			assertEquals("body {}", readContent(repository.get("site/css/b.css")));
+			assertNull(repository.get("site/c.txt"));
+
+			// the unchanged files are skipped by the state
+			S3SyncResult result2 = repository.sync(directory, "site/", stateFile, true);
+			assertEquals(0, result2.getUploadedCount());
+			assertEquals(2, result2.getUnchangedCount());
+			assertEquals(0, result2.getHashedCount());
+
+			// the unchanged files are compared by the ETag without the state
+			FileUtils.writeStringToFile(new File(directory, "a.txt"), "world");
+			stateFile.delete();
+
+			S3SyncResult result3 = repository.sync(directory, "site/", stateFile, true);
+			assertEquals(1, result3.getUploadedCount());
+			assertEquals(1, result3.getUnchangedCount());
+			assertEquals("world", readContent(repository.get("site/a.txt")));
+
+			// the empty directory does not delete all blobs
+			FileUtils.cleanDirectory(directory);
+			try{
+				repository.sync(directory, "site/", stateFile, true);
+				fail();
+			}catch(IOException e){
+				// pass
+			}
+			assertEquals("world", readContent(repository.get("site/a.txt")));
+		}finally{
+			FileUtils.deleteQuietly(directory);
+			FileUtils.deleteQuietly(stateFile);
+			repository.delete(keys);
+		}
+	}
+
+	@Test
+	public void testIterateParallel() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName2)){
+			blobstore.create(testRepositoryName2);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		S3BlobResourceRepository repository = new S3BlobResourceRepository(
+				clientFactory.getClient(), testRepositoryName2);
+		repository.setParallelLister(new S3ParallelLister(clientFactory.getClient(), pool, 4, 2));
+		repository.purge();
+
+		List<String> keys = Arrays.asList(
+				"css/a.css", "css/b.css", "css/theme/c.css", "index.html",
+				"js/d.js", "js/e.js", "js/lib/f.js", "robots.txt");
+		for (String key : keys) {
+			writeContent(repository, key, "", "text/plain");
+		}
+
+		try{
+			// test iterate by the discovered prefixes in key order
+			S3PartitionedListingIterator iterator1 = repository.iterateParallel(null, "/", 4, true);
+			List<String> keys1 = new ArrayList<String>();
+			while (iterator1.hasNext()) {
+				keys1.add(iterator1.next().getKey());
+			}
+			assertEquals(keys, keys1);
+
+			// test iterate by the key ranges
+			S3PartitionedListingIterator iterator2 = repository.iterateParallel(
+					null, Arrays.asList("css/z", "j", "js/e.js"), false);
+			List<String> keys2 = new ArrayList<String>();
+			while (iterator2.hasNext()) {
+				keys2.add(iterator2.next().getKey());
+			}
+			Collections.sort(keys2);
+			assertEquals(keys, keys2);
+
+			// test iterate with prefix
+			S3PartitionedListingIterator iterator3 = repository.iterateParallel("js/", "/", 4, true);
+			assertEquals("js/d.js", iterator3.next().getKey());
+			assertEquals("js/e.js", iterator3.next().getKey());
+			assertEquals("js/lib/f.js", iterator3.next().getKey());
+			assertFalse(iterator3.hasNext());
+		}finally{
+			repository.purge();
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testListWithMetadataPrefetch() throws IOException {
+		Blobstore blobstore = blobstoreManager.getDefault();
+
+		// check bucket first
+		if (!blobstore.exist(testRepositoryName2)){
+			blobstore.create(testRepositoryName2);
+		}
+
+		S3MetadataPrefetcher metadataPrefetcher = new S3MetadataPrefetcher(
+				clientFactory.getClient(), 4, null);
+
+		S3BlobResourceRepository repository = (S3BlobResourceRepository)blobstore.getRepository(testRepositoryName2);
+		repository.setMetadataPrefetcher(metadataPrefetcher);
+		repository.purge();
+
+		Map<String, Object> meta1 = new HashMap<String, Object>();
+		meta1.put("name", "foo");
+
+		writeContent(repository, "f001", "body {}", "text/css", meta1);
+		writeContent(repository, "f002", "var a;", "text/javascript");
+
+		try{
+			// the listing does not prefetch by default
+			PartialCollection<BlobResourceInfo> blobs1 = repository.list();
+			assertEquals(2, blobs1.size());
+			assertFalse(((S3PartialArrayList<BlobResourceInfo>)blobs1).isPrefetch());
+
+			blobs1 = repository.list(null, null, true);
+			assertEquals(2, blobs1.size());
+
+			for (BlobResourceInfo info : blobs1) {
+				if (info.getKey().equals("f001")) {
+					assertEquals("text/css", info.getMimeType());
+					assertEquals("foo", info.getMetadata().get("name"));
+				}else{
+					assertEquals("text/javascript", info.getMimeType());
+					assertNull(info.getMetadata());
+				}
+			}
+
+			S3ListingIterator iterator1 = repository.iterate(null, null, true);
+			assertEquals("text/css", iterator1.next().getMimeType());
+			assertEquals("text/javascript", iterator1.next().getMimeType());
+		}finally{
+			repository.purge();
+			metadataPrefetcher.close();
+		}
+	}
+
+	@Test
+	public void testGetRepositoryCached() throws Exception {
+		String cacheDirectory = clientFactory.getCacheDirectory();
+		File directory = new File(System.getProperty("java.io.tmpdir"), "clobaframe-s3-blobstore-cache-test");
+		clientFactory.setCacheDirectory(directory.getPath());
+
+		S3Blobstore blobstore = createBlobstore();
+		try{
+			BlobResourceRepository repository = blobstore.getRepository(testRepositoryName1);
+			assertTrue(repository instanceof S3CachedBlobResourceRepository);
+
+			checkRepository(repository, "rc001", "hello world", null);
+		}finally{
+			blobstore.destroy();
+			clientFactory.setCacheDirectory(cacheDirectory);
+		}
+	}
+
+	@Test
+	public void testGetRepositoryPacked() throws Exception {
+		long packThreshold = clientFactory.getPackThreshold();
+		clientFactory.setPackThreshold(1024);
+
+		S3Blobstore blobstore = createBlobstore();
+		try{
+			BlobResourceRepository repository = blobstore.getRepository(testRepositoryName1);
+			assertTrue(repository instanceof S3PackedBlobResourceRepository);
+
+			String key1 = "rp001";
+			writeContent(repository, key1, "hello", "text/plain");
+			try{
+				assertTrue(repository.get(key1) instanceof S3PackedBlobResourceInfo);
+			}finally{
+				repository.delete(key1);
+			}
+
+			checkRepository(repository, "rp002", "hello world", null);
+		}finally{
+			blobstore.destroy();
+			clientFactory.setPackThreshold(packThreshold);
+		}
+	}
+
+	@Test
+	public void testGetRepositoryPackedAndCached() throws Exception {
+		long packThreshold = clientFactory.getPackThreshold();
+		String cacheDirectory = clientFactory.getCacheDirectory();
+		File directory = new File(System.getProperty("java.io.tmpdir"), "clobaframe-s3-blobstore-cache-test");
+		clientFactory.setPackThreshold(1024);
+		clientFactory.setCacheDirectory(directory.getPath());
+
+		S3Blobstore blobstore = new S3Blobstore();
+		blobstore.setClientFactory(clientFactory);
+		try{
+			// the cache is not ignored silently
+			blobstore.afterPropertiesSet();
+			fail();
+		}catch(IllegalStateException e){
+			// pass
+		}finally{
+			blobstore.destroy();
+			clientFactory.setPackThreshold(packThreshold);
+			clientFactory.setCacheDirectory(cacheDirectory);
+		}
+	}
+
+	@Test
+	public void testGetRepositoryCompressed() throws Exception {
+		String compressionCodec = clientFactory.getCompressionCodec();
+		clientFactory.setCompressionCodec("gzip");
+
+		// larger than the min compression size
+		StringBuilder builder = new StringBuilder();
+		for (int idx = 0; idx < 200; idx++) {
+			builder.append("hello world ");
+		}
+		String content = builder.toString();
+
+		S3Blobstore blobstore = createBlobstore();
+		try{
+			BlobResourceRepository repository = blobstore.getRepository(testRepositoryName1);
+
+			String key1 = "rz001";
+			writeContent(repository, key1, content, "text/plain");
+			try{
+				ObjectMetadata objectMetadata = clientFactory.getClient().getObjectMetadata(
+						testRepositoryName1, key1);
+				assertEquals("gzip", objectMetadata.getContentEncoding());
+				assertTrue(objectMetadata.getContentLength() < content.length());
+			}finally{
+				repository.delete(key1);
+			}
+
+			checkRepository(repository, "rz002", content, null);
+		}finally{
+			blobstore.destroy();
+			clientFactory.setCompressionCodec(compressionCodec);
+		}
+	}
+
+	@Test
+	public void testGetRepositoryWriteBehind() throws Exception {
+		String writeBehindDirectory = clientFactory.getWriteBehindDirectory();
+		File directory = new File(System.getProperty("java.io.tmpdir"), "clobaframe-s3-blobstore-spool-test");
+		clientFactory.setWriteBehindDirectory(directory.getPath());
+
+		S3Blobstore blobstore = createBlobstore();
+		try{
+			BlobResourceRepository repository = blobstore.getRepository(testRepositoryName1);
+			assertTrue(repository instanceof S3WriteBehindBlobResourceRepository);
+
+			checkRepository(repository, "rw001", "hello world", blobstore.getUploadSpool());
+		}finally{
+			blobstore.destroy();
+			clientFactory.setWriteBehindDirectory(writeBehindDirectory);
+		}
+	}
+
+	public void testListNext() {
+		//
+	}
+
+	private void writeContent(
+			BlobResourceRepository repository,
+			String key,
+			String content,
+			String mimeType //,
+			//Date lastModified
+			) throws IOException{
+		writeContent(repository, key, content, mimeType, null); // lastModified, null);
+	}
+
+	private void writeContent(
+			BlobResourceRepository repository,
+			String key,
+			String content,
+			String mimeType,
+			//Date lastModified,
+			Map<String, Object> metadata) throws IOException{
+		
+		byte[] data = content.getBytes();
+		BlobResourceInfo blobResourceInfo = blobResourceInfoFactory.make(
+				testRepositoryName1, key, data, mimeType, null, metadata);
+		repository.put(blobResourceInfo);
+	}
+
+	private String readContent(
+			BlobResourceInfo blob) throws IOException{
+		InputStream in = blob.getContent();
+		String content = IOUtils.toString(in);
+		in.close();
+		return content;
+	}
+
+	private String readContent(
+			BlobResourceInfo blob, long start, long length) throws IOException{
+		InputStream in = blob.getContent(start, length);
+		String content = IOUtils.toString(in);
+		in.close();
+		return content;
+	}
+
+	private String getStoredChecksum(String key) {
+		return clientFactory.getClient().getObjectMetadata(testRepositoryName1, key)
+				.getUserMetadata().get(S3ContentChecksum.CRC32C_KEY);
+	}
+
+	/**
+	 * Create the blobstore by the current settings of the client factory,
+	 * the test repository is created if it does not exist.
+	 */
+	private S3Blobstore createBlobstore() throws Exception {
+		S3Blobstore blobstore = new S3Blobstore();
+		blobstore.setClientFactory(clientFactory);
+		blobstore.afterPropertiesSet();
+
+		if (!blobstore.exist(testRepositoryName1)){
+			blobstore.create(testRepositoryName1);
+		}
+
+		return blobstore;
+	}
+
+	/**
+	 * Put, get, list and delete the blob through the repository.
+	 *
+	 * @param uploadSpool Optional, wait until the spooled blobs are uploaded.
+	 */
+	private void checkRepository(BlobResourceRepository repository, String key,
+			String content, S3UploadSpool uploadSpool) throws IOException, InterruptedException {
+		writeContent(repository, key, content, "text/plain");
+		try{
+			BlobResourceInfo blobResourceInfo1 = repository.get(key);
+			assertEquals(content.length(), blobResourceInfo1.getContentLength());
+			assertEquals(content, readContent(blobResourceInfo1));
+			assertEquals(content, readContent(repository.get(key)));
+			assertEquals(content.substring(1, 4), readContent(repository.get(key), 1, 3));
+
+			if (uploadSpool != null) {
+				assertTrue(uploadSpool.awaitDrained(60 * 1000));
+			}
+
+			assertContainsKey(repository.list(), key);
+		}finally{
+			repository.delete(key);
+		}
+
+		if (uploadSpool != null) {
+			assertTrue(uploadSpool.awaitDrained(60 * 1000));
+		}
+
+		assertNull(repository.get(key));
 	}
 
 	